@@ -0,0 +1,45 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the source and loading hot paths and writes the
+ * results as JSON, to be compared from release to release.
+ * <p>
+ * Usage: {@code BenchmarkRunner [result.json [benchmark regex ...]]}. The
+ * result file defaults to {@value #DEFAULT_RESULT}, the benchmarks to
+ * {@link #HOT_PATHS}.
+ */
+public class BenchmarkRunner
+{
+	public static final String DEFAULT_RESULT = "n5-viewer-benchmarks.json";
+
+	public static final List< Class< ? > > HOT_PATHS = Arrays.asList(
+			SourceOpenBenchmark.class,
+			SourceAccessBenchmark.class,
+			SamplingBenchmark.class,
+			BlockLoadBenchmark.class );
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final ChainedOptionsBuilder options = new OptionsBuilder()
+				.resultFormat( ResultFormatType.JSON )
+				.result( args.length > 0 ? args[ 0 ] : DEFAULT_RESULT );
+
+		if ( args.length > 1 )
+			for ( int i = 1; i < args.length; ++i )
+				options.include( args[ i ] );
+		else
+			for ( final Class< ? > benchmark : HOT_PATHS )
+				options.include( benchmark.getSimpleName() );
+
+		new Runner( options.build() ).run();
+	}
+}
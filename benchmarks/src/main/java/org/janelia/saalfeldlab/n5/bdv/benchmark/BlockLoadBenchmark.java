@@ -0,0 +1,137 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.util.Intervals;
+
+/**
+ * Block-load throughput of a local dataset (256x256x256) through the
+ * {@link SharedCellCache}, loading every block in turn on the benchmark
+ * thread. {@code cold} opens the dataset in a new cache before every
+ * invocation, so that every block is read and decoded; the container is still
+ * in the page cache. {@code warm} loads the blocks of an image whose blocks
+ * are all in the cache already.
+ * <p>
+ * Besides the invocations, the {@code blocks} and {@code megabytes} counters
+ * report the blocks and the decoded megabytes per second.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class BlockLoadBenchmark
+{
+	private static final String DATASET = "volume/s0";
+
+	@Param( { "cold", "warm" } )
+	public String cache;
+
+	@Param( { "uint8", "uint16", "float32" } )
+	public String dataType;
+
+	@Param( { "32", "64", "128" } )
+	public int blockSize;
+
+	@Param( { "raw", "gzip", "lz4" } )
+	public String compression;
+
+	private N5FSWriter n5;
+
+	private CachedCellImg< ?, ? > img;
+
+	private long numCells;
+
+	private double megabytes;
+
+	@AuxCounters( AuxCounters.Type.OPERATIONS )
+	@State( Scope.Thread )
+	public static class Counters
+	{
+		public long blocks;
+
+		public double megabytes;
+
+		@Setup( Level.Iteration )
+		public void reset()
+		{
+			blocks = 0;
+			megabytes = 0;
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException, ExecutionException
+	{
+		final DataType type = DataType.fromString( dataType );
+		n5 = SyntheticN5.createContainer();
+		SyntheticN5.writeMultiscale(
+				n5,
+				"volume",
+				new long[] { 256, 256, 256 },
+				new int[] { blockSize, blockSize, blockSize },
+				1,
+				type,
+				SyntheticN5.compression( compression ) );
+
+		open();
+		numCells = Intervals.numElements( img.getCellGrid().getGridDimensions() );
+		// the bits per element are in the name of the data type
+		final int bytesPerElement = Integer.parseInt( dataType.replaceAll( "\\D", "" ) ) / 8;
+		megabytes = Intervals.numElements( img ) * ( double ) bytesPerElement / ( 1 << 20 );
+		if ( cache.equals( "warm" ) )
+			load();
+	}
+
+	@Setup( Level.Invocation )
+	public void open() throws IOException
+	{
+		if ( img == null || cache.equals( "cold" ) )
+			img = new SharedCellCache( Long.MAX_VALUE ).openVolatile( n5, DATASET );
+	}
+
+	@Benchmark
+	public void loadAll( final Counters counters ) throws ExecutionException
+	{
+		load();
+		counters.blocks += numCells;
+		counters.megabytes += megabytes;
+	}
+
+	private void load() throws ExecutionException
+	{
+		for ( long i = 0; i < numCells; ++i )
+			img.getCache().get( i );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( BlockLoadBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
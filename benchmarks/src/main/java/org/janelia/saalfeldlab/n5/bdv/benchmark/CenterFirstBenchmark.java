@@ -0,0 +1,155 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.janelia.saalfeldlab.n5.bdv.FetchQueue;
+import org.janelia.saalfeldlab.n5.bdv.ViewerFetchPriority;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Time until the blocks in the center of the screen are loaded, when all
+ * blocks of the screen are requested at once in random order and every load
+ * takes a fixed latency. {@code fifo} loads in the order of the requests,
+ * {@code viewer} loads the blocks closest to the center first, as the
+ * {@link ViewerFetchPriority} of the viewer does.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class CenterFirstBenchmark
+{
+	@Param( { "fifo", "viewer" } )
+	public String priority;
+
+	@Param( { "10" } )
+	public int latencyMillis;
+
+	@Param( { "4" } )
+	public int numThreads;
+
+	/**
+	 * The screen shows {@code screenBlocks x screenBlocks} blocks, the
+	 * center is a quarter of that in each dimension.
+	 */
+	@Param( { "16" } )
+	public int screenBlocks;
+
+	private static final int BLOCK_SIZE = 64;
+
+	private CellGrid grid;
+
+	private FetchQueue queue;
+
+	private ExecutorService dispatchers;
+
+	private final List< Long > requestOrder = new ArrayList<>();
+
+	private final List< Future< ? > > inFlight = new ArrayList<>();
+
+	@Setup
+	public void setup()
+	{
+		final long size = ( long ) screenBlocks * BLOCK_SIZE;
+		grid = new CellGrid( new long[] { size, size, 1 }, new int[] { BLOCK_SIZE, BLOCK_SIZE, 1 } );
+
+		if ( priority.equals( "viewer" ) )
+		{
+			final ViewerFetchPriority viewerPriority = new ViewerFetchPriority();
+			viewerPriority.register( 0, grid, new AffineTransform3D(), 0, 1 );
+			viewerPriority.setView( new AffineTransform3D(), ( int ) size, ( int ) size );
+			queue = new FetchQueue( numThreads, viewerPriority );
+		}
+		else
+			queue = new FetchQueue( numThreads, FetchQueue.FIFO );
+
+		// one dispatcher per block, like the fetcher threads of the shared queue
+		dispatchers = Executors.newFixedThreadPool( screenBlocks * screenBlocks );
+
+		for ( long i = 0; i < screenBlocks * screenBlocks; ++i )
+			requestOrder.add( i );
+		Collections.shuffle( requestOrder, new Random( 1 ) );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		dispatchers.shutdownNow();
+		queue.shutdown();
+	}
+
+	@Benchmark
+	public void centerComplete() throws InterruptedException
+	{
+		final int lo = screenBlocks * 3 / 8;
+		final int hi = screenBlocks * 5 / 8;
+		final CountDownLatch center = new CountDownLatch( ( hi - lo ) * ( hi - lo ) );
+		final long latencyNanos = TimeUnit.MILLISECONDS.toNanos( latencyMillis );
+
+		for ( final long index : requestOrder )
+		{
+			final long x = index % screenBlocks;
+			final long y = index / screenBlocks;
+			final boolean isCenter = x >= lo && x < hi && y >= lo && y < hi;
+			inFlight.add( dispatchers.submit( () -> {
+				queue.fetch( 0, index, () -> {
+					LockSupport.parkNanos( latencyNanos );
+					return null;
+				} );
+				if ( isCenter )
+					center.countDown();
+				return null;
+			} ) );
+		}
+		center.await();
+	}
+
+	/**
+	 * Wait for the blocks outside the center, so that they do not compete
+	 * with the next invocation.
+	 */
+	@TearDown( Level.Invocation )
+	public void drain() throws InterruptedException, ExecutionException
+	{
+		for ( final Future< ? > future : inFlight )
+			future.get();
+		inFlight.clear();
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( CenterFirstBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
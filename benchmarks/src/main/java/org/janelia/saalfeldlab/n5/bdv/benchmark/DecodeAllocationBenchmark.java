@@ -0,0 +1,92 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.bdv.BlockBufferPool;
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.util.Intervals;
+
+/**
+ * Allocation rate of loading every block of a uint16 dataset with blocks of
+ * 128x128x128 voxels, with new decode buffers for every block
+ * ({@code none}) and with buffers from a {@link BlockBufferPool}
+ * ({@code pooled}). Run with the GC
+ * profiler; {@code gc.alloc.rate.norm} is the number of bytes allocated per
+ * load of the dataset. The arrays of the cells are allocated in both cases.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class DecodeAllocationBenchmark
+{
+	@Param( { "none", "pooled" } )
+	public String buffers;
+
+	private static final String DATASET = "volume/s0";
+
+	private N5FSWriter n5;
+
+	private BlockBufferPool pool;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		n5 = SyntheticN5.createContainer();
+		SyntheticN5.writeMultiscale( n5, "volume", new long[] { 512, 512, 128 }, new int[] { 128, 128, 128 }, 1, new GzipCompression() );
+		pool = buffers.equals( "pooled" ) ? new BlockBufferPool( 64L << 20 ) : null;
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		if ( pool != null )
+			System.out.println( "\n" + pool );
+	}
+
+	@Benchmark
+	public long loadAll() throws IOException, ExecutionException
+	{
+		// a new cache per invocation, so that every block is loaded
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		cache.setBufferPool( pool );
+		final CachedCellImg< ?, ? > img = cache.openVolatile( n5, DATASET );
+
+		final long numCells = Intervals.numElements( img.getCellGrid().getGridDimensions() );
+		for ( long i = 0; i < numCells; ++i )
+			img.getCache().get( i );
+		return cache.getSizeInBytes();
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( DecodeAllocationBenchmark.class.getSimpleName() )
+				.addProfiler( GCProfiler.class )
+				.build() ).run();
+	}
+}
@@ -0,0 +1,143 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.bdv.FetchQueue;
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache;
+import org.janelia.saalfeldlab.n5.bdv.SimulatedRemoteN5Reader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.util.Intervals;
+
+/**
+ * Time to load every block of a dataset through a {@link FetchQueue} from a
+ * {@link SimulatedRemoteN5Reader}, with a latency and optionally jitter and
+ * limited bandwidth, as the viewer does when it fills an empty screen. All blocks are requested at once by as many
+ * threads as the {@link bdv.util.volatiles.SharedQueue} of the viewer has.
+ *
+ * {@code fixed} uses half the processors as the viewer did before,
+ * {@code adaptive} adapts the number of workers between 1 and 64, and
+ * {@code virtual} between 1 and 256 on virtual threads (Java 21). The queue
+ * lives for the whole trial, so the adaptive queues have settled after the
+ * warmup.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class FetchConcurrencyBenchmark
+{
+	@Param( { "0", "20" } )
+	public int latencyMillis;
+
+	@Param( { "0" } )
+	public int jitterMillis;
+
+	/**
+	 * 0 does not limit the bandwidth.
+	 */
+	@Param( { "0" } )
+	public int bandwidthMBps;
+
+	@Param( { "fixed", "adaptive", "virtual" } )
+	public String concurrency;
+
+	private static final String DATASET = "volume/s0";
+
+	private static final int NUM_DISPATCHERS = 128;
+
+	private N5Reader n5;
+
+	private FetchQueue queue;
+
+	private ExecutorService dispatchers;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		final N5FSWriter writer = SyntheticN5.createContainer();
+		SyntheticN5.writeMultiscale( writer, "volume", new long[] { 512, 512, 128 }, new int[] { 32, 32, 32 }, 1, new GzipCompression() );
+		n5 = new SimulatedRemoteN5Reader( writer, SimulatedRemoteN5Reader.Conditions.conditions()
+				.latency( latencyMillis, TimeUnit.MILLISECONDS )
+				.jitter( jitterMillis, TimeUnit.MILLISECONDS )
+				.bandwidthInMBPerSecond( bandwidthMBps ) );
+
+		final int processors = Runtime.getRuntime().availableProcessors();
+		if ( concurrency.equals( "fixed" ) )
+			queue = new FetchQueue( Math.max( 1, processors / 2 ) );
+		else if ( concurrency.equals( "adaptive" ) )
+			queue = new FetchQueue( 1, 64, FetchQueue.FIFO, null );
+		else
+		{
+			final ThreadFactory factory = FetchQueue.virtualThreadFactory();
+			if ( factory == null )
+				throw new IllegalStateException( "virtual threads need Java 21" );
+			queue = new FetchQueue( 1, 256, FetchQueue.FIFO, factory );
+		}
+
+		dispatchers = Executors.newFixedThreadPool( NUM_DISPATCHERS );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		System.out.println( "\n" + queue );
+		dispatchers.shutdownNow();
+		queue.shutdown();
+	}
+
+	@Benchmark
+	public int loadAll() throws IOException, InterruptedException, ExecutionException
+	{
+		// a new cache per invocation, so that every block is loaded
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		cache.setFetchQueue( queue );
+		final CachedCellImg< ?, ? > img = cache.openVolatile( n5, DATASET );
+
+		final long numCells = Intervals.numElements( img.getCellGrid().getGridDimensions() );
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( long i = 0; i < numCells; ++i )
+		{
+			final long index = i;
+			futures.add( dispatchers.submit( () -> img.getCache().get( index ) ) );
+		}
+		for ( final Future< ? > future : futures )
+			future.get();
+		return queue.getNumThreads();
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( FetchConcurrencyBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
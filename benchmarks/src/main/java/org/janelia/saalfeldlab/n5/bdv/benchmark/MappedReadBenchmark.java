@@ -0,0 +1,134 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.bdv.BlockBufferPool;
+import org.janelia.saalfeldlab.n5.bdv.BlockPipeline;
+import org.janelia.saalfeldlab.n5.bdv.FetchQueue;
+import org.janelia.saalfeldlab.n5.bdv.MappedBlockCache;
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.util.Intervals;
+
+/**
+ * Time to load every block of a local uint16 dataset of 512 MB, with block
+ * files read through streams ({@code stream}) and memory mapped
+ * ({@code mapped}), uncompressed and lz4 compressed. Blocks are fetched and
+ * decoded in the two stages of a {@link BlockPipeline} into pooled buffers.
+ * The container is in the page cache after the first iteration; drop the
+ * page cache between iterations to measure the storage instead.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class MappedReadBenchmark
+{
+	@Param( { "stream", "mapped" } )
+	public String reads;
+
+	@Param( { "raw", "lz4" } )
+	public String compression;
+
+	@Param( { "8" } )
+	public int fetchThreads;
+
+	private static final String DATASET = "volume/s0";
+
+	private N5FSWriter n5;
+
+	private BlockPipeline pipeline;
+
+	private BlockBufferPool pool;
+
+	private MappedBlockCache mappedBlocks;
+
+	private FetchQueue queue;
+
+	private ExecutorService dispatchers;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		final Compression c = compression.equals( "lz4" ) ? new Lz4Compression() : new RawCompression();
+		n5 = SyntheticN5.createContainer();
+		SyntheticN5.writeMultiscale( n5, "volume", new long[] { 1024, 1024, 256 }, new int[] { 128, 128, 128 }, 1, c );
+
+		pipeline = new BlockPipeline();
+		pool = new BlockBufferPool( 256L << 20 );
+		mappedBlocks = reads.equals( "mapped" ) ? new MappedBlockCache() : null;
+		queue = new FetchQueue( fetchThreads );
+		dispatchers = Executors.newFixedThreadPool( 64 );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		System.out.println( "\n" + pipeline );
+		if ( mappedBlocks != null )
+			System.out.println( mappedBlocks );
+		pipeline.shutdown();
+		dispatchers.shutdownNow();
+		queue.shutdown();
+	}
+
+	@Benchmark
+	public void loadAll() throws IOException, InterruptedException, ExecutionException
+	{
+		// a new cache per invocation, so that every block is loaded
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		cache.setFetchQueue( queue );
+		cache.setBlockPipeline( pipeline );
+		cache.setBufferPool( pool );
+		cache.setMappedBlockCache( mappedBlocks );
+		// block files are only mapped for read-only containers
+		final CachedCellImg< ?, ? > img = cache.openVolatile( new N5FSReader( n5.getBasePath() ), DATASET );
+
+		final long numCells = Intervals.numElements( img.getCellGrid().getGridDimensions() );
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( long i = 0; i < numCells; ++i )
+		{
+			final long index = i;
+			futures.add( dispatchers.submit( () -> img.getCache().get( index ) ) );
+		}
+		for ( final Future< ? > future : futures )
+			future.get();
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( MappedReadBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
@@ -0,0 +1,97 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.bdv.DatasetOpener;
+import org.janelia.saalfeldlab.n5.bdv.DatasetRegistry;
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache;
+import org.janelia.saalfeldlab.n5.bdv.SimulatedRemoteN5Reader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.cache.img.CachedCellImg;
+
+/**
+ * Time to open every scale level of a multichannel pyramid (8 channels, 10
+ * levels) through a {@link SimulatedRemoteN5Reader} that adds a fixed
+ * latency to every request. {@code numThreads = 1} is the sequential opening
+ * that the viewer did before, larger values open the levels concurrently as
+ * {@link org.janelia.saalfeldlab.n5.bdv.N5Viewer#buildN5Sources} does now.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class OpenSourcesBenchmark
+{
+	@Param( { "0", "20" } )
+	public int latencyMillis;
+
+	@Param( { "1", "4", "16" } )
+	public int numThreads;
+
+	@Param( { "8" } )
+	public int numChannels;
+
+	@Param( { "10" } )
+	public int numLevels;
+
+	private N5Reader n5;
+
+	private final List< String > datasets = new ArrayList<>();
+
+	@Setup
+	public void setup() throws IOException
+	{
+		final N5FSWriter writer = SyntheticN5.createContainer();
+		for ( int c = 0; c < numChannels; ++c )
+			for ( final String path : SyntheticN5.writeMultiscale( writer, "c" + c, new long[] { 1024, 1024, 16 }, new int[] { 64, 64, 16 }, numLevels, new GzipCompression() ) )
+				datasets.add( path );
+
+		n5 = new SimulatedRemoteN5Reader( writer, SimulatedRemoteN5Reader.Conditions.conditions().latency( latencyMillis, TimeUnit.MILLISECONDS ) );
+	}
+
+	@Benchmark
+	public List< CachedCellImg< ?, ? > > openAll() throws IOException
+	{
+		final List< CachedCellImg< ?, ? > > images = new ArrayList<>();
+		try ( final DatasetOpener opener = new DatasetOpener( new DatasetRegistry( new SharedCellCache( Long.MAX_VALUE ) ), numThreads ) )
+		{
+			final List< Future< CachedCellImg< ?, ? > > > futures = new ArrayList<>();
+			for ( final String dataset : datasets )
+				futures.add( opener.openVolatile( n5, dataset ) );
+
+			for ( final Future< CachedCellImg< ?, ? > > future : futures )
+				images.add( DatasetOpener.get( future ) );
+		}
+		return images;
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( OpenSourcesBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
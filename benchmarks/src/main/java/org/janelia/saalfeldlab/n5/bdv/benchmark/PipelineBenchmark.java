@@ -0,0 +1,142 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.bdv.BlockPipeline;
+import org.janelia.saalfeldlab.n5.bdv.CompressedBlockStore;
+import org.janelia.saalfeldlab.n5.bdv.FetchQueue;
+import org.janelia.saalfeldlab.n5.bdv.PipelinedN5Reader;
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache;
+import org.janelia.saalfeldlab.n5.bdv.SimulatedRemoteN5Reader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.util.Intervals;
+
+/**
+ * Time to load every block of a gzip compressed dataset with a fixed number
+ * of fetch threads, on a local container ({@code latencyMillis = 0}) and
+ * with a latency added to every raw read. {@code single} reads and decodes
+ * each block on a fetch thread, {@code pipelined} reads on the fetch threads
+ * and decodes on one decoder per processor. {@code remote} reads through a
+ * reader that does not expose raw blocks, like a remote container, and
+ * {@code stored} does the same with a compressed block store, which stores
+ * every block that is read for the first time.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class PipelineBenchmark
+{
+	@Param( { "0", "5" } )
+	public int latencyMillis;
+
+	@Param( { "single", "pipelined", "remote", "stored" } )
+	public String stages;
+
+	@Param( { "8" } )
+	public int fetchThreads;
+
+	private static final String DATASET = "volume/s0";
+
+	private N5Reader n5;
+
+	private BlockPipeline pipeline;
+
+	private FetchQueue queue;
+
+	private ExecutorService dispatchers;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		final N5FSWriter writer = SyntheticN5.createContainer();
+		SyntheticN5.writeMultiscale( writer, "volume", new long[] { 512, 512, 128 }, new int[] { 64, 64, 64 }, 1, new GzipCompression() );
+
+		pipeline = stages.equals( "pipelined" ) ? new BlockPipeline() : null;
+		final long latencyNanos = TimeUnit.MILLISECONDS.toNanos( latencyMillis );
+		if ( stages.equals( "remote" ) || stages.equals( "stored" ) )
+			n5 = new SimulatedRemoteN5Reader( writer, SimulatedRemoteN5Reader.Conditions.conditions().latency( latencyMillis, TimeUnit.MILLISECONDS ) );
+		else
+			n5 = new PipelinedN5Reader( writer, pipeline )
+			{
+				@Override
+				protected byte[] readRaw( final String pathName, final long... gridPosition ) throws IOException
+				{
+					if ( latencyNanos > 0 )
+						LockSupport.parkNanos( latencyNanos );
+					return super.readRaw( pathName, gridPosition );
+				}
+			};
+		queue = new FetchQueue( fetchThreads );
+		dispatchers = Executors.newFixedThreadPool( 64 );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		if ( pipeline != null )
+		{
+			System.out.println( "\n" + pipeline );
+			pipeline.shutdown();
+		}
+		dispatchers.shutdownNow();
+		queue.shutdown();
+	}
+
+	@Benchmark
+	public void loadAll() throws IOException, InterruptedException, ExecutionException
+	{
+		// a new cache per invocation, so that every block is loaded
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		cache.setFetchQueue( queue );
+		if ( stages.equals( "stored" ) )
+			cache.setCompressedBlockStore( new CompressedBlockStore( 1L << 30 ) );
+		final CachedCellImg< ?, ? > img = cache.openVolatile( n5, DATASET );
+
+		final long numCells = Intervals.numElements( img.getCellGrid().getGridDimensions() );
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( long i = 0; i < numCells; ++i )
+		{
+			final long index = i;
+			futures.add( dispatchers.submit( () -> img.getCache().get( index ) ) );
+		}
+		for ( final Future< ? > future : futures )
+			future.get();
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( PipelineBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
@@ -0,0 +1,101 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.bdv.HeadlessRenderer;
+import org.janelia.saalfeldlab.n5.bdv.HeadlessRenderer.FrameStats;
+import org.janelia.saalfeldlab.n5.bdv.NavigationPath;
+import org.janelia.saalfeldlab.n5.bdv.N5Viewer;
+import org.janelia.saalfeldlab.n5.bdv.N5ViewerOptions;
+import org.janelia.saalfeldlab.n5.bdv.SimulatedRemoteN5Reader;
+import org.janelia.saalfeldlab.n5.ui.DataSelection;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Frame times of an {@link N5Viewer} without a window, rendered by the
+ * {@link HeadlessRenderer} along a scripted navigation path: zoom in, pan,
+ * scroll through slices, rotate and zoom out again. The data is a local
+ * uint16 pyramid (1024x1024x256, 5 levels, gzip), read as a remote container
+ * through a {@link SimulatedRemoteN5Reader}. Prints the render time, the time
+ * until the frame is complete and the blocks loaded for every frame, and a
+ * summary.
+ * <p>
+ * Usage: {@code RenderBenchmark [frame interval ms]}. Without a frame
+ * interval, every frame is rendered until it is complete. The conditions of
+ * the remote container are read from the system properties, see
+ * {@link SimulatedRemoteN5Reader.Conditions#fromSystemProperties()}, and
+ * default to a latency of 20 ms.
+ * <p>
+ * The viewer panel creates Swing components, so this needs a display, e.g.
+ * Xvfb, even though nothing is shown.
+ */
+public class RenderBenchmark
+{
+	private static final int WIDTH = 800;
+
+	private static final int HEIGHT = 600;
+
+	public static void main( final String... args ) throws IOException
+	{
+		final long frameIntervalMillis = args.length > 0 ? Long.parseLong( args[ 0 ] ) : 0;
+		SimulatedRemoteN5Reader.Conditions conditions = SimulatedRemoteN5Reader.Conditions.fromSystemProperties();
+		if ( conditions == null )
+			conditions = SimulatedRemoteN5Reader.Conditions.conditions().latency( 20, TimeUnit.MILLISECONDS );
+
+		final N5FSWriter n5 = SyntheticN5.createContainer();
+		final String[] paths = SyntheticN5.writeMultiscale( n5, "volume", new long[] { 1024, 1024, 256 }, new int[] { 64, 64, 64 }, 5, new GzipCompression() );
+		final DataSelection selection = SyntheticN5.select( n5, "volume", paths );
+		final N5Viewer viewer = new N5Viewer( null, selection, false, N5ViewerOptions.options().simulatedRemote( conditions ) );
+
+		final List< FrameStats > frames;
+		try ( final HeadlessRenderer renderer = new HeadlessRenderer( viewer, WIDTH, HEIGHT ) )
+		{
+			renderer.setFrameInterval( frameIntervalMillis, TimeUnit.MILLISECONDS );
+			final List< AffineTransform3D > path = new NavigationPath( renderer.initialTransform(), WIDTH, HEIGHT )
+					.hold( 1 )
+					.zoom( 8, 30 )
+					.pan( 600, 200, 60 )
+					.scroll( 64, 32 )
+					.rotate( 1, Math.PI / 4, 30 )
+					.zoom( 0.125, 30 )
+					.getTransforms();
+			frames = renderer.replay( path );
+		}
+
+		System.out.println( "frame\trender ms\tcomplete ms\tblocks\tpaints" );
+		for ( int i = 0; i < frames.size(); ++i )
+		{
+			final FrameStats frame = frames.get( i );
+			System.out.println( String.format( "%d\t%.2f\t%s\t%d\t%d",
+					i,
+					frame.getRenderNanos() / 1e6,
+					frame.isComplete() ? String.format( "%.2f", frame.getCompleteNanos() / 1e6 ) : "-",
+					frame.getBlocksLoaded(),
+					frame.getNumPaints() ) );
+		}
+
+		final double[] render = frames.stream().mapToDouble( f -> f.getRenderNanos() / 1e6 ).sorted().toArray();
+		final double[] complete = frames.stream().filter( FrameStats::isComplete ).mapToDouble( f -> f.getCompleteNanos() / 1e6 ).sorted().toArray();
+		System.out.println();
+		System.out.println( String.format( "render ms:   median %.2f, 95%% %.2f, max %.2f", percentile( render, 0.5 ), percentile( render, 0.95 ), percentile( render, 1 ) ) );
+		System.out.println( String.format( "complete ms: median %.2f, 95%% %.2f, max %.2f (%d of %d frames complete)", percentile( complete, 0.5 ), percentile( complete, 0.95 ), percentile( complete, 1 ), complete.length, frames.size() ) );
+		System.out.println( "blocks loaded: " + frames.stream().mapToLong( FrameStats::getBlocksLoaded ).sum() );
+		System.out.println( "remote: " + conditions );
+		System.out.println( viewer.getCache() );
+		System.out.println( viewer.getFetchQueue() );
+		viewer.close();
+		System.exit( 0 );
+	}
+
+	static double percentile( final double[] sorted, final double p )
+	{
+		if ( sorted.length == 0 )
+			return Double.NaN;
+		return sorted[ Math.min( sorted.length - 1, ( int ) Math.ceil( p * sorted.length ) - 1 ) ];
+	}
+}
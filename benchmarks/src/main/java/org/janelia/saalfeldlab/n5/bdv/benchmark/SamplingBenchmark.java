@@ -0,0 +1,150 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Random-access sampling throughput, in samples per microsecond, of the
+ * finest level of a source whose blocks are all in memory: integer positions
+ * through {@link Source#getSource}, and real positions through
+ * {@link Source#getInterpolatedSource} with nearest-neighbor and linear
+ * interpolation. The positions are spread over the whole image, so most
+ * samples fall into a different block than the previous one.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SamplingBenchmark
+{
+	private static final int NUM_SAMPLES = 1 << 16;
+
+	private static final long SIZE = 256;
+
+	@Param( { "n5", "metadata" } )
+	public String source;
+
+	@Param( { "uint8", "uint16", "float32" } )
+	public String dataType;
+
+	@Param( { "32", "128" } )
+	public int blockSize;
+
+	private RandomAccessibleInterval< ? extends RealType< ? > > image;
+
+	private RealRandomAccessible< ? extends RealType< ? > > nearest;
+
+	private RealRandomAccessible< ? extends RealType< ? > > linear;
+
+	private final long[][] positions = new long[ NUM_SAMPLES ][ 3 ];
+
+	private final double[][] realPositions = new double[ NUM_SAMPLES ][ 3 ];
+
+	@SuppressWarnings( "unchecked" )
+	@Setup
+	public void setup() throws IOException
+	{
+		final N5FSWriter n5 = SyntheticN5.createContainer();
+		final String[] paths = SyntheticN5.writeMultiscale(
+				n5,
+				"volume",
+				new long[] { SIZE, SIZE, SIZE },
+				new int[] { blockSize, blockSize, blockSize },
+				1,
+				DataType.fromString( dataType ),
+				SyntheticN5.compression( "raw" ) );
+
+		final Source< ? > s = SyntheticN5.openSources( source, n5, paths, new SharedQueue( 1 ) )[ 0 ];
+		image = ( RandomAccessibleInterval< ? extends RealType< ? > > ) s.getSource( 0, 0 );
+		nearest = ( RealRandomAccessible< ? extends RealType< ? > > ) s.getInterpolatedSource( 0, 0, Interpolation.NEARESTNEIGHBOR );
+		linear = ( RealRandomAccessible< ? extends RealType< ? > > ) s.getInterpolatedSource( 0, 0, Interpolation.NLINEAR );
+
+		final Random rnd = new Random( 1 );
+		for ( int i = 0; i < NUM_SAMPLES; ++i )
+			for ( int d = 0; d < 3; ++d )
+			{
+				realPositions[ i ][ d ] = rnd.nextDouble() * ( SIZE - 1 );
+				positions[ i ][ d ] = ( long ) realPositions[ i ][ d ];
+			}
+
+		// load every block before measuring
+		randomAccess();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_SAMPLES )
+	public double randomAccess()
+	{
+		final RandomAccess< ? extends RealType< ? > > access = image.randomAccess();
+		double sum = 0;
+		for ( final long[] position : positions )
+		{
+			access.setPosition( position );
+			sum += access.get().getRealDouble();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_SAMPLES )
+	public double nearestNeighbor()
+	{
+		return sample( nearest );
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_SAMPLES )
+	public double nLinear()
+	{
+		return sample( linear );
+	}
+
+	private double sample( final RealRandomAccessible< ? extends RealType< ? > > interpolated )
+	{
+		final RealRandomAccess< ? extends RealType< ? > > access = interpolated.realRandomAccess();
+		double sum = 0;
+		for ( final double[] position : realPositions )
+		{
+			access.setPosition( position );
+			sum += access.get().getRealDouble();
+		}
+		return sum;
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( SamplingBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
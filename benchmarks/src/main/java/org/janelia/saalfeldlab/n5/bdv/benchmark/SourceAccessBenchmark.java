@@ -0,0 +1,114 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+
+/**
+ * Cost of {@link Source#getSource} and {@link Source#getInterpolatedSource},
+ * the calls every render pass makes for every level of every visible source,
+ * for the three kinds of source the viewer creates (see
+ * {@link SourceOpenBenchmark}), non-volatile and volatile. Successive calls
+ * go through the levels of the source.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SourceAccessBenchmark
+{
+	@Param( { "multiscale", "n5", "metadata" } )
+	public String source;
+
+	@Param( { "uint16", "float32" } )
+	public String dataType;
+
+	private Source< ? > nonVolatileSource;
+
+	private Source< ? > volatileSource;
+
+	@State( Scope.Thread )
+	public static class ThreadState
+	{
+		int level;
+
+		int nextLevel( final Source< ? > source )
+		{
+			level = ( level + 1 ) % source.getNumMipmapLevels();
+			return level;
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException
+	{
+		final N5FSWriter n5 = SyntheticN5.createContainer();
+		final String[] paths = SyntheticN5.writeMultiscale(
+				n5,
+				"volume",
+				new long[] { 256, 256, 256 },
+				new int[] { 64, 64, 64 },
+				4,
+				DataType.fromString( dataType ),
+				SyntheticN5.compression( "raw" ) );
+
+		final Source< ? >[] sources = SyntheticN5.openSources( source, n5, paths, new SharedQueue( 1 ) );
+		nonVolatileSource = sources[ 0 ];
+		volatileSource = sources[ 1 ];
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< ? > getSource( final ThreadState state )
+	{
+		return nonVolatileSource.getSource( 0, state.nextLevel( nonVolatileSource ) );
+	}
+
+	@Benchmark
+	public RealRandomAccessible< ? > getInterpolatedSource( final ThreadState state )
+	{
+		return nonVolatileSource.getInterpolatedSource( 0, state.nextLevel( nonVolatileSource ), Interpolation.NLINEAR );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< ? > getVolatileSource( final ThreadState state )
+	{
+		return volatileSource.getSource( 0, state.nextLevel( volatileSource ) );
+	}
+
+	@Benchmark
+	public RealRandomAccessible< ? > getVolatileInterpolatedSource( final ThreadState state )
+	{
+		return volatileSource.getInterpolatedSource( 0, state.nextLevel( volatileSource ), Interpolation.NLINEAR );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( SourceAccessBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
@@ -0,0 +1,82 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.viewer.Source;
+
+/**
+ * Time to open a source and its volatile version on a local pyramid
+ * (256x256x256, 4 levels), for the three kinds of source the viewer creates,
+ * see {@link SyntheticN5#openSources}. Opening reads the attributes of the
+ * datasets but no blocks, so the compression is not a parameter here.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SourceOpenBenchmark
+{
+	@Param( { "multiscale", "n5", "metadata" } )
+	public String source;
+
+	@Param( { "uint8", "uint16", "float32" } )
+	public String dataType;
+
+	@Param( { "32", "64", "128" } )
+	public int blockSize;
+
+	private N5FSWriter n5;
+
+	private String[] paths;
+
+	private SharedQueue queue;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		n5 = SyntheticN5.createContainer();
+		paths = SyntheticN5.writeMultiscale(
+				n5,
+				"volume",
+				new long[] { 256, 256, 256 },
+				new int[] { blockSize, blockSize, blockSize },
+				4,
+				DataType.fromString( dataType ),
+				SyntheticN5.compression( "gzip" ) );
+		queue = new SharedQueue( 1 );
+	}
+
+	@Benchmark
+	public Source< ? >[] open() throws IOException
+	{
+		return SyntheticN5.openSources( source, n5, paths, queue );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( SourceOpenBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
@@ -0,0 +1,111 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.bdv.N5Source;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Throughput of {@link N5Source#getSourceTransform} when many render threads
+ * query the same source, compared with a {@code synchronized} implementation
+ * (the behavior before the per-level transforms became immutable snapshots).
+ * <p>
+ * The thread count is set by the runner: {@code -t 8}, {@code -t 16},
+ * {@code -t 32}. {@link #main} runs all three.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SourceTransformBenchmark
+{
+	private static final int NUM_LEVELS = 5;
+
+	private N5Source< UnsignedShortType > source;
+
+	private N5Source< UnsignedShortType > synchronizedSource;
+
+	@State( Scope.Thread )
+	public static class ThreadState
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+
+		int level;
+
+		int nextLevel()
+		{
+			level = ( level + 1 ) % NUM_LEVELS;
+			return level;
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Setup
+	public void setup()
+	{
+		final RandomAccessibleInterval< UnsignedShortType >[] images = new RandomAccessibleInterval[ NUM_LEVELS ];
+		for ( int s = 0; s < NUM_LEVELS; ++s )
+			images[ s ] = ArrayImgs.unsignedShorts( 8, 8, 8 );
+
+		final AffineTransform3D[] transforms = SyntheticN5.scaleTransforms( NUM_LEVELS );
+		source = new N5Source<>( new UnsignedShortType(), "lock-free", images, transforms );
+		synchronizedSource = new SynchronizedN5Source<>( new UnsignedShortType(), "synchronized", images, transforms );
+	}
+
+	@Benchmark
+	public AffineTransform3D lockFree( final ThreadState state )
+	{
+		source.getSourceTransform( 0, state.nextLevel(), state.transform );
+		return state.transform;
+	}
+
+	@Benchmark
+	public AffineTransform3D synchronizedBaseline( final ThreadState state )
+	{
+		synchronizedSource.getSourceTransform( 0, state.nextLevel(), state.transform );
+		return state.transform;
+	}
+
+	static class SynchronizedN5Source< T extends NumericType< T > > extends N5Source< T >
+	{
+		SynchronizedN5Source( final T type, final String name, final RandomAccessibleInterval< T >[] images, final AffineTransform3D[] transforms )
+		{
+			super( type, name, images, transforms );
+		}
+
+		@Override
+		public synchronized void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+		{
+			transform.set( transforms[ level ] );
+		}
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		for ( final int threads : new int[] { 8, 16, 32 } )
+			new Runner( new OptionsBuilder()
+					.include( SourceTransformBenchmark.class.getSimpleName() )
+					.threads( threads )
+					.build() ).run();
+	}
+}
@@ -0,0 +1,211 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.bdv.MultiscaleDatasets;
+import org.janelia.saalfeldlab.n5.bdv.N5Source;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.metadata.MetadataSource;
+import org.janelia.saalfeldlab.n5.metadata.N5MultiScaleMetadata;
+import org.janelia.saalfeldlab.n5.metadata.N5SingleScaleMetadata;
+import org.janelia.saalfeldlab.n5.metadata.N5SingleScaleMetadataParser;
+import org.janelia.saalfeldlab.n5.ui.DataSelection;
+
+import bdv.util.RandomAccessibleIntervalMipmapSource;
+import bdv.util.volatiles.SharedQueue;
+import bdv.viewer.Source;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+
+/**
+ * Synthetic N5 containers for benchmarks. Containers are written to a
+ * temporary directory so that benchmarks do not depend on external data.
+ */
+public class SyntheticN5
+{
+	public static N5FSWriter createContainer() throws IOException
+	{
+		final File dir = Files.createTempDirectory( "n5-viewer-benchmark" ).toFile();
+		dir.deleteOnExit();
+		return new N5FSWriter( dir.getAbsolutePath() );
+	}
+
+	/**
+	 * Writes a uint16 scale pyramid {@code group/s0 ... group/s(numLevels-1)},
+	 * each level downsampled by a factor of two.
+	 *
+	 * @return the dataset paths, finest first
+	 */
+	public static String[] writeMultiscale(
+			final N5Writer n5,
+			final String group,
+			final long[] dimensions,
+			final int[] blockSize,
+			final int numLevels,
+			final Compression compression ) throws IOException
+	{
+		return writePyramid( n5, group, dimensions, blockSize, numLevels, new UnsignedShortType(), compression );
+	}
+
+	/**
+	 * Writes a scale pyramid of the given data type, see
+	 * {@link #writeMultiscale(N5Writer, String, long[], int[], int, Compression)}.
+	 *
+	 * @return the dataset paths, finest first
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static String[] writeMultiscale(
+			final N5Writer n5,
+			final String group,
+			final long[] dimensions,
+			final int[] blockSize,
+			final int numLevels,
+			final DataType dataType,
+			final Compression compression ) throws IOException
+	{
+		return writePyramid( n5, group, dimensions, blockSize, numLevels, ( RealType ) N5Utils.type( dataType ), compression );
+	}
+
+	/**
+	 * Random values in {@code [0, min(2^16, max + 1))}, so that integer
+	 * types of 16 bits or more and floating point types compress alike.
+	 */
+	private static < T extends RealType< T > & NativeType< T > > String[] writePyramid(
+			final N5Writer n5,
+			final String group,
+			final long[] dimensions,
+			final int[] blockSize,
+			final int numLevels,
+			final T type,
+			final Compression compression ) throws IOException
+	{
+		final Random rnd = new Random( 1 );
+		final int range = ( int ) Math.min( 1 << 16, type.getMaxValue() + 1 );
+		final String[] paths = new String[ numLevels ];
+		final long[] levelDimensions = dimensions.clone();
+		for ( int s = 0; s < numLevels; ++s )
+		{
+			final ArrayImg< T, ? > img = new ArrayImgFactory<>( type ).create( levelDimensions );
+			for ( final T t : img )
+				t.setReal( rnd.nextInt( range ) );
+
+			paths[ s ] = group + "/s" + s;
+			N5Utils.save( img, n5, paths[ s ], blockSize, compression );
+
+			for ( int d = 0; d < levelDimensions.length; ++d )
+				levelDimensions[ d ] = Math.max( 1, levelDimensions[ d ] / 2 );
+		}
+		return paths;
+	}
+
+	/**
+	 * @param name {@code raw}, {@code gzip} or {@code lz4}
+	 */
+	public static Compression compression( final String name )
+	{
+		switch ( name )
+		{
+		case "raw":
+			return new RawCompression();
+		case "gzip":
+			return new GzipCompression();
+		case "lz4":
+			return new Lz4Compression();
+		default:
+			throw new IllegalArgumentException( "Unknown compression " + name );
+		}
+	}
+
+	public static AffineTransform3D[] scaleTransforms( final int numLevels )
+	{
+		final AffineTransform3D[] transforms = new AffineTransform3D[ numLevels ];
+		for ( int s = 0; s < numLevels; ++s )
+		{
+			transforms[ s ] = new AffineTransform3D();
+			transforms[ s ].scale( 1 << s );
+		}
+		return transforms;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public static < T extends NumericType< T > & NativeType< T > > N5Source< T > openSource( final N5Reader n5, final String[] paths, final String name ) throws IOException
+	{
+		final RandomAccessibleInterval< T >[] images = new RandomAccessibleInterval[ paths.length ];
+		for ( int s = 0; s < paths.length; ++s )
+			images[ s ] = N5Utils.openVolatile( n5, paths[ s ] );
+
+		return new N5Source<>( Util.getTypeFromInterval( images[ 0 ] ).createVariable(), name, images, scaleTransforms( paths.length ) );
+	}
+
+	/**
+	 * Opens a pyramid as one of the kinds of source the viewer creates:
+	 * {@code multiscale} ({@link MultiscaleDatasets#openAsSource}),
+	 * {@code n5} (an {@link N5Source} of all levels) or {@code metadata} (a
+	 * {@link MetadataSource} of the finest level, which downsamples the
+	 * coarser levels itself).
+	 *
+	 * @return the source and its volatile version
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static Source< ? >[] openSources( final String kind, final N5Reader n5, final String[] paths, final SharedQueue queue ) throws IOException
+	{
+		switch ( kind )
+		{
+		case "multiscale":
+		{
+			final RandomAccessibleIntervalMipmapSource source = ( RandomAccessibleIntervalMipmapSource ) new MultiscaleDatasets( paths, scaleTransforms( paths.length ) ).openAsSource( n5, true, kind );
+			return new Source[] { source, source.asVolatile( queue ) };
+		}
+		case "n5":
+		{
+			final N5Source source = openSource( n5, paths, kind );
+			return new Source[] { source, source.asVolatile( queue ) };
+		}
+		case "metadata":
+		{
+			final N5SingleScaleMetadata metadata = new N5SingleScaleMetadataParser().parseMetadata( n5, paths[ 0 ] ).get();
+			final MetadataSource source = new MetadataSource<>( n5, metadata );
+			return new Source[] { source, source.asVolatile( queue ) };
+		}
+		default:
+			throw new IllegalArgumentException( "Unknown source " + kind );
+		}
+	}
+
+	/**
+	 * Writes the N5 Viewer metadata of a pyramid written by
+	 * {@link #writeMultiscale} and selects it, to open it in an
+	 * {@link org.janelia.saalfeldlab.n5.bdv.N5Viewer}.
+	 */
+	public static DataSelection select( final N5Writer n5, final String group, final String[] paths ) throws IOException
+	{
+		final N5SingleScaleMetadataParser parser = new N5SingleScaleMetadataParser();
+		final N5SingleScaleMetadata[] levels = new N5SingleScaleMetadata[ paths.length ];
+		for ( int s = 0; s < paths.length; ++s )
+		{
+			final double factor = 1 << s;
+			n5.setAttribute( paths[ s ], "downsamplingFactors", new double[] { factor, factor, factor } );
+			levels[ s ] = parser.parseMetadata( n5, paths[ s ] ).get();
+		}
+		return new DataSelection( n5, Collections.singletonList( new N5MultiScaleMetadata( group, levels ) ) );
+	}
+}
@@ -0,0 +1,161 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.bdv.BlockPrefetcher;
+import org.janelia.saalfeldlab.n5.bdv.HeadlessRenderer;
+import org.janelia.saalfeldlab.n5.bdv.HeadlessRenderer.FrameStats;
+import org.janelia.saalfeldlab.n5.bdv.N5Viewer;
+import org.janelia.saalfeldlab.n5.bdv.N5ViewerOptions;
+import org.janelia.saalfeldlab.n5.bdv.NavigationRecorder;
+import org.janelia.saalfeldlab.n5.bdv.NavigationTrace;
+import org.janelia.saalfeldlab.n5.bdv.SimulatedRemoteN5Reader;
+import org.janelia.saalfeldlab.n5.metadata.N5MultiScaleMetadata;
+import org.janelia.saalfeldlab.n5.metadata.N5SingleScaleMetadata;
+import org.janelia.saalfeldlab.n5.metadata.N5SingleScaleMetadataParser;
+import org.janelia.saalfeldlab.n5.ui.DataSelection;
+
+/**
+ * Replays a {@link NavigationTrace}, recorded in a real session by the
+ * {@link NavigationRecorder}, with the {@link HeadlessRenderer}, and prints
+ * the block requests, the hit rate of the cache, the bytes loaded and the
+ * time until the step was complete for every step, and a summary.
+ * <p>
+ * Usage:
+ * {@code TraceReplayBenchmark trace.n5trace [--real-time] [container dataset...]}.
+ * With {@code --real-time}, every step starts when it started in the
+ * recorded session, otherwise every step is rendered until it is complete.
+ * The datasets are the scale levels of the source, finest first. Without a
+ * container, the trace is replayed on the synthetic pyramid of the
+ * {@link RenderBenchmark}.
+ * <p>
+ * The cache configuration is read from the system properties
+ * {@code n5viewer.replay.cacheSizeMB}, {@code offHeapCacheSizeMB},
+ * {@code compressedCacheSizeMB}, {@code prefetchBlocks} and
+ * {@code fetchThreads}, the conditions of a simulated remote container from
+ * the {@code n5viewer.simulated.*} properties, see
+ * {@link SimulatedRemoteN5Reader.Conditions#fromSystemProperties()}.
+ * <p>
+ * The viewer panel creates Swing components, so this needs a display, e.g.
+ * Xvfb, even though nothing is shown.
+ */
+public class TraceReplayBenchmark
+{
+	private static final String PROPERTY_PREFIX = "n5viewer.replay.";
+
+	public static void main( final String... args ) throws IOException
+	{
+		if ( args.length == 0 )
+		{
+			System.err.println( "Usage: TraceReplayBenchmark trace.n5trace [--real-time] [container dataset...]" );
+			System.exit( 1 );
+		}
+
+		final NavigationTrace trace = NavigationTrace.read( Paths.get( args[ 0 ] ) );
+		int next = 1;
+		final boolean realTime = args.length > next && args[ next ].equals( "--real-time" );
+		if ( realTime )
+			++next;
+
+		final DataSelection selection;
+		if ( args.length > next + 1 )
+		{
+			final List< String > datasets = new ArrayList<>();
+			for ( int i = next + 1; i < args.length; ++i )
+				datasets.add( args[ i ] );
+			selection = select( new N5FSReader( args[ next ] ), datasets );
+		}
+		else
+		{
+			final N5FSWriter n5 = SyntheticN5.createContainer();
+			final String[] paths = SyntheticN5.writeMultiscale( n5, "volume", new long[] { 1024, 1024, 256 }, new int[] { 64, 64, 64 }, 5, new GzipCompression() );
+			selection = SyntheticN5.select( n5, "volume", paths );
+		}
+
+		final SimulatedRemoteN5Reader.Conditions conditions = SimulatedRemoteN5Reader.Conditions.fromSystemProperties();
+		final N5ViewerOptions options = N5ViewerOptions.options()
+				.cacheSizeInMB( Long.getLong( PROPERTY_PREFIX + "cacheSizeMB", N5ViewerOptions.defaultCacheSizeInBytes() >> 20 ) )
+				.offHeapCacheSizeInMB( Long.getLong( PROPERTY_PREFIX + "offHeapCacheSizeMB", 0 ) )
+				.compressedCacheSizeInMB( Long.getLong( PROPERTY_PREFIX + "compressedCacheSizeMB", 0 ) )
+				.prefetchBlocksPerUpdate( Integer.getInteger( PROPERTY_PREFIX + "prefetchBlocks", BlockPrefetcher.DEFAULT_MAX_BLOCKS_PER_UPDATE ) )
+				.fetchThreads( 1, Integer.getInteger( PROPERTY_PREFIX + "fetchThreads", N5ViewerOptions.DEFAULT_MAX_FETCH_THREADS ) )
+				.simulatedRemote( conditions );
+		final N5Viewer viewer = new N5Viewer( null, selection, false, options );
+
+		final List< FrameStats > steps;
+		try ( final HeadlessRenderer renderer = new HeadlessRenderer( viewer, trace.getWidth(), trace.getHeight() ) )
+		{
+			steps = renderer.replay( trace, realTime );
+		}
+
+		System.out.println( "step\ttime ms\ttimepoint\trequests\thit rate\tblocks\tMB\trender ms\tcomplete ms" );
+		for ( int i = 0; i < steps.size(); ++i )
+		{
+			final NavigationTrace.Step step = trace.getSteps().get( i );
+			final FrameStats frame = steps.get( i );
+			System.out.println( String.format( "%d\t%d\t%d\t%d\t%.3f\t%d\t%.2f\t%.2f\t%s",
+					i,
+					step.getTimeMillis(),
+					step.getTimepoint(),
+					frame.getBlockRequests(),
+					frame.getHitRate(),
+					frame.getBlocksLoaded(),
+					frame.getBytesLoaded() / ( double ) ( 1 << 20 ),
+					frame.getRenderNanos() / 1e6,
+					frame.isComplete() ? String.format( "%.2f", frame.getCompleteNanos() / 1e6 ) : "-" ) );
+		}
+
+		final double[] complete = steps.stream().filter( FrameStats::isComplete ).mapToDouble( f -> f.getCompleteNanos() / 1e6 ).sorted().toArray();
+		final long requests = steps.stream().mapToLong( FrameStats::getBlockRequests ).sum();
+		final long blocks = steps.stream().mapToLong( FrameStats::getBlocksLoaded ).sum();
+		System.out.println();
+		System.out.println( String.format( "%d steps, %.1f s recorded, %s", steps.size(), trace.getDurationMillis() / 1e3, realTime ? "real time" : "every step complete" ) );
+		System.out.println( String.format( "complete ms: median %.2f, 95%% %.2f, max %.2f (%d of %d steps complete)",
+				RenderBenchmark.percentile( complete, 0.5 ),
+				RenderBenchmark.percentile( complete, 0.95 ),
+				RenderBenchmark.percentile( complete, 1 ),
+				complete.length,
+				steps.size() ) );
+		System.out.println( String.format( "block requests: %d, hit rate %.1f%%, %d blocks (%.1f MB) loaded",
+				requests,
+				requests == 0 ? 100 : 100 * ( 1 - ( double ) blocks / requests ),
+				blocks,
+				steps.stream().mapToLong( FrameStats::getBytesLoaded ).sum() / ( double ) ( 1 << 20 ) ) );
+		if ( conditions != null )
+			System.out.println( "remote: " + conditions );
+		System.out.println( viewer.getCache() );
+		System.out.println( viewer.getFetchQueue() );
+		if ( viewer.getPrefetcher() != null )
+			System.out.println( viewer.getPrefetcher() );
+		viewer.close();
+		System.exit( 0 );
+	}
+
+	/**
+	 * The scale levels of a source, finest first, or a single dataset.
+	 */
+	private static DataSelection select( final N5Reader n5, final List< String > datasets ) throws IOException
+	{
+		final N5SingleScaleMetadataParser parser = new N5SingleScaleMetadataParser();
+		final N5SingleScaleMetadata[] levels = new N5SingleScaleMetadata[ datasets.size() ];
+		for ( int s = 0; s < levels.length; ++s )
+		{
+			final String dataset = datasets.get( s );
+			levels[ s ] = parser.parseMetadata( n5, dataset ).orElseThrow( () -> new IOException( "No dataset metadata at " + dataset ) );
+		}
+		if ( levels.length == 1 )
+			return new DataSelection( n5, Collections.singletonList( levels[ 0 ] ) );
+
+		final String first = datasets.get( 0 );
+		final String group = first.contains( "/" ) ? first.substring( 0, first.lastIndexOf( '/' ) ) : "";
+		return new DataSelection( n5, Collections.singletonList( new N5MultiScaleMetadata( group, levels ) ) );
+	}
+}
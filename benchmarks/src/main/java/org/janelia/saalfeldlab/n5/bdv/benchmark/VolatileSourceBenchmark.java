@@ -0,0 +1,124 @@
+package org.janelia.saalfeldlab.n5.bdv.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.bdv.N5Source;
+import org.janelia.saalfeldlab.n5.bdv.N5VolatileSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+
+/**
+ * Cost of {@link N5VolatileSource#getSource(int, int)}, per call and per
+ * frame, compared with wrapping the image as volatile on every call (the
+ * behavior before volatile views were memoized).
+ * <p>
+ * Run with the GC profiler ({@code -prof gc}, or {@link #main}) and compare
+ * {@code gc.alloc.rate.norm}, the bytes allocated per operation.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class VolatileSourceBenchmark
+{
+	@Param( { "20" } )
+	public int numSources;
+
+	@Param( { "5" } )
+	public int numLevels;
+
+	private N5Source< UnsignedShortType >[] sources;
+
+	private N5VolatileSource< UnsignedShortType, VolatileUnsignedShortType >[] volatileSources;
+
+	private SharedQueue queue;
+
+	@SuppressWarnings( "unchecked" )
+	@Setup
+	public void setup() throws IOException
+	{
+		final N5FSWriter n5 = SyntheticN5.createContainer();
+		final String[] paths = SyntheticN5.writeMultiscale( n5, "volume", new long[] { 256, 256, 256 }, new int[] { 64, 64, 64 }, numLevels, new RawCompression() );
+
+		queue = new SharedQueue( 1 );
+		sources = new N5Source[ numSources ];
+		volatileSources = new N5VolatileSource[ numSources ];
+		for ( int i = 0; i < numSources; ++i )
+		{
+			sources[ i ] = SyntheticN5.openSource( n5, paths, "source " + i );
+			volatileSources[ i ] = sources[ i ].asVolatile( queue );
+		}
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< VolatileUnsignedShortType > getSource()
+	{
+		return volatileSources[ 0 ].getSource( 0, 0 );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< VolatileUnsignedShortType > getSourceRewrap()
+	{
+		return rewrap( sources[ 0 ], 0, 0 );
+	}
+
+	/**
+	 * The views requested while rendering one frame: every level of every
+	 * source.
+	 */
+	@Benchmark
+	public void frame( final Blackhole bh )
+	{
+		for ( final N5VolatileSource< UnsignedShortType, VolatileUnsignedShortType > source : volatileSources )
+			for ( int level = 0; level < numLevels; ++level )
+				bh.consume( source.getSource( 0, level ) );
+	}
+
+	@Benchmark
+	public void frameRewrap( final Blackhole bh )
+	{
+		for ( final N5Source< UnsignedShortType > source : sources )
+			for ( int level = 0; level < numLevels; ++level )
+				bh.consume( rewrap( source, 0, level ) );
+	}
+
+	private RandomAccessibleInterval< VolatileUnsignedShortType > rewrap( final N5Source< UnsignedShortType > source, final int t, final int level )
+	{
+		return VolatileViews.wrapAsVolatile( source.getSource( t, level ), queue, new CacheHints( LoadingStrategy.VOLATILE, level, true ) );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( VolatileSourceBenchmark.class.getSimpleName() )
+				.addProfiler( GCProfiler.class )
+				.build() ).run();
+	}
+}
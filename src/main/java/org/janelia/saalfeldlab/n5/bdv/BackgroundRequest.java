@@ -0,0 +1,131 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A request of a volatile source that a thread runs without waiting for the
+ * storage, see {@link SharedCellCache#callInBackground}. If a
+ * {@link SharedCellCache} hands the cell of the request to its fetch queue,
+ * it ends the request with an exception and repeats it once the cell is in
+ * memory.
+ */
+class BackgroundRequest
+{
+	/**
+	 * The request that the current thread runs, if any.
+	 */
+	private static final ThreadLocal< BackgroundRequest > current = new ThreadLocal<>();
+
+	/**
+	 * Repeats the request.
+	 */
+	final Runnable resume;
+
+	/**
+	 * Whether the request is repeated, so that its cell is not counted again.
+	 */
+	final boolean resumed;
+
+	/**
+	 * False while the thread computes a cell from other cells.
+	 */
+	boolean handOff = true;
+
+	/**
+	 * Whether the cell of the request is loaded by the fetch queue and the
+	 * request has been ended.
+	 */
+	private boolean handedOff = false;
+
+	private BackgroundRequest( final Runnable resume, final boolean resumed )
+	{
+		this.resume = resume;
+		this.resumed = resumed;
+	}
+
+	/**
+	 * @return the request that the current thread runs, or null
+	 */
+	static BackgroundRequest current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Run a request in the background.
+	 *
+	 * @param request the request
+	 * @param resumed whether the request is repeated
+	 * @param resume repeats the request
+	 */
+	static void call( final Callable< ? > request, final boolean resumed, final Runnable resume ) throws Exception
+	{
+		final BackgroundRequest previous = current.get();
+		final BackgroundRequest bg = new BackgroundRequest( resume, resumed );
+		current.set( bg );
+		try
+		{
+			request.call();
+		}
+		catch ( final Exception e )
+		{
+			// however the exception was wrapped on its way out, it ended the
+			// request if the cache handed the request off
+			if ( !bg.handedOff )
+				throw e;
+		}
+		finally
+		{
+			if ( previous == null )
+				current.remove();
+			else
+				current.set( previous );
+		}
+	}
+
+	/**
+	 * @return the exception that ends the request
+	 */
+	ExecutionException handedOff()
+	{
+		handedOff = true;
+		return new HandedOff();
+	}
+
+	/**
+	 * Ends a request whose cell is loaded by the fetch queue. It only unwinds
+	 * the request, so it has no stack trace.
+	 */
+	private static class HandedOff extends ExecutionException
+	{
+		private static final long serialVersionUID = 1L;
+
+		HandedOff()
+		{
+			super( "loaded by the fetch queue", null );
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace()
+		{
+			return this;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of the primitive arrays that are needed while a block is decoded
+ * and dropped right after, e.g. the decompressed bytes of a block and the
+ * array of its {@link org.janelia.saalfeldlab.n5.DataBlock} that is copied
+ * into a cell.
+ *
+ * Arrays are pooled by element type and length. Byte buffers of unknown
+ * size are handed out in power of two size classes, typed arrays with the
+ * exact length that was asked for, which is the same for all blocks of a
+ * dataset but those at its border. Released arrays are kept up to a budget
+ * in bytes, arrays beyond it are left to the garbage collector.
+ */
+public class BlockBufferPool
+{
+	/**
+	 * The smallest size class of byte buffers.
+	 */
+	public static final int MIN_SIZE_CLASS = 1 << 12;
+
+	private final long maxSizeInBytes;
+
+	private final Map< Class< ? >, Map< Integer, ArrayDeque< Object > > > free = new HashMap<>();
+
+	private long sizeInBytes;
+
+	private final LongAdder requestCount = new LongAdder();
+
+	private final LongAdder reuseCount = new LongAdder();
+
+	private final LongAdder allocatedBytes = new LongAdder();
+
+	/**
+	 * @param maxSizeInBytes the budget of the released arrays
+	 */
+	public BlockBufferPool( final long maxSizeInBytes )
+	{
+		this.maxSizeInBytes = maxSizeInBytes;
+	}
+
+	public long getMaxSizeInBytes()
+	{
+		return maxSizeInBytes;
+	}
+
+	/**
+	 * @return the size of the released arrays
+	 */
+	public synchronized long getSizeInBytes()
+	{
+		return sizeInBytes;
+	}
+
+	public long getRequestCount()
+	{
+		return requestCount.sum();
+	}
+
+	public long getReuseCount()
+	{
+		return reuseCount.sum();
+	}
+
+	/**
+	 * @return the bytes of the arrays that had to be allocated
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes.sum();
+	}
+
+	/**
+	 * @return the fraction of requests that were served by a released array
+	 */
+	public double getReuseRate()
+	{
+		final long requests = getRequestCount();
+		return requests == 0 ? 0 : ( double ) getReuseCount() / requests;
+	}
+
+	public void resetStatistics()
+	{
+		requestCount.reset();
+		reuseCount.reset();
+		allocatedBytes.reset();
+	}
+
+	public synchronized void clear()
+	{
+		free.clear();
+		sizeInBytes = 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d buffer requests, %.1f%% reused, %d MB allocated, %d / %d MB pooled",
+				getRequestCount(), 100 * getReuseRate(), getAllocatedBytes() >> 20, getSizeInBytes() >> 20, maxSizeInBytes >> 20 );
+	}
+
+	/**
+	 * @param minLength the number of bytes needed
+	 * @return a byte array of at least {@code minLength} bytes, in the size
+	 *         class of {@code minLength}
+	 */
+	public byte[] bytes( final int minLength )
+	{
+		return ( byte[] ) array( byte.class, sizeClass( minLength ) );
+	}
+
+	/**
+	 * @param componentType the primitive element type
+	 * @param length the length of the array
+	 * @return an array of the type and length, with undefined content
+	 */
+	public Object array( final Class< ? > componentType, final int length )
+	{
+		requestCount.increment();
+		synchronized ( this )
+		{
+			final Map< Integer, ArrayDeque< Object > > byLength = free.get( componentType );
+			final ArrayDeque< Object > arrays = byLength == null ? null : byLength.get( length );
+			if ( arrays != null && !arrays.isEmpty() )
+			{
+				sizeInBytes -= sizeInBytes( componentType, length );
+				reuseCount.increment();
+				return arrays.pop();
+			}
+		}
+		allocatedBytes.add( sizeInBytes( componentType, length ) );
+		return Array.newInstance( componentType, length );
+	}
+
+	/**
+	 * Give an array back to the pool. The caller must not use it anymore.
+	 *
+	 * @param array a primitive array, ignored if null
+	 */
+	public void release( final Object array )
+	{
+		if ( array == null || !array.getClass().isArray() || !array.getClass().getComponentType().isPrimitive() )
+			return;
+		final Class< ? > componentType = array.getClass().getComponentType();
+		final int length = Array.getLength( array );
+		final long size = sizeInBytes( componentType, length );
+		synchronized ( this )
+		{
+			if ( sizeInBytes + size > maxSizeInBytes )
+				return;
+			free.computeIfAbsent( componentType, k -> new HashMap<>() ).computeIfAbsent( length, k -> new ArrayDeque<>() ).push( array );
+			sizeInBytes += size;
+		}
+	}
+
+	/**
+	 * @return the smallest power of two that is at least {@code minLength}
+	 *         and {@link #MIN_SIZE_CLASS}, or {@code minLength} if there is no
+	 *         such int
+	 */
+	static int sizeClass( final int minLength )
+	{
+		if ( minLength <= MIN_SIZE_CLASS )
+			return MIN_SIZE_CLASS;
+		final int sizeClass = Integer.highestOneBit( minLength - 1 ) << 1;
+		return sizeClass > 0 ? sizeClass : minLength;
+	}
+
+	static int elementSize( final Class< ? > componentType )
+	{
+		if ( componentType == byte.class || componentType == boolean.class )
+			return 1;
+		if ( componentType == short.class || componentType == char.class )
+			return 2;
+		if ( componentType == int.class || componentType == float.class )
+			return 4;
+		return 8;
+	}
+
+	private static long sizeInBytes( final Class< ? > componentType, final int length )
+	{
+		return ( long ) elementSize( componentType ) * length;
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splits loading a block into a fetch stage, which reads the raw bytes, and
+ * a decode stage, which decompresses them into a cell. The fetch stage runs
+ * on the workers of the {@link FetchQueue}, the decode stage on a separate
+ * pool, so a worker that waits for the storage does not hold a processor and
+ * a block that is decompressed does not hold a worker.
+ *
+ * The stages are connected by a bounded buffer of raw blocks: when the
+ * decoders fall behind, the fetch stage waits for a free slot.
+ *
+ * @see PipelinedN5Reader
+ */
+public class BlockPipeline
+{
+	/**
+	 * A block of a reader, compared by the identity of the reader.
+	 */
+	static final class BlockKey
+	{
+		private final Object reader;
+
+		private final String dataset;
+
+		private final long[] gridPosition;
+
+		BlockKey( final Object reader, final String dataset, final long[] gridPosition )
+		{
+			this.reader = reader;
+			this.dataset = dataset;
+			this.gridPosition = gridPosition;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof BlockKey ) )
+				return false;
+			final BlockKey key = ( BlockKey ) other;
+			return reader == key.reader && dataset.equals( key.dataset ) && Arrays.equals( gridPosition, key.gridPosition );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * System.identityHashCode( reader ) + dataset.hashCode() ) + Arrays.hashCode( gridPosition );
+		}
+	}
+
+	private final int numDecodeThreads;
+
+	private final int bufferSize;
+
+	private final ExecutorService decoders;
+
+	private final Semaphore freeSlots;
+
+	private final ConcurrentHashMap< BlockKey, byte[] > buffer = new ConcurrentHashMap<>();
+
+	private final LongAdder fetchCount = new LongAdder();
+
+	private final LongAdder fetchNanos = new LongAdder();
+
+	private final LongAdder fetchBytes = new LongAdder();
+
+	private final LongAdder decodeCount = new LongAdder();
+
+	private final LongAdder decodeNanos = new LongAdder();
+
+	/**
+	 * @param numDecodeThreads the number of threads that decode blocks
+	 * @param bufferSize the number of raw blocks that wait for a decoder
+	 */
+	public BlockPipeline( final int numDecodeThreads, final int bufferSize )
+	{
+		this.numDecodeThreads = Math.max( 1, numDecodeThreads );
+		this.bufferSize = Math.max( 1, bufferSize );
+		this.freeSlots = new Semaphore( this.bufferSize );
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.decoders = Executors.newFixedThreadPool( this.numDecodeThreads, r -> {
+			final Thread thread = new Thread( r, "n5-viewer-decode-" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * A decoder per processor and a buffer of four blocks per decoder.
+	 */
+	public BlockPipeline()
+	{
+		this( Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors() );
+	}
+
+	public int getNumDecodeThreads()
+	{
+		return numDecodeThreads;
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * @return the number of raw blocks waiting for a decoder
+	 */
+	public int getNumBuffered()
+	{
+		return bufferSize - freeSlots.availablePermits();
+	}
+
+	public long getFetchCount()
+	{
+		return fetchCount.sum();
+	}
+
+	public long getFetchedBytes()
+	{
+		return fetchBytes.sum();
+	}
+
+	public long getDecodeCount()
+	{
+		return decodeCount.sum();
+	}
+
+	/**
+	 * @return the mean time to read the raw bytes of a block in milliseconds
+	 */
+	public double getMeanFetchMillis()
+	{
+		final long n = getFetchCount();
+		return n == 0 ? 0 : fetchNanos.sum() * 1e-6 / n;
+	}
+
+	/**
+	 * @return the mean time to decode a block in milliseconds
+	 */
+	public double getMeanDecodeMillis()
+	{
+		final long n = getDecodeCount();
+		return n == 0 ? 0 : decodeNanos.sum() * 1e-6 / n;
+	}
+
+	public void resetStatistics()
+	{
+		fetchCount.reset();
+		fetchNanos.reset();
+		fetchBytes.reset();
+		decodeCount.reset();
+		decodeNanos.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d fetched (%.1f ms, %d MB), %d decoded (%.1f ms), %d / %d buffered",
+				getFetchCount(), getMeanFetchMillis(), getFetchedBytes() >> 20, getDecodeCount(), getMeanDecodeMillis(), getNumBuffered(), bufferSize );
+	}
+
+	/**
+	 * Stop the decoders. The loads of queued decodes, and of decodes
+	 * requested afterwards, are cancelled, so that threads that wait for
+	 * them do not wait forever.
+	 */
+	public void shutdown()
+	{
+		for ( final Runnable queued : decoders.shutdownNow() )
+			if ( queued instanceof Decode )
+				( ( Decode ) queued ).load.cancel( false );
+		buffer.clear();
+	}
+
+	/**
+	 * Run a decode on a decoder thread.
+	 *
+	 * @param decode runs the load and cleans up after it
+	 * @param load the load, cancelled if the decode does not run
+	 */
+	void decode( final Runnable decode, final Future< ? > load )
+	{
+		try
+		{
+			decoders.execute( new Decode( decode, load ) );
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			load.cancel( false );
+		}
+	}
+
+	private static class Decode implements Runnable
+	{
+		final Runnable decode;
+
+		final Future< ? > load;
+
+		Decode( final Runnable decode, final Future< ? > load )
+		{
+			this.decode = decode;
+			this.load = load;
+		}
+
+		@Override
+		public void run()
+		{
+			decode.run();
+		}
+	}
+
+	/**
+	 * Hand over the raw bytes of a block to the decode stage, waiting for a
+	 * free slot in the buffer.
+	 */
+	void put( final BlockKey key, final byte[] raw ) throws InterruptedException
+	{
+		freeSlots.acquire();
+		if ( buffer.put( key, raw ) != null )
+			freeSlots.release();
+	}
+
+	/**
+	 * @return the raw bytes of a block, or null if they are not buffered
+	 */
+	byte[] take( final BlockKey key )
+	{
+		final byte[] raw = buffer.remove( key );
+		if ( raw != null )
+			freeSlots.release();
+		return raw;
+	}
+
+	void fetched( final long nanos, final long bytes )
+	{
+		fetchCount.increment();
+		fetchNanos.add( nanos );
+		fetchBytes.add( bytes );
+	}
+
+	void decoded( final long nanos )
+	{
+		decodeCount.increment();
+		decodeNanos.add( nanos );
+	}
+}
@@ -0,0 +1,709 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import bdv.util.MipmapTransforms;
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Source;
+import bdv.viewer.ViewerPanel;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+
+/**
+ * Loads the blocks that will be visible a few frames ahead while the user
+ * pans, zooms or scrolls.
+ *
+ * The prefetcher follows the viewer transform, estimates its velocity from
+ * the last two transforms, and extrapolates the transform a few frames
+ * ahead. The blocks that are visible at the extrapolated transforms (on the
+ * mipmap level that the renderer would choose) and not loaded yet are
+ * requested behind all requests of the renderer, up to a budget of blocks
+ * per update. Blocks of images in the {@link SharedCellCache} are requested
+ * as prefetches from its {@link FetchQueue}, which drops them when the view
+ * moves on before they are loaded; they are requested again if they are
+ * still ahead of the view. Other blocks are requested at the lowest priority
+ * from the {@link SharedQueue}.
+ *
+ * The blocks of a level are those of the {@link CachedCellImg} behind it,
+ * e.g. the image of which the level is a slice in time or with an added
+ * dimension, see {@link BlockImage}. Levels that are not backed by a cached
+ * cell image, e.g. computed ones, are skipped and counted.
+ *
+ * A prefetched block counts as used if it becomes visible within
+ * {@link #USE_WINDOW_MILLIS}, and as wasted otherwise. Dropped prefetches
+ * count as neither.
+ */
+public class BlockPrefetcher
+{
+	public static final int DEFAULT_FRAMES_AHEAD = 3;
+
+	public static final int DEFAULT_MAX_BLOCKS_PER_UPDATE = 64;
+
+	/**
+	 * Transforms that are further apart than this are not extrapolated.
+	 */
+	public static final long MAX_FRAME_INTERVAL_MILLIS = 250;
+
+	public static final long USE_WINDOW_MILLIS = 2000;
+
+	private final ViewerPanel viewer;
+
+	private final SharedQueue queue;
+
+	private final SharedCellCache cache;
+
+	private final List< Source< ? > > sources = new CopyOnWriteArrayList<>();
+
+	private final int framesAhead;
+
+	private final int maxBlocksPerUpdate;
+
+	private final ExecutorService executor;
+
+	private final AtomicBoolean updatePending = new AtomicBoolean();
+
+	/**
+	 * Low-priority volatile views of the images that are prefetched, per
+	 * source. Only used by the prefetcher thread.
+	 */
+	private final Map< Source< ? >, Map< RandomAccessibleInterval< ? >, RandomAccessibleInterval< ? > > > prefetchViews = new IdentityHashMap<>();
+
+	/**
+	 * Prefetched blocks that have not become visible yet, per source and
+	 * image. Only used by the prefetcher thread.
+	 */
+	private final Map< Source< ? >, Map< CachedCellImg< ?, ? >, Map< Long, PendingBlock > > > pending = new IdentityHashMap<>();
+
+	private static class PendingBlock
+	{
+		final long millis;
+
+		/**
+		 * The load in the fetch queue, or null if the block was requested
+		 * from the shared queue.
+		 */
+		final Future< ? > load;
+
+		PendingBlock( final long millis, final Future< ? > load )
+		{
+			this.millis = millis;
+			this.load = load;
+		}
+
+		boolean isDropped()
+		{
+			return load != null && load.isCancelled();
+		}
+	}
+
+	private final AffineTransform3D previous = new AffineTransform3D();
+
+	private long previousMillis = -1;
+
+	private final LongAdder prefetchedCount = new LongAdder();
+
+	private final LongAdder usedCount = new LongAdder();
+
+	private final LongAdder wastedCount = new LongAdder();
+
+	private final LongAdder skippedCount = new LongAdder();
+
+	/**
+	 * @param viewer the viewer whose transform is followed
+	 * @param queue the queue of the volatile sources
+	 * @param cache the cache whose fetch queue loads prefetched blocks, or null
+	 *        to request all blocks from {@code queue}
+	 * @param framesAhead how many frames to extrapolate
+	 * @param maxBlocksPerUpdate the number of blocks requested per update
+	 */
+	public BlockPrefetcher(
+			final ViewerPanel viewer,
+			final SharedQueue queue,
+			final SharedCellCache cache,
+			final int framesAhead,
+			final int maxBlocksPerUpdate )
+	{
+		this.viewer = viewer;
+		this.queue = queue;
+		this.cache = cache;
+		this.framesAhead = framesAhead;
+		this.maxBlocksPerUpdate = maxBlocksPerUpdate;
+		this.executor = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "n5-viewer-prefetcher" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	public BlockPrefetcher(
+			final ViewerPanel viewer,
+			final SharedQueue queue,
+			final int framesAhead,
+			final int maxBlocksPerUpdate )
+	{
+		this( viewer, queue, null, framesAhead, maxBlocksPerUpdate );
+	}
+
+	public BlockPrefetcher( final ViewerPanel viewer, final SharedQueue queue )
+	{
+		this( viewer, queue, DEFAULT_FRAMES_AHEAD, DEFAULT_MAX_BLOCKS_PER_UPDATE );
+	}
+
+	public void addSources( final List< ? extends Source< ? > > sources )
+	{
+		this.sources.addAll( sources );
+	}
+
+	public void addSource( final Source< ? > source )
+	{
+		sources.add( source );
+	}
+
+	public void removeSource( final Source< ? > source )
+	{
+		sources.remove( source );
+		if ( !executor.isShutdown() )
+			executor.execute( () -> {
+				prefetchViews.remove( source );
+				pending.remove( source );
+			} );
+	}
+
+	/**
+	 * @return the number of blocks requested ahead of the renderer
+	 */
+	public long getPrefetchedCount()
+	{
+		return prefetchedCount.sum();
+	}
+
+	/**
+	 * @return the number of prefetched blocks that became visible
+	 */
+	public long getUsedCount()
+	{
+		return usedCount.sum();
+	}
+
+	/**
+	 * @return the number of prefetched blocks that did not become visible
+	 *         within {@link #USE_WINDOW_MILLIS}
+	 */
+	public long getWastedCount()
+	{
+		return wastedCount.sum();
+	}
+
+	/**
+	 * @return the number of times a source was not prefetched because its
+	 *         level is not backed by a {@link CachedCellImg}
+	 */
+	public long getSkippedCount()
+	{
+		return skippedCount.sum();
+	}
+
+	public void resetStatistics()
+	{
+		prefetchedCount.reset();
+		usedCount.reset();
+		wastedCount.reset();
+		skippedCount.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d blocks prefetched, %d used, %d wasted, %d sources skipped", getPrefetchedCount(), getUsedCount(), getWastedCount(), getSkippedCount() );
+	}
+
+	/**
+	 * Called by the viewer when its transform changes. The work is done on
+	 * the prefetcher thread, consecutive changes are coalesced.
+	 *
+	 * @param transform the new viewer transform
+	 */
+	public void transformChanged( final AffineTransform3D transform )
+	{
+		if ( updatePending.compareAndSet( false, true ) )
+			executor.execute( this::update );
+	}
+
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	private void update()
+	{
+		updatePending.set( false );
+		try
+		{
+			final AffineTransform3D current = viewer.state().getViewerTransform();
+			final int t = viewer.state().getCurrentTimepoint();
+			final long millis = System.currentTimeMillis();
+			final long[] screenSize = { viewer.getDisplay().getWidth(), viewer.getDisplay().getHeight() };
+
+			countUsed( current, t, screenSize, millis );
+
+			final long dt = millis - previousMillis;
+			if ( previousMillis >= 0 && dt > 0 && dt <= MAX_FRAME_INTERVAL_MILLIS && !Arrays.equals( current.getRowPackedCopy(), previous.getRowPackedCopy() ) )
+			{
+				int budget = maxBlocksPerUpdate;
+				for ( int k = 1; k <= framesAhead && budget > 0; ++k )
+					for ( final Source< ? > source : sources )
+						budget -= prefetch( source, t, extrapolate( previous, current, k ), screenSize, millis, budget );
+			}
+
+			previous.set( current );
+			previousMillis = millis;
+		}
+		catch ( final RuntimeException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Request the blocks of a source that are visible at a viewer transform.
+	 *
+	 * @return the number of blocks requested
+	 */
+	private int prefetch(
+			final Source< ? > source,
+			final int t,
+			final AffineTransform3D viewerTransform,
+			final long[] screenSize,
+			final long millis,
+			final int budget )
+	{
+		if ( budget <= 0 || !source.isPresent( t ) )
+			return 0;
+
+		final int level = MipmapTransforms.getBestMipMapLevel( viewerTransform, source, t );
+		final BlockImage blocks = BlockImage.resolve( source.getSource( t, level ) );
+		if ( blocks == null )
+		{
+			skippedCount.increment();
+			return 0;
+		}
+
+		final CachedCellImg< ?, ? > cellImg = blocks.img;
+		final CellGrid grid = blocks.grid;
+		final AffineTransform3D sourceTransform = new AffineTransform3D();
+		source.getSourceTransform( t, level, sourceTransform );
+		final long[][] cellRange = blocks.cellRange( visibleVoxels( viewerTransform, sourceTransform, screenSize ) );
+		if ( cellRange == null )
+			return 0;
+
+		final boolean fetchQueued = cache != null && cache.getFetchQueue() != null && cache.getImageId( cellImg ) >= 0;
+		final RandomAccess< ? > access = fetchQueued ? null : prefetchView( source, cellImg ).randomAccess();
+		final Map< Long, PendingBlock > pendingCells = pending
+				.computeIfAbsent( source, k -> new IdentityHashMap<>() )
+				.computeIfAbsent( cellImg, k -> new HashMap<>() );
+		final long[] cellPosition = cellRange[ 0 ].clone();
+		final long[] pixel = new long[ grid.numDimensions() ];
+		int n = 0;
+		while ( n < budget )
+		{
+			final long index = IntervalIndexer.positionToIndex( cellPosition, grid.getGridDimensions() );
+			final PendingBlock requested = pendingCells.get( index );
+			final boolean present = cache == null ? cellImg.getCache().getIfPresent( index ) != null : cache.isPresentOrLoading( cellImg, index );
+			if ( !present && ( requested == null || requested.isDropped() ) )
+			{
+				final Future< ? > load;
+				if ( fetchQueued )
+					load = cache.prefetch( cellImg, index );
+				else
+				{
+					for ( int d = 0; d < pixel.length; ++d )
+						pixel[ d ] = cellPosition[ d ] * grid.cellDimension( d );
+					access.setPosition( pixel );
+					access.get();
+					load = null;
+				}
+				pendingCells.put( index, new PendingBlock( millis, load ) );
+				prefetchedCount.increment();
+				++n;
+			}
+
+			if ( !next( cellPosition, cellRange[ 0 ], cellRange[ 1 ] ) )
+				break;
+		}
+		return n;
+	}
+
+	/**
+	 * Count prefetched blocks that are visible now as used, and those that
+	 * have been pending for too long as wasted.
+	 */
+	private void countUsed( final AffineTransform3D viewerTransform, final int t, final long[] screenSize, final long millis )
+	{
+		final Iterator< Map.Entry< Source< ? >, Map< CachedCellImg< ?, ? >, Map< Long, PendingBlock > > > > perSource = pending.entrySet().iterator();
+		while ( perSource.hasNext() )
+		{
+			final Map.Entry< Source< ? >, Map< CachedCellImg< ?, ? >, Map< Long, PendingBlock > > > entry = perSource.next();
+			countUsed( entry.getKey(), entry.getValue(), viewerTransform, t, screenSize, millis );
+			if ( entry.getValue().isEmpty() )
+				perSource.remove();
+		}
+	}
+
+	private void countUsed(
+			final Source< ? > source,
+			final Map< CachedCellImg< ?, ? >, Map< Long, PendingBlock > > pendingImages,
+			final AffineTransform3D viewerTransform,
+			final int t,
+			final long[] screenSize,
+			final long millis )
+	{
+		CachedCellImg< ?, ? > visibleImg = null;
+		long[][] visibleRange = null;
+		if ( source.isPresent( t ) )
+		{
+			final int level = MipmapTransforms.getBestMipMapLevel( viewerTransform, source, t );
+			final BlockImage blocks = BlockImage.resolve( source.getSource( t, level ) );
+			if ( blocks != null && pendingImages.containsKey( blocks.img ) )
+			{
+				final AffineTransform3D sourceTransform = new AffineTransform3D();
+				source.getSourceTransform( t, level, sourceTransform );
+				visibleImg = blocks.img;
+				visibleRange = blocks.cellRange( visibleVoxels( viewerTransform, sourceTransform, screenSize ) );
+			}
+		}
+
+		final Iterator< Map.Entry< CachedCellImg< ?, ? >, Map< Long, PendingBlock > > > images = pendingImages.entrySet().iterator();
+		while ( images.hasNext() )
+		{
+			final Map.Entry< CachedCellImg< ?, ? >, Map< Long, PendingBlock > > image = images.next();
+			final long[][] cellRange = image.getKey() == visibleImg ? visibleRange : null;
+			final long[] gridDimensions = image.getKey().getCellGrid().getGridDimensions();
+			final long[] cellPosition = new long[ gridDimensions.length ];
+			final Iterator< Map.Entry< Long, PendingBlock > > cells = image.getValue().entrySet().iterator();
+			while ( cells.hasNext() )
+			{
+				final Map.Entry< Long, PendingBlock > cell = cells.next();
+				IntervalIndexer.indexToPosition( cell.getKey(), gridDimensions, cellPosition );
+				if ( cell.getValue().isDropped() )
+					cells.remove();
+				else if ( cellRange != null && contains( cellRange, cellPosition ) )
+				{
+					usedCount.increment();
+					cells.remove();
+				}
+				else if ( millis - cell.getValue().millis > USE_WINDOW_MILLIS )
+				{
+					wastedCount.increment();
+					cells.remove();
+				}
+			}
+			if ( image.getValue().isEmpty() )
+				images.remove();
+		}
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private RandomAccessibleInterval< ? > prefetchView( final Source< ? > source, final CachedCellImg< ?, ? > img )
+	{
+		// behind all renderer requests: lowest priority, enqueued at the back
+		return prefetchViews.computeIfAbsent( source, k -> new IdentityHashMap<>() ).computeIfAbsent( img, k -> VolatileViews.wrapAsVolatile(
+				( RandomAccessibleInterval ) img,
+				queue,
+				new CacheHints( LoadingStrategy.VOLATILE, source.getNumMipmapLevels(), false ) ) );
+	}
+
+	/**
+	 * Extrapolate a viewer transform linearly, k frames after
+	 * {@code current}, with the change from {@code previous} to
+	 * {@code current} per frame.
+	 */
+	static AffineTransform3D extrapolate( final AffineTransform3D previous, final AffineTransform3D current, final int k )
+	{
+		final double[] p = previous.getRowPackedCopy();
+		final double[] c = current.getRowPackedCopy();
+		final double[] e = new double[ c.length ];
+		for ( int i = 0; i < c.length; ++i )
+			e[ i ] = c[ i ] + k * ( c[ i ] - p[ i ] );
+		final AffineTransform3D extrapolated = new AffineTransform3D();
+		extrapolated.set( e );
+		return extrapolated;
+	}
+
+	/**
+	 * Range of the cells that intersect the screen, a slab of one screen
+	 * pixel around the viewer plane.
+	 *
+	 * @return { min, max } grid positions, or null if no cell is visible
+	 */
+	static long[][] visibleCells(
+			final CellGrid grid,
+			final AffineTransform3D viewerTransform,
+			final AffineTransform3D sourceTransform,
+			final long[] screenSize )
+	{
+		return new BlockImage( null, grid ).cellRange( visibleVoxels( viewerTransform, sourceTransform, screenSize ) );
+	}
+
+	/**
+	 * Bounding box of the voxels of a level that intersect the screen, a slab
+	 * of one screen pixel around the viewer plane.
+	 *
+	 * @return { min, max } voxel positions
+	 */
+	static long[][] visibleVoxels(
+			final AffineTransform3D viewerTransform,
+			final AffineTransform3D sourceTransform,
+			final long[] screenSize )
+	{
+		final AffineTransform3D screenToVoxel = viewerTransform.copy();
+		screenToVoxel.concatenate( sourceTransform );
+		final AffineTransform3D inverse = screenToVoxel.inverse();
+
+		final double[] min = new double[] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		final double[] max = new double[] { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		final double[] corner = new double[ 3 ];
+		final double[] voxel = new double[ 3 ];
+		for ( int i = 0; i < 8; ++i )
+		{
+			corner[ 0 ] = ( i & 1 ) == 0 ? 0 : screenSize[ 0 ];
+			corner[ 1 ] = ( i & 2 ) == 0 ? 0 : screenSize[ 1 ];
+			corner[ 2 ] = ( i & 4 ) == 0 ? -1 : 1;
+			inverse.apply( corner, voxel );
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], voxel[ d ] );
+				max[ d ] = Math.max( max[ d ], voxel[ d ] );
+			}
+		}
+
+		final long[][] voxels = new long[ 2 ][ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			voxels[ 0 ][ d ] = ( long ) Math.floor( min[ d ] + 0.5 );
+			voxels[ 1 ][ d ] = ( long ) Math.floor( max[ d ] + 0.5 );
+		}
+		return voxels;
+	}
+
+	/**
+	 * The {@link CachedCellImg} that holds the blocks of a level, and where
+	 * the voxels of the level are in it. A level can be the image itself or a
+	 * view of it, e.g. a slice of a time series, a 2D image with an added
+	 * dimension, a translated image or the slice of a channel.
+	 */
+	static class BlockImage
+	{
+		final CachedCellImg< ?, ? > img;
+
+		final CellGrid grid;
+
+		/*
+		 * Per dimension of the image: the position is translation[ d ] if
+		 * zero[ d ], otherwise translation[ d ] plus or minus (if
+		 * inversion[ d ]) the coordinate component[ d ] of the level.
+		 */
+
+		private final boolean[] zero;
+
+		private final int[] component;
+
+		private final boolean[] inversion;
+
+		private final long[] translation;
+
+		private BlockImage(
+				final CachedCellImg< ?, ? > img,
+				final CellGrid grid,
+				final boolean[] zero,
+				final int[] component,
+				final boolean[] inversion,
+				final long[] translation )
+		{
+			this.img = img;
+			this.grid = grid;
+			this.zero = zero;
+			this.component = component;
+			this.inversion = inversion;
+			this.translation = translation;
+		}
+
+		/**
+		 * The level is the image.
+		 */
+		BlockImage( final CachedCellImg< ?, ? > img, final CellGrid grid )
+		{
+			this( img, grid, new boolean[ grid.numDimensions() ], identity( grid.numDimensions() ), new boolean[ grid.numDimensions() ], new long[ grid.numDimensions() ] );
+		}
+
+		/**
+		 * Follow the views of a level to the cached cell image behind them.
+		 *
+		 * @param level the level of a source
+		 * @return the image, or null if the level is not a view of a
+		 *         {@link CachedCellImg}, e.g. a computed level
+		 */
+		static BlockImage resolve( final RandomAccessibleInterval< ? > level )
+		{
+			final int n = level.numDimensions();
+			boolean[] zero = new boolean[ n ];
+			int[] component = identity( n );
+			boolean[] inversion = new boolean[ n ];
+			long[] translation = new long[ n ];
+
+			RandomAccessible< ? > view = level;
+			while ( true )
+			{
+				if ( view instanceof CachedCellImg )
+				{
+					final CachedCellImg< ?, ? > img = ( CachedCellImg< ?, ? > ) view;
+					return new BlockImage( img, img.getCellGrid(), zero, component, inversion, translation );
+				}
+				else if ( view instanceof IntervalView )
+					view = ( ( IntervalView< ? > ) view ).getSource();
+				else if ( view instanceof MixedTransformView )
+				{
+					// compose the transform to the source of the view with the transform to the view
+					final MixedTransform transform = ( ( MixedTransformView< ? > ) view ).getTransformToSource();
+					final int m = transform.numTargetDimensions();
+					final boolean[] sourceZero = new boolean[ m ];
+					final int[] sourceComponent = new int[ m ];
+					final boolean[] sourceInversion = new boolean[ m ];
+					final long[] sourceTranslation = new long[ m ];
+					for ( int d = 0; d < m; ++d )
+					{
+						sourceTranslation[ d ] = transform.getTranslation( d );
+						if ( transform.getComponentZero( d ) )
+						{
+							sourceZero[ d ] = true;
+							continue;
+						}
+						final int k = transform.getComponentMapping( d );
+						final boolean inverted = transform.getComponentInversion( d );
+						sourceTranslation[ d ] += inverted ? -translation[ k ] : translation[ k ];
+						sourceZero[ d ] = zero[ k ];
+						sourceComponent[ d ] = component[ k ];
+						sourceInversion[ d ] = inverted != inversion[ k ];
+					}
+					zero = sourceZero;
+					component = sourceComponent;
+					inversion = sourceInversion;
+					translation = sourceTranslation;
+					view = ( ( MixedTransformView< ? > ) view ).getSource();
+				}
+				else
+					return null;
+			}
+		}
+
+		/**
+		 * Range of the cells that hold a box of voxels of the level.
+		 *
+		 * @param voxels { min, max } voxel positions in the level
+		 * @return { min, max } grid positions, or null if the box is outside
+		 *         the image
+		 */
+		long[][] cellRange( final long[][] voxels )
+		{
+			final int n = grid.numDimensions();
+			final long[] gridDimensions = grid.getGridDimensions();
+			final long[] imgDimensions = grid.getImgDimensions();
+			final long[][] range = new long[ 2 ][ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				final long lo;
+				final long hi;
+				if ( zero[ d ] )
+				{
+					lo = translation[ d ];
+					hi = translation[ d ];
+				}
+				else if ( component[ d ] >= voxels[ 0 ].length )
+				{
+					lo = 0;
+					hi = imgDimensions[ d ] - 1;
+				}
+				else if ( inversion[ d ] )
+				{
+					lo = translation[ d ] - voxels[ 1 ][ component[ d ] ];
+					hi = translation[ d ] - voxels[ 0 ][ component[ d ] ];
+				}
+				else
+				{
+					lo = translation[ d ] + voxels[ 0 ][ component[ d ] ];
+					hi = translation[ d ] + voxels[ 1 ][ component[ d ] ];
+				}
+				if ( hi < 0 || lo >= imgDimensions[ d ] )
+					return null;
+				range[ 0 ][ d ] = Math.max( 0, lo ) / grid.cellDimension( d );
+				range[ 1 ][ d ] = Math.min( gridDimensions[ d ] - 1, Math.min( imgDimensions[ d ] - 1, hi ) / grid.cellDimension( d ) );
+			}
+			return range;
+		}
+
+		private static int[] identity( final int n )
+		{
+			final int[] component = new int[ n ];
+			for ( int d = 0; d < n; ++d )
+				component[ d ] = d;
+			return component;
+		}
+	}
+
+	private static boolean contains( final long[][] range, final long[] position )
+	{
+		for ( int d = 0; d < position.length; ++d )
+			if ( position[ d ] < range[ 0 ][ d ] || position[ d ] > range[ 1 ][ d ] )
+				return false;
+		return true;
+	}
+
+	private static boolean next( final long[] position, final long[] min, final long[] max )
+	{
+		for ( int d = 0; d < position.length; ++d )
+		{
+			if ( ++position[ d ] <= max[ d ] )
+				return true;
+			position[ d ] = min[ d ];
+		}
+		return false;
+	}
+
+}
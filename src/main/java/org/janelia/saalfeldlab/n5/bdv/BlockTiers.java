@@ -0,0 +1,238 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5CellLoader;
+
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * The tiers through which a {@link SharedCellCache} reads the blocks of
+ * containers: the two stages of a {@link BlockPipeline}, a
+ * {@link CompressedBlockStore}, a {@link BlockBufferPool} and a
+ * {@link MappedBlockCache}. Each is optional and applies to the containers
+ * opened after it was set.
+ */
+class BlockTiers
+{
+	private volatile BlockPipeline pipeline;
+
+	private volatile CompressedBlockStore compressedStore;
+
+	private volatile BlockBufferPool bufferPool;
+
+	private volatile MappedBlockCache mappedBlocks;
+
+	void setBlockPipeline( final BlockPipeline pipeline )
+	{
+		this.pipeline = pipeline;
+	}
+
+	BlockPipeline getBlockPipeline()
+	{
+		return pipeline;
+	}
+
+	void setCompressedBlockStore( final CompressedBlockStore compressedStore )
+	{
+		this.compressedStore = compressedStore;
+	}
+
+	CompressedBlockStore getCompressedBlockStore()
+	{
+		return compressedStore;
+	}
+
+	void setBufferPool( final BlockBufferPool bufferPool )
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	BlockBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	void setMappedBlockCache( final MappedBlockCache mappedBlocks )
+	{
+		this.mappedBlocks = mappedBlocks;
+	}
+
+	MappedBlockCache getMappedBlockCache()
+	{
+		return mappedBlocks;
+	}
+
+	/**
+	 * Drop the blocks held by the tiers.
+	 */
+	void clear()
+	{
+		final CompressedBlockStore store = compressedStore;
+		if ( store != null )
+			store.clear();
+		final MappedBlockCache mapped = mappedBlocks;
+		if ( mapped != null )
+			mapped.clear();
+	}
+
+	/**
+	 * @return a reader of a file system container through the tiers, or null
+	 *         if the container is not read in tiers
+	 */
+	PipelinedN5Reader pipelined( final N5Reader n5 )
+	{
+		if ( n5 instanceof PipelinedN5Reader )
+			return ( PipelinedN5Reader ) n5;
+		final BlockPipeline p = pipeline;
+		final CompressedBlockStore store = compressedStore;
+		final BlockBufferPool pool = bufferPool;
+		// block files of writers may change while they are mapped
+		final MappedBlockCache mapped = n5 != null && n5.getClass() == N5FSReader.class ? mappedBlocks : null;
+		if ( ( p != null || store != null || pool != null || mapped != null ) && PipelinedN5Reader.supports( n5 ) )
+			return new PipelinedN5Reader( ( N5FSReader ) n5, p, mapped == null ? store : null, pool, mapped );
+		return null;
+	}
+
+	/**
+	 * The loader of the cells of a dataset.
+	 *
+	 * @param n5 the reader
+	 * @param pipelined the reader through the tiers, see
+	 *        {@link #pipelined(N5Reader)}, or null
+	 * @param dataset the dataset
+	 * @param attributes the attributes of the dataset
+	 * @return the loader
+	 */
+	< T extends NativeType< T > > CellLoader< T > loader( final N5Reader n5, final PipelinedN5Reader pipelined, final String dataset, final DatasetAttributes attributes )
+	{
+		if ( pipelined == null )
+			return new N5CellLoader<>( compressed( n5 ), dataset, attributes.getBlockSize() );
+		if ( pipelined.getBufferPool() == null )
+			return new N5CellLoader<>( pipelined, dataset, attributes.getBlockSize() );
+		return recyclingLoader( pipelined, dataset, attributes );
+	}
+
+	/**
+	 * @return a reader that keeps the blocks of a container that is not read
+	 *         in stages in the compressed store, or the reader if there is
+	 *         no store
+	 */
+	private N5Reader compressed( final N5Reader n5 )
+	{
+		final CompressedBlockStore store = compressedStore;
+		return store == null ? n5 : new CompressedCachingN5Reader( n5, store );
+	}
+
+	/**
+	 * Like {@link N5CellLoader}, but gives the array of each block back to
+	 * the buffer pool of the reader after copying it into the cell.
+	 */
+	private static < T extends NativeType< T > > CellLoader< T > recyclingLoader( final PipelinedN5Reader n5, final String dataset, final DatasetAttributes attributes )
+	{
+		final int[] blockSize = attributes.getBlockSize();
+		final BiConsumer< SingleCellArrayImg< T, ? >, DataBlock< ? > > copy = N5CellLoader.createCopy( attributes.getDataType() );
+		return cell -> {
+			final long[] gridPosition = new long[ cell.numDimensions() ];
+			for ( int d = 0; d < gridPosition.length; ++d )
+				gridPosition[ d ] = cell.min( d ) / blockSize[ d ];
+			final DataBlock< ? > block = n5.readBlock( dataset, attributes, gridPosition );
+			if ( block != null )
+			{
+				try
+				{
+					copy.accept( cell, block );
+				}
+				finally
+				{
+					n5.recycle( block );
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param pipelined the reader through the tiers, or null
+	 * @return the stages in which the cells of a dataset are loaded, or null
+	 *         if they are loaded in one go
+	 */
+	static Stages stages( final PipelinedN5Reader pipelined, final String dataset, final CellGrid grid )
+	{
+		return pipelined == null || pipelined.getPipeline() == null ? null : new Stages( pipelined, dataset, grid );
+	}
+
+	/**
+	 * The fetch and decode stages of the cells of one image.
+	 */
+	static class Stages
+	{
+		private final PipelinedN5Reader reader;
+
+		private final String dataset;
+
+		private final long[] gridDimensions;
+
+		Stages( final PipelinedN5Reader reader, final String dataset, final CellGrid grid )
+		{
+			this.reader = reader;
+			this.dataset = dataset;
+			this.gridDimensions = grid.getGridDimensions();
+		}
+
+		private long[] gridPosition( final long index )
+		{
+			final long[] position = new long[ gridDimensions.length ];
+			IntervalIndexer.indexToPosition( index, gridDimensions, position );
+			return position;
+		}
+
+		void fetch( final long index ) throws IOException, InterruptedException
+		{
+			reader.fetch( dataset, gridPosition( index ) );
+		}
+
+		/**
+		 * Run the load of a cell on a decoder. Raw bytes that the load did
+		 * not use, e.g. because the cell was restored from the off-heap
+		 * store, are dropped afterwards.
+		 */
+		void decode( final long index, final CellLoad load )
+		{
+			reader.getPipeline().decode( () -> {
+				try
+				{
+					load.run();
+				}
+				finally
+				{
+					reader.discard( dataset, gridPosition( index ) );
+				}
+			}, load );
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of a {@link SharedCellCache}, and the {@link LoadMetrics} of
+ * its images and of their containers.
+ */
+class CellCacheMetrics
+{
+	/**
+	 * The metrics of an image and of its container, recorded together.
+	 */
+	static final class Meters
+	{
+		final LoadMetrics image;
+
+		final LoadMetrics container;
+
+		Meters( final LoadMetrics image, final LoadMetrics container )
+		{
+			this.image = image;
+			this.container = container;
+		}
+
+		void hit()
+		{
+			image.hit();
+			container.hit();
+		}
+
+		void miss()
+		{
+			image.miss();
+			container.miss();
+		}
+
+		void joined()
+		{
+			image.joined();
+			container.joined();
+		}
+
+		void evicted()
+		{
+			image.evicted();
+			container.evicted();
+		}
+
+		void loaded( final long bytes )
+		{
+			image.loaded( bytes );
+			container.loaded( bytes );
+		}
+
+		void blocked( final long nanos )
+		{
+			image.blocked( nanos );
+			container.blocked( nanos );
+		}
+
+		void queued( final long nanos )
+		{
+			image.getQueueWait().record( nanos );
+			container.getQueueWait().record( nanos );
+		}
+
+		void fetched( final long nanos )
+		{
+			image.getFetch().record( nanos );
+			container.getFetch().record( nanos );
+		}
+
+		void decoded( final long nanos )
+		{
+			image.getDecode().record( nanos );
+			container.getDecode().record( nanos );
+		}
+	}
+
+	final LongAdder hitCount = new LongAdder();
+
+	final LongAdder missCount = new LongAdder();
+
+	/**
+	 * Requests for cells that other threads were loading already.
+	 */
+	final LongAdder joinedCount = new LongAdder();
+
+	final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * The memory used by the cells that were loaded, not restored from the
+	 * off-heap store.
+	 */
+	final LongAdder bytesLoaded = new LongAdder();
+
+	/**
+	 * Where the loads of images that were not opened from a container are
+	 * recorded.
+	 */
+	final Meters unattributed = new Meters( new LoadMetrics(), new LoadMetrics() );
+
+	private final Map< Integer, Meters > imageMeters = new ConcurrentHashMap<>();
+
+	private final Map< String, LoadMetrics > containerMetrics = new ConcurrentHashMap<>();
+
+	/**
+	 * Record the loads of an image opened from a container.
+	 *
+	 * @param imageId the id of the image
+	 * @param container the name of the container
+	 * @return the meters of the image
+	 */
+	Meters addImage( final int imageId, final String container )
+	{
+		final Meters meters = new Meters( new LoadMetrics(), containerMetrics.computeIfAbsent( container, k -> new LoadMetrics() ) );
+		imageMeters.put( imageId, meters );
+		return meters;
+	}
+
+	/**
+	 * Record the loads of an image whose cells are computed.
+	 *
+	 * @param imageId the id of the image
+	 * @return the meters of the image
+	 */
+	Meters addComputedImage( final int imageId )
+	{
+		final Meters meters = new Meters( new LoadMetrics(), unattributed.container );
+		imageMeters.put( imageId, meters );
+		return meters;
+	}
+
+	/**
+	 * @return the meters of an image, or null if it has none
+	 */
+	Meters find( final int imageId )
+	{
+		return imageMeters.get( imageId );
+	}
+
+	/**
+	 * @return the meters of an image, or those of unattributed loads
+	 */
+	Meters get( final int imageId )
+	{
+		return imageMeters.getOrDefault( imageId, unattributed );
+	}
+
+	void removeImage( final int imageId )
+	{
+		imageMeters.remove( imageId );
+	}
+
+	LoadMetrics getContainerMetrics( final String container )
+	{
+		return containerMetrics.get( container );
+	}
+
+	Map< String, LoadMetrics > getContainerMetrics()
+	{
+		return new HashMap<>( containerMetrics );
+	}
+
+	void hit( final Meters meters )
+	{
+		hitCount.increment();
+		meters.hit();
+	}
+
+	void miss( final Meters meters )
+	{
+		missCount.increment();
+		meters.miss();
+	}
+
+	void joined( final Meters meters )
+	{
+		joinedCount.increment();
+		meters.joined();
+	}
+
+	void evicted( final int imageId )
+	{
+		evictionCount.increment();
+		get( imageId ).evicted();
+	}
+
+	void loaded( final Meters meters, final long bytes )
+	{
+		bytesLoaded.add( bytes );
+		meters.loaded( bytes );
+	}
+
+	void reset()
+	{
+		hitCount.reset();
+		missCount.reset();
+		joinedCount.reset();
+		evictionCount.reset();
+		bytesLoaded.reset();
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The load of a cell of a {@link SharedCellCache}, shared by all threads
+ * that wait for it.
+ */
+class CellLoad extends FutureTask< Object >
+{
+	/**
+	 * Actions to run when the load is done, guarded by this.
+	 */
+	private List< Runnable > actions;
+
+	private boolean finished;
+
+	CellLoad( final Callable< Object > load )
+	{
+		super( load );
+	}
+
+	/**
+	 * Run an action when the load is done, or right away if it is done
+	 * already.
+	 */
+	void whenDone( final Runnable action )
+	{
+		synchronized ( this )
+		{
+			if ( !finished )
+			{
+				if ( actions == null )
+					actions = new ArrayList<>();
+				actions.add( action );
+				return;
+			}
+		}
+		action.run();
+	}
+
+	@Override
+	protected void done()
+	{
+		final List< Runnable > toRun;
+		synchronized ( this )
+		{
+			finished = true;
+			toRun = actions;
+			actions = null;
+		}
+		if ( toRun != null )
+			for ( final Runnable action : toRun )
+				action.run();
+	}
+
+	/**
+	 * Complete the load with a cell that another load has inserted already.
+	 */
+	void succeed( final Object cell )
+	{
+		set( cell );
+	}
+
+	/**
+	 * Complete the load with the failure of a stage that ran outside of it,
+	 * e.g. reading the raw block.
+	 */
+	void fail( final Throwable t )
+	{
+		setException( t );
+	}
+
+	/**
+	 * @return the cell, or null if the load failed, was cancelled or the
+	 *         thread was interrupted while waiting
+	 */
+	Object getNow()
+	{
+		try
+		{
+			return get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch ( final ExecutionException | CancellationException e )
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache.Key;
+
+/**
+ * The loaded cells of a {@link SharedCellCache}, bounded by a memory budget
+ * and evicted in least recently used order.
+ *
+ * The cells are spread over stripes by their key, each an access ordered
+ * map with its own lock, so that lookups of different cells do not wait for
+ * each other. Every access stamps its cell from a shared clock. The least
+ * recently used cell of all stripes is therefore the eldest cell of one of
+ * them, the one with the oldest stamp, which is evicted first. Only one
+ * thread evicts at a time, lookups go on meanwhile.
+ */
+class CellStore
+{
+	static final int DEFAULT_NUM_STRIPES = 16;
+
+	private static final class Entry
+	{
+		final Object cell;
+
+		final long size;
+
+		/**
+		 * The clock at the last access, guarded by the stripe.
+		 */
+		long lastAccess;
+
+		Entry( final Object cell, final long size, final long lastAccess )
+		{
+			this.cell = cell;
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/**
+	 * Cells in access order, the eldest first. Guarded by the stripe.
+	 */
+	private static final class Stripe extends LinkedHashMap< Key, Entry >
+	{
+		private static final long serialVersionUID = 1L;
+
+		Stripe()
+		{
+			super( 64, 0.75f, true );
+		}
+
+		/**
+		 * @return the least recently used entry that is not {@code keep}, or
+		 *         null
+		 */
+		Map.Entry< Key, Entry > eldest( final Key keep )
+		{
+			for ( final Map.Entry< Key, Entry > e : entrySet() )
+				if ( !e.getKey().equals( keep ) )
+					return e;
+			return null;
+		}
+	}
+
+	private final long maxSizeInBytes;
+
+	private final Stripe[] stripes;
+
+	private final AtomicLong sizeInBytes = new AtomicLong();
+
+	private final AtomicLong clock = new AtomicLong();
+
+	private final Object evicting = new Object();
+
+	/**
+	 * @param maxSizeInBytes the memory budget of all cells
+	 * @param numStripes the number of stripes, rounded up to a power of two
+	 */
+	CellStore( final long maxSizeInBytes, final int numStripes )
+	{
+		this.maxSizeInBytes = maxSizeInBytes;
+		stripes = new Stripe[ Integer.highestOneBit( Math.max( 1, numStripes ) * 2 - 1 ) ];
+		for ( int i = 0; i < stripes.length; ++i )
+			stripes[ i ] = new Stripe();
+	}
+
+	CellStore( final long maxSizeInBytes )
+	{
+		this( maxSizeInBytes, DEFAULT_NUM_STRIPES );
+	}
+
+	private Stripe stripe( final Key key )
+	{
+		final int h = key.hashCode();
+		return stripes[ ( h ^ ( h >>> 16 ) ) & ( stripes.length - 1 ) ];
+	}
+
+	long getMaxSizeInBytes()
+	{
+		return maxSizeInBytes;
+	}
+
+	long getSizeInBytes()
+	{
+		return sizeInBytes.get();
+	}
+
+	int size()
+	{
+		int size = 0;
+		for ( final Stripe stripe : stripes )
+		{
+			synchronized ( stripe )
+			{
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the cell, or null if it is not in the store
+	 */
+	Object get( final Key key )
+	{
+		final Stripe stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			final Entry entry = stripe.get( key );
+			if ( entry == null )
+				return null;
+			entry.lastAccess = clock.incrementAndGet();
+			return entry.cell;
+		}
+	}
+
+	/**
+	 * @return whether the cell is in the store, without counting as an
+	 *         access
+	 */
+	boolean contains( final Key key )
+	{
+		final Stripe stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			return stripe.containsKey( key );
+		}
+	}
+
+	/**
+	 * Insert a cell, if {@code admit} is true under the lock of its stripe.
+	 * Does not evict, see {@link #evict(Key)}.
+	 *
+	 * @param key the key
+	 * @param cell the cell
+	 * @param size the memory used by the cell
+	 * @param admit whether the cell may be inserted, e.g. its image has not
+	 *        been released
+	 * @return whether the cell was inserted
+	 */
+	boolean put( final Key key, final Object cell, final long size, final BooleanSupplier admit )
+	{
+		final Stripe stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			if ( !admit.getAsBoolean() )
+				return false;
+			final Entry previous = stripe.put( key, new Entry( cell, size, clock.incrementAndGet() ) );
+			sizeInBytes.addAndGet( size - ( previous == null ? 0 : previous.size ) );
+			return true;
+		}
+	}
+
+	/**
+	 * Evict least recently used cells until the store is within its budget,
+	 * but keep one cell, e.g. the one that was just inserted.
+	 *
+	 * @param keep the cell to keep, or null
+	 * @return the evicted cells
+	 */
+	List< Map.Entry< Key, Object > > evict( final Key keep )
+	{
+		if ( sizeInBytes.get() <= maxSizeInBytes )
+			return Collections.emptyList();
+
+		final List< Map.Entry< Key, Object > > evicted = new ArrayList<>();
+		synchronized ( evicting )
+		{
+			while ( sizeInBytes.get() > maxSizeInBytes )
+			{
+				Stripe oldest = null;
+				long oldestAccess = Long.MAX_VALUE;
+				for ( final Stripe stripe : stripes )
+				{
+					synchronized ( stripe )
+					{
+						final Map.Entry< Key, Entry > eldest = stripe.eldest( keep );
+						if ( eldest != null && eldest.getValue().lastAccess < oldestAccess )
+						{
+							oldest = stripe;
+							oldestAccess = eldest.getValue().lastAccess;
+						}
+					}
+				}
+				if ( oldest == null )
+					break;
+
+				// the eldest may have been used or removed since, then the
+				// next one goes
+				synchronized ( oldest )
+				{
+					final Map.Entry< Key, Entry > eldest = oldest.eldest( keep );
+					if ( eldest != null )
+					{
+						oldest.remove( eldest.getKey() );
+						sizeInBytes.addAndGet( -eldest.getValue().size );
+						evicted.add( new AbstractMap.SimpleImmutableEntry<>( eldest.getKey(), eldest.getValue().cell ) );
+					}
+				}
+			}
+		}
+		return evicted;
+	}
+
+	void remove( final Key key )
+	{
+		final Stripe stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			final Entry entry = stripe.remove( key );
+			if ( entry != null )
+				sizeInBytes.addAndGet( -entry.size );
+		}
+	}
+
+	void removeIf( final Predicate< Key > condition )
+	{
+		for ( final Stripe stripe : stripes )
+		{
+			synchronized ( stripe )
+			{
+				final Iterator< Map.Entry< Key, Entry > > it = stripe.entrySet().iterator();
+				while ( it.hasNext() )
+				{
+					final Map.Entry< Key, Entry > e = it.next();
+					if ( condition.test( e.getKey() ) )
+					{
+						it.remove();
+						sizeInBytes.addAndGet( -e.getValue().size );
+					}
+				}
+			}
+		}
+	}
+
+	void clear()
+	{
+		removeIf( k -> true );
+	}
+}
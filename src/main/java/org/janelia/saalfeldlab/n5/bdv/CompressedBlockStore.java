@@ -0,0 +1,169 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache tier that holds the raw, still compressed bytes of blocks read by a
+ * {@link PipelinedN5Reader} from a file system container, or the
+ * uncompressed blocks that a {@link CompressedCachingN5Reader} read from any
+ * other container.
+ *
+ * Compressed blocks are often several times smaller than the decoded cells
+ * of the {@link SharedCellCache}, so a much larger part of a dataset fits.
+ * A cell that was evicted from the cell cache is then decoded again from
+ * memory instead of being read from storage. The store has its own budget
+ * in bytes and evicts in least recently used order.
+ */
+public class CompressedBlockStore
+{
+	/**
+	 * Estimated memory of an entry besides the bytes of the block.
+	 */
+	static final long BLOCK_OVERHEAD_BYTES = 96;
+
+	private final long maxSizeInBytes;
+
+	private final LinkedHashMap< Object, byte[] > blocks = new LinkedHashMap<>( 1024, 0.75f, true );
+
+	private long sizeInBytes;
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	private final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * @param maxSizeInBytes the budget of the compressed blocks
+	 */
+	public CompressedBlockStore( final long maxSizeInBytes )
+	{
+		this.maxSizeInBytes = maxSizeInBytes;
+	}
+
+	public long getMaxSizeInBytes()
+	{
+		return maxSizeInBytes;
+	}
+
+	public synchronized long getSizeInBytes()
+	{
+		return sizeInBytes;
+	}
+
+	public synchronized int getNumBlocks()
+	{
+		return blocks.size();
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.sum();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.sum();
+	}
+
+	/**
+	 * @return the fraction of raw reads that were served from memory
+	 */
+	public double getHitRate()
+	{
+		final long hits = getHitCount();
+		final long requests = hits + getMissCount();
+		return requests == 0 ? 0 : ( double ) hits / requests;
+	}
+
+	public void resetStatistics()
+	{
+		hitCount.reset();
+		missCount.reset();
+		evictionCount.reset();
+	}
+
+	public synchronized void clear()
+	{
+		blocks.clear();
+		sizeInBytes = 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d compressed blocks, %d / %d MB, hit rate %.1f%%",
+				getNumBlocks(), getSizeInBytes() >> 20, maxSizeInBytes >> 20, 100 * getHitRate() );
+	}
+
+	/**
+	 * @param key the key of the block
+	 * @return the raw bytes of the block, or null if they are not stored
+	 */
+	synchronized byte[] get( final Object key )
+	{
+		final byte[] raw = blocks.get( key );
+		if ( raw == null )
+			missCount.increment();
+		else
+			hitCount.increment();
+		return raw;
+	}
+
+	/**
+	 * Store the raw bytes of a block, evicting the least recently used
+	 * blocks if the budget is exceeded.
+	 *
+	 * @param key the key of the block
+	 * @param raw the raw bytes of the block
+	 */
+	synchronized void put( final Object key, final byte[] raw )
+	{
+		final long size = size( raw );
+		if ( size > maxSizeInBytes )
+			return;
+
+		final byte[] previous = blocks.put( key, raw );
+		if ( previous != null )
+			sizeInBytes -= size( previous );
+		sizeInBytes += size;
+
+		final Iterator< Map.Entry< Object, byte[] > > it = blocks.entrySet().iterator();
+		while ( sizeInBytes > maxSizeInBytes && it.hasNext() )
+		{
+			final Map.Entry< Object, byte[] > e = it.next();
+			sizeInBytes -= size( e.getValue() );
+			it.remove();
+			evictionCount.increment();
+		}
+	}
+
+	private static long size( final byte[] raw )
+	{
+		return BLOCK_OVERHEAD_BYTES + raw.length;
+	}
+}
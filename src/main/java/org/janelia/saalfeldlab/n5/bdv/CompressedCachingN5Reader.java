@@ -0,0 +1,169 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * {@link N5Reader} that keeps the blocks read from any container in a
+ * {@link CompressedBlockStore}, and decodes them from there when they are
+ * needed again, e.g. to avoid the latency of a remote container.
+ *
+ * Readers other than those of file system containers do not expose the raw
+ * bytes of a block, so a block that is read for the first time is encoded
+ * again with {@link DefaultBlockWriter} before it is stored. Compressing it
+ * with the codec of the dataset would cost as much as decoding it, so it is
+ * encoded without compression, and by a background thread rather than the
+ * thread that waits for the block. Blocks that arrive while the encoder is
+ * {@link #MAX_PENDING_BLOCKS} blocks behind are not stored. Stored blocks
+ * are decoded with {@link DefaultBlockReader}. Blocks are keyed by the
+ * wrapped reader. All other requests are forwarded to the container.
+ */
+public class CompressedCachingN5Reader implements N5Reader
+{
+	/**
+	 * The number of blocks that may wait for the encoder.
+	 */
+	public static final int MAX_PENDING_BLOCKS = 256;
+
+	private static final AtomicInteger numPending = new AtomicInteger();
+
+	private static final ExecutorService encoder = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "n5-viewer-compressed-store" );
+		thread.setDaemon( true );
+		thread.setPriority( Thread.MIN_PRIORITY );
+		return thread;
+	} );
+
+	private final N5Reader n5;
+
+	private final CompressedBlockStore compressedStore;
+
+	/**
+	 * @param n5 the container
+	 * @param compressedStore the store of compressed blocks
+	 */
+	public CompressedCachingN5Reader( final N5Reader n5, final CompressedBlockStore compressedStore )
+	{
+		this.n5 = n5;
+		this.compressedStore = compressedStore;
+	}
+
+	public N5Reader getReader()
+	{
+		return n5;
+	}
+
+	public CompressedBlockStore getCompressedStore()
+	{
+		return compressedStore;
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition ) throws IOException
+	{
+		final BlockPipeline.BlockKey key = new BlockPipeline.BlockKey( n5, pathName, gridPosition.clone() );
+		final byte[] stored = compressedStore.get( key );
+		if ( stored != null )
+			return DefaultBlockReader.readBlock( new ByteArrayInputStream( stored ), uncompressed( datasetAttributes ), gridPosition );
+
+		final DataBlock< ? > block = n5.readBlock( pathName, datasetAttributes, gridPosition );
+		if ( block != null )
+			store( key, uncompressed( datasetAttributes ), block );
+		return block;
+	}
+
+	private void store( final BlockPipeline.BlockKey key, final DatasetAttributes attributes, final DataBlock< ? > block )
+	{
+		if ( numPending.incrementAndGet() > MAX_PENDING_BLOCKS )
+		{
+			numPending.decrementAndGet();
+			return;
+		}
+		encoder.execute( () -> {
+			try
+			{
+				final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+				DefaultBlockWriter.writeBlock( encoded, attributes, block );
+				compressedStore.put( key, encoded.toByteArray() );
+			}
+			catch ( final IOException e )
+			{
+				// the block is read from the container again
+			}
+			finally
+			{
+				numPending.decrementAndGet();
+			}
+		} );
+	}
+
+	private static DatasetAttributes uncompressed( final DatasetAttributes attributes )
+	{
+		return new DatasetAttributes( attributes.getDimensions(), attributes.getBlockSize(), attributes.getDataType(), new RawCompression() );
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		return n5.getDatasetAttributes( pathName );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Class< T > clazz ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, clazz );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Type type ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, type );
+	}
+
+	@Override
+	public boolean exists( final String pathName )
+	{
+		return n5.exists( pathName );
+	}
+
+	@Override
+	public String[] list( final String pathName ) throws IOException
+	{
+		return n5.list( pathName );
+	}
+
+	@Override
+	public Map< String, Class< ? > > listAttributes( final String pathName ) throws IOException
+	{
+		return n5.listAttributes( pathName );
+	}
+}
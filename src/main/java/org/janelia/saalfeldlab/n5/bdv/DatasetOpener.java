@@ -0,0 +1,140 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import net.imglib2.cache.img.CachedCellImg;
+
+/**
+ * Opens datasets concurrently on a bounded pool of threads.
+ *
+ * Opening a dataset reads its attributes, which is a round trip to the
+ * storage backend. On network file systems and cloud storage, opening the
+ * scale levels of all selected datasets one after another dominates startup,
+ * so the viewer submits all of them at once and collects the results in the
+ * original order.
+ *
+ * The threads are started when datasets are opened and stop after
+ * {@link #KEEP_ALIVE_SECONDS} without work, so a viewer keeps one opener for
+ * its lifetime instead of starting a pool for every selection.
+ */
+public class DatasetOpener implements AutoCloseable
+{
+	public static final int DEFAULT_NUM_THREADS = 16;
+
+	public static final long KEEP_ALIVE_SECONDS = 10;
+
+	private final ThreadPoolExecutor executor;
+
+	private final DatasetRegistry registry;
+
+	/**
+	 * @param registry the registry that hands out the images, so that a
+	 *            dataset that is open already is not opened again
+	 */
+	public DatasetOpener( final DatasetRegistry registry )
+	{
+		this( registry, DEFAULT_NUM_THREADS );
+	}
+
+	/**
+	 * @param registry the registry that hands out the images, so that a
+	 *            dataset that is open already is not opened again
+	 * @param numThreads the maximum number of datasets opened at the same
+	 *            time
+	 */
+	public DatasetOpener( final DatasetRegistry registry, final int numThreads )
+	{
+		this.registry = registry;
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ThreadFactory threadFactory = r -> {
+			final Thread thread = new Thread( r, "n5-viewer-opener-" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		};
+		executor = new ThreadPoolExecutor( numThreads, numThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Submit opening a dataset as a volatile {@link CachedCellImg}. The image
+	 * is acquired from the registry and must be released there.
+	 *
+	 * @param n5 the reader
+	 * @param dataset the dataset path
+	 * @return the future image
+	 */
+	public Future< CachedCellImg< ?, ? > > openVolatile( final N5Reader n5, final String dataset )
+	{
+		return submit( () -> registry.acquire( n5, dataset ) );
+	}
+
+	public < X > Future< X > submit( final Callable< X > task )
+	{
+		return executor.submit( task );
+	}
+
+	/**
+	 * Waits for a result and rethrows the failure of the task that computed
+	 * it.
+	 *
+	 * @param future the future
+	 * @return the result
+	 * @throws IOException if the task failed with an IOException
+	 */
+	public static < X > X get( final Future< X > future ) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while opening datasets" );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof IOException )
+				throw ( IOException ) cause;
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw new IOException( cause );
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+	}
+}
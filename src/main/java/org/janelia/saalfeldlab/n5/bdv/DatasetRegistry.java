@@ -0,0 +1,313 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.cache.img.CachedCellImg;
+
+/**
+ * Hands out one cached image per dataset, however often and through whichever
+ * reader the dataset is opened.
+ *
+ * Datasets are identified by the URI of their container and their path, so
+ * that a dataset that is selected twice, added again later, or referenced by
+ * a multiscale group and by a single scale node is opened once, its blocks
+ * are loaded once and held once in the cell cache. Images are reference
+ * counted: every {@link #acquire} is matched by a {@link #release}, and the
+ * image and its cells are dropped with the last release.
+ *
+ * Readers of file system containers are identified by their base path,
+ * readers with a disk cache by the key of their remote container, readers
+ * that wrap another reader like the reader they wrap, and readers with a key
+ * set by {@link #setContainerKey} (e.g. decorated or remote readers) by that
+ * key. All other readers are identified by their instance.
+ */
+public class DatasetRegistry
+{
+	private final SharedCellCache cache;
+
+	private final Map< Key, Entry > entries = new HashMap<>();
+
+	private final Map< CachedCellImg< ?, ? >, Entry > imageEntries = new IdentityHashMap<>();
+
+	private static final Map< N5Reader, Object > containerKeys = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	private static final class Key
+	{
+		final Object container;
+
+		final String dataset;
+
+		Key( final Object container, final String dataset )
+		{
+			this.container = container;
+			this.dataset = dataset;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof Key ) )
+				return false;
+			final Key k = ( Key ) other;
+			return container.equals( k.container ) && dataset.equals( k.dataset );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash( container, dataset );
+		}
+	}
+
+	private final class Entry
+	{
+		final Key key;
+
+		/**
+		 * Guarded by the registry.
+		 */
+		int refCount;
+
+		/**
+		 * Guarded by this entry while the image is opened.
+		 */
+		CachedCellImg< ?, ? > img;
+
+		Entry( final Key key )
+		{
+			this.key = key;
+		}
+
+		synchronized CachedCellImg< ?, ? > open( final N5Reader n5 ) throws IOException
+		{
+			if ( img == null )
+			{
+				final CachedCellImg< ?, ? > opened = cache == null ? N5Utils.openVolatile( n5, key.dataset ) : cache.openVolatile( n5, key.dataset );
+				synchronized ( DatasetRegistry.this )
+				{
+					imageEntries.put( opened, this );
+				}
+				img = opened;
+			}
+			return img;
+		}
+	}
+
+	/**
+	 * @param cache the cache that holds the cells of the images, or null for
+	 *        a separate cache per image
+	 */
+	public DatasetRegistry( final SharedCellCache cache )
+	{
+		this.cache = cache;
+	}
+
+	public SharedCellCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Open a dataset as a volatile {@link CachedCellImg}, or get the image
+	 * of the dataset that is already open, and count one more reference to
+	 * it.
+	 *
+	 * @param n5 the reader
+	 * @param dataset the dataset path
+	 * @return the image
+	 * @throws IOException if the dataset cannot be opened
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < I extends CachedCellImg< ?, ? > > I acquire( final N5Reader n5, final String dataset ) throws IOException
+	{
+		final Entry entry;
+		synchronized ( this )
+		{
+			entry = entries.computeIfAbsent( new Key( containerKey( n5 ), normalize( dataset ) ), Entry::new );
+			++entry.refCount;
+		}
+		try
+		{
+			return ( I ) entry.open( n5 );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			synchronized ( this )
+			{
+				if ( --entry.refCount == 0 )
+					entries.remove( entry.key );
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Count one more reference to an image handed out by this registry, e.g.
+	 * for another source that uses it.
+	 *
+	 * @param img the image
+	 * @throws IllegalArgumentException if the image is not registered
+	 */
+	public synchronized void retain( final CachedCellImg< ?, ? > img )
+	{
+		final Entry entry = imageEntries.get( img );
+		if ( entry == null )
+			throw new IllegalArgumentException( "Image is not registered" );
+		++entry.refCount;
+	}
+
+	/**
+	 * Count one reference less to an image handed out by this registry. The
+	 * last release drops the image and its cells.
+	 *
+	 * @param img the image, ignored if it is not registered
+	 */
+	public void release( final CachedCellImg< ?, ? > img )
+	{
+		synchronized ( this )
+		{
+			final Entry entry = imageEntries.get( img );
+			if ( entry == null || --entry.refCount > 0 )
+				return;
+			entries.remove( entry.key );
+			imageEntries.remove( img );
+		}
+		if ( cache != null )
+			cache.release( img );
+		else
+			img.getCache().invalidateAll();
+	}
+
+	/**
+	 * @param img an image
+	 * @return the number of references to the image, or 0 if it is not
+	 *         registered
+	 */
+	public synchronized int getRefCount( final CachedCellImg< ?, ? > img )
+	{
+		final Entry entry = imageEntries.get( img );
+		return entry == null ? 0 : entry.refCount;
+	}
+
+	/**
+	 * @return the number of open datasets
+	 */
+	public synchronized int getNumDatasets()
+	{
+		return imageEntries.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d open datasets", getNumDatasets() );
+	}
+
+	/**
+	 * @return what identifies the container of a reader: the key set for the
+	 *         reader, the URI of a file system container, the key of a remote
+	 *         container with a disk cache, or the reader itself
+	 */
+	static Object containerKey( final N5Reader n5 )
+	{
+		final Object key = containerKeys.get( n5 );
+		if ( key != null )
+			return key;
+		if ( n5 instanceof PipelinedN5Reader )
+			return containerKey( ( ( PipelinedN5Reader ) n5 ).getReader() );
+		if ( n5 instanceof SimulatedRemoteN5Reader )
+			return containerKey( ( ( SimulatedRemoteN5Reader ) n5 ).getReader() );
+		if ( n5 instanceof DiskCachedN5Reader )
+			return ( ( DiskCachedN5Reader ) n5 ).getContainerKey();
+		if ( n5 instanceof N5FSReader )
+			return Paths.get( ( ( N5FSReader ) n5 ).getBasePath() ).toAbsolutePath().normalize().toUri().toString();
+		return new IdentityKey( n5 );
+	}
+
+	/**
+	 * Identify the container of a reader that cannot be identified otherwise,
+	 * e.g. a remote reader by the URI of its container.
+	 *
+	 * @param n5 the reader
+	 * @param containerKey the key of its container, e.g. a URI
+	 */
+	public static void setContainerKey( final N5Reader n5, final String containerKey )
+	{
+		containerKeys.put( n5, containerKey );
+	}
+
+	/**
+	 * Identify a reader that decorates another reader like the reader it
+	 * decorates.
+	 *
+	 * @param decorated the decorating reader
+	 * @param n5 the decorated reader
+	 */
+	static void setDecorated( final N5Reader decorated, final N5Reader n5 )
+	{
+		if ( decorated != n5 )
+			containerKeys.put( decorated, containerKey( n5 ) );
+	}
+
+	private static final class IdentityKey
+	{
+		final Object object;
+
+		IdentityKey( final Object object )
+		{
+			this.object = object;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			return other instanceof IdentityKey && ( ( IdentityKey ) other ).object == object;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode( object );
+		}
+	}
+
+	/**
+	 * @return the dataset path without leading, trailing and repeated
+	 *         slashes
+	 */
+	static String normalize( final String dataset )
+	{
+		final StringBuilder normalized = new StringBuilder();
+		for ( final String part : dataset.split( "/" ) )
+			if ( !part.isEmpty() )
+				normalized.append( normalized.length() == 0 ? "" : "/" ).append( part );
+		return normalized.toString();
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+
+/**
+ * Directory on the local disk that holds blocks of remote containers, see
+ * {@link DiskCachedN5Reader}.
+ *
+ * Every container is cached in its own N5 container below the cache
+ * directory. The total size of all cached blocks is bounded: when it
+ * exceeds the cap, the least recently used blocks are deleted until the
+ * cache is at {@link #CLEANUP_FRACTION} of the cap. Reading a cached block
+ * updates its modification time, so the modification time orders blocks by
+ * their last use, also across sessions. The clean up runs on a background
+ * thread, not on the thread that loaded the block.
+ *
+ * The size of the blocks cached by earlier sessions is measured on the same
+ * background thread, so that opening the cache does not walk the directory
+ * on the calling thread, e.g. the event dispatch thread of a dialog. Until
+ * then, only the blocks added in this session count towards the cap.
+ */
+public class DiskCache
+{
+	public static final double CLEANUP_FRACTION = 0.9;
+
+	private final Path directory;
+
+	private final long maxSizeInBytes;
+
+	private final AtomicLong sizeInBytes = new AtomicLong();
+
+	private final AtomicBoolean cleaning = new AtomicBoolean();
+
+	/**
+	 * Measures the cache, cleans it up and checks cached datasets against
+	 * their remote containers, one task after the other.
+	 */
+	private static final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "n5-viewer-disk-cache" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	/**
+	 * A block file with the attributes that it had when the cache
+	 * directory was listed, so that sorting does not read them again.
+	 */
+	private static class BlockFile
+	{
+		final Path path;
+
+		final long lastModified;
+
+		final long size;
+
+		BlockFile( final Path path, final long lastModified, final long size )
+		{
+			this.path = path;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param directory the cache directory, created if it does not exist
+	 * @param maxSizeInBytes the size cap of all cached blocks
+	 * @throws IOException if the directory cannot be created
+	 */
+	public DiskCache( final String directory, final long maxSizeInBytes ) throws IOException
+	{
+		this.directory = Paths.get( directory );
+		this.maxSizeInBytes = maxSizeInBytes;
+		Files.createDirectories( this.directory );
+		inBackground( () -> {
+			// keep the blocks counted while the directory is walked
+			final long counted = sizeInBytes.get();
+			sizeInBytes.addAndGet( sizeOfBlocks() - counted );
+			added( 0 );
+		} );
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	public long getMaxSizeInBytes()
+	{
+		return maxSizeInBytes;
+	}
+
+	public long getSizeInBytes()
+	{
+		return sizeInBytes.get();
+	}
+
+	/**
+	 * Open the cache of a container.
+	 *
+	 * @param containerKey identifies the container, e.g. its URL
+	 * @return the N5 container that holds the cached blocks
+	 * @throws IOException if the container cannot be created
+	 */
+	public N5FSWriter openContainer( final String containerKey ) throws IOException
+	{
+		return new N5FSWriter( containerDirectory( containerKey ).toString() );
+	}
+
+	Path containerDirectory( final String containerKey )
+	{
+		String name = containerKey.replaceAll( "[^A-Za-z0-9._-]", "_" );
+		if ( name.length() > 64 )
+			name = name.substring( name.length() - 64 );
+		return directory.resolve( name + "-" + Integer.toHexString( containerKey.hashCode() ) );
+	}
+
+	/**
+	 * Account for a block written to the cache, and start deleting the least
+	 * recently used blocks in the background if the cache exceeds its cap.
+	 *
+	 * @param bytes the size of the block file
+	 */
+	void added( final long bytes )
+	{
+		if ( sizeInBytes.addAndGet( bytes ) > maxSizeInBytes && cleaning.compareAndSet( false, true ) )
+		{
+			inBackground( () -> {
+				try
+				{
+					cleanUp();
+				}
+				finally
+				{
+					cleaning.set( false );
+				}
+			} );
+		}
+	}
+
+	@FunctionalInterface
+	interface BackgroundTask
+	{
+		void run() throws IOException;
+	}
+
+	/**
+	 * Run a task on the background thread of the disk cache. Failures are
+	 * reported but must not fail a block load.
+	 *
+	 * @param task the task
+	 * @return the pending task
+	 */
+	Future< ? > inBackground( final BackgroundTask task )
+	{
+		return backgroundExecutor.submit( () -> {
+			try
+			{
+				task.run();
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				// blocks that are deleted or touched concurrently are
+				// skipped, other failures leave the cache as it is
+				e.printStackTrace();
+			}
+		} );
+	}
+
+	/**
+	 * Wait for the background tasks that have been started so far, e.g. the
+	 * clean up started by the last {@link #added(long)}.
+	 */
+	void awaitBackgroundTasks() throws InterruptedException, ExecutionException
+	{
+		backgroundExecutor.submit( () -> {} ).get();
+	}
+
+	/**
+	 * Delete the least recently used blocks until the cache is at
+	 * {@link #CLEANUP_FRACTION} of its cap.
+	 *
+	 * @throws IOException if the cache directory cannot be read
+	 */
+	public void cleanUp() throws IOException
+	{
+		final long counted = sizeInBytes.get();
+		final List< BlockFile > blocks = new ArrayList<>();
+		try ( final Stream< Path > files = Files.walk( directory ) )
+		{
+			files.forEach( path -> {
+				final BlockFile block = blockFile( path );
+				if ( block != null )
+					blocks.add( block );
+			} );
+		}
+
+		// the snapshot does not change while sorting, even if blocks are
+		// read and touched concurrently
+		blocks.sort( Comparator.comparingLong( b -> b.lastModified ) );
+
+		long size = 0;
+		for ( final BlockFile block : blocks )
+			size += block.size;
+		final long target = ( long ) ( CLEANUP_FRACTION * maxSizeInBytes );
+		long deleted = 0;
+		for ( final BlockFile block : blocks )
+		{
+			if ( size - deleted <= target )
+				break;
+			if ( Files.deleteIfExists( block.path ) )
+				deleted += block.size;
+		}
+
+		// correct the count to the listed blocks, but keep the blocks that
+		// were counted while the directory was listed
+		sizeInBytes.addAndGet( size - deleted - counted );
+	}
+
+	private long sizeOfBlocks() throws IOException
+	{
+		try ( final Stream< Path > files = Files.walk( directory ) )
+		{
+			return files.map( DiskCache::blockFile ).filter( b -> b != null ).mapToLong( b -> b.size ).sum();
+		}
+	}
+
+	static long size( final Path path )
+	{
+		try
+		{
+			return Files.size( path );
+		}
+		catch ( final IOException e )
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the block file at path, or null if path is not a block or has
+	 *         been deleted
+	 */
+	private static BlockFile blockFile( final Path path )
+	{
+		if ( path.getFileName().toString().equals( "attributes.json" ) )
+			return null;
+		try
+		{
+			final BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+			return attributes.isRegularFile() ? new BlockFile( path, attributes.lastModifiedTime().toMillis(), attributes.size() ) : null;
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+	}
+}
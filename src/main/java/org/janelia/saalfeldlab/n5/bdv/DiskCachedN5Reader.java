@@ -0,0 +1,321 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * {@link N5Reader} that keeps the blocks read from a remote container in a
+ * {@link DiskCache}, so that they are read from the local disk in later
+ * sessions.
+ *
+ * Blocks are cached by container, dataset and grid position. The attributes
+ * of a cached dataset are read from the disk, and checked against the remote
+ * container once per session on the background thread of the
+ * {@link DiskCache}, so opening a cached dataset does not wait for the
+ * network. If they differ, the cached blocks of the dataset are discarded,
+ * later requests get the remote attributes, and the blocks of the dataset
+ * are read from the remote container for the rest of the session, because
+ * images opened with the old attributes may still request them. Datasets
+ * that are not cached yet are read from the remote container right away.
+ * All other requests are forwarded to the remote container.
+ */
+public class DiskCachedN5Reader implements N5Reader
+{
+	private static final Pattern REMOTE = Pattern.compile( "^(https?|s3|gs)://.*" );
+
+	private final N5Reader n5;
+
+	private final DiskCache diskCache;
+
+	private final String containerKey;
+
+	private final N5FSWriter cache;
+
+	private final Path cacheDirectory;
+
+	/**
+	 * The attributes of the datasets that have been opened in this session.
+	 */
+	private final Map< String, DatasetAttributes > attributes = new ConcurrentHashMap<>();
+
+	/**
+	 * Datasets whose attributes have changed in this session, their blocks
+	 * are not cached.
+	 */
+	private final Set< String > changed = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Blocks of a dataset are written to the cache under its read lock, and
+	 * its cached blocks are discarded under its write lock, so that no block
+	 * read with the old attributes is written after they are discarded.
+	 */
+	private final Map< String, ReadWriteLock > locks = new ConcurrentHashMap<>();
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * @param n5 the remote container
+	 * @param diskCache the cache directory
+	 * @param containerKey identifies the remote container, e.g. its URL
+	 * @throws IOException if the cache of the container cannot be created
+	 */
+	public DiskCachedN5Reader( final N5Reader n5, final DiskCache diskCache, final String containerKey ) throws IOException
+	{
+		this.n5 = n5;
+		this.diskCache = diskCache;
+		this.containerKey = containerKey;
+		this.cache = diskCache.openContainer( containerKey );
+		this.cacheDirectory = diskCache.containerDirectory( containerKey );
+	}
+
+	/**
+	 * @param containerPath the path or URL of a container
+	 * @return whether the container is read over the network
+	 */
+	public static boolean isRemote( final String containerPath )
+	{
+		return containerPath != null && REMOTE.matcher( containerPath ).matches();
+	}
+
+	public N5Reader getRemoteReader()
+	{
+		return n5;
+	}
+
+	public DiskCache getDiskCache()
+	{
+		return diskCache;
+	}
+
+	/**
+	 * @return the key of the remote container, e.g. its URL
+	 */
+	public String getContainerKey()
+	{
+		return containerKey;
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.sum();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.sum();
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		final DatasetAttributes known = attributes.get( pathName );
+		if ( known != null )
+			return known;
+		return open( pathName );
+	}
+
+	/**
+	 * Read the attributes of a dataset for the first time in this session.
+	 */
+	private synchronized DatasetAttributes open( final String pathName ) throws IOException
+	{
+		final DatasetAttributes known = attributes.get( pathName );
+		if ( known != null )
+			return known;
+
+		final DatasetAttributes cached = cache.datasetExists( pathName ) ? cache.getDatasetAttributes( pathName ) : null;
+		if ( cached != null )
+		{
+			attributes.put( pathName, cached );
+			diskCache.inBackground( () -> validate( pathName, cached ) );
+			return cached;
+		}
+
+		final DatasetAttributes remote = n5.getDatasetAttributes( pathName );
+		if ( remote != null )
+		{
+			cache.createDataset( pathName, remote );
+			attributes.put( pathName, remote );
+		}
+		return remote;
+	}
+
+	/**
+	 * Discard the cached blocks of a dataset if its remote attributes differ
+	 * from the cached ones.
+	 */
+	private void validate( final String pathName, final DatasetAttributes cached ) throws IOException
+	{
+		final DatasetAttributes remote = n5.getDatasetAttributes( pathName );
+		if ( remote == null || equal( cached, remote ) )
+			return;
+
+		final ReadWriteLock lock = lock( pathName );
+		lock.writeLock().lock();
+		try
+		{
+			synchronized ( this )
+			{
+				changed.add( pathName );
+				attributes.put( pathName, remote );
+				cache.remove( pathName );
+				cache.createDataset( pathName, remote );
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private ReadWriteLock lock( final String pathName )
+	{
+		return locks.computeIfAbsent( pathName, p -> new ReentrantReadWriteLock() );
+	}
+
+	static boolean equal( final DatasetAttributes a, final DatasetAttributes b )
+	{
+		return Arrays.equals( a.getDimensions(), b.getDimensions() ) &&
+				Arrays.equals( a.getBlockSize(), b.getBlockSize() ) &&
+				a.getDataType() == b.getDataType() &&
+				a.getCompression().getType().equals( b.getCompression().getType() );
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition ) throws IOException
+	{
+		if ( getDatasetAttributes( pathName ) == null || changed.contains( pathName ) )
+			return n5.readBlock( pathName, datasetAttributes, gridPosition );
+
+		final Path blockPath = blockPath( pathName, gridPosition );
+		if ( Files.exists( blockPath ) )
+		{
+			try
+			{
+				final DataBlock< ? > block = cache.readBlock( pathName, datasetAttributes, gridPosition );
+				if ( block != null )
+				{
+					hitCount.increment();
+					Files.setLastModifiedTime( blockPath, FileTime.fromMillis( System.currentTimeMillis() ) );
+					return block;
+				}
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				// incomplete block from an interrupted write, read it again
+			}
+		}
+
+		missCount.increment();
+		final DataBlock< ? > block = n5.readBlock( pathName, datasetAttributes, gridPosition );
+		if ( block != null )
+			writeToCache( pathName, datasetAttributes, block, blockPath );
+		return block;
+	}
+
+	/**
+	 * Write a block read from the remote container to the cache, unless the
+	 * dataset has changed since, which is checked under the lock of the
+	 * dataset.
+	 */
+	private void writeToCache( final String pathName, final DatasetAttributes datasetAttributes, final DataBlock< ? > block, final Path blockPath )
+	{
+		final ReadWriteLock lock = lock( pathName );
+		lock.readLock().lock();
+		try
+		{
+			if ( changed.contains( pathName ) )
+				return;
+			// replaces an incomplete block from an interrupted write, if any
+			final long previousSize = DiskCache.size( blockPath );
+			cache.writeBlock( pathName, datasetAttributes, block );
+			diskCache.added( DiskCache.size( blockPath ) - previousSize );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			// the cache is best effort, e.g. the disk may be full
+			e.printStackTrace();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private Path blockPath( final String pathName, final long... gridPosition )
+	{
+		Path path = cacheDirectory.resolve( removeLeadingSlash( pathName ) );
+		for ( final long p : gridPosition )
+			path = path.resolve( Long.toString( p ) );
+		return path;
+	}
+
+	private static String removeLeadingSlash( final String pathName )
+	{
+		return pathName.startsWith( "/" ) || pathName.startsWith( "\\" ) ? pathName.substring( 1 ) : pathName;
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Class< T > clazz ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, clazz );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Type type ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, type );
+	}
+
+	@Override
+	public boolean exists( final String pathName )
+	{
+		return n5.exists( pathName );
+	}
+
+	@Override
+	public String[] list( final String pathName ) throws IOException
+	{
+		return n5.list( pathName );
+	}
+
+	@Override
+	public Map< String, Class< ? > > listAttributes( final String pathName ) throws IOException
+	{
+		return n5.listAttributes( pathName );
+	}
+}
@@ -0,0 +1,569 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.metadata.PyramidFactory;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.ref.BoundedSoftRefLoaderCache;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Multiresolution pyramid over a single-scale image, computed on demand.
+ *
+ * Each level halves the previous one in the plane of the first two
+ * dimensions. A level is a {@link CachedCellImg} whose cells are computed
+ * by averaging the corresponding cells of the next finer level, never the
+ * full resolution directly, so zooming out only reads the full-resolution
+ * blocks that are needed to compute the visible coarse cells once. The
+ * computed cells are held in the {@link SharedCellCache} of the base image,
+ * within its memory budget, or in a bounded cache per level if there is
+ * none.
+ *
+ * The third dimension is halved only while its voxels stay no larger than
+ * the in-plane voxels, and never beyond the depth of a block of the base
+ * image, and the cells of a level are only as deep as a base block. A slice
+ * of a coarse level therefore reads one layer of base blocks, like a slice
+ * of the full resolution. Levels are added until the coarsest fits on the
+ * screen. Images that fit on the screen get no pyramid, see
+ * {@link #needsPyramid(Dimensions)}.
+ */
+public class DownsampledPyramid< T extends RealType< T > & NativeType< T > >
+{
+	public static final int DEFAULT_CELL_SIZE = 32;
+
+	public static final int DEFAULT_MAX_CACHED_CELLS = 1024;
+
+	/**
+	 * The size of the screen if there is none, e.g. in headless tests.
+	 */
+	public static final long DEFAULT_SCREEN_SIZE = 2048;
+
+	/**
+	 * The number of threads of the default executor.
+	 */
+	public static final int DEFAULT_NUM_THREADS = Math.min( 4, Runtime.getRuntime().availableProcessors() );
+
+	private static ExecutorService defaultExecutor;
+
+	private static long screenSize;
+
+	private final RandomAccessibleInterval< T >[] levels;
+
+	private final AffineTransform3D[] transforms;
+
+	private final SharedCellCache cache;
+
+	/**
+	 * Creates the pyramid over {@code base}.
+	 *
+	 * @param base the full resolution image
+	 * @param baseTransform the transform of the full resolution image
+	 * @param factors the downsampling factors of the levels, see
+	 *        {@link #downsamplingFactors(long[], AffineTransform3D, int, long)}
+	 * @param cellSize the cell size of the computed levels
+	 * @param cache the cache that holds the computed cells, or null for a
+	 *        cache of {@link #DEFAULT_MAX_CACHED_CELLS} per level
+	 * @param source the image of {@code cache} that {@code base} shows, the
+	 *        levels are released with it, or null
+	 * @param executor executor that computes the slabs of a cell in parallel,
+	 *        the thread that loads a cell computes slabs as well
+	 */
+	@SuppressWarnings( "unchecked" )
+	public DownsampledPyramid(
+			final RandomAccessibleInterval< T > base,
+			final AffineTransform3D baseTransform,
+			final long[][] factors,
+			final int cellSize,
+			final SharedCellCache cache,
+			final CachedCellImg< ?, ? > source,
+			final ExecutorService executor )
+	{
+		this.cache = cache;
+		final int blockDepth = blockDepth( base, source, cellSize );
+		final T type = Util.getTypeFromInterval( base ).createVariable();
+
+		levels = new RandomAccessibleInterval[ factors.length ];
+		levels[ 0 ] = base;
+		RandomAccessibleInterval< T > previous = Views.zeroMin( base );
+		for ( int l = 1; l < factors.length; ++l )
+		{
+			final int[] relativeFactors = new int[ base.numDimensions() ];
+			final long[] dimensions = new long[ base.numDimensions() ];
+			final int[] cellDimensions = new int[ base.numDimensions() ];
+			for ( int d = 0; d < relativeFactors.length; ++d )
+			{
+				relativeFactors[ d ] = ( int ) ( factors[ l ][ d ] / factors[ l - 1 ][ d ] );
+				dimensions[ d ] = ( previous.dimension( d ) + relativeFactors[ d ] - 1 ) / relativeFactors[ d ];
+				// a cell is at most as deep as a base block
+				final long depth = d == 2 ? Math.max( 1, blockDepth / factors[ l ][ d ] ) : cellSize;
+				cellDimensions[ d ] = ( int ) Math.min( Math.min( cellSize, depth ), dimensions[ d ] );
+			}
+
+			// computed from the next finer level
+			final CellGrid grid = new CellGrid( dimensions, cellDimensions );
+			final DownsamplingLoader< T > loader = new DownsamplingLoader<>( previous, relativeFactors, executor );
+			final CachedCellImg< T, ? > level = cache == null
+					? createCachedCellImg( grid, type, loader, DEFAULT_MAX_CACHED_CELLS )
+					: cache.createVolatile( grid, type, loader, source );
+			levels[ l ] = level;
+			previous = level;
+		}
+
+		transforms = transforms( baseTransform, factors, Intervals.minAsLongArray( base ) );
+	}
+
+	/**
+	 * Creates the pyramid over {@code base} down to the size of the screen,
+	 * computed by the {@link #defaultExecutor()}.
+	 *
+	 * @param base the full resolution image
+	 * @param baseTransform the transform of the full resolution image
+	 * @param cache the cache that holds the computed cells, or null
+	 * @param source the image of {@code cache} that {@code base} shows, or
+	 *        null
+	 */
+	public DownsampledPyramid(
+			final RandomAccessibleInterval< T > base,
+			final AffineTransform3D baseTransform,
+			final SharedCellCache cache,
+			final CachedCellImg< ?, ? > source )
+	{
+		this( base, baseTransform, downsamplingFactors( base, baseTransform, source ), DEFAULT_CELL_SIZE, cache, source, defaultExecutor() );
+	}
+
+	public DownsampledPyramid( final RandomAccessibleInterval< T > base, final AffineTransform3D baseTransform )
+	{
+		this( base, baseTransform, null, null );
+	}
+
+	/**
+	 * @param dimensions the dimensions of the full resolution image
+	 * @return whether the image is too large to be shown without a pyramid,
+	 *         i.e. does not fit on the screen
+	 */
+	public static boolean needsPyramid( final Dimensions dimensions )
+	{
+		final long size = screenSize();
+		for ( int d = 0; d < Math.min( 2, dimensions.numDimensions() ); ++d )
+			if ( dimensions.dimension( d ) > size )
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the larger side of the largest screen, or
+	 *         {@link #DEFAULT_SCREEN_SIZE} if there is none
+	 */
+	public static synchronized long screenSize()
+	{
+		if ( screenSize == 0 )
+		{
+			long size = 0;
+			try
+			{
+				if ( !GraphicsEnvironment.isHeadless() )
+				{
+					for ( final GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices() )
+					{
+						final DisplayMode mode = device.getDisplayMode();
+						size = Math.max( size, Math.max( mode.getWidth(), mode.getHeight() ) );
+					}
+				}
+			}
+			catch ( final HeadlessException e )
+			{}
+			screenSize = size > 0 ? size : DEFAULT_SCREEN_SIZE;
+		}
+		return screenSize;
+	}
+
+	/**
+	 * @return the executor shared by all pyramids, with
+	 *         {@link #DEFAULT_NUM_THREADS} low priority daemon threads
+	 */
+	public static synchronized ExecutorService defaultExecutor()
+	{
+		if ( defaultExecutor == null )
+			defaultExecutor = Executors.newFixedThreadPool( DEFAULT_NUM_THREADS, r -> {
+				final Thread thread = new Thread( r, "n5-viewer-downsampling" );
+				thread.setDaemon( true );
+				thread.setPriority( Thread.MIN_PRIORITY );
+				return thread;
+			} );
+		return defaultExecutor;
+	}
+
+	public int numLevels()
+	{
+		return levels.length;
+	}
+
+	public RandomAccessibleInterval< T >[] getLevels()
+	{
+		return levels;
+	}
+
+	public AffineTransform3D[] getTransforms()
+	{
+		return transforms;
+	}
+
+	/**
+	 * Drop the computed cells from the shared cache, e.g. when the
+	 * timepoint that the pyramid shows is released before its source image.
+	 */
+	public void release()
+	{
+		if ( cache != null )
+			for ( int l = 1; l < levels.length; ++l )
+				cache.release( ( CachedCellImg< ?, ? > ) levels[ l ] );
+	}
+
+	/**
+	 * Cumulative downsampling factors of every level of a pyramid over
+	 * {@code base} down to the size of the screen.
+	 *
+	 * @param base the full resolution image
+	 * @param baseTransform the transform of the full resolution image
+	 * @param source the image of blocks that {@code base} shows, or null
+	 * @return factors[ level ][ dimension ]
+	 */
+	public static long[][] downsamplingFactors( final Dimensions base, final AffineTransform3D baseTransform, final CachedCellImg< ?, ? > source )
+	{
+		return downsamplingFactors( Intervals.dimensionsAsLongArray( base ), baseTransform, blockDepth( base, source, DEFAULT_CELL_SIZE ), screenSize() );
+	}
+
+	/**
+	 * Cumulative downsampling factors of every level with respect to the
+	 * full resolution. Every level halves the first two dimensions. The third
+	 * is halved as well while its voxels are no larger than the in-plane
+	 * voxels and its factor does not exceed {@code blockDepth}, further
+	 * dimensions are never halved. Levels are added until the first two
+	 * dimensions of the coarsest level fit into {@code screenSize}.
+	 *
+	 * @param dimensions dimensions of the full resolution image
+	 * @param transform transform of the full resolution image, which gives
+	 *        the size of its voxels
+	 * @param blockDepth the size of a block of the full resolution along the
+	 *        third dimension
+	 * @param screenSize the size of the screen
+	 * @return factors[ level ][ dimension ]
+	 */
+	public static long[][] downsamplingFactors( final long[] dimensions, final AffineTransform3D transform, final int blockDepth, final long screenSize )
+	{
+		final double[] voxelSize = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			voxelSize[ d ] = Math.sqrt( Math.pow( transform.get( 0, d ), 2 ) + Math.pow( transform.get( 1, d ), 2 ) + Math.pow( transform.get( 2, d ), 2 ) );
+
+		final int numInPlane = Math.min( 2, dimensions.length );
+		final List< long[] > factors = new ArrayList<>();
+		final long[] levelDimensions = dimensions.clone();
+		final long[] levelFactors = new long[ dimensions.length ];
+		Arrays.fill( levelFactors, 1 );
+		factors.add( levelFactors.clone() );
+		while ( Arrays.stream( levelDimensions, 0, numInPlane ).anyMatch( x -> x > screenSize ) )
+		{
+			double inPlaneVoxelSize = Double.POSITIVE_INFINITY;
+			for ( int d = 0; d < numInPlane; ++d )
+			{
+				if ( levelDimensions[ d ] > 1 )
+				{
+					levelDimensions[ d ] = ( levelDimensions[ d ] + 1 ) / 2;
+					levelFactors[ d ] *= 2;
+				}
+				inPlaneVoxelSize = Math.min( inPlaneVoxelSize, levelFactors[ d ] * voxelSize[ d ] );
+			}
+			if ( dimensions.length > 2
+					&& levelDimensions[ 2 ] > 1
+					&& 2 * levelFactors[ 2 ] <= blockDepth
+					&& 2 * levelFactors[ 2 ] * voxelSize[ 2 ] <= inPlaneVoxelSize )
+			{
+				levelDimensions[ 2 ] = ( levelDimensions[ 2 ] + 1 ) / 2;
+				levelFactors[ 2 ] *= 2;
+			}
+			factors.add( levelFactors.clone() );
+		}
+		return factors.toArray( new long[ 0 ][] );
+	}
+
+	/**
+	 * The depth of a block of the full resolution, taken from the cell grid
+	 * of the image that it shows, whose spatial dimensions come first.
+	 *
+	 * @return the depth, or {@code cellSize} if it is unknown
+	 */
+	private static int blockDepth( final Dimensions base, final CachedCellImg< ?, ? > source, final int cellSize )
+	{
+		if ( base.numDimensions() < 3 || source == null || source.numDimensions() < 3 )
+			return cellSize;
+		return source.getCellGrid().cellDimension( 2 );
+	}
+
+	/**
+	 * Transforms of the levels. A level voxel covers {@code factor} voxels
+	 * of the full resolution, so its center is shifted by
+	 * {@code (factor - 1) / 2} full resolution voxels.
+	 *
+	 * @param baseTransform transform of the full resolution image
+	 * @param factors cumulative downsampling factors
+	 * @return the level transforms
+	 */
+	public static AffineTransform3D[] transforms( final AffineTransform3D baseTransform, final long[][] factors )
+	{
+		return transforms( baseTransform, factors, new long[ 0 ] );
+	}
+
+	/**
+	 * Transforms of the levels of a full resolution image whose min is not
+	 * zero. The full resolution level keeps its min, the coarser levels start
+	 * at zero, so their transforms are shifted by {@code baseMin}.
+	 *
+	 * @param baseTransform transform of the full resolution image
+	 * @param factors cumulative downsampling factors
+	 * @param baseMin min of the full resolution image
+	 * @return the level transforms
+	 */
+	public static AffineTransform3D[] transforms( final AffineTransform3D baseTransform, final long[][] factors, final long[] baseMin )
+	{
+		final AffineTransform3D offset = new AffineTransform3D();
+		for ( int d = 0; d < Math.min( 3, baseMin.length ); ++d )
+			offset.set( baseMin[ d ], d, 3 );
+
+		final AffineTransform3D[] transforms = new AffineTransform3D[ factors.length ];
+		for ( int l = 0; l < factors.length; ++l )
+		{
+			final double[] f = new double[] { 1, 1, 1 };
+			for ( int d = 0; d < Math.min( 3, factors[ l ].length ); ++d )
+				f[ d ] = factors[ l ][ d ];
+
+			final AffineTransform3D downsampling = new AffineTransform3D();
+			downsampling.set(
+					f[ 0 ], 0, 0, 0.5 * ( f[ 0 ] - 1 ),
+					0, f[ 1 ], 0, 0.5 * ( f[ 1 ] - 1 ),
+					0, 0, f[ 2 ], 0.5 * ( f[ 2 ] - 1 ) );
+
+			transforms[ l ] = baseTransform.copy();
+			if ( l > 0 )
+				transforms[ l ].concatenate( offset );
+			transforms[ l ].concatenate( downsampling );
+		}
+		return transforms;
+	}
+
+	/**
+	 * Pyramids of {@link org.janelia.saalfeldlab.n5.metadata.MetadataSource}s,
+	 * whose computed cells are held in {@code cache} with the raw image.
+	 *
+	 * @param cache the cache that holds the computed cells, or null
+	 * @return the factory
+	 */
+	public static PyramidFactory factory( final SharedCellCache cache )
+	{
+		return new PyramidFactory()
+		{
+			@Override
+			public AffineTransform3D[] transforms( final RandomAccessibleInterval< ? > slice, final AffineTransform3D sliceTransform, final CachedCellImg< ?, ? > raw )
+			{
+				if ( !needsPyramid( slice ) )
+					return new AffineTransform3D[] { sliceTransform };
+				return DownsampledPyramid.transforms( sliceTransform, downsamplingFactors( slice, sliceTransform, raw ), Intervals.minAsLongArray( slice ) );
+			}
+
+			@Override
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			public < S > RandomAccessibleInterval< S >[] levels( final RandomAccessibleInterval< S > slice, final AffineTransform3D sliceTransform, final CachedCellImg< ?, ? > raw )
+			{
+				return new DownsampledPyramid( slice, sliceTransform, cache, raw ).getLevels();
+			}
+		};
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static < T extends NativeType< T > > CachedCellImg< T, ? > createCachedCellImg(
+			final CellGrid grid,
+			final T type,
+			final CellLoader< T > loader,
+			final int maxCachedCells )
+	{
+		// volatile accesses, so that the levels can be wrapped as volatile
+		final Set< AccessFlags > flags = AccessFlags.setOf( AccessFlags.VOLATILE );
+		final Cache cache = new BoundedSoftRefLoaderCache( maxCachedCells ).withLoader( LoadedCellCacheLoader.get( grid, loader, type, flags ) );
+		return new CachedCellImg( grid, type, cache, ArrayDataAccessFactory.get( type, flags ) );
+	}
+
+	/**
+	 * Computes a cell by averaging the corresponding box of the source.
+	 * The slabs of a cell along its largest dimension are computed in parallel
+	 * by the loading thread and the executor. Slabs are taken from a shared
+	 * counter, and executor tasks that have not started when the loading
+	 * thread runs out of slabs are cancelled. The loading thread therefore
+	 * never waits for queued tasks, which keeps a bounded executor from
+	 * deadlocking when the cells of the level above are loaded from its
+	 * threads.
+	 */
+	static class DownsamplingLoader< T extends RealType< T > > implements CellLoader< T >
+	{
+		private final RandomAccessibleInterval< T > source;
+
+		private final long[] sourceMax;
+
+		private final int[] factors;
+
+		private final ExecutorService executor;
+
+		private final int numThreads;
+
+		DownsamplingLoader( final RandomAccessibleInterval< T > source, final int[] factors, final ExecutorService executor )
+		{
+			this.source = source;
+			this.sourceMax = Intervals.maxAsLongArray( source );
+			this.factors = factors;
+			this.executor = executor;
+			this.numThreads = numThreads( executor );
+		}
+
+		/**
+		 * @return the number of threads of the executor, at most one per
+		 *         processor, or {@link #DEFAULT_NUM_THREADS} if it does not tell
+		 */
+		static int numThreads( final ExecutorService executor )
+		{
+			if ( executor instanceof ThreadPoolExecutor )
+				return Math.min( ( ( ThreadPoolExecutor ) executor ).getMaximumPoolSize(), Runtime.getRuntime().availableProcessors() );
+			if ( executor instanceof ForkJoinPool )
+				return ( ( ForkJoinPool ) executor ).getParallelism();
+			return DEFAULT_NUM_THREADS;
+		}
+
+		@Override
+		public void load( final SingleCellArrayImg< T, ? > cell ) throws Exception
+		{
+			// cells of coarse levels may be a single voxel deep
+			final int slabDimension = largestDimension( cell );
+			final long[] min = Intervals.minAsLongArray( cell );
+			final long[] max = Intervals.maxAsLongArray( cell );
+			final AtomicLong next = new AtomicLong( min[ slabDimension ] );
+
+			final Runnable slabs = () -> {
+				for ( long z = next.getAndIncrement(); z <= max[ slabDimension ]; z = next.getAndIncrement() )
+				{
+					final long[] slabMin = min.clone();
+					final long[] slabMax = max.clone();
+					slabMin[ slabDimension ] = z;
+					slabMax[ slabDimension ] = z;
+					downsample( Views.interval( cell, slabMin, slabMax ) );
+				}
+			};
+
+			final int numHelpers = ( int ) Math.min( numThreads, max[ slabDimension ] - min[ slabDimension ] );
+			final List< Future< ? > > helpers = new ArrayList<>();
+			for ( int i = 0; i < numHelpers; ++i )
+				helpers.add( executor.submit( slabs ) );
+
+			slabs.run();
+			for ( final Future< ? > helper : helpers )
+				if ( !helper.cancel( false ) )
+					helper.get();
+		}
+
+		/**
+		 * @return the largest dimension of an interval, the last of equal ones
+		 */
+		private static int largestDimension( final Dimensions interval )
+		{
+			int largest = interval.numDimensions() - 1;
+			for ( int d = largest - 1; d >= 0; --d )
+				if ( interval.dimension( d ) > interval.dimension( largest ) )
+					largest = d;
+			return largest;
+		}
+
+		private void downsample( final RandomAccessibleInterval< T > target )
+		{
+			final int n = target.numDimensions();
+			final RandomAccess< T > in = source.randomAccess();
+			final Cursor< T > out = Views.flatIterable( target ).localizingCursor();
+			final long[] position = new long[ n ];
+			final int[] offset = new int[ n ];
+			while ( out.hasNext() )
+			{
+				out.fwd();
+				double sum = 0;
+				int count = 0;
+				Arrays.fill( offset, 0 );
+				while ( true )
+				{
+					boolean inside = true;
+					for ( int d = 0; d < n; ++d )
+					{
+						position[ d ] = out.getLongPosition( d ) * factors[ d ] + offset[ d ];
+						inside &= position[ d ] <= sourceMax[ d ];
+					}
+					if ( inside )
+					{
+						in.setPosition( position );
+						sum += in.get().getRealDouble();
+						++count;
+					}
+
+					int d = 0;
+					for ( ; d < n; ++d )
+					{
+						if ( ++offset[ d ] < factors[ d ] )
+							break;
+						offset[ d ] = 0;
+					}
+					if ( d == n )
+						break;
+				}
+				out.get().setReal( count == 0 ? 0 : sum / count );
+			}
+		}
+	}
+}
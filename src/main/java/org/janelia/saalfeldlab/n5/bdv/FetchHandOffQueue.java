@@ -0,0 +1,94 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.concurrent.Callable;
+
+import bdv.util.volatiles.SharedQueue;
+
+/**
+ * The {@link SharedQueue} of the volatile sources of a viewer, whose fetcher
+ * threads hand missing blocks to the {@link FetchQueue} of a
+ * {@link SharedCellCache} instead of waiting for them.
+ *
+ * A fetcher thread runs a request in the background mode of the cache, see
+ * {@link SharedCellCache#callInBackground}: if the block of the request has
+ * to be loaded, the cache enqueues the load and the fetcher thread moves on
+ * to the next request. Once the block is loaded, the request is put to the
+ * front of this queue again and completes from memory. So a few fetcher
+ * threads serve any number of requests in flight, and the workers of the
+ * fetch queue are the only threads that wait for the storage.
+ *
+ * Viewers use it if {@link N5ViewerOptions#fetchHandOff(boolean)} is set.
+ */
+public class FetchHandOffQueue extends SharedQueue
+{
+	/**
+	 * @param numFetcherThreads the number of fetcher threads
+	 */
+	public FetchHandOffQueue( final int numFetcherThreads )
+	{
+		super( numFetcherThreads );
+	}
+
+	/**
+	 * @param numFetcherThreads the number of fetcher threads
+	 * @param numPriorities the number of priority levels
+	 */
+	public FetchHandOffQueue( final int numFetcherThreads, final int numPriorities )
+	{
+		super( numFetcherThreads, numPriorities );
+	}
+
+	@Override
+	public void put( final Callable< ? > element, final int priority, final boolean enqueueToFront )
+	{
+		super.put( element instanceof HandOff ? element : new HandOff( element, priority ), priority, enqueueToFront );
+	}
+
+	private class HandOff implements Callable< Void >
+	{
+		private final Callable< ? > request;
+
+		private final int priority;
+
+		private volatile boolean resumed;
+
+		HandOff( final Callable< ? > request, final int priority )
+		{
+			this.request = request;
+			this.priority = priority;
+		}
+
+		@Override
+		public Void call() throws Exception
+		{
+			SharedCellCache.callInBackground( request, resumed, this::resume );
+			return null;
+		}
+
+		/**
+		 * Repeat the request once its block is loaded, before requests that
+		 * have not been handed off yet.
+		 */
+		private void resume()
+		{
+			resumed = true;
+			put( this, priority, true );
+		}
+	}
+}
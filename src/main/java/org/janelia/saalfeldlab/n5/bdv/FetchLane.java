@@ -0,0 +1,172 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The requests of one reader in a {@link FetchQueue}. Lanes share the
+ * workers of the queue fairly: while several lanes have requests waiting,
+ * none of them holds more than its share of the workers, so a slow
+ * container cannot occupy all workers and stall the others. A lane can
+ * further be limited to a number of concurrent loads and to a number of
+ * bytes per second.
+ */
+public class FetchLane
+{
+	private final String name;
+
+	private volatile int maxThreads;
+
+	private volatile long bytesPerSecond;
+
+	/*
+	 * State of the scheduler, guarded by the lock of the queue.
+	 */
+
+	volatile int numPending;
+
+	volatile int numActive;
+
+	/**
+	 * Time at which the throttle allows the next load.
+	 */
+	long nextLoadNanos = System.nanoTime();
+
+	private final LongAdder loadCount = new LongAdder();
+
+	private final LongAdder latencyNanos = new LongAdder();
+
+	private final LongAdder byteCount = new LongAdder();
+
+	FetchLane( final String name )
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Limit the number of concurrent loads of this lane.
+	 *
+	 * @param maxThreads the limit, or 0 for no limit other than the fair
+	 *            share
+	 */
+	public void setMaxThreads( final int maxThreads )
+	{
+		this.maxThreads = maxThreads;
+	}
+
+	public int getMaxThreads()
+	{
+		return maxThreads;
+	}
+
+	/**
+	 * Limit the bytes loaded per second by this lane. The bytes are those of
+	 * the loaded blocks in memory.
+	 *
+	 * @param bytesPerSecond the limit, or 0 for no limit
+	 */
+	public void setBytesPerSecond( final long bytesPerSecond )
+	{
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public long getBytesPerSecond()
+	{
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return the number of requests waiting in this lane
+	 */
+	public int getNumPending()
+	{
+		return numPending;
+	}
+
+	/**
+	 * @return the number of loads of this lane that are running
+	 */
+	public int getNumActive()
+	{
+		return numActive;
+	}
+
+	public long getLoadCount()
+	{
+		return loadCount.sum();
+	}
+
+	public long getByteCount()
+	{
+		return byteCount.sum();
+	}
+
+	/**
+	 * @return the mean time of a load in milliseconds
+	 */
+	public double getMeanLatencyMillis()
+	{
+		final long loads = getLoadCount();
+		return loads == 0 ? 0 : latencyNanos.sum() * 1e-6 / loads;
+	}
+
+	public void resetStatistics()
+	{
+		loadCount.reset();
+		latencyNanos.reset();
+		byteCount.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s: %d pending, %d active, %d loads, %.1f ms per load, %d MB",
+				name, getNumPending(), getNumActive(), getLoadCount(), getMeanLatencyMillis(), getByteCount() >> 20 );
+	}
+
+	/**
+	 * @return whether a load of this lane may start now
+	 */
+	boolean mayStart( final int fairShare, final long now )
+	{
+		final int max = maxThreads;
+		return ( max <= 0 || numActive < max ) && numActive < fairShare && now - nextLoadNanos >= 0;
+	}
+
+	void loaded( final long nanos )
+	{
+		loadCount.increment();
+		latencyNanos.add( nanos );
+	}
+
+	/**
+	 * Charge the throttle with the bytes of a load.
+	 */
+	void addBytes( final long bytes, final long now )
+	{
+		byteCount.add( bytes );
+		final long limit = bytesPerSecond;
+		if ( limit > 0 )
+			nextLoadNanos = ( now - nextLoadNanos > 0 ? now : nextLoadNanos ) + ( long ) ( bytes * 1e9 / limit );
+	}
+}
@@ -0,0 +1,1003 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/**
+ * Loads blocks on a pool of worker threads, always the most important
+ * pending request first.
+ *
+ * The fetcher threads of the viewer's {@link FetchHandOffQueue} hand their
+ * requests to this queue without waiting for them, so all requests that are
+ * in flight at the same time compete here. The importance of a request
+ * is given by a {@link Priority}, which is evaluated when a worker takes the
+ * next request, so it reflects the view at that moment rather than at the
+ * time of the request. The priority of a request is evaluated again only
+ * when the {@link Priority#version() version} of the priority changes, not
+ * for every request a worker takes.
+ *
+ * Requests are tagged with the generation of the view that made them.
+ * Prefetch requests of a replaced generation are dropped when a worker
+ * would take them: the prefetcher asks again for what is still ahead of the
+ * view. Requests of the renderer are never dropped, because the renderer
+ * waits for them, but a {@link Priority} can move them behind the requests
+ * of the current view.
+ *
+ * The number of workers adapts to the storage between a minimum and a
+ * maximum. Every {@link #ADAPT_INTERVAL_MILLIS}, the queue measures the wall
+ * time and the CPU time of the loads: a load that mostly waits (remote
+ * storage) needs more workers to keep the processors busy than a load that
+ * mostly decompresses (local storage), {@code processors * wall / cpu}
+ * workers in total. If the CPU time cannot be measured, e.g. on virtual
+ * threads, the workers double while requests are waiting. While the loads
+ * keep the processors busy, the workers decrease. Workers are only
+ * added while requests are waiting, and not again if the last increase did
+ * not raise the throughput.
+ *
+ * Requests are sorted into {@link FetchLane lanes}, one per reader, which
+ * share the workers fairly and can be limited separately. Images that are
+ * not assigned to a lane use the default lane.
+ *
+ * The state of the queue is guarded by a {@link ReentrantLock} rather than a
+ * monitor, so that virtual workers are not pinned to their carrier threads
+ * while they wait for a request.
+ */
+public class FetchQueue
+{
+	/**
+	 * Importance of a request, lower values are loaded first.
+	 */
+	@FunctionalInterface
+	public interface Priority
+	{
+		double priority( Request request );
+
+		/**
+		 * @return the current generation of the view, with which new
+		 *         requests are tagged
+		 */
+		default long generation()
+		{
+			return 0;
+		}
+
+		/**
+		 * The queue evaluates the priority of a pending request once per
+		 * version. A priority that depends on anything other than the
+		 * request and the generation must change the version whenever that
+		 * changes.
+		 *
+		 * @return the version of the priorities of all requests
+		 */
+		default long version()
+		{
+			return generation();
+		}
+	}
+
+	/**
+	 * A pending block request.
+	 */
+	public static class Request
+	{
+		private final int imageId;
+
+		private final long cellIndex;
+
+		private final long sequence;
+
+		private final long generation;
+
+		private final boolean prefetch;
+
+		private final FetchLane lane;
+
+		private final FutureTask< ? > task;
+
+		/*
+		 * The priority of the request as evaluated by a priority at a
+		 * version, guarded by the lock of the queue.
+		 */
+
+		private Priority evaluatedBy;
+
+		private long evaluatedVersion;
+
+		private double evaluatedPriority;
+
+		Request( final int imageId, final long cellIndex, final long sequence, final long generation, final boolean prefetch, final FetchLane lane, final FutureTask< ? > task )
+		{
+			this.imageId = imageId;
+			this.cellIndex = cellIndex;
+			this.sequence = sequence;
+			this.generation = generation;
+			this.prefetch = prefetch;
+			this.lane = lane;
+			this.task = task;
+		}
+
+		public int getImageId()
+		{
+			return imageId;
+		}
+
+		public long getCellIndex()
+		{
+			return cellIndex;
+		}
+
+		/**
+		 * @return the order in which the requests were made
+		 */
+		public long getSequence()
+		{
+			return sequence;
+		}
+
+		/**
+		 * @return the generation of the view that made the request
+		 */
+		public long getGeneration()
+		{
+			return generation;
+		}
+
+		/**
+		 * @return true if the request was made ahead of the renderer and
+		 *         nobody waits for it
+		 */
+		public boolean isPrefetch()
+		{
+			return prefetch;
+		}
+
+		public FetchLane getLane()
+		{
+			return lane;
+		}
+	}
+
+	/**
+	 * Loads in the order of the requests.
+	 */
+	public static final Priority FIFO = Request::getSequence;
+
+	/**
+	 * The queue whose worker is the current thread, if any.
+	 */
+	private static final ThreadLocal< FetchQueue > workerOf = new ThreadLocal<>();
+
+	/**
+	 * The request that the current worker runs, if any.
+	 */
+	private static final ThreadLocal< Request > running = new ThreadLocal<>();
+
+	public static final long ADAPT_INTERVAL_MILLIS = 500;
+
+	/**
+	 * Minimum relative gain of throughput for which more workers are kept.
+	 */
+	public static final double MIN_THROUGHPUT_GAIN = 0.05;
+
+	/**
+	 * Number of intervals after which workers are added again although the
+	 * last increase did not raise the throughput.
+	 */
+	public static final int CEILING_INTERVALS = 20;
+
+	/**
+	 * Share of the processors used by loads above which they are considered
+	 * busy: the wall time of a load then includes waiting for a processor,
+	 * and more workers would only wait longer.
+	 */
+	public static final double CPU_SATURATION = 0.9;
+
+	private static final int NUM_PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a request is added, a load finishes or the target
+	 * number of workers changes.
+	 */
+	private final Condition changed = lock.newCondition();
+
+	private final List< Request > pending = new ArrayList<>();
+
+	private final FetchLane defaultLane = new FetchLane( "default" );
+
+	private final List< FetchLane > lanes = new ArrayList<>( Collections.singletonList( defaultLane ) );
+
+	private final Map< Object, FetchLane > lanesByBackend = new IdentityHashMap<>();
+
+	private final Map< Integer, FetchLane > imageLanes = new HashMap<>();
+
+	private volatile Priority priority;
+
+	private long nextSequence;
+
+	private final int minThreads;
+
+	private final int maxThreads;
+
+	private final ThreadFactory threadFactory;
+
+	/**
+	 * The target number of workers.
+	 */
+	private int numThreads;
+
+	private final Set< Thread > workers = new HashSet<>();
+
+	private final LongAdder windowLoads = new LongAdder();
+
+	private final LongAdder windowWallNanos = new LongAdder();
+
+	private final LongAdder windowCpuNanos = new LongAdder();
+
+	private final LongAdder windowUnmeasured = new LongAdder();
+
+	private long windowStart = System.nanoTime();
+
+	private int previousNumThreads;
+
+	private double previousThroughput;
+
+	private int ceiling = Integer.MAX_VALUE;
+
+	private int ceilingIntervals;
+
+	private final LongAdder completedCount = new LongAdder();
+
+	private final LongAdder cancelledCount = new LongAdder();
+
+	private final LongAdder staleCount = new LongAdder();
+
+	private volatile boolean shutdown;
+
+	/**
+	 * @param minThreads the minimum number of worker threads
+	 * @param maxThreads the maximum number of worker threads
+	 * @param priority the importance of requests
+	 * @param threadFactory creates the workers, or null for daemon threads
+	 */
+	public FetchQueue( final int minThreads, final int maxThreads, final Priority priority, final ThreadFactory threadFactory )
+	{
+		this.minThreads = Math.max( 1, minThreads );
+		this.maxThreads = Math.max( this.minThreads, maxThreads );
+		this.priority = priority;
+		if ( threadFactory == null )
+		{
+			final AtomicInteger threadCount = new AtomicInteger();
+			this.threadFactory = r -> {
+				final Thread thread = new Thread( r, "n5-viewer-fetch-" + threadCount.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			};
+		}
+		else
+			this.threadFactory = threadFactory;
+
+		lock.lock();
+		try
+		{
+			previousNumThreads = clamp( NUM_PROCESSORS / 2 );
+			setNumThreads( previousNumThreads );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param numThreads the number of worker threads
+	 * @param priority the importance of requests
+	 */
+	public FetchQueue( final int numThreads, final Priority priority )
+	{
+		this( numThreads, numThreads, priority, null );
+	}
+
+	public FetchQueue( final int numThreads )
+	{
+		this( numThreads, FIFO );
+	}
+
+	public void setPriority( final Priority priority )
+	{
+		this.priority = priority;
+	}
+
+	public Priority getPriority()
+	{
+		return priority;
+	}
+
+	public int getNumPending()
+	{
+		lock.lock();
+		try
+		{
+			return pending.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param images selects images by id
+	 * @return the number of pending requests of the selected images
+	 */
+	public int getNumPending( final IntPredicate images )
+	{
+		lock.lock();
+		try
+		{
+			int n = 0;
+			for ( final Request request : pending )
+				if ( images.test( request.imageId ) )
+					++n;
+			return n;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the current target number of workers
+	 */
+	public int getNumThreads()
+	{
+		lock.lock();
+		try
+		{
+			return numThreads;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public int getMinThreads()
+	{
+		return minThreads;
+	}
+
+	public int getMaxThreads()
+	{
+		return maxThreads;
+	}
+
+	/**
+	 * Get the lane of a backend, e.g. a reader, and create it if there is
+	 * none.
+	 *
+	 * @param backend the backend, compared by identity
+	 * @param name the name of a new lane
+	 * @return the lane
+	 */
+	public FetchLane getLane( final Object backend, final String name )
+	{
+		lock.lock();
+		try
+		{
+			return lanesByBackend.computeIfAbsent( backend, k -> {
+				final FetchLane lane = new FetchLane( name );
+				lanes.add( lane );
+				return lane;
+			} );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param backend the backend, compared by identity
+	 * @return the lane of the backend, or null if there is none
+	 */
+	public FetchLane findLane( final Object backend )
+	{
+		lock.lock();
+		try
+		{
+			return lanesByBackend.get( backend );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Load the blocks of an image in a lane. The lane of a backend is
+	 * removed with its last image, requests that are still waiting in it
+	 * are loaded nevertheless.
+	 *
+	 * @param imageId the image
+	 * @param lane the lane, or null for the default lane
+	 */
+	public void setLane( final int imageId, final FetchLane lane )
+	{
+		lock.lock();
+		try
+		{
+			final FetchLane previous = lane == null ? imageLanes.remove( imageId ) : imageLanes.put( imageId, lane );
+			if ( previous != null && previous != lane && previous != defaultLane && !imageLanes.containsValue( previous ) )
+			{
+				lanesByBackend.values().remove( previous );
+				lanes.remove( previous );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public FetchLane getDefaultLane()
+	{
+		return defaultLane;
+	}
+
+	public List< FetchLane > getLanes()
+	{
+		lock.lock();
+		try
+		{
+			return new ArrayList<>( lanes );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Charge the lane of an image with the bytes of a load, for its
+	 * throttle and statistics.
+	 *
+	 * @param imageId the image
+	 * @param bytes the size of the loaded block
+	 */
+	public void addBytes( final int imageId, final long bytes )
+	{
+		lock.lock();
+		try
+		{
+			imageLanes.getOrDefault( imageId, defaultLane ).addBytes( bytes, System.nanoTime() );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A factory of virtual threads, which suit storage with high latency:
+	 * they are cheap enough to have hundreds of loads waiting at the same
+	 * time.
+	 *
+	 * @return the factory, or null if the Java runtime has no virtual
+	 *         threads
+	 */
+	public static ThreadFactory virtualThreadFactory()
+	{
+		// Thread.ofVirtual().factory(), available since Java 21
+		try
+		{
+			final Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+			return ( ThreadFactory ) Class.forName( "java.lang.Thread$Builder" ).getMethod( "factory" ).invoke( builder );
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			return null;
+		}
+	}
+
+	public long getCompletedCount()
+	{
+		return completedCount.sum();
+	}
+
+	/**
+	 * @return the number of prefetch requests that were dropped because the
+	 *         view had moved on
+	 */
+	public long getCancelledCount()
+	{
+		return cancelledCount.sum();
+	}
+
+	/**
+	 * @return the number of loads that completed after the view that
+	 *         requested them had been replaced, an upper bound of the loads
+	 *         that were wasted
+	 */
+	public long getStaleCount()
+	{
+		return staleCount.sum();
+	}
+
+	public void resetStatistics()
+	{
+		completedCount.reset();
+		cancelledCount.reset();
+		staleCount.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d loads, %d stale, %d prefetches cancelled, %d pending, %d workers", getCompletedCount(), getStaleCount(), getCancelledCount(), getNumPending(), getNumThreads() );
+	}
+
+	/**
+	 * @return whether the current thread is a worker of a fetch queue
+	 */
+	public static boolean isWorkerThread()
+	{
+		return workerOf.get() != null;
+	}
+
+	/**
+	 * @return whether the current thread is a worker of a fetch queue that
+	 *         runs a prefetch request, for which nobody waits
+	 */
+	public static boolean isPrefetching()
+	{
+		final Request request = running.get();
+		return request != null && request.prefetch;
+	}
+
+	/**
+	 * Load a block on a worker thread and wait for it.
+	 *
+	 * @param imageId the image of the block
+	 * @param cellIndex the index of the block in the cell grid
+	 * @param load loads the block
+	 * @return the block
+	 * @throws ExecutionException if loading fails, is interrupted, or the
+	 *         queue is shut down
+	 */
+	public < V > V fetch( final int imageId, final long cellIndex, final Callable< V > load ) throws ExecutionException
+	{
+		if ( workerOf.get() == this )
+		{
+			// a load that needs another block, e.g. to compute a coarser
+			// level: waiting for another worker could deadlock
+			try
+			{
+				return load.call();
+			}
+			catch ( final Exception e )
+			{
+				throw new ExecutionException( e );
+			}
+		}
+
+		final FutureTask< V > task = enqueue( imageId, cellIndex, new FutureTask<>( load ), false );
+		try
+		{
+			return task.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new ExecutionException( e );
+		}
+		catch ( final CancellationException e )
+		{
+			throw new ExecutionException( e );
+		}
+	}
+
+	/**
+	 * Load a block on a worker thread without waiting for it. The request is
+	 * cancelled if the view moves on before a worker takes it.
+	 *
+	 * @param imageId the image of the block
+	 * @param cellIndex the index of the block in the cell grid
+	 * @param load loads the block
+	 * @return the pending load, cancelled if it was dropped or the queue is
+	 *         shut down
+	 */
+	public < V > Future< V > prefetch( final int imageId, final long cellIndex, final Callable< V > load )
+	{
+		return enqueue( imageId, cellIndex, new FutureTask<>( load ), true );
+	}
+
+	/**
+	 * Load a block on a worker thread for a thread that must not wait for
+	 * it, e.g. a fetcher thread of a {@link FetchHandOffQueue}. Unlike a
+	 * prefetch, the request is not dropped when the view moves on, because
+	 * somebody needs the block.
+	 *
+	 * @param imageId the image of the block
+	 * @param cellIndex the index of the block in the cell grid
+	 * @param load loads the block, and is notified of its completion through
+	 *            {@link FutureTask#done()}; cancelled if the queue is shut
+	 *            down
+	 */
+	public void submit( final int imageId, final long cellIndex, final FutureTask< ? > load )
+	{
+		enqueue( imageId, cellIndex, load, false );
+	}
+
+	private < T extends FutureTask< ? > > T enqueue( final int imageId, final long cellIndex, final T task, final boolean prefetch )
+	{
+		lock.lock();
+		try
+		{
+			if ( !shutdown )
+			{
+				final FetchLane lane = imageLanes.getOrDefault( imageId, defaultLane );
+				++lane.numPending;
+				pending.add( new Request( imageId, cellIndex, nextSequence++, priority.generation(), prefetch, lane, task ) );
+				changed.signal();
+				return task;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		task.cancel( false );
+		return task;
+	}
+
+	/**
+	 * Stop the workers. Pending requests are cancelled, so that threads that
+	 * wait for them fail instead of waiting forever, and so are requests
+	 * made afterwards.
+	 */
+	public void shutdown()
+	{
+		final List< Request > cancelled;
+		lock.lock();
+		try
+		{
+			shutdown = true;
+			cancelled = new ArrayList<>( pending );
+			for ( final Request request : pending )
+				--request.lane.numPending;
+			pending.clear();
+			for ( final Thread worker : workers )
+				worker.interrupt();
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		// outside of the lock, cancelling runs the completion of handed off
+		// requests
+		for ( final Request request : cancelled )
+			if ( request.task.cancel( false ) )
+				cancelledCount.increment();
+	}
+
+	private void work()
+	{
+		workerOf.set( this );
+		try
+		{
+			while ( !shutdown )
+			{
+				final Request request;
+				try
+				{
+					request = take();
+				}
+				catch ( final InterruptedException e )
+				{
+					break;
+				}
+				if ( request == null )
+					break;
+
+				final long cpuStart = cpuTime();
+				final long wallStart = System.nanoTime();
+				running.set( request );
+				try
+				{
+					request.task.run();
+				}
+				finally
+				{
+					running.remove();
+				}
+				final long wallNanos = System.nanoTime() - wallStart;
+				final long cpuEnd = cpuTime();
+
+				lock.lock();
+				try
+				{
+					--request.lane.numActive;
+					changed.signalAll();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				request.lane.loaded( wallNanos );
+
+				completedCount.increment();
+				if ( request.generation < priority.generation() )
+					staleCount.increment();
+
+				windowLoads.increment();
+				windowWallNanos.add( wallNanos );
+				if ( cpuStart >= 0 && cpuEnd >= 0 )
+					windowCpuNanos.add( cpuEnd - cpuStart );
+				else
+					windowUnmeasured.increment();
+				adapt();
+			}
+		}
+		finally
+		{
+			lock.lock();
+			try
+			{
+				workers.remove( Thread.currentThread() );
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Adapt the number of workers to the loads of the last interval.
+	 */
+	private void adapt()
+	{
+		lock.lock();
+		try
+		{
+			final long now = System.nanoTime();
+			if ( minThreads == maxThreads || now - windowStart < TimeUnit.MILLISECONDS.toNanos( ADAPT_INTERVAL_MILLIS ) )
+				return;
+
+			final long loads = windowLoads.sumThenReset();
+			final long wallNanos = windowWallNanos.sumThenReset();
+			final long cpuNanos = windowCpuNanos.sumThenReset();
+			final long unmeasured = windowUnmeasured.sumThenReset();
+			final double throughput = loads * 1e9 / ( now - windowStart );
+			final double utilization = ( double ) cpuNanos / ( now - windowStart ) / NUM_PROCESSORS;
+			windowStart = now;
+			if ( loads == 0 )
+				return;
+
+			int target;
+			if ( unmeasured == 0 && cpuNanos > 0 )
+			{
+				target = ( int ) Math.min( maxThreads, Math.ceil( NUM_PROCESSORS * ( double ) wallNanos / cpuNanos ) );
+				if ( utilization > CPU_SATURATION )
+					target = Math.min( target, Math.max( NUM_PROCESSORS, numThreads - Math.max( 1, numThreads / 4 ) ) );
+			}
+			else
+				target = pending.isEmpty() ? numThreads : 2 * numThreads;
+
+			// more workers only help if requests are waiting for them
+			if ( pending.isEmpty() )
+				target = Math.min( target, numThreads );
+
+			// the last increase did not pay off, e.g. the storage is saturated
+			if ( numThreads > previousNumThreads && throughput < ( 1 + MIN_THROUGHPUT_GAIN ) * previousThroughput )
+			{
+				ceiling = previousNumThreads;
+				ceilingIntervals = CEILING_INTERVALS;
+			}
+			else if ( ceilingIntervals > 0 && --ceilingIntervals == 0 )
+				ceiling = Integer.MAX_VALUE;
+			target = Math.min( target, ceiling );
+
+			// at most double or halve per interval
+			target = Math.max( numThreads / 2, Math.min( 2 * numThreads, target ) );
+
+			previousNumThreads = numThreads;
+			previousThroughput = throughput;
+			setNumThreads( clamp( target ) );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private int clamp( final int n )
+	{
+		return Math.max( minThreads, Math.min( maxThreads, n ) );
+	}
+
+	/**
+	 * Start workers up to the target, surplus workers stop when they are
+	 * done with their current load.
+	 */
+	private void setNumThreads( final int n )
+	{
+		numThreads = n;
+		while ( workers.size() < numThreads && !shutdown )
+		{
+			final Thread worker = threadFactory.newThread( this::work );
+			workers.add( worker );
+			worker.start();
+		}
+		changed.signalAll();
+	}
+
+	/**
+	 * @return the CPU time of the current thread, or -1 if it cannot be
+	 *         measured
+	 */
+	private static long cpuTime()
+	{
+		try
+		{
+			return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1;
+		}
+		catch ( final UnsupportedOperationException e )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Stop the current worker if there are more than the target.
+	 */
+	private boolean isSurplus()
+	{
+		if ( workers.size() <= numThreads )
+			return false;
+		workers.remove( Thread.currentThread() );
+		return true;
+	}
+
+	/**
+	 * Remove the most important pending request whose lane may start a load,
+	 * waiting for one if there is none. Stale prefetch requests are dropped
+	 * on the way.
+	 *
+	 * @return the request, or null if the current worker should stop
+	 */
+	private Request take() throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while ( true )
+			{
+				if ( isSurplus() )
+					return null;
+
+				final Priority p = priority;
+				final long generation = p.generation();
+				final long version = p.version();
+				for ( int i = 0; i < pending.size(); ++i )
+				{
+					final Request request = pending.get( i );
+					if ( request.prefetch && request.generation < generation || request.task.isCancelled() )
+					{
+						if ( request.task.cancel( false ) )
+							cancelledCount.increment();
+						remove( i-- );
+					}
+				}
+
+				// lanes with waiting requests share the workers
+				int numWaitingLanes = 0;
+				for ( final FetchLane lane : lanes )
+					if ( lane.numPending > 0 )
+						++numWaitingLanes;
+				final int fairShare = numWaitingLanes <= 1 ? Integer.MAX_VALUE : Math.max( 1, ( numThreads + numWaitingLanes - 1 ) / numWaitingLanes );
+
+				final long now = System.nanoTime();
+				long throttledNanos = Long.MAX_VALUE;
+				int best = -1;
+				double bestPriority = Double.POSITIVE_INFINITY;
+				for ( int i = 0; i < pending.size(); ++i )
+				{
+					final Request request = pending.get( i );
+					if ( !request.lane.mayStart( fairShare, now ) )
+					{
+						if ( request.lane.nextLoadNanos - now > 0 )
+							throttledNanos = Math.min( throttledNanos, request.lane.nextLoadNanos - now );
+						continue;
+					}
+
+					if ( request.evaluatedBy != p || request.evaluatedVersion != version )
+					{
+						request.evaluatedBy = p;
+						request.evaluatedVersion = version;
+						request.evaluatedPriority = p.priority( request );
+					}
+					final double q = request.evaluatedPriority;
+					if ( best < 0 || q < bestPriority )
+					{
+						best = i;
+						bestPriority = q;
+					}
+				}
+
+				if ( best >= 0 )
+				{
+					final Request request = remove( best );
+					++request.lane.numActive;
+					return request;
+				}
+
+				// wait for a request, a finished load, or the end of a throttle
+				if ( throttledNanos == Long.MAX_VALUE )
+					changed.await();
+				else
+					changed.awaitNanos( throttledNanos );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a pending request by swapping it with the last.
+	 */
+	private Request remove( final int i )
+	{
+		final Request request = pending.get( i );
+		--request.lane.numPending;
+		final Request last = pending.remove( pending.size() - 1 );
+		if ( i < pending.size() )
+			pending.set( i, last );
+		return request;
+	}
+}
@@ -0,0 +1,417 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import bdv.tools.InitializeViewerState;
+import bdv.viewer.ViewerOptions;
+import bdv.viewer.ViewerPanel;
+import bdv.viewer.ViewerState;
+import bdv.viewer.render.MultiResolutionRenderer;
+import bdv.viewer.render.RenderTarget;
+import bdv.viewer.render.awt.BufferedImageRenderResult;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Renders the sources of an {@link N5Viewer} offscreen, with the
+ * {@link MultiResolutionRenderer} and the options of its viewer panel, to
+ * measure how long frames take to render and how long the screen takes to
+ * fill in.
+ *
+ * The viewer is meant to be created without a window
+ * ({@code wantFrame = false}). The renderer of its viewer panel is stopped,
+ * so that only this renderer requests blocks, but the transforms are set on
+ * the state of the panel, so that the fetch priority and the prefetcher
+ * follow the frames as they follow the user.
+ *
+ * Every frame is rendered until the renderer stops asking for repaints: the
+ * frame is at full resolution and all blocks it shows are in memory. With a
+ * frame interval, the next frame starts when the interval is over instead,
+ * as when the user keeps moving, and frames that were not complete by then
+ * have no time to complete.
+ *
+ * A {@link NavigationTrace} recorded in a real session is replayed with the
+ * timing of the session, or with every step rendered until it is complete,
+ * and every step reports its block requests, the hit rate of the cache, the
+ * bytes loaded and the time until it was complete.
+ */
+public class HeadlessRenderer implements AutoCloseable
+{
+	public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * What rendering one frame took.
+	 */
+	public static class FrameStats
+	{
+		private final long renderNanos;
+
+		private final long completeNanos;
+
+		private final long blockRequests;
+
+		private final long blocksLoaded;
+
+		private final long bytesLoaded;
+
+		private final int numPaints;
+
+		FrameStats( final long renderNanos, final long completeNanos, final long blockRequests, final long blocksLoaded, final long bytesLoaded, final int numPaints )
+		{
+			this.renderNanos = renderNanos;
+			this.completeNanos = completeNanos;
+			this.blockRequests = blockRequests;
+			this.blocksLoaded = blocksLoaded;
+			this.bytesLoaded = bytesLoaded;
+			this.numPaints = numPaints;
+		}
+
+		/**
+		 * @return the time of the first paint of the frame, what the user
+		 *         sees first, in nanoseconds
+		 */
+		public long getRenderNanos()
+		{
+			return renderNanos;
+		}
+
+		/**
+		 * @return the time until the frame was complete, in nanoseconds, or
+		 *         -1 if it was not complete within the frame interval or the
+		 *         timeout
+		 */
+		public long getCompleteNanos()
+		{
+			return completeNanos;
+		}
+
+		public boolean isComplete()
+		{
+			return completeNanos >= 0;
+		}
+
+		/**
+		 * @return the requests of blocks from the {@link SharedCellCache}
+		 *         while the frame was rendered, including prefetches
+		 */
+		public long getBlockRequests()
+		{
+			return blockRequests;
+		}
+
+		/**
+		 * @return the blocks loaded into the {@link SharedCellCache} while
+		 *         the frame was rendered, including prefetched blocks
+		 */
+		public long getBlocksLoaded()
+		{
+			return blocksLoaded;
+		}
+
+		/**
+		 * @return the fraction of block requests that were served from the
+		 *         cache
+		 */
+		public double getHitRate()
+		{
+			return blockRequests == 0 ? 1 : 1 - ( double ) blocksLoaded / blockRequests;
+		}
+
+		/**
+		 * @return the memory of the blocks that were loaded, see
+		 *         {@link SharedCellCache#getBytesLoaded()}
+		 */
+		public long getBytesLoaded()
+		{
+			return bytesLoaded;
+		}
+
+		/**
+		 * @return the paints of the frame, one per screen scale and one more
+		 *         per repaint for blocks that were loaded meanwhile
+		 */
+		public int getNumPaints()
+		{
+			return numPaints;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "render %.2f ms, complete %s, %d block requests, hit rate %.1f%%, %d blocks (%.1f MB) loaded, %d paints",
+					renderNanos / 1e6,
+					isComplete() ? String.format( "%.2f ms", completeNanos / 1e6 ) : "no",
+					blockRequests,
+					100 * getHitRate(),
+					blocksLoaded,
+					bytesLoaded / ( double ) ( 1 << 20 ),
+					numPaints );
+		}
+	}
+
+	private class Target implements RenderTarget< BufferedImageRenderResult >
+	{
+		private final BufferedImageRenderResult renderResult = new BufferedImageRenderResult();
+
+		@Override
+		public BufferedImageRenderResult getReusableRenderResult()
+		{
+			return renderResult;
+		}
+
+		@Override
+		public BufferedImageRenderResult createRenderResult()
+		{
+			return new BufferedImageRenderResult();
+		}
+
+		@Override
+		public void setRenderResult( final BufferedImageRenderResult renderResult )
+		{}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+	}
+
+	private final ViewerPanel viewerPanel;
+
+	private final SharedCellCache cache;
+
+	private final int width;
+
+	private final int height;
+
+	private final ExecutorService renderingExecutor;
+
+	private final MultiResolutionRenderer renderer;
+
+	private final AtomicBoolean repaintRequested = new AtomicBoolean();
+
+	private long frameIntervalNanos = 0;
+
+	private long timeoutNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_TIMEOUT_MILLIS );
+
+	/**
+	 * @param viewer the viewer whose sources are rendered
+	 * @param width the width of the screen
+	 * @param height the height of the screen
+	 */
+	public HeadlessRenderer( final N5Viewer viewer, final int width, final int height )
+	{
+		this.viewerPanel = viewer.getBdv().getViewerPanel();
+		this.cache = viewer.getCache();
+		this.width = width;
+		this.height = height;
+
+		viewerPanel.stop();
+		// the fetch priority and the prefetcher take the size of the screen from the display
+		viewerPanel.getDisplay().setSize( width, height );
+
+		final ViewerOptions.Values options = viewerPanel.getOptionValues();
+		final int numRenderingThreads = Math.max( 1, options.getNumRenderingThreads() );
+		renderingExecutor = Executors.newFixedThreadPool( numRenderingThreads );
+		renderer = new MultiResolutionRenderer(
+				new Target(),
+				() -> repaintRequested.set( true ),
+				options.getScreenScales(),
+				options.getTargetRenderNanos(),
+				numRenderingThreads,
+				renderingExecutor,
+				true,
+				options.getAccumulateProjectorFactory(),
+				viewer.getBdv().getCacheControls() );
+	}
+
+	/**
+	 * Start every frame after {@code interval}, complete or not. 0, the
+	 * default, waits for every frame to complete.
+	 */
+	public void setFrameInterval( final long interval, final TimeUnit unit )
+	{
+		frameIntervalNanos = unit.toNanos( interval );
+	}
+
+	/**
+	 * Give up on frames that are not complete after {@code timeout}.
+	 */
+	public void setTimeout( final long timeout, final TimeUnit unit )
+	{
+		timeoutNanos = unit.toNanos( timeout );
+	}
+
+	/**
+	 * @return the transform that shows all sources, as the viewer does when
+	 *         it is first shown
+	 */
+	public AffineTransform3D initialTransform()
+	{
+		return InitializeViewerState.initTransform( width, height, false, viewerPanel.state().snapshot() );
+	}
+
+	/**
+	 * Render the frames of a navigation path, one after the other.
+	 *
+	 * @param viewerTransforms the viewer transform of every frame
+	 * @return what every frame took
+	 */
+	public List< FrameStats > replay( final List< AffineTransform3D > viewerTransforms )
+	{
+		final List< FrameStats > frames = new ArrayList<>();
+		for ( final AffineTransform3D viewerTransform : viewerTransforms )
+			frames.add( render( viewerTransform ) );
+		return frames;
+	}
+
+	/**
+	 * Replay a recorded navigation trace, one frame per step.
+	 *
+	 * In real time, every step starts when it started in the recorded
+	 * session, so the renderer, the cache and the prefetcher have as much
+	 * time as they had then, unless a paint takes longer than the time to
+	 * the next step. Otherwise, every step is rendered until it is complete,
+	 * as with {@link #replay(List)}. The last step is always rendered until
+	 * it is complete.
+	 *
+	 * The trace is replayed at the size of this renderer, which should be
+	 * the size of the screen it was recorded on, see
+	 * {@link NavigationTrace#getWidth()}.
+	 *
+	 * @param trace the trace
+	 * @param realTime whether to keep to the timing of the trace
+	 * @return what every step took
+	 */
+	public List< FrameStats > replay( final NavigationTrace trace, final boolean realTime )
+	{
+		final List< NavigationTrace.Step > steps = trace.getSteps();
+		final List< FrameStats > frames = new ArrayList<>();
+		for ( int i = 0; i < steps.size(); ++i )
+		{
+			final NavigationTrace.Step step = steps.get( i );
+			final long intervalNanos = realTime && i + 1 < steps.size()
+					? TimeUnit.MILLISECONDS.toNanos( Math.max( 1, steps.get( i + 1 ).getTimeMillis() - step.getTimeMillis() ) )
+					: 0;
+			frames.add( render( step.getViewerTransform(), step.getTimepoint(), intervalNanos ) );
+		}
+		return frames;
+	}
+
+	/**
+	 * Render one frame.
+	 *
+	 * @param viewerTransform the viewer transform of the frame
+	 * @return what the frame took
+	 */
+	public FrameStats render( final AffineTransform3D viewerTransform )
+	{
+		return render( viewerTransform, viewerPanel.state().getCurrentTimepoint(), frameIntervalNanos );
+	}
+
+	/**
+	 * Render one frame of a timepoint.
+	 *
+	 * @param viewerTransform the viewer transform of the frame
+	 * @param timepoint the timepoint, clamped to the timepoints of the viewer
+	 * @return what the frame took
+	 */
+	public FrameStats render( final AffineTransform3D viewerTransform, final int timepoint )
+	{
+		return render( viewerTransform, timepoint, frameIntervalNanos );
+	}
+
+	private FrameStats render( final AffineTransform3D viewerTransform, final int timepoint, final long intervalNanos )
+	{
+		final int numTimepoints = viewerPanel.state().getNumTimepoints();
+		viewerPanel.state().setCurrentTimepoint( Math.max( 0, Math.min( timepoint, numTimepoints - 1 ) ) );
+		viewerPanel.state().setViewerTransform( viewerTransform );
+		final ViewerState state = viewerPanel.state().snapshot();
+		final long hitCount = cache.getHitCount();
+		final long missCount = cache.getMissCount();
+		final long bytesLoaded = cache.getBytesLoaded();
+
+		renderer.requestRepaint();
+		repaintRequested.set( false );
+		final long start = System.nanoTime();
+		renderer.paint( state );
+		final long renderNanos = System.nanoTime() - start;
+
+		final long deadline = start + ( intervalNanos > 0 ? Math.min( intervalNanos, timeoutNanos ) : timeoutNanos );
+		long completeNanos = renderNanos;
+		int numPaints = 1;
+		while ( repaintRequested.getAndSet( false ) )
+		{
+			if ( System.nanoTime() > deadline )
+			{
+				completeNanos = -1;
+				break;
+			}
+			renderer.paint( state );
+			++numPaints;
+			completeNanos = System.nanoTime() - start;
+		}
+
+		// keep to the frame interval when the frame was complete early
+		if ( intervalNanos > 0 )
+		{
+			final long remaining = start + intervalNanos - System.nanoTime();
+			if ( remaining > 0 )
+				sleep( remaining );
+		}
+
+		final long blocksLoaded = cache.getMissCount() - missCount;
+		return new FrameStats(
+				renderNanos,
+				completeNanos,
+				cache.getHitCount() - hitCount + blocksLoaded,
+				blocksLoaded,
+				cache.getBytesLoaded() - bytesLoaded,
+				numPaints );
+	}
+
+	private static void sleep( final long nanos )
+	{
+		try
+		{
+			TimeUnit.NANOSECONDS.sleep( nanos );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		renderer.kill();
+		renderingExecutor.shutdown();
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * The readers of the images of a {@link SharedCellCache}, whose cells are
+ * loaded in the lane of their reader in the {@link FetchQueue}, e.g. to
+ * limit the concurrency or bandwidth of a container.
+ */
+class ImageLanes
+{
+	/**
+	 * The reader of each image opened by the cache, guarded by this.
+	 */
+	private final Map< Integer, N5Reader > imageReaders = new HashMap<>();
+
+	private FetchQueue queue;
+
+	/**
+	 * Load the images in the lanes of a queue, including those added before.
+	 *
+	 * @param queue the queue, or null
+	 */
+	synchronized void setFetchQueue( final FetchQueue queue )
+	{
+		this.queue = queue;
+		if ( queue != null )
+			imageReaders.forEach( ( imageId, n5 ) -> queue.setLane( imageId, getLane( queue, n5 ) ) );
+	}
+
+	synchronized void add( final int imageId, final N5Reader n5 )
+	{
+		imageReaders.put( imageId, n5 );
+		if ( queue != null )
+			queue.setLane( imageId, getLane( queue, n5 ) );
+	}
+
+	synchronized void remove( final int imageId )
+	{
+		imageReaders.remove( imageId );
+		if ( queue != null )
+			queue.setLane( imageId, null );
+	}
+
+	static FetchLane getLane( final FetchQueue queue, final N5Reader n5 )
+	{
+		return queue.getLane( n5, laneName( n5 ) );
+	}
+
+	/**
+	 * @param n5 a reader
+	 * @return the name of the lane of the reader, e.g. the path of its
+	 *         container
+	 */
+	static String laneName( final N5Reader n5 )
+	{
+		if ( n5 instanceof N5FSReader )
+			return ( ( N5FSReader ) n5 ).getBasePath();
+		if ( n5 instanceof DiskCachedN5Reader )
+			return "cached " + laneName( ( ( DiskCachedN5Reader ) n5 ).getRemoteReader() );
+		if ( n5 instanceof SimulatedRemoteN5Reader )
+			return "simulated " + laneName( ( ( SimulatedRemoteN5Reader ) n5 ).getReader() );
+		return n5.getClass().getSimpleName() + "@" + Integer.toHexString( System.identityHashCode( n5 ) );
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with fixed buckets from 0.1 ms to 10 s, cheap
+ * enough to record every block load from many threads.
+ *
+ * Bucket {@code i} counts the latencies up to {@code BOUNDS_MILLIS[i]}
+ * that do not fit an earlier bucket, the last bucket the latencies above
+ * the last bound.
+ */
+public class LatencyHistogram
+{
+	public static final double[] BOUNDS_MILLIS = {
+			0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	private static final long[] BOUNDS_NANOS = new long[ BOUNDS_MILLIS.length ];
+	static
+	{
+		for ( int i = 0; i < BOUNDS_MILLIS.length; ++i )
+			BOUNDS_NANOS[ i ] = ( long ) ( BOUNDS_MILLIS[ i ] * 1e6 );
+	}
+
+	private final LongAdder[] counts = new LongAdder[ BOUNDS_MILLIS.length + 1 ];
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	public LatencyHistogram()
+	{
+		for ( int i = 0; i < counts.length; ++i )
+			counts[ i ] = new LongAdder();
+	}
+
+	public void record( final long nanos )
+	{
+		int i = 0;
+		while ( i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[ i ] )
+			++i;
+		counts[ i ].increment();
+		totalNanos.add( nanos );
+	}
+
+	/**
+	 * @return the count of every bucket
+	 */
+	public long[] getCounts()
+	{
+		final long[] c = new long[ counts.length ];
+		for ( int i = 0; i < c.length; ++i )
+			c[ i ] = counts[ i ].sum();
+		return c;
+	}
+
+	public long getCount()
+	{
+		long n = 0;
+		for ( final LongAdder count : counts )
+			n += count.sum();
+		return n;
+	}
+
+	public long getTotalNanos()
+	{
+		return totalNanos.sum();
+	}
+
+	public void reset()
+	{
+		for ( final LongAdder count : counts )
+			count.reset();
+		totalNanos.reset();
+	}
+
+	/**
+	 * @param counts the bucket counts of a histogram
+	 * @param p the quantile, between 0 and 1
+	 * @return the upper bound of the bucket of the quantile in milliseconds,
+	 *         infinity if it is in the last bucket, or NaN if the histogram
+	 *         is empty
+	 */
+	public static double quantileMillis( final long[] counts, final double p )
+	{
+		long n = 0;
+		for ( final long count : counts )
+			n += count;
+		if ( n == 0 )
+			return Double.NaN;
+
+		final long rank = Math.max( 1, ( long ) Math.ceil( p * n ) );
+		long seen = 0;
+		for ( int i = 0; i < BOUNDS_MILLIS.length; ++i )
+		{
+			seen += counts[ i ];
+			if ( seen >= rank )
+				return BOUNDS_MILLIS[ i ];
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+}
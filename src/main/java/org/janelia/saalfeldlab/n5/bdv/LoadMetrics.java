@@ -0,0 +1,200 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What loading the blocks of an image, or of all images of a container,
+ * took: cache hits, misses, requests that joined a pending load, evictions, the blocks and bytes loaded, how
+ * long loads waited in the {@link FetchQueue}, how long they took to fetch
+ * and to decode, and how long threads were blocked waiting for them.
+ *
+ * Recorded by the {@link SharedCellCache}. Blocks that are read and decoded
+ * in one go, i.e. all blocks that are not loaded in the stages of a
+ * {@link BlockPipeline}, count as fetched only.
+ *
+ * A thread is blocked when it needs a block that is not in memory and is
+ * neither a worker of the fetch queue nor a fetcher thread of the
+ * {@link FetchHandOffQueue}: volatile sources of the viewer never block, but
+ * non-volatile sources, e.g. a {@link org.janelia.saalfeldlab.n5.metadata.MetadataSource}
+ * rendered directly or cropped, wait for every block they touch.
+ */
+public class LoadMetrics
+{
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	private final LongAdder joinedCount = new LongAdder();
+
+	private final LongAdder evictionCount = new LongAdder();
+
+	private final LongAdder blocksLoaded = new LongAdder();
+
+	private final LongAdder bytesLoaded = new LongAdder();
+
+	private final LongAdder blockedCount = new LongAdder();
+
+	private final LongAdder blockedNanos = new LongAdder();
+
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+
+	private final LatencyHistogram fetch = new LatencyHistogram();
+
+	private final LatencyHistogram decode = new LatencyHistogram();
+
+	public long getHitCount()
+	{
+		return hitCount.sum();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.sum();
+	}
+
+	/**
+	 * @return the number of requests for blocks that were being loaded
+	 *         already
+	 */
+	public long getJoinedCount()
+	{
+		return joinedCount.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.sum();
+	}
+
+	public long getBlocksLoaded()
+	{
+		return blocksLoaded.sum();
+	}
+
+	/**
+	 * @return the memory of the loaded blocks, see
+	 *         {@link SharedCellCache#getBytesLoaded()}
+	 */
+	public long getBytesLoaded()
+	{
+		return bytesLoaded.sum();
+	}
+
+	/**
+	 * @return the number of times a thread was blocked waiting for a block
+	 */
+	public long getBlockedCount()
+	{
+		return blockedCount.sum();
+	}
+
+	public long getBlockedNanos()
+	{
+		return blockedNanos.sum();
+	}
+
+	/**
+	 * @return the time from the request of a block until a worker of the
+	 *         fetch queue started to load it
+	 */
+	public LatencyHistogram getQueueWait()
+	{
+		return queueWait;
+	}
+
+	/**
+	 * @return the time to read the raw bytes of a block, or to read and
+	 *         decode it if it is not loaded in stages
+	 */
+	public LatencyHistogram getFetch()
+	{
+		return fetch;
+	}
+
+	/**
+	 * @return the time to decode the raw bytes of a block
+	 */
+	public LatencyHistogram getDecode()
+	{
+		return decode;
+	}
+
+	public void resetStatistics()
+	{
+		hitCount.reset();
+		missCount.reset();
+		joinedCount.reset();
+		evictionCount.reset();
+		blocksLoaded.reset();
+		bytesLoaded.reset();
+		blockedCount.reset();
+		blockedNanos.reset();
+		queueWait.reset();
+		fetch.reset();
+		decode.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		final long hits = getHitCount();
+		final long requests = hits + getMissCount() + getJoinedCount();
+		return String.format( "%d requests, hit rate %.1f%%, %d joined, %d evicted, %d blocks (%d MB) loaded, %d blocked (%.1f ms)",
+				requests,
+				requests == 0 ? 0 : 100.0 * hits / requests,
+				getJoinedCount(),
+				getEvictionCount(),
+				getBlocksLoaded(),
+				getBytesLoaded() >> 20,
+				getBlockedCount(),
+				getBlockedNanos() / 1e6 );
+	}
+
+	void hit()
+	{
+		hitCount.increment();
+	}
+
+	void miss()
+	{
+		missCount.increment();
+	}
+
+	void joined()
+	{
+		joinedCount.increment();
+	}
+
+	void evicted()
+	{
+		evictionCount.increment();
+	}
+
+	void loaded( final long bytes )
+	{
+		blocksLoaded.increment();
+		bytesLoaded.add( bytes );
+	}
+
+	void blocked( final long nanos )
+	{
+		blockedCount.increment();
+		blockedNanos.add( nanos );
+	}
+}
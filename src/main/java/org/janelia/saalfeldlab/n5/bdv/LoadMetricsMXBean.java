@@ -0,0 +1,83 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+/**
+ * The {@link LoadMetrics} of a source, a container or a whole viewer,
+ * published over JMX by {@link N5ViewerMetrics}.
+ *
+ * Latency histograms are arrays of bucket counts, with the buckets bounded
+ * by {@link #getLatencyBucketBoundsMillis()}.
+ */
+public interface LoadMetricsMXBean
+{
+	String getName();
+
+	/**
+	 * @return the number of block requests waiting for a worker of the
+	 *         fetch queue
+	 */
+	int getQueueDepth();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	/**
+	 * @return the number of block requests that waited for a load started
+	 *         by another request
+	 */
+	long getCacheJoins();
+
+	long getCacheEvictions();
+
+	double getCacheHitRate();
+
+	long getBlocksLoaded();
+
+	long getBytesLoaded();
+
+	double[] getLatencyBucketBoundsMillis();
+
+	long[] getQueueWaitHistogram();
+
+	double getMeanQueueWaitMillis();
+
+	double getQueueWait95thPercentileMillis();
+
+	long[] getFetchHistogram();
+
+	double getMeanFetchMillis();
+
+	double getFetch95thPercentileMillis();
+
+	long[] getDecodeHistogram();
+
+	double getMeanDecodeMillis();
+
+	double getDecode95thPercentileMillis();
+
+	/**
+	 * @return the number of times a thread was blocked waiting for a block,
+	 *         see {@link LoadMetrics}
+	 */
+	long getBlockedCount();
+
+	double getBlockedMillis();
+
+	void resetStatistics();
+}
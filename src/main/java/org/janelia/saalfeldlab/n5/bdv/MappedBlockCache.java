@@ -0,0 +1,267 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory mapped block files of local containers, read by a
+ * {@link PipelinedN5Reader} without copying them through streams.
+ *
+ * Mapped files are kept in least recently used order, so that blocks that
+ * are decoded again are not mapped again, up to a budget of mapped bytes
+ * and a number of files. The budget is advisory: Java cannot unmap a file
+ * while its buffer may still be read, so the mapping of an evicted file is
+ * only released when its buffer is garbage collected, and more bytes than
+ * the budget can be mapped until then. The mappings are backed by the page
+ * cache of the operating system, not by the heap.
+ *
+ * A mapping is only reused while the size and modification time of its file
+ * are unchanged, otherwise the file is mapped again. Reading a mapped file
+ * that is truncated by another process fails with an {@link InternalError}
+ * instead of an exception, see {@link #read(Path, ByteBuffer, IOFunction)},
+ * so only map the blocks of containers that are not written while they are
+ * viewed.
+ */
+public class MappedBlockCache
+{
+	public static final long DEFAULT_MAX_MAPPED_BYTES = 1L << 30;
+
+	public static final int DEFAULT_MAX_MAPPED_FILES = 4096;
+
+	private final long maxMappedBytes;
+
+	private final int maxMappedFiles;
+
+	private static class Mapping
+	{
+		final ByteBuffer buffer;
+
+		final long size;
+
+		final long lastModified;
+
+		Mapping( final ByteBuffer buffer, final long size, final long lastModified )
+		{
+			this.buffer = buffer;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final LinkedHashMap< Path, Mapping > mapped = new LinkedHashMap<>( 1024, 0.75f, true );
+
+	private long mappedBytes;
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder mapCount = new LongAdder();
+
+	private final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * @param maxMappedBytes the budget of mapped bytes
+	 * @param maxMappedFiles the maximum number of mapped files
+	 */
+	public MappedBlockCache( final long maxMappedBytes, final int maxMappedFiles )
+	{
+		this.maxMappedBytes = maxMappedBytes;
+		this.maxMappedFiles = maxMappedFiles;
+	}
+
+	public MappedBlockCache()
+	{
+		this( DEFAULT_MAX_MAPPED_BYTES, DEFAULT_MAX_MAPPED_FILES );
+	}
+
+	public long getMaxMappedBytes()
+	{
+		return maxMappedBytes;
+	}
+
+	public int getMaxMappedFiles()
+	{
+		return maxMappedFiles;
+	}
+
+	public synchronized long getMappedBytes()
+	{
+		return mappedBytes;
+	}
+
+	public synchronized int getNumMappedFiles()
+	{
+		return mapped.size();
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return the number of files that were mapped
+	 */
+	public long getMapCount()
+	{
+		return mapCount.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.sum();
+	}
+
+	public void resetStatistics()
+	{
+		hitCount.reset();
+		mapCount.reset();
+		evictionCount.reset();
+	}
+
+	public synchronized void clear()
+	{
+		mapped.clear();
+		mappedBytes = 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d mapped blocks, %d / %d MB, %d hits, %d maps",
+				getNumMappedFiles(), getMappedBytes() >> 20, maxMappedBytes >> 20, getHitCount(), getMapCount() );
+	}
+
+	/**
+	 * Map a block file, or find its mapping.
+	 *
+	 * @param path the block file
+	 * @return a read-only buffer of the whole file, positioned at its start,
+	 *         or null if the file does not exist
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public ByteBuffer map( final Path path ) throws IOException
+	{
+		final BasicFileAttributes attributes;
+		try
+		{
+			attributes = Files.readAttributes( path, BasicFileAttributes.class );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			remove( path );
+			return null;
+		}
+		final long size = attributes.size();
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+
+		synchronized ( this )
+		{
+			final Mapping mapping = mapped.get( path );
+			if ( mapping != null && mapping.size == size && mapping.lastModified == lastModified )
+			{
+				hitCount.increment();
+				return mapping.buffer.duplicate();
+			}
+		}
+
+		final ByteBuffer buffer;
+		try ( final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) )
+		{
+			// the mapping stays valid after the channel is closed
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, Math.min( size, channel.size() ) );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			remove( path );
+			return null;
+		}
+		mapCount.increment();
+
+		synchronized ( this )
+		{
+			final Mapping previous = mapped.put( path, new Mapping( buffer, size, lastModified ) );
+			if ( previous != null )
+				mappedBytes -= previous.buffer.capacity();
+			mappedBytes += buffer.capacity();
+
+			final Iterator< Map.Entry< Path, Mapping > > it = mapped.entrySet().iterator();
+			while ( ( mappedBytes > maxMappedBytes || mapped.size() > maxMappedFiles ) && it.hasNext() )
+			{
+				final Map.Entry< Path, Mapping > e = it.next();
+				if ( e.getValue().buffer == buffer )
+					break;
+				mappedBytes -= e.getValue().buffer.capacity();
+				it.remove();
+				evictionCount.increment();
+			}
+		}
+		return buffer.duplicate();
+	}
+
+	/**
+	 * Read a mapped buffer. A file that is truncated while it is mapped
+	 * makes the read fail with an {@link InternalError}, which is turned into
+	 * an {@link IOException}, and the mapping is dropped so that the file is
+	 * mapped again.
+	 *
+	 * @param path the mapped file
+	 * @param buffer the buffer returned by {@link #map(Path)} for {@code path}
+	 * @param read reads the buffer
+	 * @return the result of {@code read}
+	 * @throws IOException if {@code read} fails, or the file was truncated
+	 */
+	public < R > R read( final Path path, final ByteBuffer buffer, final IOFunction< ByteBuffer, R > read ) throws IOException
+	{
+		try
+		{
+			return read.apply( buffer );
+		}
+		catch ( final InternalError e )
+		{
+			remove( path );
+			throw new IOException( "Mapped block file " + path + " was truncated while it was read", e );
+		}
+	}
+
+	/**
+	 * A function that reads a buffer.
+	 */
+	public interface IOFunction< T, R >
+	{
+		R apply( T t ) throws IOException;
+	}
+
+	private synchronized void remove( final Path path )
+	{
+		final Mapping mapping = mapped.remove( path );
+		if ( mapping != null )
+			mappedBytes -= mapping.buffer.capacity();
+	}
+
+}
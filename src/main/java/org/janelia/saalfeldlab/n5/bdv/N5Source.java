@@ -26,6 +26,7 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 
+import java.util.function.IntConsumer;
 import java.util.function.Supplier;
 
 public class N5Source< T extends NumericType< T > > extends AbstractSource< T >
@@ -33,6 +34,11 @@ public class N5Source< T extends NumericType< T > > extends AbstractSource< T >
 
 	protected final RandomAccessibleInterval< T >[] images;
 
+	/**
+	 * Per-level transforms. These are copies taken at construction and never
+	 * modified afterwards, so they can be read by all render threads without
+	 * locking.
+	 */
 	protected final AffineTransform3D[] transforms;
 
 	public N5Source(
@@ -43,7 +49,9 @@ public class N5Source< T extends NumericType< T > > extends AbstractSource< T >
 	{
 		super( type, name );
 		this.images = images;
-		this.transforms = transforms;
+		this.transforms = new AffineTransform3D[ transforms.length ];
+		for ( int i = 0; i < transforms.length; ++i )
+			this.transforms[ i ] = transforms[ i ].copy();
 	}
 
 	@Override
@@ -52,8 +60,27 @@ public class N5Source< T extends NumericType< T > > extends AbstractSource< T >
 		return images[ level ];
 	}
 
+	/**
+	 * @return whether the levels differ between timepoints. The levels of
+	 *         this source are the same for all timepoints, so views of them
+	 *         can be shared across timepoints.
+	 */
+	public boolean isTimeDependent()
+	{
+		return false;
+	}
+
+	/**
+	 * Let a listener know when the levels of a timepoint are replaced, e.g.
+	 * to drop views of them. The levels of this source are never replaced.
+	 *
+	 * @param listener receives the timepoint
+	 */
+	public void addLevelsChangedListener( final IntConsumer listener )
+	{}
+
 	@Override
-	public synchronized void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+	public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
 	{
 		transform.set( transforms[ level ] );
 	}
@@ -0,0 +1,475 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import bdv.viewer.TimePointListener;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Multiscale source with one set of scale levels per timepoint.
+ *
+ * The levels of a timepoint are opened in the background when the timepoint
+ * is first shown, never on the rendering thread. Until then, the timepoint is
+ * shown empty, and the listeners added with {@link #addOpenListener} are
+ * notified when its levels are ready, e.g. to repaint. When the viewer, to which the source is registered as a
+ * {@link TimePointListener}, moves to a timepoint, the next few timepoints
+ * are opened and the blocks of their coarsest levels are requested as
+ * prefetches from the {@link SharedCellCache}, so that stepping through
+ * time shows a coarse image right away instead of an empty one. Timepoints
+ * further than the read-ahead from the shown one are released, except the
+ * first.
+ *
+ * A timepoint that cannot be opened is reported to the error handler and
+ * shown empty until it is released.
+ */
+public class N5TimeSeriesSource< T extends NumericType< T > > extends N5Source< T > implements TimePointListener
+{
+	public static final int DEFAULT_READ_AHEAD = 3;
+
+	public static final int DEFAULT_PREFETCH_LEVELS = 2;
+
+	/**
+	 * Maximum number of blocks that are requested ahead per timepoint.
+	 */
+	public static final long MAX_PREFETCH_BLOCKS = 256;
+
+	private static ExecutorService defaultReadAheadExecutor;
+
+	/**
+	 * The levels of one timepoint, the images whose blocks they show, and
+	 * what to release when the timepoint is evicted.
+	 */
+	public static class Timepoint< T >
+	{
+		private final RandomAccessibleInterval< T >[] levels;
+
+		private final CachedCellImg< ?, ? >[] blockImages;
+
+		private final Interval[] blockIntervals;
+
+		private final Runnable release;
+
+		/**
+		 * @param levels the levels, finest first
+		 * @param blockImages the image in the {@link SharedCellCache} that
+		 *        holds the blocks of each level, or null for levels that are
+		 *        not read ahead
+		 * @param blockIntervals the interval of each block image that the
+		 *        level shows, or null for the whole images
+		 * @param release releases the images of the timepoint, or null
+		 */
+		public Timepoint(
+				final RandomAccessibleInterval< T >[] levels,
+				final CachedCellImg< ?, ? >[] blockImages,
+				final Interval[] blockIntervals,
+				final Runnable release )
+		{
+			this.levels = levels;
+			this.blockImages = blockImages;
+			this.blockIntervals = blockIntervals;
+			this.release = release;
+		}
+
+		public Timepoint( final RandomAccessibleInterval< T >[] levels )
+		{
+			this( levels, null, null, null );
+		}
+
+		public RandomAccessibleInterval< T >[] getLevels()
+		{
+			return levels;
+		}
+
+		/**
+		 * @return the number of blocks requested
+		 */
+		long prefetch( final SharedCellCache cache, final int level, final long maxBlocks )
+		{
+			if ( blockImages == null || blockImages[ level ] == null )
+				return 0;
+			final Interval interval = blockIntervals == null || blockIntervals[ level ] == null ? blockImages[ level ] : blockIntervals[ level ];
+			return cache.prefetch( blockImages[ level ], interval, maxBlocks );
+		}
+
+		void release()
+		{
+			if ( release != null )
+				release.run();
+		}
+	}
+
+	@FunctionalInterface
+	public interface TimepointOpener< T >
+	{
+		/**
+		 * Open the scale levels of timepoint t.
+		 *
+		 * @param t the timepoint
+		 * @return the levels
+		 * @throws IOException if the levels cannot be opened
+		 */
+		Timepoint< T > open( int t ) throws IOException;
+	}
+
+	private final int numTimepoints;
+
+	private final TimepointOpener< T > opener;
+
+	private final int[][] blockSizes;
+
+	private final SharedCellCache cache;
+
+	private final AtomicReferenceArray< Timepoint< T > > timepoints;
+
+	private final ExecutorService readAheadExecutor;
+
+	private final int readAhead;
+
+	private final int prefetchLevels;
+
+	private final List< IntConsumer > evictionListeners = new CopyOnWriteArrayList<>();
+
+	private final List< IntConsumer > openListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The timepoints that are being opened in the background.
+	 */
+	private final Set< Integer > opening = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Empty levels shown in place of timepoints that are not open yet or
+	 * cannot be opened, created on first use.
+	 */
+	private volatile RandomAccessibleInterval< T >[] placeholder;
+
+	private volatile Consumer< Exception > errorHandler = Throwable::printStackTrace;
+
+	private volatile int currentTimepoint = 0;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param type the pixel type
+	 * @param name the source name
+	 * @param numTimepoints the number of timepoints
+	 * @param images the levels of timepoint 0
+	 * @param transforms the level transforms, the same for all timepoints
+	 * @param blockSizes the block size of every level
+	 * @param opener opens the levels of other timepoints
+	 * @param cache the cache whose fetch queue loads blocks ahead, or null to
+	 *        only open the timepoints ahead
+	 * @param readAheadExecutor the executor that opens timepoints ahead
+	 * @param readAhead the number of timepoints to read ahead
+	 * @param prefetchLevels the number of coarsest levels to load ahead
+	 */
+	public N5TimeSeriesSource(
+			final T type,
+			final String name,
+			final int numTimepoints,
+			final RandomAccessibleInterval< T >[] images,
+			final AffineTransform3D[] transforms,
+			final int[][] blockSizes,
+			final TimepointOpener< T > opener,
+			final SharedCellCache cache,
+			final ExecutorService readAheadExecutor,
+			final int readAhead,
+			final int prefetchLevels )
+	{
+		super( type, name, images, transforms );
+		this.numTimepoints = numTimepoints;
+		this.opener = opener;
+		this.blockSizes = blockSizes;
+		this.cache = cache;
+		this.readAheadExecutor = readAheadExecutor;
+		this.readAhead = readAhead;
+		this.prefetchLevels = prefetchLevels;
+		this.timepoints = new AtomicReferenceArray<>( numTimepoints );
+		this.timepoints.set( 0, new Timepoint<>( images ) );
+	}
+
+	public N5TimeSeriesSource(
+			final T type,
+			final String name,
+			final int numTimepoints,
+			final RandomAccessibleInterval< T >[] images,
+			final AffineTransform3D[] transforms,
+			final int[][] blockSizes,
+			final TimepointOpener< T > opener,
+			final SharedCellCache cache )
+	{
+		this( type, name, numTimepoints, images, transforms, blockSizes, opener, cache, defaultReadAheadExecutor(), DEFAULT_READ_AHEAD, DEFAULT_PREFETCH_LEVELS );
+	}
+
+	private static synchronized ExecutorService defaultReadAheadExecutor()
+	{
+		if ( defaultReadAheadExecutor == null )
+			defaultReadAheadExecutor = Executors.newFixedThreadPool( 2, r -> {
+				final Thread thread = new Thread( r, "n5-viewer-read-ahead" );
+				thread.setDaemon( true );
+				thread.setPriority( Thread.MIN_PRIORITY );
+				return thread;
+			} );
+		return defaultReadAheadExecutor;
+	}
+
+	public int getNumTimepoints()
+	{
+		return numTimepoints;
+	}
+
+	/**
+	 * @param errorHandler receives the failures to open timepoints
+	 */
+	public void setErrorHandler( final Consumer< Exception > errorHandler )
+	{
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * Let a listener know when the levels of a timepoint are released, e.g.
+	 * to drop views of them.
+	 */
+	void addEvictionListener( final IntConsumer listener )
+	{
+		evictionListeners.add( listener );
+	}
+
+	/**
+	 * Let a listener know when the levels of a timepoint that was shown
+	 * empty have been opened, e.g. to drop views of the empty levels and to
+	 * repaint.
+	 */
+	public void addOpenListener( final IntConsumer listener )
+	{
+		openListeners.add( listener );
+	}
+
+	@Override
+	public boolean isTimeDependent()
+	{
+		return true;
+	}
+
+	/**
+	 * The levels of a timepoint are replaced when it is released, and when
+	 * it is opened after it was shown empty.
+	 */
+	@Override
+	public void addLevelsChangedListener( final IntConsumer listener )
+	{
+		addEvictionListener( listener );
+		addOpenListener( listener );
+	}
+
+	@Override
+	public boolean isPresent( final int t )
+	{
+		return t >= 0 && t < numTimepoints;
+	}
+
+	@Override
+	public RandomAccessibleInterval< T > getSource( final int t, final int level )
+	{
+		if ( !isPresent( t ) )
+			return images[ level ];
+		final Timepoint< T > timepoint = timepoints.get( t );
+		if ( timepoint != null )
+			return timepoint.getLevels()[ level ];
+		openInBackground( t );
+		return placeholder()[ level ];
+	}
+
+	/**
+	 * Release the timepoints that are not needed anymore, and read ahead of
+	 * the new timepoint in the background.
+	 */
+	@Override
+	public void timePointChanged( final int timePointIndex )
+	{
+		if ( closed || !isPresent( timePointIndex ) || timePointIndex == currentTimepoint )
+			return;
+		currentTimepoint = timePointIndex;
+		readAheadExecutor.execute( this::evict );
+		readAhead( timePointIndex );
+	}
+
+	/**
+	 * Stop reading ahead and release all timepoints but the first.
+	 */
+	public void close()
+	{
+		closed = true;
+		for ( int t = 1; t < numTimepoints; ++t )
+			evict( t );
+	}
+
+	private Timepoint< T > timepoint( final int t )
+	{
+		Timepoint< T > timepoint = timepoints.get( t );
+		if ( timepoint == null )
+		{
+			timepoint = open( t );
+			if ( !timepoints.compareAndSet( t, null, timepoint ) )
+			{
+				// opened concurrently
+				timepoint.release();
+				timepoint = timepoints.get( t );
+				if ( timepoint == null )
+					return timepoint( t );
+			}
+			else if ( closed )
+				evict( t );
+		}
+		return timepoint;
+	}
+
+	/**
+	 * Open a shown timepoint on the read-ahead executor, and let the open
+	 * listeners know when it is ready.
+	 */
+	private void openInBackground( final int t )
+	{
+		if ( closed || !opening.add( t ) )
+			return;
+		try
+		{
+			readAheadExecutor.execute( () -> {
+				try
+				{
+					if ( closed )
+						return;
+					timepoint( t );
+					for ( final IntConsumer listener : openListeners )
+						listener.accept( t );
+				}
+				finally
+				{
+					opening.remove( t );
+				}
+			} );
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			opening.remove( t );
+		}
+	}
+
+	private Timepoint< T > open( final int t )
+	{
+		try
+		{
+			return opener.open( t );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			errorHandler.accept( e );
+			return new Timepoint<>( placeholder() );
+		}
+	}
+
+	private RandomAccessibleInterval< T >[] placeholder()
+	{
+		RandomAccessibleInterval< T >[] levels = placeholder;
+		if ( levels == null )
+			placeholder = levels = emptyLevels();
+		return levels;
+	}
+
+	/**
+	 * Empty levels in place of a timepoint that is not open.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private RandomAccessibleInterval< T >[] emptyLevels()
+	{
+		final RandomAccessibleInterval< T >[] levels = new RandomAccessibleInterval[ images.length ];
+		for ( int level = 0; level < levels.length; ++level )
+		{
+			final CachedCellImg empty = new ReadOnlyCachedCellImgFactory().create(
+					Intervals.dimensionsAsLongArray( images[ level ] ),
+					( NativeType ) getType(),
+					cell -> {},
+					ReadOnlyCachedCellImgOptions.options().cellDimensions( blockSizes[ level ] ).volatileAccesses( true ) );
+			levels[ level ] = Views.translate( empty, Intervals.minAsLongArray( images[ level ] ) );
+		}
+		return levels;
+	}
+
+	/**
+	 * Release the timepoints outside the read-ahead window around the
+	 * current timepoint.
+	 */
+	private void evict()
+	{
+		final int current = currentTimepoint;
+		for ( int t = 1; t < numTimepoints; ++t )
+			if ( t < current - readAhead || t > current + readAhead )
+				evict( t );
+	}
+
+	private void evict( final int t )
+	{
+		final Timepoint< T > timepoint = timepoints.getAndSet( t, null );
+		if ( timepoint == null )
+			return;
+		for ( final IntConsumer listener : evictionListeners )
+			listener.accept( t );
+		timepoint.release();
+	}
+
+	private void readAhead( final int t )
+	{
+		for ( int k = 1; k <= readAhead && t + k < numTimepoints; ++k )
+		{
+			final int next = t + k;
+			readAheadExecutor.execute( () -> {
+				// skip timepoints that the user has moved away from
+				final int current = currentTimepoint;
+				if ( closed || next <= current || next > current + readAhead )
+					return;
+
+				final Timepoint< T > timepoint = timepoint( next );
+				if ( cache == null )
+					return;
+				final int numLevels = timepoint.getLevels().length;
+				long budget = MAX_PREFETCH_BLOCKS;
+				for ( int level = numLevels - 1; level >= Math.max( 0, numLevels - prefetchLevels ) && budget > 0; --level )
+					budget -= timepoint.prefetch( cache, level, budget );
+			} );
+		}
+	}
+}
@@ -27,6 +27,8 @@ import bdv.util.volatiles.SharedQueue;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
 import net.imglib2.cache.img.CachedCellImg;
@@ -39,10 +41,10 @@ import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import org.janelia.saalfeldlab.n5.N5Reader;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.metadata.*;
 import org.janelia.saalfeldlab.n5.metadata.canonical.CanonicalMultichannelMetadata;
 import org.janelia.saalfeldlab.n5.metadata.canonical.CanonicalMultiscaleMetadata;
@@ -54,10 +56,24 @@ import org.scijava.ui.behaviour.util.TriggerBehaviourBindings;
 import java.awt.*;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseMotionAdapter;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 
 /**
@@ -74,6 +90,50 @@ public class N5Viewer {
 
 	private final SharedQueue sharedQueue;
 
+	private final SharedCellCache cache;
+
+	private final DatasetRegistry registry;
+
+	/**
+	 * Opens the datasets of all selections of this viewer.
+	 */
+	private final DatasetOpener opener;
+
+	/**
+	 * The images acquired from the registry for each shown source, released
+	 * when the source is removed.
+	 */
+	private final Map< SourceAndConverter< ? >, ShownSource > shownSources = Collections.synchronizedMap( new IdentityHashMap<>() );
+
+	private static class ShownSource
+	{
+		final Source< ? > source;
+
+		final List< CachedCellImg< ?, ? > > images;
+
+		ShownSource( final Source< ? > source, final List< CachedCellImg< ?, ? > > images )
+		{
+			this.source = source;
+			this.images = images;
+		}
+	}
+
+	private final FetchQueue fetchQueue;
+
+	private final ViewerFetchPriority fetchPriority;
+
+	private final int prefetchBlocksPerUpdate;
+
+	private final N5ViewerOptions viewerOptions;
+
+	private BlockPrefetcher prefetcher;
+
+	private NavigationRecorder recorder;
+
+	private final N5ViewerMetrics metrics;
+
+	private boolean closed = false;
+
 	private final BdvHandle bdv;
 
 
@@ -85,15 +145,62 @@ public class N5Viewer {
 		return bdv.getSplitPanel();
 	}
 
+	/**
+	 * @return the cell cache shared by all sources, with its hit and miss counts
+	 */
+	public SharedCellCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return the registry of the open datasets, shared by all sources that show them
+	 */
+	public DatasetRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return the queue that loads the blocks of all sources, closest to the focus point first
+	 */
+	public FetchQueue getFetchQueue() {
+		return fetchQueue;
+	}
+
+	/**
+	 * @return the prefetcher with its counts of prefetched, used and wasted blocks, or null if prefetching is disabled
+	 */
+	public BlockPrefetcher getPrefetcher() {
+		return prefetcher;
+	}
+
+	/**
+	 * @return the JMX beans of the loading metrics of this viewer, or null if they are not published
+	 */
+	public N5ViewerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the recorder of the navigation trace of this session, or null if the session is not recorded
+	 */
+	public NavigationRecorder getNavigationRecorder() {
+		return recorder;
+	}
+
 	public N5Viewer(final Frame parent, final DataSelection selection) throws IOException {
 		this(parent, selection, true);
 	}
 
+	public N5Viewer(final Frame parentFrame, final DataSelection dataSelection, final boolean wantFrame) throws IOException {
+		this(parentFrame, dataSelection, wantFrame, N5ViewerOptions.options());
+	}
+
 	/**
 	 * Creates a new N5Viewer with the given data sets.
 	 * @param parentFrame parent frame, can be null
 	 * @param dataSelection data sets to display
 	 * @param wantFrame if true, use BdvHandleFrame and display a window. If false, use a BdvHandlePanel and do not display anything.
+	 * @param viewerOptions viewer settings, e.g. the memory budget of the cell cache
 	 * @throws IOException
 	 */
 	public < T extends NumericType< T > & NativeType< T >,
@@ -101,87 +208,153 @@ public class N5Viewer {
 					R extends N5Reader >
 			N5Viewer(final Frame parentFrame,
 					 final DataSelection dataSelection,
-					 final boolean wantFrame ) throws IOException
+					 final boolean wantFrame,
+					 final N5ViewerOptions viewerOptions ) throws IOException
 	{
 		Prefs.showScaleBar( true );
 
-		this.sharedQueue = new SharedQueue( Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) );
+		// everything started before a failure is stopped and released again
+		try
+		{
+			// The fetcher threads of the shared queue hand requests to the fetch
+			// queue, enough of them keep requests pending there to pick the most
+			// important: a few if they move on without waiting for the blocks,
+			// more than the workers if they wait.
+			final int maxFetchThreads = Math.max( 1, viewerOptions.getMaxFetchThreads() );
+			this.sharedQueue = viewerOptions.isFetchHandOff()
+					? new FetchHandOffQueue( Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) )
+					: new SharedQueue( Math.max( 16, Math.min( 256, 2 * maxFetchThreads ) ) );
+			this.fetchPriority = new ViewerFetchPriority();
+			this.fetchQueue = new FetchQueue(
+					viewerOptions.getMinFetchThreads(),
+					maxFetchThreads,
+					fetchPriority,
+					viewerOptions.isVirtualFetchThreads() ? FetchQueue.virtualThreadFactory() : null );
+			final long offHeapCacheSize = viewerOptions.getOffHeapCacheSizeInBytes();
+			this.cache = new SharedCellCache(
+					viewerOptions.getCellCacheSizeInBytes(),
+					offHeapCacheSize > 0 ? new OffHeapCellStore( offHeapCacheSize ) : null );
+			cache.setFetchQueue( fetchQueue );
+			cache.addReleaseListener( fetchPriority::unregister );
+			this.registry = new DatasetRegistry( cache );
+			this.opener = new DatasetOpener( registry );
+			final long compressedCacheSize = viewerOptions.getCompressedCacheSizeInBytes();
+			if ( compressedCacheSize > 0 )
+				cache.setCompressedBlockStore( new CompressedBlockStore( compressedCacheSize ) );
+			final long bufferPoolSize = viewerOptions.getBufferPoolSizeInBytes();
+			if ( bufferPoolSize > 0 )
+				cache.setBufferPool( new BlockBufferPool( bufferPoolSize ) );
+			if ( viewerOptions.isMemoryMappedReads() )
+				cache.setMappedBlockCache( new MappedBlockCache() );
+			final int decodeThreads = viewerOptions.getDecodeThreads();
+			if ( decodeThreads > 0 )
+				cache.setBlockPipeline( new BlockPipeline( decodeThreads, 4 * decodeThreads ) );
+			this.prefetchBlocksPerUpdate = viewerOptions.getPrefetchBlocksPerUpdate();
+			this.viewerOptions = viewerOptions;
+			this.metrics = viewerOptions.isJmxMetrics() ? new N5ViewerMetrics( cache, fetchQueue ) : null;
 
-		// TODO: These setups are not used anymore, because BdvFunctions creates its own.
-		//       They either need to be deleted from here or integrated somehow.
-		final List< ConverterSetup > converterSetups = new ArrayList<>();
+			// TODO: These setups are not used anymore, because BdvFunctions creates its own.
+			//       They either need to be deleted from here or integrated somehow.
+			final List< ConverterSetup > converterSetups = new ArrayList<>();
 
-		final List< SourceAndConverter< ? > > sourcesAndConverters = new ArrayList<>();
+			final List< SourceAndConverter< ? > > sourcesAndConverters = new ArrayList<>();
 
-		final List<N5Metadata> selected = new ArrayList<>();
-		for( N5Metadata meta : dataSelection.metadata )
-		{
-			if( meta instanceof N5ViewerMultichannelMetadata )
-			{
-				N5ViewerMultichannelMetadata mc = (N5ViewerMultichannelMetadata)meta;
-				for( MultiscaleMetadata<?> m : mc.getChildrenMetadata() )
-					selected.add( m );
-			}
-			else if ( meta instanceof CanonicalMultichannelMetadata )
+			final List<N5Metadata> selected = new ArrayList<>();
+			for( N5Metadata meta : dataSelection.metadata )
 			{
-				CanonicalMultichannelMetadata mc = (CanonicalMultichannelMetadata)meta;
-				for( N5Metadata m : mc.getChildrenMetadata() )
-					selected.add( m );
+				if( meta instanceof N5ViewerMultichannelMetadata )
+				{
+					N5ViewerMultichannelMetadata mc = (N5ViewerMultichannelMetadata)meta;
+					for( MultiscaleMetadata<?> m : mc.getChildrenMetadata() )
+						selected.add( m );
+				}
+				else if ( meta instanceof CanonicalMultichannelMetadata )
+				{
+					CanonicalMultichannelMetadata mc = (CanonicalMultichannelMetadata)meta;
+					for( N5Metadata m : mc.getChildrenMetadata() )
+						selected.add( m );
+				}
+				else
+					selected.add( meta );
 			}
-			else
-				selected.add( meta );
-		}
 
-		final List<N5Source<T>> sources = new ArrayList<>();
-		final List<N5VolatileSource<T, V>> volatileSources = new ArrayList<>();
+			final List<N5Source<T>> sources = new ArrayList<>();
+			final List<N5VolatileSource<T, V>> volatileSources = new ArrayList<>();
 
-		buildN5Sources(dataSelection.n5, selected, sharedQueue, converterSetups, sourcesAndConverters, sources, volatileSources);
+			buildN5Sources(viewerOptions.decorateReader(dataSelection.n5), selected, sharedQueue, converterSetups, sourcesAndConverters, sources, volatileSources);
 
-		BdvHandle bdvHandle = null;
+			BdvHandle bdvHandle = null;
 
-		BdvOptions options = BdvOptions.options().frameTitle("N5 Viewer");
-		if (is2D) {
-			options = options.is2D();
-		}
+			BdvOptions options = BdvOptions.options().frameTitle("N5 Viewer");
+			if (is2D) {
+				options = options.is2D();
+			}
 
-		for (SourceAndConverter<?> sourcesAndConverter : sourcesAndConverters) {
-			if (bdvHandle == null) {
-				if (wantFrame) {
-					// Create and show a BdvHandleFrame with the first source
-					bdvHandle = BdvFunctions.show(sourcesAndConverter, BdvOptions.options()).getBdvHandle();
+			for (SourceAndConverter<?> sourcesAndConverter : sourcesAndConverters) {
+				if (bdvHandle == null) {
+					if (wantFrame) {
+						// Create and show a BdvHandleFrame with the first source
+						bdvHandle = BdvFunctions.show(sourcesAndConverter, BdvOptions.options()).getBdvHandle();
+					}
+					else {
+						// Create a BdvHandlePanel, but don't show it
+						bdvHandle = new BdvHandlePanel(parentFrame, options);
+						// Add the first source to it
+						BdvFunctions.show(sourcesAndConverter, BdvOptions.options().addTo(bdvHandle));
+					}
 				}
 				else {
-					// Create a BdvHandlePanel, but don't show it
-					bdvHandle = new BdvHandlePanel(parentFrame, options);
-					// Add the first source to it
+					// Subsequent sources are added to the existing handle
 					BdvFunctions.show(sourcesAndConverter, BdvOptions.options().addTo(bdvHandle));
 				}
 			}
-			else {
-				// Subsequent sources are added to the existing handle
-				BdvFunctions.show(sourcesAndConverter, BdvOptions.options().addTo(bdvHandle));
-			}
-		}
-		this.bdv = bdvHandle;
-
-		if (bdv != null) {
-			ViewerPanel viewerPanel = bdv.getViewerPanel();
-			if (viewerPanel != null) {
-				viewerPanel.setNumTimepoints(numTimepoints);
-				initCropController( sources );
-				// Delay initTransform until the viewer is shown because it needs to have a size.
-				viewerPanel.addComponentListener(new ComponentAdapter() {
-					boolean needsInit = true;
+			this.bdv = bdvHandle;
+
+			if ( bdvHandle instanceof BdvHandleFrame ) {
+				((BdvHandleFrame) bdvHandle).getBigDataViewer().getViewerFrame().addWindowListener( new WindowAdapter() {
 					@Override
-					public void componentShown(ComponentEvent e) {
-						if (needsInit) {
-							InitializeViewerState.initTransform(viewerPanel);
-							needsInit = false;
-						}
+					public void windowClosed( final WindowEvent e ) {
+						close();
+					}
+				} );
+			}
+
+			if (bdv != null) {
+				ViewerPanel viewerPanel = bdv.getViewerPanel();
+				if (viewerPanel != null) {
+					viewerPanel.setNumTimepoints(numTimepoints);
+					addTimePointListeners( viewerPanel, sources );
+					initFetchPriority( viewerPanel );
+					if ( prefetchBlocksPerUpdate > 0 ) {
+						prefetcher = new BlockPrefetcher( viewerPanel, sharedQueue, cache, BlockPrefetcher.DEFAULT_FRAMES_AHEAD, prefetchBlocksPerUpdate );
+						for ( final SourceAndConverter< ? > shown : sourcesAndConverters )
+							prefetcher.addSource( shownSources.get( shown ).source );
+						if ( metrics != null )
+							metrics.setPrefetcher( prefetcher );
+						viewerPanel.addTransformListener( prefetcher::transformChanged );
 					}
-				});
+					initCropController( sources );
+					if ( viewerOptions.getNavigationTraceFile() != null )
+						recorder = new NavigationRecorder( viewerPanel, Paths.get( viewerOptions.getNavigationTraceFile() ) );
+					// Delay initTransform until the viewer is shown because it needs to have a size.
+					viewerPanel.addComponentListener(new ComponentAdapter() {
+						boolean needsInit = true;
+						@Override
+						public void componentShown(ComponentEvent e) {
+							if (needsInit) {
+								InitializeViewerState.initTransform(viewerPanel);
+								needsInit = false;
+							}
+						}
+					});
+				}
 			}
 		}
+		catch ( final Throwable t )
+		{
+			close();
+			throw t;
+		}
 	}
 
 	public < T extends NumericType< T > & NativeType< T >,
@@ -212,14 +385,98 @@ public class N5Viewer {
 		final List<N5Source<T>> sources = new ArrayList<>();
 		final List<N5VolatileSource<T, V>> volatileSources = new ArrayList<>();
 
-		buildN5Sources(selection.n5, selected, sharedQueue, converterSetups, sourcesAndConverters, sources, volatileSources);
+		buildN5Sources(viewerOptions.decorateReader(selection.n5), selected, sharedQueue, converterSetups, sourcesAndConverters, sources, volatileSources);
 
 
 		for (SourceAndConverter<?> sourcesAndConverter : sourcesAndConverters) {
 			BdvFunctions.show(sourcesAndConverter, BdvOptions.options().addTo(bdv));
 		}
+
+		final ViewerPanel viewerPanel = bdv.getViewerPanel();
+		viewerPanel.setNumTimepoints(numTimepoints);
+		addTimePointListeners( viewerPanel, sources );
+	}
+
+	/**
+	 * Remove a source shown by this viewer, and release the images it
+	 * uses. Images that no other source uses are dropped from the cache.
+	 *
+	 * @param source the source, as shown by the viewer
+	 */
+	public void removeSource( final SourceAndConverter< ? > source )
+	{
+		bdv.getViewerPanel().state().removeSource( source );
+		final ShownSource shown = shownSources.remove( source );
+		if ( metrics != null )
+			metrics.removeSource( source );
+		if ( shown == null )
+			return;
+		if ( prefetcher != null )
+			prefetcher.removeSource( shown.source );
+		release( shown );
+	}
+
+	private void release( final ShownSource shown )
+	{
+		if ( shown.source instanceof N5TimeSeriesSource )
+			( ( N5TimeSeriesSource< ? > ) shown.source ).close();
+		synchronized ( shown.images )
+		{
+			for ( final CachedCellImg< ?, ? > img : shown.images )
+				registry.release( img );
+			shown.images.clear();
+		}
+	}
+
+	/**
+	 * Stop loading blocks and release everything this viewer holds: the
+	 * threads of the prefetcher, the fetch queue, the decoders and the
+	 * fetchers of the volatile sources, the images of all sources, the cells
+	 * in the cache and the JMX beans.
+	 * Called when the window of the viewer is closed. Viewers without a
+	 * frame must be closed by their owner, this also closes their panel.
+	 */
+	public synchronized void close()
+	{
+		if ( closed )
+			return;
+		closed = true;
+
+		if ( recorder != null )
+			recorder.close();
+		if ( prefetcher != null )
+			prefetcher.shutdown();
+		// cancels the pending loads, so that the fetchers of the shared queue
+		// and the threads that wait for a decoder stop waiting; any of them is
+		// null if the constructor failed before it was created
+		if ( fetchQueue != null )
+			fetchQueue.shutdown();
+		final BlockPipeline pipeline = cache == null ? null : cache.getBlockPipeline();
+		if ( pipeline != null )
+			pipeline.shutdown();
+		if ( sharedQueue != null )
+			sharedQueue.shutdown();
+		if ( opener != null )
+			opener.close();
+
+		final List< ShownSource > shown;
+		synchronized ( shownSources )
+		{
+			shown = new ArrayList<>( shownSources.values() );
+			shownSources.clear();
+		}
+		for ( final ShownSource s : shown )
+			release( s );
+		if ( cache != null )
+			cache.invalidateAll();
+
+		if ( metrics != null )
+			metrics.close();
+		if ( bdv != null && !( bdv instanceof BdvHandleFrame ) )
+			bdv.close();
 	}
 
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
 	public < T extends NumericType< T > & NativeType< T >,
 					V extends Volatile< T > & NumericType< V >> void buildN5Sources(
 		final N5Reader n5,
@@ -232,98 +489,481 @@ public class N5Viewer {
 	{
 		final ArrayList<MetadataSource<?>> additionalSources = new ArrayList<>();
 
-		int i;
-		for ( i = 0; i < selectedMetadata.size(); ++i )
+		// submit opening all scale levels of all datasets first, then collect
+		// the images in the order of the selection
+		final List<AffineTransform3D[]> transformsToOpen = new ArrayList<>();
+		final List<List<Future<CachedCellImg<?, ?>>>> imagesToOpen = new ArrayList<>();
+		final List<Future<List<MetadataSource<?>>>> metadataSourcesToOpen = new ArrayList<>();
+
+		// the opened images and metadata sources that a shown source holds,
+		// the others are released if building the sources fails
+		final Set<Object> claimed = Collections.newSetFromMap( new IdentityHashMap<>() );
+
+		// release the unclaimed images on any failure, including errors that
+		// DatasetOpener.get rethrows
+		boolean built = false;
+		try
 		{
-			String[] datasetsToOpen = null;
-			AffineTransform3D[] transforms = null;
-
-			final N5Metadata metadata = selectedMetadata.get( i );
-			if (metadata instanceof N5SingleScaleMetadata) {
-				final N5SingleScaleMetadata singleScaleDataset = (N5SingleScaleMetadata) metadata;
-				String[] tmpDatasets= new String[]{ singleScaleDataset.getPath() };
-				AffineTransform3D[] tmpTransforms = new AffineTransform3D[]{ singleScaleDataset.spatialTransform3d() };
-
-				MultiscaleDatasets msd = MultiscaleDatasets.sort( tmpDatasets, tmpTransforms );
-				datasetsToOpen = msd.getPaths();
-				transforms = msd.getTransforms();
-			} else if (metadata instanceof N5MultiScaleMetadata) {
-				final N5MultiScaleMetadata multiScaleDataset = (N5MultiScaleMetadata) metadata;
-				datasetsToOpen = multiScaleDataset.getPaths();
-				transforms = multiScaleDataset.spatialTransforms3d();
-			} else if (metadata instanceof N5CosemMetadata ) {
-				final N5CosemMetadata singleScaleCosemDataset = (N5CosemMetadata) metadata;
-				datasetsToOpen = new String[]{ singleScaleCosemDataset.getPath() };
-				transforms = new AffineTransform3D[]{ singleScaleCosemDataset.spatialTransform3d() };
-			} else if (metadata instanceof CanonicalSpatialMetadata ) {
-				final CanonicalSpatialMetadata canonicalDataset = (CanonicalSpatialMetadata) metadata;
-				datasetsToOpen = new String[]{ canonicalDataset.getPath() };
-				transforms = new AffineTransform3D[]{ canonicalDataset.getSpatialTransform().spatialTransform3d() };
-			} else if (metadata instanceof N5CosemMultiScaleMetadata ) {
-				final N5CosemMultiScaleMetadata multiScaleDataset = (N5CosemMultiScaleMetadata) metadata;
-				MultiscaleDatasets msd = MultiscaleDatasets.sort( multiScaleDataset.getPaths(), multiScaleDataset.spatialTransforms3d() );
-				datasetsToOpen = msd.getPaths();
-				transforms = msd.getTransforms();
-			} else if (metadata instanceof CanonicalMultiscaleMetadata ) {
-				final CanonicalMultiscaleMetadata multiScaleDataset = (CanonicalMultiscaleMetadata) metadata;
-				MultiscaleDatasets msd = MultiscaleDatasets.sort( multiScaleDataset.getPaths(), multiScaleDataset.spatialTransforms3d() );
-				datasetsToOpen = msd.getPaths();
-				transforms = msd.getTransforms();
+			int i;
+			for ( i = 0; i < selectedMetadata.size(); ++i )
+			{
+				String[] datasetsToOpen = null;
+				AffineTransform3D[] transforms = null;
+
+				final N5Metadata metadata = selectedMetadata.get( i );
+				if (metadata instanceof N5ViewerTimeSeriesMetadata) {
+					// open the levels of the first timepoint now, the others when they are shown
+					final MultiscaleMetadata<?> firstTimepoint = ((N5ViewerTimeSeriesMetadata) metadata).getChildrenMetadata()[0];
+					MultiscaleDatasets msd = MultiscaleDatasets.sort( firstTimepoint.getPaths(), firstTimepoint.spatialTransforms3d() );
+					datasetsToOpen = msd.getPaths();
+					transforms = msd.getTransforms();
+					checkTimepoints( (N5ViewerTimeSeriesMetadata) metadata, transforms );
+				} else if (metadata instanceof N5SingleScaleMetadata) {
+					final N5SingleScaleMetadata singleScaleDataset = (N5SingleScaleMetadata) metadata;
+					String[] tmpDatasets= new String[]{ singleScaleDataset.getPath() };
+					AffineTransform3D[] tmpTransforms = new AffineTransform3D[]{ singleScaleDataset.spatialTransform3d() };
+
+					MultiscaleDatasets msd = MultiscaleDatasets.sort( tmpDatasets, tmpTransforms );
+					datasetsToOpen = msd.getPaths();
+					transforms = msd.getTransforms();
+				} else if (metadata instanceof N5MultiScaleMetadata) {
+					final N5MultiScaleMetadata multiScaleDataset = (N5MultiScaleMetadata) metadata;
+					datasetsToOpen = multiScaleDataset.getPaths();
+					transforms = multiScaleDataset.spatialTransforms3d();
+				} else if (metadata instanceof N5CosemMetadata ) {
+					final N5CosemMetadata singleScaleCosemDataset = (N5CosemMetadata) metadata;
+					datasetsToOpen = new String[]{ singleScaleCosemDataset.getPath() };
+					transforms = new AffineTransform3D[]{ singleScaleCosemDataset.spatialTransform3d() };
+				} else if (metadata instanceof CanonicalSpatialMetadata ) {
+					final CanonicalSpatialMetadata canonicalDataset = (CanonicalSpatialMetadata) metadata;
+					datasetsToOpen = new String[]{ canonicalDataset.getPath() };
+					transforms = new AffineTransform3D[]{ canonicalDataset.getSpatialTransform().spatialTransform3d() };
+				} else if (metadata instanceof N5CosemMultiScaleMetadata ) {
+					final N5CosemMultiScaleMetadata multiScaleDataset = (N5CosemMultiScaleMetadata) metadata;
+					MultiscaleDatasets msd = MultiscaleDatasets.sort( multiScaleDataset.getPaths(), multiScaleDataset.spatialTransforms3d() );
+					datasetsToOpen = msd.getPaths();
+					transforms = msd.getTransforms();
+				} else if (metadata instanceof CanonicalMultiscaleMetadata ) {
+					final CanonicalMultiscaleMetadata multiScaleDataset = (CanonicalMultiscaleMetadata) metadata;
+					MultiscaleDatasets msd = MultiscaleDatasets.sort( multiScaleDataset.getPaths(), multiScaleDataset.spatialTransforms3d() );
+					datasetsToOpen = msd.getPaths();
+					transforms = msd.getTransforms();
+				}
+				else if( metadata instanceof N5DatasetMetadata ) {
+					metadataSourcesToOpen.add( opener.submit( () -> MetadataSource.buildMetadataSources((N5DatasetMetadata)metadata, path -> registry.acquire(n5, path), DownsampledPyramid.factory(registry.getCache())) ) );
+				}
+				else {
+					datasetsToOpen = new String[]{ metadata.getPath() };
+					transforms = new AffineTransform3D[] { new AffineTransform3D() };
+				}
+
+				final List<Future<CachedCellImg<?, ?>>> images = new ArrayList<>();
+				if( datasetsToOpen != null )
+					for ( final String dataset : datasetsToOpen )
+						images.add( opener.openVolatile( n5, dataset ) );
+
+				transformsToOpen.add( transforms );
+				imagesToOpen.add( images );
 			}
-			else if( metadata instanceof N5DatasetMetadata ) {
-				final List<MetadataSource<?>> addTheseSources = MetadataSource.buildMetadataSources(n5, (N5DatasetMetadata)metadata);
+
+			for ( i = 0; i < selectedMetadata.size(); ++i )
+			{
+				final List<Future<CachedCellImg<?, ?>>> futureImages = imagesToOpen.get( i );
+				if( futureImages.isEmpty() )
+					continue;
+
+				// is2D should be true at the end of this loop if all sources are 2D
+				is2D = true;
+
+				final RandomAccessibleInterval[] images = new RandomAccessibleInterval[futureImages.size()];
+				final CachedCellImg<?, ?>[] cellImgs = new CachedCellImg[images.length];
+				final int[][] blockSizes = new int[images.length][];
+				for ( int s = 0; s < images.length; ++s )
+				{
+					CachedCellImg<?, ?> vimg = DatasetOpener.get( futureImages.get( s ) );
+					cellImgs[ s ] = vimg;
+					if( vimg.numDimensions() == 2 )
+					{
+						images[ s ] = Views.addDimension(vimg, 0, 0);
+						is2D = is2D && true;
+					}
+					else
+					{
+						images[ s ] = vimg;
+						is2D = is2D && false;
+					}
+
+					blockSizes[ s ] = new int[ images[ s ].numDimensions() ];
+					Arrays.fill( blockSizes[ s ], 1 );
+					for ( int d = 0; d < vimg.numDimensions(); ++d )
+						blockSizes[ s ][ d ] = vimg.getCellGrid().cellDimension( d );
+				}
+
+				final T type = (T) Util.getTypeFromInterval(images[0]);
+				final String name = "source " + (i + 1);
+				final N5Metadata metadata = selectedMetadata.get( i );
+				final List<CachedCellImg<?, ?>> acquired = Collections.synchronizedList( new ArrayList<>( Arrays.asList( cellImgs ) ) );
+				final N5Source<T> source;
+				if( metadata instanceof N5ViewerTimeSeriesMetadata )
+				{
+					// the levels of timepoints that are opened later are loaded
+					// in the order of the fetch priority as well
+					final AffineTransform3D[] levelTransforms = transformsToOpen.get( i );
+					source = openTimeSeries( n5, registry, acquired, (N5ViewerTimeSeriesMetadata) metadata, type, name, images, levelTransforms, blockSizes,
+							( img, level ) -> registerFetchPriority( img, levelTransforms[ Math.min( level, levelTransforms.length - 1 ) ], level, levelTransforms.length ) );
+				}
+				else if( images[0].numDimensions() == 4 )
+				{
+					// the fourth dimension is time
+					source = sliceTimeSeries( registry.getCache(), type, name, images, transformsToOpen.get( i ), blockSizes );
+				}
+				else if( images.length == 1 && type instanceof RealType && DownsampledPyramid.needsPyramid( images[0] ) )
+				{
+					// large single scale dataset, compute coarser levels on demand
+					// the computed cells are held in the shared cache and released with the image
+					final DownsampledPyramid pyramid = new DownsampledPyramid( images[0], transformsToOpen.get( i )[0], registry.getCache(), cellImgs[0] );
+					source = new N5Source<>(
+							type,
+							name,
+							pyramid.getLevels(),
+							pyramid.getTransforms());
+				}
+				else
+				{
+					source = new N5Source<>(
+							type,
+							name,
+							images,
+							transformsToOpen.get( i ));
+				}
+
+				if( source instanceof N5TimeSeriesSource ) {
+					numTimepoints = Math.max( numTimepoints, ((N5TimeSeriesSource<T>) source).getNumTimepoints() );
+					if ( viewerOptions.getErrorHandler() != null )
+						((N5TimeSeriesSource<T>) source).setErrorHandler( viewerOptions.getErrorHandler() );
+				}
+
+				// levels that are computed from a finer level are not loaded,
+				// only the opened levels are ordered by screen distance
+				for ( int s = 0; s < cellImgs.length && s < source.getNumMipmapLevels(); ++s ) {
+					final AffineTransform3D levelTransform = new AffineTransform3D();
+					source.getSourceTransform( 0, s, levelTransform );
+					registerFetchPriority( cellImgs[ s ], levelTransform, s, source.getNumMipmapLevels() );
+				}
+
+				final N5VolatileSource<T, V> volatileSource = source.asVolatile(sharedQueue);
+
+				sources.add(source);
+				volatileSources.add(volatileSource);
+
+				addSourceToListsGenericType( volatileSource, i + 1, numTimepoints, volatileSource.getType(), converterSetups, sourcesAndConverters );
+				final SourceAndConverter<?> shown = sourcesAndConverters.get( sourcesAndConverters.size() - 1 );
+				shownSources.put( shown, new ShownSource( source, acquired ) );
+				if ( prefetcher != null )
+					prefetcher.addSource( source );
+				claimed.addAll( futureImages );
+				if ( metrics != null )
+					metrics.addSource( shown, acquired );
+			}
+
+			for( final Future<List<MetadataSource<?>>> futureSources : metadataSourcesToOpen ) {
+				final List<MetadataSource<?>> addTheseSources = DatasetOpener.get( futureSources );
 				if( addTheseSources != null )
 					additionalSources.addAll(addTheseSources);
 			}
-			else {
-				datasetsToOpen = new String[]{ metadata.getPath() };
-				transforms = new AffineTransform3D[] { new AffineTransform3D() };
+
+			for( MetadataSource src : additionalSources ) {
+				if( src.numTimePoints() > numTimepoints )
+					numTimepoints = src.numTimePoints();
+
+				// the channels of a dataset share its raw image, each holds a reference
+				if( src.getChannelIndex() > 0 )
+					registry.retain( src.getRawImage() );
+
+				// the raw image is the finest level, the coarser levels are computed from it
+				final AffineTransform3D rawTransform = new AffineTransform3D();
+				src.getSourceTransform( 0, 0, rawTransform );
+				registerFetchPriority( src.getRawImage(), rawTransform, 0, src.getNumMipmapLevels() );
+
+				final VolatileMetadataSource volatileSrc = src.asVolatile(sharedQueue);
+				addSourceToListsGenericType( volatileSrc, i + 1, src.numTimePoints(), volatileSrc.getType(), converterSetups, sourcesAndConverters );
+				final SourceAndConverter<?> shown = sourcesAndConverters.get( sourcesAndConverters.size() - 1 );
+				final List<CachedCellImg<?, ?>> images = Collections.synchronizedList( new ArrayList<>( Collections.singletonList( src.getRawImage() ) ) );
+				shownSources.put( shown, new ShownSource( src, images ) );
+				if ( prefetcher != null )
+					prefetcher.addSource( src );
+				claimed.add( src );
+				if ( metrics != null )
+					metrics.addSource( shown, images );
+			}
+
+			if ( metrics != null )
+				metrics.addContainer( n5 );
+			built = true;
+		}
+		finally
+		{
+			if ( !built )
+				releaseUnclaimed( imagesToOpen, metadataSourcesToOpen, claimed );
+		}
+	}
+
+	/**
+	 * Release the images that were opened for sources that could not be
+	 * built, waiting for those that are still being opened.
+	 */
+	private void releaseUnclaimed(
+			final List<List<Future<CachedCellImg<?, ?>>>> imagesToOpen,
+			final List<Future<List<MetadataSource<?>>>> metadataSourcesToOpen,
+			final Set<Object> claimed )
+	{
+		for ( final List<Future<CachedCellImg<?, ?>>> images : imagesToOpen )
+			for ( final Future<CachedCellImg<?, ?>> image : images )
+			{
+				final CachedCellImg<?, ?> img = claimed.contains( image ) ? null : getOrNull( image );
+				if ( img != null )
+					registry.release( img );
 			}
 
-			if( datasetsToOpen == null || datasetsToOpen.length == 0 )
+		for ( final Future<List<MetadataSource<?>>> futureSources : metadataSourcesToOpen )
+		{
+			final List<MetadataSource<?>> sources = getOrNull( futureSources );
+			if ( sources == null )
 				continue;
+			// the raw image is acquired for the first channel, the sources of
+			// the other channels only retain it when they are shown
+			for ( final MetadataSource<?> src : sources )
+				if ( !claimed.contains( src ) && src.getChannelIndex() == 0 && src.getRawImage() != null )
+					registry.release( src.getRawImage() );
+		}
+	}
 
-			// is2D should be true at the end of this loop if all sources are 2D
-			is2D = true;
+	/**
+	 * @return the result of a future, or null if it failed or the thread was
+	 *         interrupted while waiting
+	 */
+	private static < X > X getOrNull( final Future< X > future )
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch ( final ExecutionException | CancellationException e )
+		{
+			return null;
+		}
+	}
 
-			@SuppressWarnings( "rawtypes" )
-			final RandomAccessibleInterval[] images = new RandomAccessibleInterval[datasetsToOpen.length];
-			for ( int s = 0; s < images.length; ++s )
+	/**
+	 * Time series of multiscale groups. The levels of the first timepoint
+	 * are already opened, the levels of the other timepoints are opened
+	 * when they are shown or read ahead, and passed to {@code onOpen} with
+	 * their level.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static < T extends NumericType< T > & NativeType< T > > N5TimeSeriesSource< T > openTimeSeries(
+			final N5Reader n5,
+			final DatasetRegistry registry,
+			final List< CachedCellImg< ?, ? > > acquired,
+			final N5ViewerTimeSeriesMetadata metadata,
+			final T type,
+			final String name,
+			final RandomAccessibleInterval< T >[] images,
+			final AffineTransform3D[] transforms,
+			final int[][] blockSizes,
+			final BiConsumer< CachedCellImg< ?, ? >, Integer > onOpen )
+	{
+		final MultiscaleMetadata< ? >[] timepoints = metadata.getChildrenMetadata();
+		final N5TimeSeriesSource.TimepointOpener< T > opener = t -> {
+			final String[] paths = MultiscaleDatasets.sort( timepoints[ t ].getPaths(), timepoints[ t ].spatialTransforms3d() ).getPaths();
+			// checked when the source was built, unless the metadata changed since
+			if ( paths.length != transforms.length )
+				throw new IOException( "Timepoint " + t + " of " + metadata.getPath() + " has " + paths.length
+						+ " scale levels, but timepoint 0 has " + transforms.length );
+			final RandomAccessibleInterval[] levels = new RandomAccessibleInterval[ paths.length ];
+			final CachedCellImg[] cellImgs = new CachedCellImg[ paths.length ];
+			// the source releases the images when the timepoint is evicted,
+			// unless they were released with the source already
+			final Runnable release = () -> {
+				for ( final CachedCellImg img : cellImgs )
+					if ( img != null && acquired.remove( img ) )
+						registry.release( img );
+			};
+			try
 			{
-				CachedCellImg<?, ?> vimg = N5Utils.openVolatile( n5, datasetsToOpen[s] );
-				if( vimg.numDimensions() == 2 )
-				{
-					images[ s ] = Views.addDimension(vimg, 0, 0);
-					is2D = is2D && true;
-				}
-				else
+				for ( int s = 0; s < paths.length; ++s )
 				{
-					images[ s ] = vimg;
-					is2D = is2D && false;
+					final CachedCellImg img = registry.acquire( n5, paths[ s ] );
+					acquired.add( img );
+					cellImgs[ s ] = img;
+					levels[ s ] = img.numDimensions() == 2 ? Views.addDimension( img, 0, 0 ) : img;
+					onOpen.accept( img, s );
 				}
 			}
+			catch ( final IOException | RuntimeException e )
+			{
+				release.run();
+				throw e;
+			}
+			return new N5TimeSeriesSource.Timepoint<>( levels, cellImgs, null, release );
+		};
+		return new N5TimeSeriesSource<>( type, name, timepoints.length, images, transforms, blockSizes, opener, registry.getCache() );
+	}
 
-			@SuppressWarnings( "unchecked" )
-			final N5Source<T> source = new N5Source<>(
-					(T) Util.getTypeFromInterval(images[0]),
-					"source " + (i + 1),
-					images,
-					transforms);
+	/**
+	 * The source of a time series uses the levels and transforms of the first
+	 * timepoint for all timepoints, so every timepoint must have the same
+	 * number of levels with the same transforms.
+	 *
+	 * @param metadata the time series
+	 * @param transforms the sorted transforms of the levels of the first timepoint
+	 * @throws IOException if a timepoint has other levels than the first
+	 */
+	private static void checkTimepoints( final N5ViewerTimeSeriesMetadata metadata, final AffineTransform3D[] transforms ) throws IOException
+	{
+		final MultiscaleMetadata< ? >[] timepoints = metadata.getChildrenMetadata();
+		for ( int t = 1; t < timepoints.length; ++t )
+		{
+			final AffineTransform3D[] levelTransforms = MultiscaleDatasets.sort( timepoints[ t ].getPaths(), timepoints[ t ].spatialTransforms3d() ).getTransforms();
+			if ( levelTransforms.length != transforms.length )
+				throw new IOException( "Timepoint " + t + " of " + metadata.getPath() + " has " + levelTransforms.length
+						+ " scale levels, but timepoint 0 has " + transforms.length );
+			for ( int s = 0; s < transforms.length; ++s )
+				if ( !sameTransform( levelTransforms[ s ], transforms[ s ] ) )
+					throw new IOException( "Scale level " + s + " of timepoint " + t + " of " + metadata.getPath()
+							+ " has another transform than in timepoint 0" );
+		}
+	}
 
-			final N5VolatileSource<T, V> volatileSource = source.asVolatile(sharedQueue);
+	private static boolean sameTransform( final AffineTransform3D a, final AffineTransform3D b )
+	{
+		final double[] ra = a.getRowPackedCopy();
+		final double[] rb = b.getRowPackedCopy();
+		for ( int i = 0; i < ra.length; ++i )
+			if ( Math.abs( ra[ i ] - rb[ i ] ) > 1e-9 * Math.max( 1, Math.max( Math.abs( ra[ i ] ), Math.abs( rb[ i ] ) ) ) )
+				return false;
+		return true;
+	}
 
-			sources.add(source);
-			volatileSources.add(volatileSource);
+	/**
+	 * Time series of 4D images whose last dimension is time. A single scale
+	 * image gets coarser levels computed on demand for every timepoint.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static < T extends NumericType< T > & NativeType< T > > N5TimeSeriesSource< T > sliceTimeSeries(
+			final SharedCellCache cache,
+			final T type,
+			final String name,
+			final RandomAccessibleInterval< T >[] images,
+			final AffineTransform3D[] transforms,
+			final int[][] blockSizes ) throws IOException
+	{
+		final int numTimepoints = ( int ) images[ 0 ].dimension( 3 );
+		final boolean computePyramid = images.length == 1 && type instanceof RealType
+				&& DownsampledPyramid.needsPyramid( Views.hyperSlice( images[ 0 ], 3, images[ 0 ].min( 3 ) ) );
+		// the same levels for every timepoint
+		final long[][] factors = computePyramid
+				? DownsampledPyramid.downsamplingFactors( Views.hyperSlice( images[ 0 ], 3, images[ 0 ].min( 3 ) ), transforms[ 0 ], images[ 0 ] instanceof CachedCellImg ? ( CachedCellImg ) images[ 0 ] : null )
+				: null;
 
-			addSourceToListsGenericType( volatileSource, i + 1, numTimepoints, volatileSource.getType(), converterSetups, sourcesAndConverters );
-		}
+		final N5TimeSeriesSource.TimepointOpener< T > opener = t -> {
+			final RandomAccessibleInterval[] levels = new RandomAccessibleInterval[ images.length ];
+			final CachedCellImg[] blockImages = new CachedCellImg[ images.length ];
+			final Interval[] blockIntervals = new Interval[ images.length ];
+			for ( int s = 0; s < images.length; ++s )
+			{
+				// coarser levels may be downsampled in time, scale the
+				// timepoint to their extent
+				final long tl = Math.min( images[ s ].min( 3 ) + t * images[ s ].dimension( 3 ) / numTimepoints, images[ s ].max( 3 ) );
+				levels[ s ] = Views.hyperSlice( images[ s ], 3, tl );
+				if ( images[ s ] instanceof CachedCellImg )
+				{
+					final long[] min = Intervals.minAsLongArray( images[ s ] );
+					final long[] max = Intervals.maxAsLongArray( images[ s ] );
+					min[ 3 ] = max[ 3 ] = tl;
+					blockImages[ s ] = ( CachedCellImg ) images[ s ];
+					blockIntervals[ s ] = new FinalInterval( min, max );
+				}
+			}
+			if ( !computePyramid )
+				return new N5TimeSeriesSource.Timepoint<>( levels, blockImages, blockIntervals, null );
 
-		for( MetadataSource src : additionalSources ) {
-			if( src.numTimePoints() > numTimepoints )
-				numTimepoints = src.numTimePoints();
+			// only the finest level is stored, the coarser ones are computed
+			// from it and dropped with the timepoint, or with the image
+			final DownsampledPyramid pyramid = new DownsampledPyramid( levels[ 0 ], transforms[ 0 ], factors, DownsampledPyramid.DEFAULT_CELL_SIZE, cache, blockImages[ 0 ], DownsampledPyramid.defaultExecutor() );
+			return new N5TimeSeriesSource.Timepoint<>( pyramid.getLevels(), null, null, pyramid::release );
+		};
 
-			addSourceToListsGenericType( src, i + 1, src.numTimePoints(), src.getType(), converterSetups, sourcesAndConverters );
+		final RandomAccessibleInterval< T >[] firstTimepoint = opener.open( 0 ).getLevels();
+		final AffineTransform3D[] levelTransforms;
+		final int[][] levelBlockSizes;
+		if ( computePyramid )
+		{
+			levelTransforms = DownsampledPyramid.transforms( transforms[ 0 ], factors, Intervals.minAsLongArray( firstTimepoint[ 0 ] ) );
+			levelBlockSizes = new int[ firstTimepoint.length ][];
+			levelBlockSizes[ 0 ] = blockSizes[ 0 ];
+			for ( int s = 1; s < levelBlockSizes.length; ++s )
+			{
+				levelBlockSizes[ s ] = new int[ 3 ];
+				( ( CachedCellImg ) firstTimepoint[ s ] ).getCellGrid().cellDimensions( levelBlockSizes[ s ] );
+			}
+		}
+		else
+		{
+			levelTransforms = transforms;
+			levelBlockSizes = blockSizes;
 		}
+		return new N5TimeSeriesSource<>( type, name, numTimepoints, firstTimepoint, levelTransforms, levelBlockSizes, opener, cache );
+	}
+
+	/**
+	 * Let time series sources read ahead of the timepoint shown in the viewer,
+	 * and repaint when a timepoint that was shown empty has been opened.
+	 */
+	private static void addTimePointListeners( final ViewerPanel viewerPanel, final List< ? extends Source< ? > > sources )
+	{
+		for ( final Source< ? > source : sources )
+			if ( source instanceof N5TimeSeriesSource )
+			{
+				viewerPanel.addTimePointChangeListener( ( N5TimeSeriesSource< ? > ) source );
+				( ( N5TimeSeriesSource< ? > ) source ).addOpenListener( t -> viewerPanel.requestRepaint() );
+			}
+	}
+
+	private void registerFetchPriority( final CachedCellImg< ?, ? > img, final AffineTransform3D sourceTransform, final int level, final int numLevels )
+	{
+		final int imageId = cache.getImageId( img );
+		if ( imageId >= 0 )
+			fetchPriority.register( imageId, img.getCellGrid(), sourceTransform, level, numLevels );
+	}
+
+	/**
+	 * Keep the view and the focus point of the fetch priority up to date:
+	 * blocks close to the mouse, or to the center of the screen if the mouse
+	 * is outside, are loaded first.
+	 */
+	private void initFetchPriority( final ViewerPanel viewerPanel )
+	{
+		final Component display = viewerPanel.getDisplay();
+		viewerPanel.addTransformListener( transform -> fetchPriority.setView( transform, display.getWidth(), display.getHeight() ) );
+		display.addMouseMotionListener( new MouseMotionAdapter() {
+			@Override
+			public void mouseMoved( final MouseEvent e ) {
+				fetchPriority.setFocus( e.getX(), e.getY() );
+			}
+		} );
+		display.addMouseListener( new MouseAdapter() {
+			@Override
+			public void mouseExited( final MouseEvent e ) {
+				fetchPriority.setFocus( Double.NaN, Double.NaN );
+			}
+		} );
+		fetchPriority.setView( viewerPanel.state().getViewerTransform(), display.getWidth(), display.getHeight() );
 	}
 
 	private < T extends NumericType< T > & NativeType< T > > void initCropController( final List< ? extends Source< T > > sources )
@@ -3,6 +3,7 @@ package org.janelia.saalfeldlab.n5.bdv;
 import org.janelia.saalfeldlab.n5.ij.N5Importer;
 import org.janelia.saalfeldlab.n5.metadata.*;
 import org.janelia.saalfeldlab.n5.metadata.canonical.CanonicalMetadataParser;
+import org.janelia.saalfeldlab.n5.ui.DataSelection;
 import org.janelia.saalfeldlab.n5.ui.DatasetSelectorDialog;
 
 import javax.swing.*;
@@ -26,7 +27,8 @@ public class N5ViewerCreator {
             new N5CosemMultiScaleMetadata.CosemMultiScaleParser(),
             new N5ViewerMultiscaleMetadataParser(),
             new CanonicalMetadataParser(),
-            new N5ViewerMultichannelMetadata.N5ViewerMultichannelMetadataParser()
+            new N5ViewerMultichannelMetadata.N5ViewerMultichannelMetadataParser(),
+            new N5ViewerTimeSeriesMetadata.N5ViewerTimeSeriesMetadataParser()
     };
 
     public static final N5MetadataParser<?>[] n5vParsers = new N5MetadataParser[]{
@@ -38,8 +40,27 @@ public class N5ViewerCreator {
 
     private String lastOpenedContainer = "";
 
+    private final N5ViewerOptions viewerOptions;
+
+    private DiskCache diskCache;
+
+    public N5ViewerCreator() {
+        this(N5ViewerOptions.options());
+    }
+
+    /**
+     * @param viewerOptions settings of the viewers that are opened
+     */
+    public N5ViewerCreator(final N5ViewerOptions viewerOptions) {
+        this.viewerOptions = viewerOptions;
+    }
+
     final public static void main(final String... args) {
-        new N5ViewerCreator().openViewer(
+        // imitate a remote container and record the session with system properties,
+        // see SimulatedRemoteN5Reader and NavigationRecorder
+        new N5ViewerCreator(N5ViewerOptions.options()
+                .simulatedRemote(SimulatedRemoteN5Reader.Conditions.fromSystemProperties())
+                .navigationTraceFile(System.getProperty(NavigationRecorder.TRACE_FILE_KEY))).openViewer(
                 Throwable::printStackTrace);
     }
 
@@ -73,10 +94,13 @@ public class N5ViewerCreator {
         dialog.setContainerPathUpdateCallback( x -> lastOpenedContainer = x );
         dialog.setTreeRenderer( new N5ViewerTreeCellRenderer( false ) );
 
+        if (viewerOptions.getErrorHandler() == null)
+            viewerOptions.errorHandler(exceptionHandler);
+
         dialog.run( selection -> {
             try
             {
-                N5Viewer n5Viewer = new N5Viewer(null, selection, true);
+                N5Viewer n5Viewer = new N5Viewer(null, withDiskCache(selection, lastOpenedContainer), true, viewerOptions);
                 if (viewerConsumer != null) {
                     viewerConsumer.accept(n5Viewer);
                 }
@@ -87,4 +111,25 @@ public class N5ViewerCreator {
             }
         } );
     }
+
+    /**
+     * Read the blocks of a remote container through the disk cache, if a
+     * cache directory is set in the viewer options.
+     */
+    private DataSelection withDiskCache(final DataSelection selection, final String containerPath) throws IOException {
+
+        if (!DiskCachedN5Reader.isRemote(containerPath))
+            return selection;
+
+        // identify the remote container by its URI, so its datasets are opened once
+        DatasetRegistry.setContainerKey(selection.n5, containerPath);
+        if (viewerOptions.getDiskCacheDirectory() == null)
+            return selection;
+
+        synchronized (this) {
+            if (diskCache == null)
+                diskCache = new DiskCache(viewerOptions.getDiskCacheDirectory(), viewerOptions.getDiskCacheSizeInBytes());
+        }
+        return new DataSelection(new DiskCachedN5Reader(selection.n5, diskCache, containerPath), selection.metadata);
+    }
 }
@@ -0,0 +1,495 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.cache.img.CachedCellImg;
+
+/**
+ * Publishes the {@link LoadMetrics} of a viewer over JMX, so that they can be
+ * watched with standard tools, e.g. JConsole or VisualVM, while the viewer
+ * is used:
+ *
+ * <pre>
+ * org.janelia.saalfeldlab.n5.bdv:type=Viewer,viewer=1
+ * org.janelia.saalfeldlab.n5.bdv:type=Container,viewer=1,name="/data/sample.n5"
+ * org.janelia.saalfeldlab.n5.bdv:type=Source,viewer=1,id=1,name="source 1"
+ * </pre>
+ *
+ * The viewer bean sums the metrics of all containers. The requests of the
+ * {@link FetchHandOffQueue} of the volatile sources are handed
+ * to the {@link FetchQueue} at once, so the queue depth and wait time are
+ * those of the fetch queue, where requests wait for a worker.
+ */
+public class N5ViewerMetrics implements AutoCloseable
+{
+	public static final String DOMAIN = "org.janelia.saalfeldlab.n5.bdv";
+
+	private static final AtomicInteger nextViewerId = new AtomicInteger( 1 );
+
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	private final SharedCellCache cache;
+
+	private final FetchQueue fetchQueue;
+
+	private volatile BlockPrefetcher prefetcher;
+
+	private final int viewerId = nextViewerId.getAndIncrement();
+
+	private final AtomicInteger nextSourceId = new AtomicInteger( 1 );
+
+	private final Set< String > containers = new HashSet<>();
+
+	private final Map< SourceAndConverter< ? >, ObjectName > sources = new IdentityHashMap<>();
+
+	private final List< ObjectName > registered = new ArrayList<>();
+
+	/**
+	 * Register the bean of a viewer.
+	 *
+	 * @param cache the cache of the viewer
+	 * @param fetchQueue the fetch queue of the viewer
+	 */
+	public N5ViewerMetrics( final SharedCellCache cache, final FetchQueue fetchQueue )
+	{
+		this.cache = cache;
+		this.fetchQueue = fetchQueue;
+		register( objectName( "Viewer", null ), new ViewerBean(), ViewerLoadingMXBean.class );
+	}
+
+	public int getViewerId()
+	{
+		return viewerId;
+	}
+
+	/**
+	 * Publish the counts of a prefetcher with the viewer bean.
+	 *
+	 * @param prefetcher the prefetcher of the viewer
+	 */
+	public void setPrefetcher( final BlockPrefetcher prefetcher )
+	{
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * Register the bean of a container, once the viewer has opened an image
+	 * of it. Containers that are registered already are skipped.
+	 *
+	 * @param n5 the reader of the container
+	 */
+	public synchronized void addContainer( final N5Reader n5 )
+	{
+		final String name = ImageLanes.laneName( n5 );
+		if ( !containers.add( name ) )
+			return;
+		final Bean bean = new Bean(
+				name,
+				() -> {
+					final LoadMetrics metrics = cache.getContainerMetrics( n5 );
+					return metrics == null ? Collections.emptyList() : Collections.singletonList( metrics );
+				},
+				() -> {
+					final FetchLane lane = cache.findLane( n5 );
+					return lane == null ? 0 : lane.getNumPending();
+				} );
+		register( objectName( "Container", "name=" + ObjectName.quote( name ) ), bean, LoadMetricsMXBean.class );
+	}
+
+	/**
+	 * Register the bean of a source.
+	 *
+	 * @param source the source, as shown by the viewer
+	 * @param images the images of the source, which may change as
+	 *        timepoints are opened
+	 */
+	public synchronized void addSource( final SourceAndConverter< ? > source, final Collection< ? extends CachedCellImg< ?, ? > > images )
+	{
+		if ( sources.containsKey( source ) )
+			return;
+		final String name = source.getSpimSource().getName();
+		final Supplier< List< LoadMetrics > > metrics = () -> {
+			synchronized ( images )
+			{
+				return images.stream().map( cache::getMetrics ).filter( Objects::nonNull ).collect( Collectors.toList() );
+			}
+		};
+		final IntSupplier queueDepth = () -> {
+			final Set< Integer > imageIds;
+			synchronized ( images )
+			{
+				imageIds = images.stream().map( cache::getImageId ).collect( Collectors.toSet() );
+			}
+			return fetchQueue.getNumPending( imageIds::contains );
+		};
+		final ObjectName objectName = objectName( "Source", "id=" + nextSourceId.getAndIncrement() + ",name=" + ObjectName.quote( name == null ? "" : name ) );
+		if ( register( objectName, new Bean( name, metrics, queueDepth ), LoadMetricsMXBean.class ) )
+			sources.put( source, objectName );
+	}
+
+	/**
+	 * Unregister the bean of a source that was removed from the viewer.
+	 *
+	 * @param source the source, as shown by the viewer
+	 */
+	public synchronized void removeSource( final SourceAndConverter< ? > source )
+	{
+		final ObjectName objectName = sources.remove( source );
+		if ( objectName != null )
+			unregister( objectName );
+	}
+
+	/**
+	 * Unregister all beans of the viewer.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		for ( final ObjectName objectName : new ArrayList<>( registered ) )
+			unregister( objectName );
+		sources.clear();
+		containers.clear();
+	}
+
+	private ObjectName objectName( final String type, final String properties )
+	{
+		try
+		{
+			return new ObjectName( DOMAIN + ":type=" + type + ",viewer=" + viewerId + ( properties == null ? "" : "," + properties ) );
+		}
+		catch ( final JMException e )
+		{
+			throw new IllegalArgumentException( e );
+		}
+	}
+
+	private synchronized < T > boolean register( final ObjectName objectName, final T bean, final Class< T > mxBeanInterface )
+	{
+		try
+		{
+			server.registerMBean( new StandardMBean( bean, mxBeanInterface, true ), objectName );
+			registered.add( objectName );
+			return true;
+		}
+		catch ( final JMException e )
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private synchronized void unregister( final ObjectName objectName )
+	{
+		registered.remove( objectName );
+		try
+		{
+			if ( server.isRegistered( objectName ) )
+				server.unregisterMBean( objectName );
+		}
+		catch ( final JMException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The sum of the metrics of some images or containers.
+	 */
+	private static class Bean implements LoadMetricsMXBean
+	{
+		private final String name;
+
+		private final Supplier< ? extends Collection< LoadMetrics > > metrics;
+
+		private final IntSupplier queueDepth;
+
+		Bean( final String name, final Supplier< ? extends Collection< LoadMetrics > > metrics, final IntSupplier queueDepth )
+		{
+			this.name = name;
+			this.metrics = metrics;
+			this.queueDepth = queueDepth;
+		}
+
+		private long sum( final ToLongFunction< LoadMetrics > value )
+		{
+			long sum = 0;
+			for ( final LoadMetrics m : metrics.get() )
+				sum += value.applyAsLong( m );
+			return sum;
+		}
+
+		private long[] histogram( final Function< LoadMetrics, LatencyHistogram > histogram )
+		{
+			final long[] counts = new long[ LatencyHistogram.BOUNDS_MILLIS.length + 1 ];
+			for ( final LoadMetrics m : metrics.get() )
+			{
+				final long[] c = histogram.apply( m ).getCounts();
+				for ( int i = 0; i < counts.length; ++i )
+					counts[ i ] += c[ i ];
+			}
+			return counts;
+		}
+
+		private double meanMillis( final Function< LoadMetrics, LatencyHistogram > histogram )
+		{
+			final long n = sum( m -> histogram.apply( m ).getCount() );
+			return n == 0 ? 0 : sum( m -> histogram.apply( m ).getTotalNanos() ) * 1e-6 / n;
+		}
+
+		@Override
+		public String getName()
+		{
+			return name;
+		}
+
+		@Override
+		public int getQueueDepth()
+		{
+			return queueDepth.getAsInt();
+		}
+
+		@Override
+		public long getCacheHits()
+		{
+			return sum( LoadMetrics::getHitCount );
+		}
+
+		@Override
+		public long getCacheMisses()
+		{
+			return sum( LoadMetrics::getMissCount );
+		}
+
+		@Override
+		public long getCacheJoins()
+		{
+			return sum( LoadMetrics::getJoinedCount );
+		}
+
+		@Override
+		public long getCacheEvictions()
+		{
+			return sum( LoadMetrics::getEvictionCount );
+		}
+
+		@Override
+		public double getCacheHitRate()
+		{
+			final long hits = getCacheHits();
+			final long requests = hits + getCacheMisses() + getCacheJoins();
+			return requests == 0 ? 0 : ( double ) hits / requests;
+		}
+
+		@Override
+		public long getBlocksLoaded()
+		{
+			return sum( LoadMetrics::getBlocksLoaded );
+		}
+
+		@Override
+		public long getBytesLoaded()
+		{
+			return sum( LoadMetrics::getBytesLoaded );
+		}
+
+		@Override
+		public double[] getLatencyBucketBoundsMillis()
+		{
+			return LatencyHistogram.BOUNDS_MILLIS.clone();
+		}
+
+		@Override
+		public long[] getQueueWaitHistogram()
+		{
+			return histogram( LoadMetrics::getQueueWait );
+		}
+
+		@Override
+		public double getMeanQueueWaitMillis()
+		{
+			return meanMillis( LoadMetrics::getQueueWait );
+		}
+
+		@Override
+		public double getQueueWait95thPercentileMillis()
+		{
+			return LatencyHistogram.quantileMillis( getQueueWaitHistogram(), 0.95 );
+		}
+
+		@Override
+		public long[] getFetchHistogram()
+		{
+			return histogram( LoadMetrics::getFetch );
+		}
+
+		@Override
+		public double getMeanFetchMillis()
+		{
+			return meanMillis( LoadMetrics::getFetch );
+		}
+
+		@Override
+		public double getFetch95thPercentileMillis()
+		{
+			return LatencyHistogram.quantileMillis( getFetchHistogram(), 0.95 );
+		}
+
+		@Override
+		public long[] getDecodeHistogram()
+		{
+			return histogram( LoadMetrics::getDecode );
+		}
+
+		@Override
+		public double getMeanDecodeMillis()
+		{
+			return meanMillis( LoadMetrics::getDecode );
+		}
+
+		@Override
+		public double getDecode95thPercentileMillis()
+		{
+			return LatencyHistogram.quantileMillis( getDecodeHistogram(), 0.95 );
+		}
+
+		@Override
+		public long getBlockedCount()
+		{
+			return sum( LoadMetrics::getBlockedCount );
+		}
+
+		@Override
+		public double getBlockedMillis()
+		{
+			return sum( LoadMetrics::getBlockedNanos ) * 1e-6;
+		}
+
+		@Override
+		public void resetStatistics()
+		{
+			for ( final LoadMetrics m : metrics.get() )
+				m.resetStatistics();
+		}
+	}
+
+	/**
+	 * The sum of the metrics of all containers, and the state of the cache
+	 * and the fetch queue.
+	 */
+	private class ViewerBean extends Bean implements ViewerLoadingMXBean
+	{
+		ViewerBean()
+		{
+			super( "viewer " + viewerId, () -> cache.getContainerMetrics().values(), fetchQueue::getNumPending );
+		}
+
+		@Override
+		public long getCacheSizeInBytes()
+		{
+			return cache.getSizeInBytes();
+		}
+
+		@Override
+		public long getMaxCacheSizeInBytes()
+		{
+			return cache.getMaxSizeInBytes();
+		}
+
+		@Override
+		public int getNumCells()
+		{
+			return cache.getNumCells();
+		}
+
+		@Override
+		public int getNumFetchThreads()
+		{
+			return fetchQueue.getNumThreads();
+		}
+
+		@Override
+		public long getCompletedLoads()
+		{
+			return fetchQueue.getCompletedCount();
+		}
+
+		@Override
+		public long getStaleLoads()
+		{
+			return fetchQueue.getStaleCount();
+		}
+
+		@Override
+		public long getCancelledPrefetches()
+		{
+			return fetchQueue.getCancelledCount();
+		}
+
+		@Override
+		public long getPrefetchedBlocks()
+		{
+			final BlockPrefetcher p = prefetcher;
+			return p == null ? 0 : p.getPrefetchedCount();
+		}
+
+		@Override
+		public long getUsedPrefetches()
+		{
+			final BlockPrefetcher p = prefetcher;
+			return p == null ? 0 : p.getUsedCount();
+		}
+
+		@Override
+		public long getWastedPrefetches()
+		{
+			final BlockPrefetcher p = prefetcher;
+			return p == null ? 0 : p.getWastedCount();
+		}
+
+		@Override
+		public long getSkippedPrefetchSources()
+		{
+			final BlockPrefetcher p = prefetcher;
+			return p == null ? 0 : p.getSkippedCount();
+		}
+	}
+}
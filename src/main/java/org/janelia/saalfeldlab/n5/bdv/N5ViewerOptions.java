@@ -0,0 +1,485 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Optional settings of an {@link N5Viewer}, e.g.
+ *
+ * <pre>
+ * new N5Viewer( null, selection, true, N5ViewerOptions.options().cacheSizeInMB( 4096 ) );
+ * </pre>
+ */
+public class N5ViewerOptions
+{
+	private long cacheSizeInBytes = defaultCacheSizeInBytes();
+
+	private long offHeapCacheSizeInBytes = 0;
+
+	private long compressedCacheSizeInBytes = 0;
+
+	private String diskCacheDirectory = null;
+
+	private long diskCacheSizeInBytes = 10L << 30;
+
+	private int prefetchBlocksPerUpdate = 0;
+
+	public static final int DEFAULT_MAX_FETCH_THREADS = 64;
+
+	public static final int DEFAULT_MAX_VIRTUAL_FETCH_THREADS = 256;
+
+	private int minFetchThreads = 1;
+
+	private int maxFetchThreads = DEFAULT_MAX_FETCH_THREADS;
+
+	private boolean virtualFetchThreads = false;
+
+	private boolean fetchHandOff = false;
+
+	private int decodeThreads = 0;
+
+	private long bufferPoolSizeInBytes = 0;
+
+	private boolean memoryMappedReads = false;
+
+	private UnaryOperator< N5Reader > readerDecorator = null;
+
+	private String navigationTraceFile = null;
+
+	private boolean jmxMetrics = false;
+
+	private Consumer< Exception > errorHandler = null;
+
+	public static N5ViewerOptions options()
+	{
+		return new N5ViewerOptions();
+	}
+
+	/**
+	 * Half of the maximum heap size.
+	 */
+	public static long defaultCacheSizeInBytes()
+	{
+		return Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Set the memory budget of the viewer on the heap, shared by all its
+	 * sources. The compressed block cache and the buffer pool are taken
+	 * out of this budget, the cell cache gets the rest, but at least a
+	 * quarter of it.
+	 *
+	 * @param bytes the budget in bytes
+	 * @return these options
+	 */
+	public N5ViewerOptions cacheSizeInBytes( final long bytes )
+	{
+		cacheSizeInBytes = bytes;
+		return this;
+	}
+
+	public N5ViewerOptions cacheSizeInMB( final long megabytes )
+	{
+		return cacheSizeInBytes( megabytes << 20 );
+	}
+
+	public long getCacheSizeInBytes()
+	{
+		return cacheSizeInBytes;
+	}
+
+	/**
+	 * @return the memory budget of the cell cache: the budget of the viewer
+	 *         without the compressed block cache and the buffer pool
+	 */
+	public long getCellCacheSizeInBytes()
+	{
+		return Math.max( cacheSizeInBytes / 4, cacheSizeInBytes - getCompressedCacheSizeInBytes() - getBufferPoolSizeInBytes() );
+	}
+
+	/**
+	 * Set the budget of direct memory that holds cells evicted from the
+	 * cell cache. Zero, the default, disables the off-heap tier. The JVM
+	 * limits direct memory with {@code -XX:MaxDirectMemorySize}.
+	 *
+	 * @param bytes the budget in bytes
+	 * @return these options
+	 */
+	public N5ViewerOptions offHeapCacheSizeInBytes( final long bytes )
+	{
+		offHeapCacheSizeInBytes = bytes;
+		return this;
+	}
+
+	public N5ViewerOptions offHeapCacheSizeInMB( final long megabytes )
+	{
+		return offHeapCacheSizeInBytes( megabytes << 20 );
+	}
+
+	public long getOffHeapCacheSizeInBytes()
+	{
+		return offHeapCacheSizeInBytes;
+	}
+
+	/**
+	 * Set the memory budget of the raw, compressed blocks of all
+	 * containers, taken out of the {@link #cacheSizeInBytes(long) budget of
+	 * the viewer}. Cells evicted from the cell cache are decoded again from
+	 * there instead of read again. Blocks of containers other than file
+	 * systems are kept uncompressed. Zero, the default, disables the
+	 * compressed tier.
+	 *
+	 * @param bytes the budget in bytes
+	 * @return these options
+	 */
+	public N5ViewerOptions compressedCacheSizeInBytes( final long bytes )
+	{
+		compressedCacheSizeInBytes = bytes;
+		return this;
+	}
+
+	public N5ViewerOptions compressedCacheSizeInMB( final long megabytes )
+	{
+		return compressedCacheSizeInBytes( megabytes << 20 );
+	}
+
+	public long getCompressedCacheSizeInBytes()
+	{
+		return compressedCacheSizeInBytes;
+	}
+
+	/**
+	 * Set the directory in which blocks of remote containers are kept
+	 * across sessions. Null, the default, disables the disk cache.
+	 *
+	 * @param directory the cache directory
+	 * @return these options
+	 */
+	public N5ViewerOptions diskCacheDirectory( final String directory )
+	{
+		diskCacheDirectory = directory;
+		return this;
+	}
+
+	public String getDiskCacheDirectory()
+	{
+		return diskCacheDirectory;
+	}
+
+	/**
+	 * Set the size cap of the disk cache, 10 GB by default.
+	 *
+	 * @param bytes the cap in bytes
+	 * @return these options
+	 */
+	public N5ViewerOptions diskCacheSizeInBytes( final long bytes )
+	{
+		diskCacheSizeInBytes = bytes;
+		return this;
+	}
+
+	public N5ViewerOptions diskCacheSizeInMB( final long megabytes )
+	{
+		return diskCacheSizeInBytes( megabytes << 20 );
+	}
+
+	public long getDiskCacheSizeInBytes()
+	{
+		return diskCacheSizeInBytes;
+	}
+
+	/**
+	 * Set the number of blocks that are requested ahead of the renderer
+	 * per change of the viewer transform, e.g.
+	 * {@link BlockPrefetcher#DEFAULT_MAX_BLOCKS_PER_UPDATE}. Zero, the
+	 * default, disables prefetching.
+	 *
+	 * @param blocks the prefetch budget
+	 * @return these options
+	 */
+	public N5ViewerOptions prefetchBlocksPerUpdate( final int blocks )
+	{
+		prefetchBlocksPerUpdate = blocks;
+		return this;
+	}
+
+	public int getPrefetchBlocksPerUpdate()
+	{
+		return prefetchBlocksPerUpdate;
+	}
+
+	/**
+	 * Set the bounds of the number of threads that load blocks. The number
+	 * adapts to the measured latency and throughput of the storage, from 1
+	 * to {@link #DEFAULT_MAX_FETCH_THREADS} by default.
+	 *
+	 * @param minThreads the minimum number of threads
+	 * @param maxThreads the maximum number of threads
+	 * @return these options
+	 */
+	public N5ViewerOptions fetchThreads( final int minThreads, final int maxThreads )
+	{
+		minFetchThreads = minThreads;
+		maxFetchThreads = maxThreads;
+		return this;
+	}
+
+	/**
+	 * Load blocks with a fixed number of threads.
+	 *
+	 * @param numThreads the number of threads
+	 * @return these options
+	 */
+	public N5ViewerOptions fetchThreads( final int numThreads )
+	{
+		return fetchThreads( numThreads, numThreads );
+	}
+
+	public int getMinFetchThreads()
+	{
+		return minFetchThreads;
+	}
+
+	public int getMaxFetchThreads()
+	{
+		return maxFetchThreads;
+	}
+
+	/**
+	 * Load blocks on virtual threads, for storage with high latency, e.g.
+	 * S3 or Google Cloud Storage. Needs Java 21, ignored before. Raises the
+	 * maximum number of threads to {@link #DEFAULT_MAX_VIRTUAL_FETCH_THREADS}
+	 * if it is the default, so {@link #fetchThreads(int, int)} is applied
+	 * before.
+	 *
+	 * @param virtual whether to use virtual threads
+	 * @return these options
+	 */
+	public N5ViewerOptions virtualFetchThreads( final boolean virtual )
+	{
+		virtualFetchThreads = virtual;
+		if ( virtual && maxFetchThreads == DEFAULT_MAX_FETCH_THREADS )
+			maxFetchThreads = DEFAULT_MAX_VIRTUAL_FETCH_THREADS;
+		return this;
+	}
+
+	public boolean isVirtualFetchThreads()
+	{
+		return virtualFetchThreads;
+	}
+
+	/**
+	 * Let the fetcher threads of the volatile sources hand missing blocks to
+	 * the fetch queue and move on to the next request instead of waiting
+	 * for them, see {@link FetchHandOffQueue}. Then a few fetcher threads
+	 * serve any number of requests in flight. Experimental, off by default,
+	 * the fetcher threads then wait for the fetch queue.
+	 *
+	 * @param handOff whether fetcher threads hand blocks off
+	 * @return these options
+	 */
+	public N5ViewerOptions fetchHandOff( final boolean handOff )
+	{
+		fetchHandOff = handOff;
+		return this;
+	}
+
+	public boolean isFetchHandOff()
+	{
+		return fetchHandOff;
+	}
+
+	/**
+	 * Set the number of threads that decompress the blocks of file system
+	 * containers, e.g. one per processor. The fetch threads then only read
+	 * the raw bytes. Zero, the default, reads and decompresses each block on
+	 * one fetch thread.
+	 *
+	 * @param numThreads the number of decode threads
+	 * @return these options
+	 */
+	public N5ViewerOptions decodeThreads( final int numThreads )
+	{
+		decodeThreads = numThreads;
+		return this;
+	}
+
+	public int getDecodeThreads()
+	{
+		return decodeThreads;
+	}
+
+	/**
+	 * Set the memory budget of the pooled buffers into which blocks of file
+	 * system containers are decoded before they are copied into their
+	 * cells, taken out of the {@link #cacheSizeInBytes(long) budget of the
+	 * viewer}, e.g. a sixteenth of it. Zero, the default, allocates new
+	 * buffers for every block.
+	 *
+	 * @param bytes the budget in bytes
+	 * @return these options
+	 */
+	public N5ViewerOptions bufferPoolSizeInBytes( final long bytes )
+	{
+		bufferPoolSizeInBytes = bytes;
+		return this;
+	}
+
+	public long getBufferPoolSizeInBytes()
+	{
+		return bufferPoolSizeInBytes;
+	}
+
+	/**
+	 * Memory map the block files of local containers instead of reading
+	 * them through streams, and decode blocks straight from the mapping.
+	 * The compressed block cache is then not used for local containers,
+	 * their blocks stay in the page cache of the operating system. Only
+	 * containers that are opened read-only are mapped, see
+	 * {@link MappedBlockCache}. Its budget of mapped bytes is advisory,
+	 * evicted files stay mapped until their buffers are garbage collected.
+	 *
+	 * @param mapped whether to memory map block files
+	 * @return these options
+	 */
+	public N5ViewerOptions memoryMappedReads( final boolean mapped )
+	{
+		memoryMappedReads = mapped;
+		return this;
+	}
+
+	public boolean isMemoryMappedReads()
+	{
+		return memoryMappedReads;
+	}
+
+	/**
+	 * Wrap the reader of every container that the viewer opens, e.g. to
+	 * count or delay its requests. The remote container of a
+	 * {@link DiskCachedN5Reader} is wrapped below the disk cache, so that
+	 * blocks read from the disk cache bypass the decorator.
+	 *
+	 * @param decorator the decorator, or null to read containers as they are
+	 * @return these options
+	 */
+	public N5ViewerOptions readerDecorator( final UnaryOperator< N5Reader > decorator )
+	{
+		readerDecorator = decorator;
+		return this;
+	}
+
+	public UnaryOperator< N5Reader > getReaderDecorator()
+	{
+		return readerDecorator;
+	}
+
+	/**
+	 * Read every container as if it were remote, with latency, jitter,
+	 * limited bandwidth and failures, see {@link SimulatedRemoteN5Reader}.
+	 *
+	 * @param conditions the conditions of the remote containers, or null to
+	 *        read containers as they are
+	 * @return these options
+	 */
+	public N5ViewerOptions simulatedRemote( final SimulatedRemoteN5Reader.Conditions conditions )
+	{
+		return readerDecorator( conditions == null ? null : n5 -> new SimulatedRemoteN5Reader( n5, conditions ) );
+	}
+
+	/**
+	 * Record the viewer transform and the timepoint of the session to a
+	 * {@link NavigationTrace} file, to replay it later with the
+	 * {@link HeadlessRenderer}. Null, the default, records nothing.
+	 *
+	 * @param file the trace file, replaced if it exists
+	 * @return these options
+	 */
+	public N5ViewerOptions navigationTraceFile( final String file )
+	{
+		navigationTraceFile = file;
+		return this;
+	}
+
+	public String getNavigationTraceFile()
+	{
+		return navigationTraceFile;
+	}
+
+	/**
+	 * Publish the loading metrics of the viewer over JMX, see
+	 * {@link N5ViewerMetrics}. Disabled by default.
+	 *
+	 * @param publish whether to register the beans
+	 * @return these options
+	 */
+	public N5ViewerOptions jmxMetrics( final boolean publish )
+	{
+		jmxMetrics = publish;
+		return this;
+	}
+
+	public boolean isJmxMetrics()
+	{
+		return jmxMetrics;
+	}
+
+	/**
+	 * Set the handler of errors that happen while the viewer is shown, e.g.
+	 * a timepoint of a time series that cannot be opened.
+	 *
+	 * @param handler the handler, or null to print the errors
+	 * @return these options
+	 */
+	public N5ViewerOptions errorHandler( final Consumer< Exception > handler )
+	{
+		errorHandler = handler;
+		return this;
+	}
+
+	public Consumer< Exception > getErrorHandler()
+	{
+		return errorHandler;
+	}
+
+	/**
+	 * @param n5 a reader
+	 * @return the reader wrapped by the reader decorator, or the reader
+	 *         itself if there is no decorator
+	 * @throws IOException if the disk cache of a {@link DiskCachedN5Reader}
+	 *         cannot be opened again
+	 */
+	public N5Reader decorateReader( final N5Reader n5 ) throws IOException
+	{
+		if ( readerDecorator == null )
+			return n5;
+
+		if ( n5 instanceof DiskCachedN5Reader )
+		{
+			final DiskCachedN5Reader cached = ( DiskCachedN5Reader ) n5;
+			return new DiskCachedN5Reader( readerDecorator.apply( cached.getRemoteReader() ), cached.getDiskCache(), cached.getContainerKey() );
+		}
+		// the decorated reader shares the datasets of the reader it decorates
+		final N5Reader decorated = readerDecorator.apply( n5 );
+		DatasetRegistry.setDecorated( decorated, n5 );
+		return decorated;
+	}
+}
@@ -3,16 +3,40 @@ package org.janelia.saalfeldlab.n5.bdv;
 import bdv.BigDataViewer;
 import ij.IJ;
 import ij.ImageJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 
 /**
  * {@link BigDataViewer}-based Fiji plugin for viewing N5 datasets.
  *
+ * Run with the argument {@code settings} to set the memory budget of the
+ * cell cache and the number of fetch threads of the viewers that are opened
+ * afterwards.
+ *
  * @author Igor Pisarev
  * @author John Bogovic
  */
 public class N5ViewerPlugin implements PlugIn {
 
+    public static final String CACHE_SIZE_KEY = "n5viewer.cacheSizeMB";
+
+    public static final String OFF_HEAP_CACHE_SIZE_KEY = "n5viewer.offHeapCacheSizeMB";
+
+    public static final String COMPRESSED_CACHE_SIZE_KEY = "n5viewer.compressedCacheSizeMB";
+
+    public static final String DISK_CACHE_DIRECTORY_KEY = "n5viewer.diskCacheDirectory";
+
+    public static final String DISK_CACHE_SIZE_KEY = "n5viewer.diskCacheSizeMB";
+
+    public static final String MIN_FETCH_THREADS_KEY = "n5viewer.minFetchThreads";
+
+    public static final String MAX_FETCH_THREADS_KEY = "n5viewer.maxFetchThreads";
+
+    public static final String VIRTUAL_FETCH_THREADS_KEY = "n5viewer.virtualFetchThreads";
+
+    public static final String MEMORY_MAPPED_READS_KEY = "n5viewer.memoryMappedReads";
+
     final public static void main( final String... args )
     {
         new ImageJ();
@@ -22,6 +46,109 @@ public class N5ViewerPlugin implements PlugIn {
     @Override
     public void run( final String args )
     {
-        new N5ViewerCreator().openViewer(IJ::handleException);
+        if ( "settings".equals( args ) )
+        {
+            showSettingsDialog();
+            return;
+        }
+
+        final N5ViewerOptions options = N5ViewerOptions.options()
+                .cacheSizeInMB( getCacheSizeInMB() )
+                .offHeapCacheSizeInMB( getOffHeapCacheSizeInMB() )
+                .compressedCacheSizeInMB( getCompressedCacheSizeInMB() )
+                .diskCacheSizeInMB( getDiskCacheSizeInMB() )
+                .memoryMappedReads( Prefs.get( MEMORY_MAPPED_READS_KEY, false ) )
+                // before virtualFetchThreads, which raises the default maximum
+                .fetchThreads( getMinFetchThreads(), getMaxFetchThreads() )
+                .virtualFetchThreads( Prefs.get( VIRTUAL_FETCH_THREADS_KEY, false ) )
+                // for performance testing, e.g. -Dn5viewer.simulated.latencyMillis=50
+                .simulatedRemote( SimulatedRemoteN5Reader.Conditions.fromSystemProperties() )
+                // record the session for trace replay, e.g. -Dn5viewer.traceFile=session.n5trace
+                .navigationTraceFile( System.getProperty( NavigationRecorder.TRACE_FILE_KEY ) );
+        final String diskCacheDirectory = Prefs.get( DISK_CACHE_DIRECTORY_KEY, "" );
+        if ( !diskCacheDirectory.isEmpty() )
+            options.diskCacheDirectory( diskCacheDirectory );
+        new N5ViewerCreator(options).openViewer(IJ::handleException);
+    }
+
+    public static long getCacheSizeInMB()
+    {
+        return ( long ) Prefs.get( CACHE_SIZE_KEY, N5ViewerOptions.defaultCacheSizeInBytes() >> 20 );
+    }
+
+    public static long getOffHeapCacheSizeInMB()
+    {
+        return ( long ) Prefs.get( OFF_HEAP_CACHE_SIZE_KEY, 0 );
+    }
+
+    public static long getCompressedCacheSizeInMB()
+    {
+        return ( long ) Prefs.get( COMPRESSED_CACHE_SIZE_KEY, 0 );
+    }
+
+    public static long getDiskCacheSizeInMB()
+    {
+        return ( long ) Prefs.get( DISK_CACHE_SIZE_KEY, 10 * 1024 );
+    }
+
+    public static int getMinFetchThreads()
+    {
+        return ( int ) Prefs.get( MIN_FETCH_THREADS_KEY, 1 );
+    }
+
+    public static int getMaxFetchThreads()
+    {
+        return ( int ) Prefs.get( MAX_FETCH_THREADS_KEY, N5ViewerOptions.DEFAULT_MAX_FETCH_THREADS );
+    }
+
+    private static void showSettingsDialog()
+    {
+        final GenericDialog gd = new GenericDialog( "N5 Viewer Settings" );
+        gd.addNumericField( "Cache size", getCacheSizeInMB(), 0, 8, "MB" );
+        gd.addNumericField( "Off-heap cache size", getOffHeapCacheSizeInMB(), 0, 8, "MB" );
+        gd.addNumericField( "Compressed cache size", getCompressedCacheSizeInMB(), 0, 8, "MB" );
+        gd.addStringField( "Disk cache directory", Prefs.get( DISK_CACHE_DIRECTORY_KEY, "" ), 30 );
+        gd.addNumericField( "Disk cache size", getDiskCacheSizeInMB(), 0, 8, "MB" );
+        gd.addNumericField( "Min fetch threads", getMinFetchThreads(), 0 );
+        gd.addNumericField( "Max fetch threads", getMaxFetchThreads(), 0 );
+        gd.addCheckbox( "Virtual fetch threads (Java 21)", Prefs.get( VIRTUAL_FETCH_THREADS_KEY, false ) );
+        gd.addCheckbox( "Memory-mapped reads of local containers", Prefs.get( MEMORY_MAPPED_READS_KEY, false ) );
+        gd.addMessage( "Memory budget of the cells of all sources of a viewer.\n"
+                + "Cells evicted from the cache are kept off-heap if the off-heap size is not 0.\n"
+                + "Compressed blocks are kept in memory if the compressed size is not 0,\n"
+                + "taken out of the cache size.\n"
+                + "Blocks of remote containers are kept in the disk cache directory, if set.\n"
+                + "The number of fetch threads adapts to the latency of the storage within the bounds.\n"
+                + "Memory-mapped local blocks are kept by the operating system instead of the compressed cache.\n"
+                + "Maximum memory: " + ( IJ.maxMemory() >> 20 ) + " MB" );
+        gd.showDialog();
+        if ( gd.wasCanceled() )
+            return;
+
+        final long cacheSize = ( long ) gd.getNextNumber();
+        final long offHeapCacheSize = ( long ) gd.getNextNumber();
+        final long compressedCacheSize = ( long ) gd.getNextNumber();
+        final String diskCacheDirectory = gd.getNextString().trim();
+        final long diskCacheSize = ( long ) gd.getNextNumber();
+        final int minFetchThreads = ( int ) gd.getNextNumber();
+        final int maxFetchThreads = ( int ) gd.getNextNumber();
+        final boolean virtualFetchThreads = gd.getNextBoolean();
+        final boolean memoryMappedReads = gd.getNextBoolean();
+        if ( cacheSize > 0 )
+            Prefs.set( CACHE_SIZE_KEY, cacheSize );
+        if ( offHeapCacheSize >= 0 )
+            Prefs.set( OFF_HEAP_CACHE_SIZE_KEY, offHeapCacheSize );
+        if ( compressedCacheSize >= 0 )
+            Prefs.set( COMPRESSED_CACHE_SIZE_KEY, compressedCacheSize );
+        Prefs.set( DISK_CACHE_DIRECTORY_KEY, diskCacheDirectory );
+        if ( diskCacheSize > 0 )
+            Prefs.set( DISK_CACHE_SIZE_KEY, diskCacheSize );
+        if ( minFetchThreads > 0 && maxFetchThreads >= minFetchThreads )
+        {
+            Prefs.set( MIN_FETCH_THREADS_KEY, minFetchThreads );
+            Prefs.set( MAX_FETCH_THREADS_KEY, maxFetchThreads );
+        }
+        Prefs.set( VIRTUAL_FETCH_THREADS_KEY, virtualFetchThreads );
+        Prefs.set( MEMORY_MAPPED_READS_KEY, memoryMappedReads );
     }
 }
@@ -27,6 +27,7 @@ import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.NumericType;
 
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 public class N5VolatileSource< T extends NumericType< T >, V extends Volatile< T > & NumericType< V > > extends AbstractSource< V > {
@@ -35,6 +36,17 @@ public class N5VolatileSource< T extends NumericType< T >, V extends Volatile< T
 
     private SharedQueue queue;
 
+    /**
+     * Volatile views indexed by [ timepoint ][ level ]. BDV asks for the same
+     * views many times per frame, so they are created once and then read
+     * without locking. The table is replaced (never modified) when a new
+     * entry is added. Sources whose levels are the same for all timepoints
+     * share the views of the first row.
+     */
+    private volatile RandomAccessibleInterval< V >[][] volatileImages;
+
+    private final boolean timeDependent;
+
     public N5VolatileSource(
             final N5Source< T > source,
             final V type,
@@ -43,6 +55,10 @@ public class N5VolatileSource< T extends NumericType< T >, V extends Volatile< T
         super( type, source.getName() );
         this.source = source;
         this.queue = queue;
+        this.volatileImages = newTable( 0 );
+        this.timeDependent = source.isTimeDependent();
+        // the views of replaced levels are replaced as well
+        source.addLevelsChangedListener( this::forget );
     }
 
     public N5VolatileSource(
@@ -54,13 +70,70 @@ public class N5VolatileSource< T extends NumericType< T >, V extends Volatile< T
     }
 
     @Override
-    public RandomAccessibleInterval< V > getSource(final int t, final int level )
+    public boolean isPresent( final int t )
+    {
+        return source.isPresent( t );
+    }
+
+    @Override
+    public RandomAccessibleInterval< V > getSource( final int t, final int level )
+    {
+        final int row = timeDependent ? t : 0;
+        final RandomAccessibleInterval< V >[][] table = volatileImages;
+        if ( row < table.length )
+        {
+            final RandomAccessibleInterval< V > img = table[ row ][ level ];
+            if ( img != null )
+                return img;
+        }
+        return wrapAsVolatile( t, row, level );
+    }
+
+    private synchronized RandomAccessibleInterval< V > wrapAsVolatile( final int t, final int row, final int level )
+    {
+        final RandomAccessibleInterval< V >[][] table = volatileImages;
+        if ( row < table.length && table[ row ][ level ] != null )
+            return table[ row ][ level ];
+
+        final RandomAccessibleInterval< V > img = VolatileViews.wrapAsVolatile( source.getSource( t, level ), queue, new CacheHints( LoadingStrategy.VOLATILE, level, true ) );
+
+        final RandomAccessibleInterval< V >[][] copy = Arrays.copyOf( table, Math.max( table.length, row + 1 ) );
+        for ( int i = table.length; i < copy.length; ++i )
+            copy[ i ] = newRow();
+        copy[ row ] = copy[ row ].clone();
+        copy[ row ][ level ] = img;
+        volatileImages = copy;
+
+        return img;
+    }
+
+    /**
+     * Drop the volatile views of a timepoint whose levels were released.
+     */
+    private synchronized void forget( final int t )
+    {
+        final RandomAccessibleInterval< V >[][] table = volatileImages;
+        if ( t >= table.length )
+            return;
+        final RandomAccessibleInterval< V >[][] copy = table.clone();
+        copy[ t ] = newRow();
+        volatileImages = copy;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private RandomAccessibleInterval< V >[][] newTable( final int numTimepoints )
+    {
+        return new RandomAccessibleInterval[ numTimepoints ][];
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private RandomAccessibleInterval< V >[] newRow()
     {
-        return VolatileViews.wrapAsVolatile( source.getSource( t, level ), queue, new CacheHints( LoadingStrategy.VOLATILE, level, true ) );
+        return new RandomAccessibleInterval[ getNumMipmapLevels() ];
     }
 
     @Override
-    public synchronized void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+    public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
     {
         source.getSourceTransform( t, level, transform );
     }
@@ -0,0 +1,128 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * A scripted navigation path for the {@link HeadlessRenderer}: the viewer
+ * transforms of successive frames, made of the moves of a user, pans, zooms,
+ * rotations and scrolling through slices. Zooms and rotations are about the
+ * center of the screen.
+ *
+ * <pre>
+ * final List&lt;AffineTransform3D&gt; path = new NavigationPath( renderer.initialTransform(), 800, 600 )
+ * 		.zoom( 4, 30 )
+ * 		.pan( 400, 0, 60 )
+ * 		.scroll( 100, 50 )
+ * 		.getTransforms();
+ * </pre>
+ */
+public class NavigationPath
+{
+	private final AffineTransform3D current;
+
+	private final double centerX;
+
+	private final double centerY;
+
+	private final List< AffineTransform3D > transforms = new ArrayList<>();
+
+	/**
+	 * @param start the viewer transform the path starts from
+	 * @param width the width of the screen
+	 * @param height the height of the screen
+	 */
+	public NavigationPath( final AffineTransform3D start, final int width, final int height )
+	{
+		current = start.copy();
+		centerX = 0.5 * width;
+		centerY = 0.5 * height;
+	}
+
+	/**
+	 * Move the image by {@code (dx, dy)} screen pixels.
+	 */
+	public NavigationPath pan( final double dx, final double dy, final int numFrames )
+	{
+		for ( int i = 0; i < numFrames; ++i )
+			add( current.translate( dx / numFrames, dy / numFrames, 0 ) );
+		return this;
+	}
+
+	/**
+	 * Zoom in by {@code factor}, or out if it is less than 1.
+	 */
+	public NavigationPath zoom( final double factor, final int numFrames )
+	{
+		final double step = Math.pow( factor, 1.0 / numFrames );
+		for ( int i = 0; i < numFrames; ++i )
+		{
+			current.translate( -centerX, -centerY, 0 );
+			current.scale( step );
+			add( current.translate( centerX, centerY, 0 ) );
+		}
+		return this;
+	}
+
+	/**
+	 * Rotate by {@code angle} radians about a screen axis.
+	 */
+	public NavigationPath rotate( final int axis, final double angle, final int numFrames )
+	{
+		for ( int i = 0; i < numFrames; ++i )
+		{
+			current.translate( -centerX, -centerY, 0 );
+			current.rotate( axis, angle / numFrames );
+			add( current.translate( centerX, centerY, 0 ) );
+		}
+		return this;
+	}
+
+	/**
+	 * Move through {@code dz} screen slices.
+	 */
+	public NavigationPath scroll( final double dz, final int numFrames )
+	{
+		for ( int i = 0; i < numFrames; ++i )
+			add( current.translate( 0, 0, dz / numFrames ) );
+		return this;
+	}
+
+	/**
+	 * Stay for {@code numFrames}.
+	 */
+	public NavigationPath hold( final int numFrames )
+	{
+		for ( int i = 0; i < numFrames; ++i )
+			add( current );
+		return this;
+	}
+
+	public List< AffineTransform3D > getTransforms()
+	{
+		return transforms;
+	}
+
+	private void add( final AffineTransform3D transform )
+	{
+		transforms.add( transform.copy() );
+	}
+}
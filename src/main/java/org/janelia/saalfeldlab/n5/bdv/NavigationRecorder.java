@@ -0,0 +1,152 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import bdv.viewer.TimePointListener;
+import bdv.viewer.TransformListener;
+import bdv.viewer.ViewerPanel;
+import bdv.viewer.ViewerState;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Records the viewer transform and the timepoint of a {@link ViewerPanel}
+ * to a {@link NavigationTrace} file, one step whenever either changes.
+ *
+ * Every step is written to the file as it is recorded, so that the trace of
+ * a session survives the viewer being killed. The file starts with the first
+ * step, when the viewer is shown, because the size of the screen is only
+ * known then.
+ *
+ * The {@link N5Viewer} records its sessions if
+ * {@link N5ViewerOptions#navigationTraceFile} is set, e.g. with
+ * {@code -Dn5viewer.traceFile=session.n5trace} for the Fiji plugin.
+ */
+public class NavigationRecorder implements AutoCloseable
+{
+	public static final String TRACE_FILE_KEY = "n5viewer.traceFile";
+
+	private final ViewerPanel viewerPanel;
+
+	private final Path file;
+
+	private final TransformListener< AffineTransform3D > transformListener = transform -> record();
+
+	private final TimePointListener timePointListener = timepoint -> record();
+
+	private DataOutputStream out;
+
+	private long start;
+
+	private double[] lastTransform;
+
+	private int lastTimepoint = -1;
+
+	private int numSteps = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Start recording.
+	 *
+	 * @param viewerPanel the viewer panel
+	 * @param file the trace file, replaced if it exists
+	 */
+	public NavigationRecorder( final ViewerPanel viewerPanel, final Path file )
+	{
+		this.viewerPanel = viewerPanel;
+		this.file = file;
+		viewerPanel.addTransformListener( transformListener );
+		viewerPanel.addTimePointChangeListener( timePointListener );
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	public synchronized int getNumSteps()
+	{
+		return numSteps;
+	}
+
+	private synchronized void record()
+	{
+		if ( closed )
+			return;
+
+		final ViewerState state = viewerPanel.state();
+		final double[] transform = state.getViewerTransform().getRowPackedCopy();
+		final int timepoint = state.getCurrentTimepoint();
+		if ( timepoint == lastTimepoint && Arrays.equals( transform, lastTransform ) )
+			return;
+
+		try
+		{
+			if ( out == null )
+			{
+				final int width = viewerPanel.getDisplay().getWidth();
+				final int height = viewerPanel.getDisplay().getHeight();
+				if ( width <= 0 || height <= 0 )
+					return;
+				out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( file ) ) );
+				NavigationTrace.writeHeader( out, width, height );
+				start = System.currentTimeMillis();
+			}
+			NavigationTrace.writeStep( out, System.currentTimeMillis() - start, timepoint, transform );
+			out.flush();
+			lastTransform = transform;
+			lastTimepoint = timepoint;
+			++numSteps;
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Stop recording and close the file.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if ( closed )
+			return;
+		closed = true;
+		viewerPanel.removeTransformListener( transformListener );
+		viewerPanel.removeTimePointChangeListener( timePointListener );
+		if ( out != null )
+		{
+			try
+			{
+				out.close();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
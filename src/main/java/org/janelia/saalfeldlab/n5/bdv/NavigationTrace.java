@@ -0,0 +1,220 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * The viewer transforms and timepoints of a session, recorded by a
+ * {@link NavigationRecorder} and replayed by the {@link HeadlessRenderer}, to
+ * benchmark the cache and the prefetcher with the moves of real users.
+ *
+ * A trace file is binary: a header with a magic number, the version and the
+ * size of the screen, then one record per step with the time since the start
+ * in milliseconds, the timepoint and the 12 row-packed values of the viewer
+ * transform, 108 bytes per step. A record that was cut off, e.g. because
+ * the viewer was killed while it was written, is ignored.
+ */
+public class NavigationTrace
+{
+	public static final int MAGIC = 0x4e355654; // "N5VT"
+
+	public static final int VERSION = 1;
+
+	/**
+	 * One step of a trace: what the user saw at one moment.
+	 */
+	public static class Step
+	{
+		private final long timeMillis;
+
+		private final int timepoint;
+
+		private final double[] viewerTransform;
+
+		Step( final long timeMillis, final int timepoint, final double[] viewerTransform )
+		{
+			this.timeMillis = timeMillis;
+			this.timepoint = timepoint;
+			this.viewerTransform = viewerTransform;
+		}
+
+		/**
+		 * @return the time since the start of the trace in milliseconds
+		 */
+		public long getTimeMillis()
+		{
+			return timeMillis;
+		}
+
+		public int getTimepoint()
+		{
+			return timepoint;
+		}
+
+		public AffineTransform3D getViewerTransform()
+		{
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.set( viewerTransform );
+			return transform;
+		}
+	}
+
+	private final int width;
+
+	private final int height;
+
+	private final List< Step > steps = new ArrayList<>();
+
+	/**
+	 * @param width the width of the screen
+	 * @param height the height of the screen
+	 */
+	public NavigationTrace( final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public List< Step > getSteps()
+	{
+		return Collections.unmodifiableList( steps );
+	}
+
+	/**
+	 * @return the time of the last step in milliseconds
+	 */
+	public long getDurationMillis()
+	{
+		return steps.isEmpty() ? 0 : steps.get( steps.size() - 1 ).getTimeMillis();
+	}
+
+	/**
+	 * Add a step at the end of the trace.
+	 *
+	 * @param timeMillis the time since the start of the trace in milliseconds
+	 * @param timepoint the timepoint
+	 * @param viewerTransform the viewer transform
+	 */
+	public void add( final long timeMillis, final int timepoint, final AffineTransform3D viewerTransform )
+	{
+		steps.add( new Step( timeMillis, timepoint, viewerTransform.getRowPackedCopy() ) );
+	}
+
+	public void write( final Path file ) throws IOException
+	{
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( file ) ) ) )
+		{
+			writeHeader( out, width, height );
+			for ( final Step step : steps )
+				writeStep( out, step.timeMillis, step.timepoint, step.viewerTransform );
+		}
+	}
+
+	/**
+	 * @param file a trace file
+	 * @return the trace, without a record at the end that was cut off
+	 * @throws IOException if the file cannot be read or is not a trace file
+	 */
+	public static NavigationTrace read( final Path file ) throws IOException
+	{
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( file ) ) ) )
+		{
+			final int magic;
+			final int version;
+			try
+			{
+				magic = in.readInt();
+				version = in.readInt();
+			}
+			catch ( final EOFException e )
+			{
+				throw new IOException( file + " is not a navigation trace" );
+			}
+			if ( magic != MAGIC )
+				throw new IOException( file + " is not a navigation trace" );
+			if ( version != VERSION )
+				throw new IOException( "Unsupported navigation trace version " + version + " in " + file );
+
+			final NavigationTrace trace = new NavigationTrace( in.readInt(), in.readInt() );
+			while ( true )
+			{
+				final Step step;
+				try
+				{
+					step = readStep( in );
+				}
+				catch ( final EOFException e )
+				{
+					break;
+				}
+				trace.steps.add( step );
+			}
+			return trace;
+		}
+	}
+
+	static void writeHeader( final DataOutput out, final int width, final int height ) throws IOException
+	{
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeInt( width );
+		out.writeInt( height );
+	}
+
+	static void writeStep( final DataOutput out, final long timeMillis, final int timepoint, final double[] viewerTransform ) throws IOException
+	{
+		out.writeLong( timeMillis );
+		out.writeInt( timepoint );
+		for ( int i = 0; i < 12; ++i )
+			out.writeDouble( viewerTransform[ i ] );
+	}
+
+	private static Step readStep( final DataInput in ) throws IOException
+	{
+		final long timeMillis = in.readLong();
+		final int timepoint = in.readInt();
+		final double[] viewerTransform = new double[ 12 ];
+		for ( int i = 0; i < 12; ++i )
+			viewerTransform[ i ] = in.readDouble();
+		return new Step( timeMillis, timepoint, viewerTransform );
+	}
+}
@@ -0,0 +1,511 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+
+/**
+ * Second cache tier that holds the data of cells evicted from a
+ * {@link SharedCellCache} in direct buffers outside the Java heap.
+ *
+ * A cell that is requested again is copied back onto the heap instead of
+ * being read and decompressed again. The store has its own budget in bytes
+ * and evicts in least recently used order. Only cells backed by primitive
+ * arrays are stored.
+ *
+ * The direct memory is allocated once, in slabs of up to
+ * {@link #MAX_SLAB_SIZE} bytes that are created when they are first needed
+ * and kept until the store is dropped. Cells are stored in power of two
+ * regions of the slabs, freed regions are merged with their free buddies
+ * and reused. This avoids a direct buffer per cell, whose memory is only
+ * returned by the garbage collector and that makes the JVM call
+ * {@link System#gc()} when the direct memory limit is reached.
+ */
+public class OffHeapCellStore
+{
+	/**
+	 * The largest slab of direct memory.
+	 */
+	public static final int MAX_SLAB_SIZE = 1 << 26;
+
+	/**
+	 * The smallest region of a slab.
+	 */
+	public static final int MIN_REGION_SIZE = 1 << 6;
+
+	private final long maxSizeInBytes;
+
+	private final Slabs slabs;
+
+	private final LinkedHashMap< Object, Entry > entries = new LinkedHashMap<>( 1024, 0.75f, true );
+
+	private long sizeInBytes;
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	private final LongAdder storeCount = new LongAdder();
+
+	private final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * @param maxSizeInBytes the budget of direct memory
+	 */
+	public OffHeapCellStore( final long maxSizeInBytes )
+	{
+		this.maxSizeInBytes = maxSizeInBytes;
+		this.slabs = new Slabs( maxSizeInBytes );
+	}
+
+	public long getMaxSizeInBytes()
+	{
+		return maxSizeInBytes;
+	}
+
+	public synchronized long getSizeInBytes()
+	{
+		return sizeInBytes;
+	}
+
+	/**
+	 * @return the size of the slabs that have been allocated
+	 */
+	public synchronized long getAllocatedBytes()
+	{
+		return slabs.getAllocatedBytes();
+	}
+
+	public synchronized int getNumCells()
+	{
+		return entries.size();
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.sum();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.sum();
+	}
+
+	public long getStoreCount()
+	{
+		return storeCount.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.sum();
+	}
+
+	public void resetStatistics()
+	{
+		hitCount.reset();
+		missCount.reset();
+		storeCount.reset();
+		evictionCount.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d cells, %d / %d MB off-heap, %d hits, %d misses",
+				getNumCells(), getSizeInBytes() >> 20, maxSizeInBytes >> 20, getHitCount(), getMissCount() );
+	}
+
+	/**
+	 * Copy the data of a cell into direct memory.
+	 *
+	 * @param key the key of the cell
+	 * @param cell the cell
+	 * @param numDimensions the number of dimensions of the cell
+	 */
+	void put( final Object key, final Object cell, final int numDimensions )
+	{
+		if ( !( cell instanceof Cell ) || numDimensions <= 0 )
+			return;
+
+		final Cell< ? > c = ( Cell< ? > ) cell;
+		if ( !( c.getData() instanceof ArrayDataAccess ) )
+			return;
+
+		final ArrayDataAccess< ? > data = ( ArrayDataAccess< ? > ) c.getData();
+		final Object array = data.getCurrentStorageArray();
+		final long size = SharedCellCache.arraySizeInBytes( array );
+		if ( size == 0 || size > maxSizeInBytes || size > Integer.MAX_VALUE )
+			return;
+
+		final Region region;
+		synchronized ( this )
+		{
+			region = allocate( ( int ) size );
+		}
+		if ( region == null )
+			return;
+
+		// the region is neither free nor stored while it is written
+		copy( array, region.buffer() );
+
+		final Entry entry = new Entry( numDimensions, c, data.createArray( 0 ), region, ( int ) size );
+		synchronized ( this )
+		{
+			final Entry previous = entries.put( key, entry );
+			sizeInBytes += size;
+			if ( previous != null )
+				free( previous );
+		}
+		storeCount.increment();
+	}
+
+	/**
+	 * Remove a cell and copy it back onto the heap.
+	 *
+	 * @param key the key of the cell
+	 * @return the cell, or null if it is not stored
+	 */
+	Object remove( final Object key )
+	{
+		final Entry entry;
+		synchronized ( this )
+		{
+			entry = entries.remove( key );
+		}
+
+		if ( entry == null )
+		{
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+
+		// the region is freed only after it was read
+		final Cell< ? > cell = entry.restore();
+		synchronized ( this )
+		{
+			free( entry );
+		}
+		return cell;
+	}
+
+	synchronized boolean contains( final Object key )
+	{
+		return entries.containsKey( key );
+	}
+
+	synchronized void removeIf( final Predicate< Object > condition )
+	{
+		final Iterator< Map.Entry< Object, Entry > > it = entries.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Object, Entry > e = it.next();
+			if ( condition.test( e.getKey() ) )
+			{
+				free( e.getValue() );
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		for ( final Entry entry : entries.values() )
+			free( entry );
+		entries.clear();
+	}
+
+	/**
+	 * Allocate a region, evicting the least recently used cells until one
+	 * is free. Must be called while holding the lock of the store.
+	 *
+	 * @return the region, or null if the regions that are being read or
+	 *         written leave no space
+	 */
+	private Region allocate( final int size )
+	{
+		Region region = slabs.allocate( size );
+		final Iterator< Entry > it = entries.values().iterator();
+		while ( region == null && it.hasNext() )
+		{
+			free( it.next() );
+			it.remove();
+			evictionCount.increment();
+			region = slabs.allocate( size );
+		}
+		return region;
+	}
+
+	private void free( final Entry entry )
+	{
+		sizeInBytes -= entry.size;
+		slabs.free( entry.region );
+	}
+
+	private static void copy( final Object array, final ByteBuffer buffer )
+	{
+		if ( array instanceof byte[] )
+			buffer.put( ( byte[] ) array );
+		else if ( array instanceof short[] )
+			buffer.asShortBuffer().put( ( short[] ) array );
+		else if ( array instanceof char[] )
+			buffer.asCharBuffer().put( ( char[] ) array );
+		else if ( array instanceof int[] )
+			buffer.asIntBuffer().put( ( int[] ) array );
+		else if ( array instanceof float[] )
+			buffer.asFloatBuffer().put( ( float[] ) array );
+		else if ( array instanceof long[] )
+			buffer.asLongBuffer().put( ( long[] ) array );
+		else if ( array instanceof double[] )
+			buffer.asDoubleBuffer().put( ( double[] ) array );
+		buffer.clear();
+	}
+
+	private static void copy( final ByteBuffer buffer, final Object array )
+	{
+		final ByteBuffer b = buffer.duplicate().order( buffer.order() );
+		if ( array instanceof byte[] )
+			b.get( ( byte[] ) array );
+		else if ( array instanceof short[] )
+			b.asShortBuffer().get( ( short[] ) array );
+		else if ( array instanceof char[] )
+			b.asCharBuffer().get( ( char[] ) array );
+		else if ( array instanceof int[] )
+			b.asIntBuffer().get( ( int[] ) array );
+		else if ( array instanceof float[] )
+			b.asFloatBuffer().get( ( float[] ) array );
+		else if ( array instanceof long[] )
+			b.asLongBuffer().get( ( long[] ) array );
+		else if ( array instanceof double[] )
+			b.asDoubleBuffer().get( ( double[] ) array );
+	}
+
+	private static class Entry
+	{
+		final int[] dimensions;
+
+		final long[] min;
+
+		/**
+		 * Empty access of the type of the stored cell, creates the access of
+		 * the restored cell.
+		 */
+		final ArrayDataAccess< ? > prototype;
+
+		final int numEntities;
+
+		final Region region;
+
+		final int size;
+
+		Entry( final int numDimensions, final Cell< ? > cell, final ArrayDataAccess< ? > prototype, final Region region, final int size )
+		{
+			dimensions = new int[ numDimensions ];
+			min = new long[ numDimensions ];
+			cell.dimensions( dimensions );
+			cell.min( min );
+			this.prototype = prototype;
+			this.numEntities = ( ( ArrayDataAccess< ? > ) cell.getData() ).getArrayLength();
+			this.region = region;
+			this.size = size;
+		}
+
+		Cell< ? > restore()
+		{
+			final ArrayDataAccess< ? > data = ( ArrayDataAccess< ? > ) prototype.createArray( numEntities );
+			copy( region.buffer(), data.getCurrentStorageArray() );
+			return new Cell<>( dimensions, min, data );
+		}
+	}
+
+	/**
+	 * A power of two region of a slab, aligned to its size.
+	 */
+	private static class Region
+	{
+		final ByteBuffer slab;
+
+		final int slabIndex;
+
+		final int offset;
+
+		final int order;
+
+		Region( final ByteBuffer slab, final int slabIndex, final int offset, final int order )
+		{
+			this.slab = slab;
+			this.slabIndex = slabIndex;
+			this.offset = offset;
+			this.order = order;
+		}
+
+		int size()
+		{
+			return MIN_REGION_SIZE << order;
+		}
+
+		/**
+		 * @return a buffer of the region in native byte order
+		 */
+		ByteBuffer buffer()
+		{
+			final ByteBuffer b = slab.duplicate();
+			b.limit( offset + size() ).position( offset );
+			return b.slice().order( ByteOrder.nativeOrder() );
+		}
+	}
+
+	/**
+	 * Buddy allocator over slabs of direct memory. Not thread safe.
+	 */
+	private static class Slabs
+	{
+		private static final int MAX_ORDER = Integer.numberOfTrailingZeros( MAX_SLAB_SIZE / MIN_REGION_SIZE );
+
+		private final long maxSizeInBytes;
+
+		private final List< ByteBuffer > slabs = new ArrayList<>();
+
+		private long allocatedBytes;
+
+		/**
+		 * Offsets of the free regions of each order, per slab.
+		 */
+		private final List< List< Set< Integer > > > free = new ArrayList<>();
+
+		Slabs( final long maxSizeInBytes )
+		{
+			this.maxSizeInBytes = maxSizeInBytes;
+		}
+
+		long getAllocatedBytes()
+		{
+			return allocatedBytes;
+		}
+
+		static int order( final int size )
+		{
+			if ( size <= MIN_REGION_SIZE )
+				return 0;
+			return 32 - Integer.numberOfLeadingZeros( ( size - 1 ) / MIN_REGION_SIZE );
+		}
+
+		/**
+		 * @return a free region of at least {@code size} bytes, or null if
+		 *         there is none and no more slabs can be allocated
+		 */
+		Region allocate( final int size )
+		{
+			final int order = order( size );
+			if ( order > MAX_ORDER )
+				return null;
+
+			Region region = allocateOrder( order );
+			if ( region == null && addSlab() )
+				region = allocateOrder( order );
+			return region;
+		}
+
+		private Region allocateOrder( final int order )
+		{
+			for ( int i = 0; i < slabs.size(); ++i )
+			{
+				final List< Set< Integer > > slabFree = free.get( i );
+				for ( int o = order; o <= MAX_ORDER; ++o )
+				{
+					final Set< Integer > offsets = slabFree.get( o );
+					if ( offsets.isEmpty() )
+						continue;
+
+					final Iterator< Integer > it = offsets.iterator();
+					final int offset = it.next();
+					it.remove();
+
+					// split, keeping the lower half and freeing the upper
+					for ( int split = o; split > order; --split )
+						slabFree.get( split - 1 ).add( offset + ( MIN_REGION_SIZE << ( split - 1 ) ) );
+					return new Region( slabs.get( i ), i, offset, order );
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Free a region and merge it with its free buddies.
+		 */
+		void free( final Region region )
+		{
+			final List< Set< Integer > > slabFree = free.get( region.slabIndex );
+			int offset = region.offset;
+			int order = region.order;
+			while ( order < MAX_ORDER )
+			{
+				final int buddy = offset ^ ( MIN_REGION_SIZE << order );
+				if ( !slabFree.get( order ).remove( buddy ) )
+					break;
+				offset = Math.min( offset, buddy );
+				++order;
+			}
+			slabFree.get( order ).add( offset );
+		}
+
+		/**
+		 * Allocate the next slab if the budget allows. A slab that is not a
+		 * power of two is split into aligned power of two regions.
+		 */
+		private boolean addSlab()
+		{
+			final long remaining = ( maxSizeInBytes - allocatedBytes ) / MIN_REGION_SIZE * MIN_REGION_SIZE;
+			if ( remaining <= 0 )
+				return false;
+
+			final int size = ( int ) Math.min( MAX_SLAB_SIZE, remaining );
+			final ByteBuffer slab = ByteBuffer.allocateDirect( size );
+			final List< Set< Integer > > slabFree = new ArrayList<>();
+			for ( int o = 0; o <= MAX_ORDER; ++o )
+				slabFree.add( new HashSet<>() );
+			int offset = 0;
+			for ( int o = MAX_ORDER; o >= 0; --o )
+			{
+				final int regionSize = MIN_REGION_SIZE << o;
+				if ( size - offset >= regionSize )
+				{
+					slabFree.get( o ).add( offset );
+					offset += regionSize;
+				}
+			}
+			slabs.add( slab );
+			free.add( slabFree );
+			allocatedBytes += size;
+			return true;
+		}
+	}
+}
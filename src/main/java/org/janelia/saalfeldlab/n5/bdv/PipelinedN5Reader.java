@@ -0,0 +1,474 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.BlockReader;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * {@link N5Reader} of a file system container that reads blocks in the two
+ * stages of a {@link BlockPipeline}: {@link #fetch} reads the raw bytes of a
+ * block into the buffer of the pipeline, and {@link #readBlock} decodes
+ * them. Blocks that have not been fetched are read and decoded in one go.
+ * Raw blocks are kept in a {@link CompressedBlockStore}, if there is one,
+ * and read from there when they are needed again.
+ *
+ * With a {@link BlockBufferPool}, the decompressed bytes and the array of
+ * the decoded block are taken from the pool, and callers that are done with
+ * a block can {@link #recycle} its array.
+ *
+ * With a {@link MappedBlockCache}, block files are memory mapped instead of
+ * read through streams. Blocks that are not kept in the compressed store are
+ * then decoded straight from the mapping: the fetch stage only pages the
+ * file in. Block files are only mapped for read-only {@link N5FSReader}
+ * containers by the {@link SharedCellCache}.
+ *
+ * Only containers read by {@link N5FSReader} or {@link N5FSWriter} are
+ * supported, other readers do not expose the raw bytes of a block. All
+ * other requests are forwarded to the container.
+ */
+public class PipelinedN5Reader implements N5Reader
+{
+	/**
+	 * Raw bytes of a block that does not exist.
+	 */
+	private static final byte[] MISSING = new byte[ 0 ];
+
+	private final N5FSReader n5;
+
+	private final BlockPipeline pipeline;
+
+	private final CompressedBlockStore compressedStore;
+
+	private final BlockBufferPool bufferPool;
+
+	private final MappedBlockCache mappedBlocks;
+
+	/**
+	 * @param n5 the container
+	 * @param pipeline the pipeline, or null to read and decode blocks in one
+	 *        go
+	 * @param compressedStore the store of raw blocks, or null
+	 * @param bufferPool the pool of decode buffers, or null
+	 * @param mappedBlocks the mapped block files, or null to read block files
+	 *        through streams
+	 */
+	public PipelinedN5Reader(
+			final N5FSReader n5,
+			final BlockPipeline pipeline,
+			final CompressedBlockStore compressedStore,
+			final BlockBufferPool bufferPool,
+			final MappedBlockCache mappedBlocks )
+	{
+		this.n5 = n5;
+		this.pipeline = pipeline;
+		this.compressedStore = compressedStore;
+		this.bufferPool = bufferPool;
+		this.mappedBlocks = mappedBlocks;
+	}
+
+	public PipelinedN5Reader( final N5FSReader n5, final BlockPipeline pipeline, final CompressedBlockStore compressedStore, final BlockBufferPool bufferPool )
+	{
+		this( n5, pipeline, compressedStore, bufferPool, null );
+	}
+
+	public PipelinedN5Reader( final N5FSReader n5, final BlockPipeline pipeline, final CompressedBlockStore compressedStore )
+	{
+		this( n5, pipeline, compressedStore, null );
+	}
+
+	public PipelinedN5Reader( final N5FSReader n5, final BlockPipeline pipeline )
+	{
+		this( n5, pipeline, null );
+	}
+
+	/**
+	 * @return whether blocks of a reader can be read in stages: it reads a
+	 *         file system container and does not change how blocks are read
+	 */
+	public static boolean supports( final N5Reader n5 )
+	{
+		return n5 != null && ( n5.getClass() == N5FSReader.class || n5.getClass() == N5FSWriter.class );
+	}
+
+	public N5FSReader getReader()
+	{
+		return n5;
+	}
+
+	public BlockPipeline getPipeline()
+	{
+		return pipeline;
+	}
+
+	public CompressedBlockStore getCompressedStore()
+	{
+		return compressedStore;
+	}
+
+	public BlockBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	public MappedBlockCache getMappedBlocks()
+	{
+		return mappedBlocks;
+	}
+
+	/**
+	 * Give the array of a block read by this reader back to the buffer pool.
+	 * The block must not be used anymore.
+	 *
+	 * @param block the block, ignored if null
+	 */
+	public void recycle( final DataBlock< ? > block )
+	{
+		if ( bufferPool != null && block != null )
+			bufferPool.release( block.getData() );
+	}
+
+	/**
+	 * Read the raw bytes of a block into the buffer of the pipeline, waiting
+	 * for a free slot.
+	 *
+	 * @param pathName the dataset
+	 * @param gridPosition the grid position of the block
+	 * @throws IOException if the block cannot be read
+	 * @throws InterruptedException if interrupted while waiting for a slot
+	 */
+	public void fetch( final String pathName, final long... gridPosition ) throws IOException, InterruptedException
+	{
+		if ( pipeline == null )
+			return;
+
+		final long start = System.nanoTime();
+		if ( decodesMapped() )
+		{
+			// page the file in, the decoder reads it from the mapping
+			final Path path = blockPath( pathName, gridPosition );
+			final ByteBuffer mapped = mappedBlocks.map( path );
+			if ( mapped instanceof MappedByteBuffer )
+				mappedBlocks.read( path, mapped, b -> ( ( MappedByteBuffer ) b ).load() );
+			pipeline.fetched( System.nanoTime() - start, mapped == null ? 0 : mapped.remaining() );
+			return;
+		}
+
+		final byte[] raw = readStoredOrRaw( pathName, gridPosition );
+		pipeline.fetched( System.nanoTime() - start, raw == null ? 0 : raw.length );
+		pipeline.put( key( pathName, gridPosition ), raw == null ? MISSING : raw );
+	}
+
+	/**
+	 * @return whether blocks are decoded from their mapped files, not from
+	 *         raw bytes on the heap
+	 */
+	private boolean decodesMapped()
+	{
+		return mappedBlocks != null && compressedStore == null;
+	}
+
+	/**
+	 * Remove the raw bytes of a block from the buffer if they have not been
+	 * decoded, e.g. because the block was found elsewhere.
+	 *
+	 * @param pathName the dataset
+	 * @param gridPosition the grid position of the block
+	 */
+	public void discard( final String pathName, final long... gridPosition )
+	{
+		if ( pipeline != null )
+			pipeline.take( key( pathName, gridPosition ) );
+	}
+
+	/**
+	 * Read the raw bytes of a block from the compressed store, or from the
+	 * container and keep them in the store.
+	 */
+	private byte[] readStoredOrRaw( final String pathName, final long[] gridPosition ) throws IOException
+	{
+		if ( compressedStore == null )
+			return readRaw( pathName, gridPosition );
+
+		// keyed by the container, shared by all readers of it
+		final BlockPipeline.BlockKey key = new BlockPipeline.BlockKey( n5, pathName, gridPosition );
+		byte[] raw = compressedStore.get( key );
+		if ( raw == null )
+		{
+			raw = readRaw( pathName, gridPosition );
+			if ( raw != null )
+				compressedStore.put( key, raw );
+		}
+		return raw;
+	}
+
+	/**
+	 * Read the raw bytes of a block.
+	 *
+	 * @return the bytes, or null if the block does not exist
+	 */
+	protected byte[] readRaw( final String pathName, final long... gridPosition ) throws IOException
+	{
+		final Path path = blockPath( pathName, gridPosition );
+		if ( mappedBlocks != null )
+		{
+			final ByteBuffer mapped = mappedBlocks.map( path );
+			if ( mapped == null )
+				return null;
+			final byte[] raw = new byte[ mapped.remaining() ];
+			mappedBlocks.read( path, mapped, b -> b.get( raw ) );
+			return raw;
+		}
+
+		try
+		{
+			return Files.readAllBytes( path );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return null;
+		}
+	}
+
+	private Path blockPath( final String pathName, final long[] gridPosition )
+	{
+		final String[] components = new String[ gridPosition.length + 1 ];
+		components[ 0 ] = pathName;
+		for ( int d = 0; d < gridPosition.length; ++d )
+			components[ d + 1 ] = Long.toString( gridPosition[ d ] );
+		return Paths.get( n5.getBasePath(), components );
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition ) throws IOException
+	{
+		final byte[] buffered = pipeline == null ? null : pipeline.take( key( pathName, gridPosition ) );
+		final ByteBuffer raw;
+		final Path mappedPath;
+		if ( buffered != null )
+		{
+			raw = buffered == MISSING ? null : ByteBuffer.wrap( buffered );
+			mappedPath = null;
+		}
+		else if ( decodesMapped() )
+		{
+			mappedPath = blockPath( pathName, gridPosition );
+			raw = mappedBlocks.map( mappedPath );
+		}
+		else
+		{
+			final byte[] bytes = readStoredOrRaw( pathName, gridPosition );
+			raw = bytes == null ? null : ByteBuffer.wrap( bytes );
+			mappedPath = null;
+		}
+		if ( raw == null )
+			return null;
+
+		final long start = System.nanoTime();
+		final DataBlock< ? > block = mappedPath == null
+				? decode( raw, datasetAttributes, gridPosition )
+				: mappedBlocks.read( mappedPath, raw, b -> decode( b, datasetAttributes, gridPosition ) );
+		if ( pipeline != null )
+			pipeline.decoded( System.nanoTime() - start );
+		return block;
+	}
+
+	/**
+	 * Decode the raw bytes of a block like
+	 * {@link DefaultBlockReader#readBlock}, but into arrays from the buffer
+	 * pool.
+	 */
+	private DataBlock< ? > decode( final ByteBuffer raw, final DatasetAttributes datasetAttributes, final long[] gridPosition ) throws IOException
+	{
+		final BlockReader reader = datasetAttributes.getCompression().getReader();
+		if ( bufferPool == null || !( reader instanceof DefaultBlockReader ) )
+			return DefaultBlockReader.readBlock( new ByteBufferInputStream( raw ), datasetAttributes, gridPosition );
+
+		final ByteBufferInputStream in = new ByteBufferInputStream( raw );
+		final DataInputStream header = new DataInputStream( in );
+		final short mode = header.readShort();
+		if ( mode != 0 && mode != 1 )
+			return DefaultBlockReader.readBlock( new ByteBufferInputStream( raw ), datasetAttributes, gridPosition );
+
+		final int[] blockSize = new int[ header.readShort() ];
+		int numElements = 1;
+		for ( int d = 0; d < blockSize.length; ++d )
+		{
+			blockSize[ d ] = header.readInt();
+			numElements *= blockSize[ d ];
+		}
+		if ( mode == 1 )
+			numElements = header.readInt();
+
+		final DataBlock< ? > block = createDataBlock( datasetAttributes, blockSize, gridPosition, numElements );
+		if ( block == null )
+			return DefaultBlockReader.readBlock( new ByteBufferInputStream( raw ), datasetAttributes, gridPosition );
+
+		final Object data = block.getData();
+		final int numBytes = numElements * BlockBufferPool.elementSize( data.getClass().getComponentType() );
+		final byte[] bytes = data instanceof byte[] ? ( byte[] ) data : bufferPool.bytes( numBytes );
+		try ( final InputStream inflater = ( ( DefaultBlockReader ) reader ).getInputStream( in ) )
+		{
+			new DataInputStream( inflater ).readFully( bytes, 0, numBytes );
+		}
+		if ( bytes != data )
+		{
+			block.readData( ByteBuffer.wrap( bytes, 0, numBytes ) );
+			bufferPool.release( bytes );
+		}
+		return block;
+	}
+
+	/**
+	 * @return a block with an array from the buffer pool, or null if the
+	 *         data type has no primitive array
+	 */
+	private DataBlock< ? > createDataBlock( final DatasetAttributes datasetAttributes, final int[] blockSize, final long[] gridPosition, final int numElements )
+	{
+		switch ( datasetAttributes.getDataType() )
+		{
+		case INT8:
+		case UINT8:
+			return new ByteArrayDataBlock( blockSize, gridPosition, ( byte[] ) bufferPool.array( byte.class, numElements ) );
+		case INT16:
+		case UINT16:
+			return new ShortArrayDataBlock( blockSize, gridPosition, ( short[] ) bufferPool.array( short.class, numElements ) );
+		case INT32:
+		case UINT32:
+			return new IntArrayDataBlock( blockSize, gridPosition, ( int[] ) bufferPool.array( int.class, numElements ) );
+		case INT64:
+		case UINT64:
+			return new LongArrayDataBlock( blockSize, gridPosition, ( long[] ) bufferPool.array( long.class, numElements ) );
+		case FLOAT32:
+			return new FloatArrayDataBlock( blockSize, gridPosition, ( float[] ) bufferPool.array( float.class, numElements ) );
+		case FLOAT64:
+			return new DoubleArrayDataBlock( blockSize, gridPosition, ( double[] ) bufferPool.array( double.class, numElements ) );
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Stream over the remaining bytes of a buffer, from its position at
+	 * construction. The buffer is not modified.
+	 */
+	private static final class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream( final ByteBuffer buffer )
+		{
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len )
+		{
+			if ( len == 0 )
+				return 0;
+			if ( !buffer.hasRemaining() )
+				return -1;
+			final int n = Math.min( len, buffer.remaining() );
+			buffer.get( b, off, n );
+			return n;
+		}
+
+		@Override
+		public long skip( final long n )
+		{
+			final int skipped = ( int ) Math.max( 0, Math.min( n, buffer.remaining() ) );
+			buffer.position( buffer.position() + skipped );
+			return skipped;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+
+	private BlockPipeline.BlockKey key( final String pathName, final long[] gridPosition )
+	{
+		return new BlockPipeline.BlockKey( this, pathName, gridPosition );
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		return n5.getDatasetAttributes( pathName );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Class< T > clazz ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, clazz );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Type type ) throws IOException
+	{
+		return n5.getAttribute( pathName, key, type );
+	}
+
+	@Override
+	public boolean exists( final String pathName )
+	{
+		return n5.exists( pathName );
+	}
+
+	@Override
+	public String[] list( final String pathName ) throws IOException
+	{
+		return n5.list( pathName );
+	}
+
+	@Override
+	public Map< String, Class< ? > > listAttributes( final String pathName ) throws IOException
+	{
+		return n5.listAttributes( pathName );
+	}
+}
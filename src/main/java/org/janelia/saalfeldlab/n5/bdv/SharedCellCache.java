@@ -0,0 +1,1044 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.bdv.CellCacheMetrics.Meters;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Interval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Cell cache shared by all images of a viewer, bounded by a memory budget.
+ *
+ * Every image gets its own view of the cache through {@link #forImage()},
+ * but all cells are accounted against one budget in bytes and evicted in
+ * least recently used order, see {@link CellStore}. Concurrent requests for a
+ * cell that is being loaded wait for that load instead of reading the block
+ * again.
+ *
+ * Optionally, evicted cells are moved to an {@link OffHeapCellStore} and
+ * moved back from there when they are requested again, and missing cells are
+ * loaded by the workers of a {@link FetchQueue} in the order of its
+ * priority. Requests that run in the background, see
+ * {@link #callInBackground}, hand missing cells to the fetch queue instead
+ * of waiting for them. Blocks of file system containers can be loaded in the two stages
+ * of a {@link BlockPipeline}: the workers only read the raw bytes, the
+ * decoders of the pipeline decompress them. Their decode buffers can be
+ * taken from a {@link BlockBufferPool}, see {@link BlockTiers}.
+ *
+ * The loads of every image opened by {@link #openVolatile} are recorded in
+ * {@link LoadMetrics} of the image and of its container.
+ */
+public class SharedCellCache
+{
+	/**
+	 * Estimated memory used per cell in addition to its data.
+	 */
+	static final long CELL_OVERHEAD_BYTES = 128;
+
+	private final OffHeapCellStore offHeapStore;
+
+	private final CellStore cells;
+
+	private final Map< Key, CellLoad > loading = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nextImageId = new AtomicInteger();
+
+	private final Map< Object, Integer > imageIds = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	/**
+	 * The ids of the images that have not been released. Cells of other
+	 * images, loaded while they were released, are not inserted.
+	 */
+	private final Set< Integer > registeredImages = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The images computed from an image, released with it, and the image
+	 * that each computed image is computed from. Guarded by derivedImages.
+	 */
+	private final Map< Integer, Set< Integer > > derivedImages = new HashMap<>();
+
+	private final Map< Integer, Integer > sourceImages = new HashMap<>();
+
+	private volatile FetchQueue fetchQueue;
+
+	private final ImageLanes lanes = new ImageLanes();
+
+	private final BlockTiers tiers = new BlockTiers();
+
+	private final CellCacheMetrics metrics = new CellCacheMetrics();
+
+	private final List< IntConsumer > releaseListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param maxSizeInBytes the memory budget of all cells
+	 * @param offHeapStore the store of evicted cells, or null
+	 */
+	public SharedCellCache( final long maxSizeInBytes, final OffHeapCellStore offHeapStore )
+	{
+		this.offHeapStore = offHeapStore;
+		cells = new CellStore( maxSizeInBytes );
+	}
+
+	/**
+	 * @param maxSizeInBytes the memory budget of all cells
+	 */
+	public SharedCellCache( final long maxSizeInBytes )
+	{
+		this( maxSizeInBytes, null );
+	}
+
+	/**
+	 * Create the cache of a new image.
+	 *
+	 * @param numDimensions the number of dimensions of the cells, needed to
+	 *            move them to the off-heap store
+	 * @return the image cache
+	 */
+	public < A > LoaderCache< Long, Cell< A > > forImage( final int numDimensions )
+	{
+		return new ImageCache<>( register( nextImageId.getAndIncrement() ), numDimensions, null, metrics.unattributed, true );
+	}
+
+	/**
+	 * Create the cache of a new image whose cells are not moved to the
+	 * off-heap store.
+	 *
+	 * @return the image cache
+	 */
+	public < A > LoaderCache< Long, Cell< A > > forImage()
+	{
+		return forImage( 0 );
+	}
+
+	/**
+	 * Load missing cells on the workers of a queue instead of the thread
+	 * that requests them.
+	 *
+	 * @param fetchQueue the queue, or null to load on the requesting thread
+	 */
+	public void setFetchQueue( final FetchQueue fetchQueue )
+	{
+		this.fetchQueue = fetchQueue;
+		lanes.setFetchQueue( fetchQueue );
+	}
+
+	public FetchQueue getFetchQueue()
+	{
+		return fetchQueue;
+	}
+
+	/**
+	 * Load the blocks of file system containers opened afterwards in two
+	 * stages.
+	 *
+	 * @param pipeline the pipeline, or null to read and decode blocks in one
+	 *        go
+	 */
+	public void setBlockPipeline( final BlockPipeline pipeline )
+	{
+		tiers.setBlockPipeline( pipeline );
+	}
+
+	public BlockPipeline getBlockPipeline()
+	{
+		return tiers.getBlockPipeline();
+	}
+
+	/**
+	 * Keep the compressed blocks of containers opened afterwards in memory,
+	 * so that evicted cells are decoded again instead of read again. Blocks
+	 * of file system containers are kept as they are read, those of other
+	 * containers are stored uncompressed in the background, see
+	 * {@link CompressedCachingN5Reader}.
+	 *
+	 * @param compressedStore the store, or null
+	 */
+	public void setCompressedBlockStore( final CompressedBlockStore compressedStore )
+	{
+		tiers.setCompressedBlockStore( compressedStore );
+	}
+
+	public CompressedBlockStore getCompressedBlockStore()
+	{
+		return tiers.getCompressedBlockStore();
+	}
+
+	/**
+	 * Decode the blocks of file system containers opened afterwards into
+	 * buffers from a pool, and give the buffers back once the blocks are
+	 * copied into their cells.
+	 *
+	 * @param bufferPool the pool, or null to allocate new buffers for every
+	 *        block
+	 */
+	public void setBufferPool( final BlockBufferPool bufferPool )
+	{
+		tiers.setBufferPool( bufferPool );
+	}
+
+	public BlockBufferPool getBufferPool()
+	{
+		return tiers.getBufferPool();
+	}
+
+	/**
+	 * Memory map the block files of file system containers opened
+	 * afterwards instead of reading them through streams. Their blocks are
+	 * decoded straight from the mapping and not kept in the compressed block
+	 * store, the page cache of the operating system keeps them instead.
+	 *
+	 * @param mappedBlocks the cache of mapped block files, or null to read
+	 *        block files through streams. Only the block files of containers
+	 *        read by an {@link N5FSReader} are mapped, not those of writers.
+	 */
+	public void setMappedBlockCache( final MappedBlockCache mappedBlocks )
+	{
+		tiers.setMappedBlockCache( mappedBlocks );
+	}
+
+	public MappedBlockCache getMappedBlockCache()
+	{
+		return tiers.getMappedBlockCache();
+	}
+
+	/**
+	 * The lane of the fetch queue in which the blocks of a reader are
+	 * loaded, e.g. to limit its concurrency or bandwidth.
+	 *
+	 * @param n5 the reader
+	 * @return the lane, or null if there is no fetch queue
+	 */
+	public FetchLane getLane( final N5Reader n5 )
+	{
+		final FetchQueue queue = fetchQueue;
+		return queue == null ? null : ImageLanes.getLane( queue, n5 );
+	}
+
+	/**
+	 * @param n5 the reader
+	 * @return the lane of the reader, or null if there is no fetch queue or
+	 *         the reader has no open images
+	 */
+	public FetchLane findLane( final N5Reader n5 )
+	{
+		final FetchQueue queue = fetchQueue;
+		return queue == null ? null : queue.findLane( n5 );
+	}
+
+	/**
+	 * @param img an image opened with {@link #openVolatile(N5Reader, String)}
+	 * @return the id of the image in this cache, or -1 if it was not opened
+	 *         by this cache
+	 */
+	public int getImageId( final Object img )
+	{
+		final Integer id = imageIds.get( img );
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Load a cell of an image on the fetch queue without waiting for it. The
+	 * load is dropped if the view moves on before it starts.
+	 *
+	 * @param img an image opened with {@link #openVolatile(N5Reader, String)}
+	 * @param index the index of the cell
+	 * @return the pending load, or null if there is no fetch queue or the
+	 *         image was not opened by this cache
+	 */
+	public Future< ? > prefetch( final CachedCellImg< ?, ? > img, final long index )
+	{
+		final FetchQueue queue = fetchQueue;
+		final int imageId = getImageId( img );
+		if ( queue == null || imageId < 0 )
+			return null;
+		final Meters meters = metrics.get( imageId );
+		final long enqueued = System.nanoTime();
+		return queue.prefetch( imageId, index, () -> {
+			meters.queued( System.nanoTime() - enqueued );
+			loadAhead( img, index );
+			return null;
+		} );
+	}
+
+	/**
+	 * Load a cell for a prefetch on a worker of the fetch queue. Nobody waits
+	 * for the prefetch, so a cell that is cached or being loaded already is
+	 * skipped rather than joined.
+	 */
+	private void loadAhead( final CachedCellImg< ?, ? > img, final long index ) throws ExecutionException
+	{
+		if ( !isPresentOrLoading( img, index ) )
+			img.getCache().get( index );
+	}
+
+	/**
+	 * @param img an image
+	 * @param index the index of a cell
+	 * @return whether the cell is cached or being loaded, so that requesting
+	 *         it would not start another load
+	 */
+	public boolean isPresentOrLoading( final CachedCellImg< ?, ? > img, final long index )
+	{
+		final int imageId = getImageId( img );
+		if ( imageId < 0 )
+			return img.getCache().getIfPresent( index ) != null;
+		final Key key = new Key( imageId, index, 0 );
+		return cells.contains( key ) || loading.containsKey( key );
+	}
+
+	/**
+	 * Load the cells of an image that intersect an interval on the fetch
+	 * queue without waiting for them, see {@link #prefetch(CachedCellImg, long)}.
+	 * Cells that are cached or being loaded already are skipped.
+	 *
+	 * @param img an image opened with {@link #openVolatile(N5Reader, String)}
+	 * @param interval the interval in image coordinates
+	 * @param maxCells the maximum number of cells to request
+	 * @return the number of cells requested
+	 */
+	public long prefetch( final CachedCellImg< ?, ? > img, final Interval interval, final long maxCells )
+	{
+		final CellGrid grid = img.getCellGrid();
+		final int n = grid.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( 0, interval.min( d ) ) / grid.cellDimension( d );
+			max[ d ] = Math.min( grid.imgDimension( d ) - 1, interval.max( d ) ) / grid.cellDimension( d );
+			if ( max[ d ] < min[ d ] )
+				return 0;
+		}
+
+		final long[] position = min.clone();
+		long numRequested = 0;
+		while ( numRequested < maxCells )
+		{
+			final long index = IntervalIndexer.positionToIndex( position, grid.getGridDimensions() );
+			if ( !isPresentOrLoading( img, index ) )
+			{
+				if ( prefetch( img, index ) == null )
+					break;
+				++numRequested;
+			}
+
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				if ( ++position[ d ] <= max[ d ] )
+					break;
+				position[ d ] = min[ d ];
+			}
+			if ( d == n )
+				break;
+		}
+		return numRequested;
+	}
+
+	/**
+	 * @return the store of evicted cells, or null
+	 */
+	public OffHeapCellStore getOffHeapStore()
+	{
+		return offHeapStore;
+	}
+
+	/**
+	 * Open a dataset as a volatile {@link CachedCellImg} whose cells are
+	 * held in this cache.
+	 *
+	 * @param n5 the reader
+	 * @param dataset the dataset path
+	 * @return the image
+	 * @throws IOException if the dataset attributes cannot be read
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public < T extends NativeType< T > > CachedCellImg< T, ? > openVolatile( final N5Reader n5, final String dataset ) throws IOException
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+		final CellGrid grid = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() );
+		final T type = N5Utils.type( attributes.getDataType() );
+		final Set< AccessFlags > flags = AccessFlags.setOf( AccessFlags.VOLATILE );
+		final PipelinedN5Reader pipelined = tiers.pipelined( n5 );
+		final CellLoader< T > loader = tiers.loader( n5, pipelined, dataset, attributes );
+		final BlockTiers.Stages stages = BlockTiers.stages( pipelined, dataset, grid );
+		final int imageId = register( nextImageId.getAndIncrement() );
+		final Meters meters = metrics.addImage( imageId, ImageLanes.laneName( n5 ) );
+		final ImageCache imageCache = new ImageCache<>( imageId, grid.numDimensions(), stages, meters, true );
+		final Cache cache = imageCache.withLoader( LoadedCellCacheLoader.get( grid, loader, type, flags ) );
+		final CachedCellImg< T, ? > img = new CachedCellImg( grid, type, cache, ArrayDataAccessFactory.get( type, flags ) );
+		imageIds.put( img, imageId );
+		lanes.add( imageId, n5 );
+		return img;
+	}
+
+	/**
+	 * Create a volatile {@link CachedCellImg} whose cells are computed, e.g.
+	 * from the cells of another image, and held in this cache. The cells are
+	 * computed by the threads that need them rather than by the fetch queue,
+	 * whose workers load the cells that they are computed from.
+	 *
+	 * @param grid the cell grid
+	 * @param type the pixel type
+	 * @param loader computes the cells
+	 * @param source the image that the cells are computed from, the new
+	 *        image is released with it, or null
+	 * @return the image
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public < T extends NativeType< T > > CachedCellImg< T, ? > createVolatile(
+			final CellGrid grid,
+			final T type,
+			final CellLoader< T > loader,
+			final CachedCellImg< ?, ? > source )
+	{
+		final Set< AccessFlags > flags = AccessFlags.setOf( AccessFlags.VOLATILE );
+		final int imageId = register( nextImageId.getAndIncrement() );
+		final Meters meters = metrics.addComputedImage( imageId );
+		final ImageCache imageCache = new ImageCache<>( imageId, grid.numDimensions(), null, meters, false );
+		final Cache cache = imageCache.withLoader( LoadedCellCacheLoader.get( grid, loader, type, flags ) );
+		final CachedCellImg< T, ? > img = new CachedCellImg( grid, type, cache, ArrayDataAccessFactory.get( type, flags ) );
+		imageIds.put( img, imageId );
+		final Integer sourceId = source == null ? null : imageIds.get( source );
+		if ( sourceId != null )
+		{
+			synchronized ( derivedImages )
+			{
+				derivedImages.computeIfAbsent( sourceId, k -> new HashSet<>() ).add( imageId );
+				sourceImages.put( imageId, sourceId );
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * Drop the cells of an image opened or created by this cache and forget
+	 * the image, once it is not used anymore. The images computed from it
+	 * are released as well.
+	 *
+	 * @param img an image opened with {@link #openVolatile(N5Reader, String)}
+	 *        or created with
+	 *        {@link #createVolatile(CellGrid, NativeType, CellLoader, CachedCellImg)}
+	 */
+	public void release( final CachedCellImg< ?, ? > img )
+	{
+		final Integer imageId = imageIds.remove( img );
+		if ( imageId != null )
+			release( imageId.intValue() );
+	}
+
+	/**
+	 * Add a listener that is notified with the id of every image that is
+	 * released, including the images computed from a released image.
+	 *
+	 * @param listener the listener
+	 */
+	public void addReleaseListener( final IntConsumer listener )
+	{
+		releaseListeners.add( listener );
+	}
+
+	private int register( final int imageId )
+	{
+		registeredImages.add( imageId );
+		return imageId;
+	}
+
+	private void release( final int imageId )
+	{
+		// loads in flight complete without inserting their cells
+		registeredImages.remove( imageId );
+		invalidateIf( k -> k.imageId == imageId );
+		metrics.removeImage( imageId );
+		lanes.remove( imageId );
+
+		final Set< Integer > derived;
+		synchronized ( derivedImages )
+		{
+			derived = derivedImages.remove( imageId );
+			final Integer sourceId = sourceImages.remove( imageId );
+			final Set< Integer > siblings = sourceId == null ? null : derivedImages.get( sourceId );
+			if ( siblings != null )
+				siblings.remove( imageId );
+		}
+		if ( derived != null )
+			for ( final int derivedId : derived )
+				release( derivedId );
+
+		for ( final IntConsumer listener : releaseListeners )
+			listener.accept( imageId );
+	}
+
+	public long getMaxSizeInBytes()
+	{
+		return cells.getMaxSizeInBytes();
+	}
+
+	public long getSizeInBytes()
+	{
+		return cells.getSizeInBytes();
+	}
+
+	public int getNumCells()
+	{
+		return cells.size();
+	}
+
+	public long getHitCount()
+	{
+		return metrics.hitCount.sum();
+	}
+
+	public long getMissCount()
+	{
+		return metrics.missCount.sum();
+	}
+
+	/**
+	 * @return the number of requests that waited for a load started by
+	 *         another request, neither hits nor misses
+	 */
+	public long getJoinedCount()
+	{
+		return metrics.joinedCount.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return metrics.evictionCount.sum();
+	}
+
+	/**
+	 * @return the memory used by the cells that were loaded, not restored
+	 *         from the off-heap store
+	 */
+	public long getBytesLoaded()
+	{
+		return metrics.bytesLoaded.sum();
+	}
+
+	/**
+	 * @param img an image opened with {@link #openVolatile(N5Reader, String)}
+	 * @return the metrics of the loads of the image, or null if it was not
+	 *         opened by this cache or has been released
+	 */
+	public LoadMetrics getMetrics( final Object img )
+	{
+		final Meters meters = metrics.find( getImageId( img ) );
+		return meters == null ? null : meters.image;
+	}
+
+	/**
+	 * @param n5 the reader of a container
+	 * @return the metrics of the loads of all images of the container, or
+	 *         null if no image of the container was opened by this cache
+	 */
+	public LoadMetrics getContainerMetrics( final N5Reader n5 )
+	{
+		return metrics.getContainerMetrics( ImageLanes.laneName( n5 ) );
+	}
+
+	/**
+	 * @return the metrics of every container with images opened by this
+	 *         cache, by the name of its lane in the fetch queue
+	 */
+	public Map< String, LoadMetrics > getContainerMetrics()
+	{
+		return metrics.getContainerMetrics();
+	}
+
+	/**
+	 * @return the fraction of requests that were served from the cache
+	 */
+	public double getHitRate()
+	{
+		final long hits = getHitCount();
+		final long requests = hits + getMissCount() + getJoinedCount();
+		return requests == 0 ? 0 : ( double ) hits / requests;
+	}
+
+	public void resetStatistics()
+	{
+		metrics.reset();
+	}
+
+	/**
+	 * Remove all cells of all images.
+	 */
+	public void invalidateAll()
+	{
+		cells.clear();
+		if ( offHeapStore != null )
+			offHeapStore.clear();
+		tiers.clear();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%d cells, %d / %d MB, hit rate %.1f%%",
+				getNumCells(), getSizeInBytes() >> 20, getMaxSizeInBytes() >> 20, 100 * getHitRate() );
+	}
+
+	/**
+	 * Run a request of a volatile source without waiting for the storage,
+	 * e.g. on a fetcher thread of a {@link FetchHandOffQueue}. If the request
+	 * needs a cell that is loaded by the fetch queue, it ends early, and
+	 * {@code resume} is run to repeat it once the cell is in memory. Cells
+	 * that are computed from other cells, e.g. of a coarser level, are still
+	 * computed on the current thread.
+	 *
+	 * @param request the request
+	 * @param resumed whether the request is repeated, so that its cell is not
+	 *            counted again
+	 * @param resume repeats the request, run by the thread that completes
+	 *            the load of the cell
+	 */
+	public static void callInBackground( final Callable< ? > request, final boolean resumed, final Runnable resume ) throws Exception
+	{
+		BackgroundRequest.call( request, resumed, resume );
+	}
+
+	private Object get( final Key key, final CacheLoader< Long, ? > loader, final BlockTiers.Stages stages, final Meters meters, final boolean fetch ) throws ExecutionException
+	{
+		final BackgroundRequest bg = BackgroundRequest.current();
+		final boolean handOff = bg != null && bg.handOff;
+		final Object cell = cells.get( key );
+		if ( cell != null )
+		{
+			if ( !handOff || !bg.resumed )
+				metrics.hit( meters );
+			return cell;
+		}
+
+		final long start = System.nanoTime();
+		CellLoad task = loading.get( key );
+		boolean load = false;
+		if ( task == null )
+		{
+			final CellLoad created = new CellLoad( () -> load( key, loader, stages, meters, fetch ) );
+			task = loading.putIfAbsent( key, created );
+			if ( task == null )
+			{
+				// the load of the cell may have completed since it was looked
+				// up, it inserts the cell before it is removed
+				final Object inserted = cells.get( key );
+				if ( inserted != null )
+				{
+					created.succeed( inserted );
+					loading.remove( key, created );
+					if ( !handOff || !bg.resumed )
+						metrics.hit( meters );
+					return inserted;
+				}
+				task = created;
+				load = true;
+			}
+		}
+
+		if ( load )
+			metrics.miss( meters );
+		else
+		{
+			// another thread is reading this cell already, the request is not
+			// served from memory
+			metrics.joined( meters );
+		}
+
+		final boolean fetchThread = isFetchThread();
+		if ( load )
+		{
+			final CellLoad loadTask = task;
+			final FetchQueue queue = fetchQueue;
+			if ( queue == null || !fetch )
+			{
+				// the cell may be computed from other cells, which this
+				// thread has to wait for
+				if ( handOff )
+					bg.handOff = false;
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					if ( handOff )
+						bg.handOff = true;
+				}
+			}
+			else
+			{
+				// loads of the workers, e.g. prefetches, have waited already
+				final boolean queued = !FetchQueue.isWorkerThread();
+				final Callable< Void > fetchLoad = () -> {
+					if ( queued )
+						meters.queued( System.nanoTime() - start );
+					if ( stages == null )
+						loadTask.run();
+					else
+					{
+						// the worker reads the raw block and hands the task
+						// over to a decoder
+						if ( offHeapStore == null || !offHeapStore.contains( key ) )
+						{
+							final long fetchStart = System.nanoTime();
+							stages.fetch( key.index );
+							meters.fetched( System.nanoTime() - fetchStart );
+						}
+						stages.decode( key.index, loadTask );
+					}
+					return null;
+				};
+
+				if ( handOff )
+				{
+					// whoever completes the load inserts the cell and repeats
+					// the request, this thread moves on
+					task.whenDone( () -> {
+						if ( complete( key, loadTask ) != null )
+							bg.resume.run();
+					} );
+					queue.submit( key.imageId, key.index, new FutureTask< Void >( fetchLoad )
+					{
+						@Override
+						protected void done()
+						{
+							// failed fetches and shutdown are passed on to
+							// the load
+							try
+							{
+								get();
+							}
+							catch ( final ExecutionException e )
+							{
+								loadTask.fail( e.getCause() );
+							}
+							catch ( final InterruptedException | CancellationException e )
+							{
+								loadTask.cancel( false );
+							}
+						}
+					} );
+					throw bg.handedOff();
+				}
+
+				try
+				{
+					queue.fetch( key.imageId, key.index, fetchLoad );
+				}
+				catch ( final ExecutionException e )
+				{
+					// interrupted while waiting, the task may never run;
+					// failed fetches are passed on to all waiting threads
+					if ( e.getCause() instanceof InterruptedException )
+						task.cancel( false );
+					else
+						task.fail( e.getCause() );
+				}
+			}
+
+			complete( key, task );
+		}
+		else if ( handOff && !task.isDone() )
+		{
+			// repeat the request once the other thread has loaded the cell
+			final CellLoad pending = task;
+			task.whenDone( () -> {
+				if ( pending.getNow() != null )
+					bg.resume.run();
+			} );
+			throw bg.handedOff();
+		}
+		else if ( FetchQueue.isWorkerThread() )
+		{
+			// a worker that needs the cell, e.g. to compute a coarser level,
+			// loads it instead of waiting for a request that may be queued
+			// behind it; does nothing if the load has started already
+			task.run();
+		}
+
+		try
+		{
+			return task.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new ExecutionException( e );
+		}
+		catch ( final CancellationException e )
+		{
+			throw new ExecutionException( e );
+		}
+		finally
+		{
+			if ( !fetchThread )
+				meters.blocked( System.nanoTime() - start );
+		}
+	}
+
+	/**
+	 * Restore a cell from the off-heap store, or load it.
+	 */
+	private Object load( final Key key, final CacheLoader< Long, ? > loader, final BlockTiers.Stages stages, final Meters meters, final boolean fetch ) throws Exception
+	{
+		final Object restored = offHeapStore == null ? null : offHeapStore.remove( key );
+		if ( restored != null )
+			return restored;
+		final long start = System.nanoTime();
+		final Object cell = loader.get( key.index );
+		if ( stages == null )
+			meters.fetched( System.nanoTime() - start );
+		else
+			meters.decoded( System.nanoTime() - start );
+		final long size = sizeInBytes( cell );
+		metrics.loaded( meters, size );
+		final FetchQueue queue = fetchQueue;
+		if ( queue != null && fetch )
+			queue.addBytes( key.imageId, size );
+		return cell;
+	}
+
+	/**
+	 * @return whether the current thread loads blocks in the background: a
+	 *         worker of the fetch queue or a thread that runs a request
+	 *         through {@link #callInBackground}, e.g. a fetcher thread of
+	 *         the {@link FetchHandOffQueue} of volatile sources
+	 */
+	private static boolean isFetchThread()
+	{
+		return FetchQueue.isWorkerThread() || BackgroundRequest.current() != null;
+	}
+
+	/**
+	 * Insert the cell of a load, waiting for the decoder if necessary, and
+	 * move the cells that it evicts off-heap.
+	 *
+	 * @return the cell, or null if the load failed
+	 */
+	private Object complete( final Key key, final CellLoad task )
+	{
+		final Object cell = task.getNow();
+		final boolean inserted = cell != null && cells.put( key, cell, sizeInBytes( cell ), () -> registeredImages.contains( key.imageId ) );
+		loading.remove( key, task );
+		if ( inserted )
+		{
+			for ( final Map.Entry< Key, Object > e : cells.evict( key ) )
+			{
+				metrics.evicted( e.getKey().imageId );
+				if ( offHeapStore != null )
+					offHeapStore.put( e.getKey(), e.getValue(), e.getKey().numDimensions );
+			}
+		}
+		return cell;
+	}
+
+	private void invalidate( final Key key )
+	{
+		cells.remove( key );
+		if ( offHeapStore != null )
+			offHeapStore.removeIf( key::equals );
+	}
+
+	private void invalidateIf( final Predicate< Key > condition )
+	{
+		cells.removeIf( condition );
+		if ( offHeapStore != null )
+			offHeapStore.removeIf( k -> condition.test( ( Key ) k ) );
+	}
+
+	/**
+	 * Memory used by a cell, estimated from the size of its storage array.
+	 */
+	static long sizeInBytes( final Object value )
+	{
+		if ( value instanceof Cell )
+		{
+			final Cell< ? > cell = ( Cell< ? > ) value;
+			final Object data = cell.getData();
+			if ( data instanceof ArrayDataAccess )
+			{
+				final Object array = ( ( ArrayDataAccess< ? > ) data ).getCurrentStorageArray();
+				return CELL_OVERHEAD_BYTES + arraySizeInBytes( array );
+			}
+			return CELL_OVERHEAD_BYTES + 8 * cell.size();
+		}
+		return CELL_OVERHEAD_BYTES;
+	}
+
+	static long arraySizeInBytes( final Object array )
+	{
+		if ( array instanceof byte[] )
+			return ( ( byte[] ) array ).length;
+		if ( array instanceof short[] )
+			return 2L * ( ( short[] ) array ).length;
+		if ( array instanceof char[] )
+			return 2L * ( ( char[] ) array ).length;
+		if ( array instanceof int[] )
+			return 4L * ( ( int[] ) array ).length;
+		if ( array instanceof float[] )
+			return 4L * ( ( float[] ) array ).length;
+		if ( array instanceof long[] )
+			return 8L * ( ( long[] ) array ).length;
+		if ( array instanceof double[] )
+			return 8L * ( ( double[] ) array ).length;
+		return 0;
+	}
+
+	static final class Key
+	{
+		final int imageId;
+
+		final long index;
+
+		/**
+		 * Number of dimensions of the cell, not part of the identity.
+		 */
+		final int numDimensions;
+
+		Key( final int imageId, final long index, final int numDimensions )
+		{
+			this.imageId = imageId;
+			this.index = index;
+			this.numDimensions = numDimensions;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof Key ) )
+				return false;
+			final Key key = ( Key ) other;
+			return imageId == key.imageId && index == key.index;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * imageId + Long.hashCode( index );
+		}
+	}
+
+	/**
+	 * The view of the shared cache for one image.
+	 */
+	private class ImageCache< A > implements LoaderCache< Long, Cell< A > >
+	{
+		private final int imageId;
+
+		private final int numDimensions;
+
+		private final BlockTiers.Stages stages;
+
+		private final Meters meters;
+
+		/**
+		 * Whether cells are loaded by the fetch queue.
+		 */
+		private final boolean fetch;
+
+		ImageCache( final int imageId, final int numDimensions, final BlockTiers.Stages stages, final Meters meters, final boolean fetch )
+		{
+			this.imageId = imageId;
+			this.numDimensions = numDimensions;
+			this.stages = stages;
+			this.meters = meters;
+			this.fetch = fetch;
+		}
+
+		private Key key( final long index )
+		{
+			return new Key( imageId, index, numDimensions );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		@Override
+		public Cell< A > getIfPresent( final Long key )
+		{
+			return ( Cell< A > ) cells.get( key( key ) );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		@Override
+		public Cell< A > get( final Long key, final CacheLoader< ? super Long, ? extends Cell< A > > loader ) throws ExecutionException
+		{
+			final CacheLoader< Long, ? > l = index -> loader.get( index );
+			return ( Cell< A > ) SharedCellCache.this.get( key( key ), l, stages, meters, fetch );
+		}
+
+		public void invalidate( final Long key )
+		{
+			SharedCellCache.this.invalidate( key( key ) );
+		}
+
+		public void invalidateIf( final long parallelismThreshold, final Predicate< Long > condition )
+		{
+			SharedCellCache.this.invalidateIf( k -> k.imageId == imageId && condition.test( k.index ) );
+		}
+
+		public void invalidateIf( final Predicate< Long > condition )
+		{
+			invalidateIf( 0, condition );
+		}
+
+		public void invalidateAll( final long parallelismThreshold )
+		{
+			invalidateIf( parallelismThreshold, k -> true );
+		}
+
+		public void invalidateAll()
+		{
+			invalidateAll( 0 );
+		}
+	}
+}
@@ -0,0 +1,395 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * {@link N5Reader} that imitates a remote container with a local one, to
+ * measure prefetching, caching and concurrency under the conditions of
+ * object storage without a network.
+ *
+ * Every request waits for the latency, plus a uniformly distributed jitter.
+ * Block reads then transfer the bytes of the block over a link of limited
+ * bandwidth that all requests of this reader share, and fail with the
+ * failure rate, throwing an {@link IOException} as a dropped connection
+ * would. Attribute and listing requests do not fail, so that containers can
+ * still be opened. The transferred bytes are the size of the block file if
+ * the wrapped reader is an {@link N5FSReader}, and the size of the
+ * uncompressed block otherwise.
+ *
+ * Use it with {@link N5ViewerOptions#simulatedRemote(Conditions)}, or set
+ * the conditions as system properties, see
+ * {@link Conditions#fromSystemProperties()}.
+ */
+public class SimulatedRemoteN5Reader implements N5Reader
+{
+	public static final String LATENCY_KEY = "n5viewer.simulated.latencyMillis";
+
+	public static final String JITTER_KEY = "n5viewer.simulated.jitterMillis";
+
+	public static final String BANDWIDTH_KEY = "n5viewer.simulated.bandwidthMBps";
+
+	public static final String FAILURE_RATE_KEY = "n5viewer.simulated.failureRate";
+
+	public static final String SEED_KEY = "n5viewer.simulated.seed";
+
+	/**
+	 * The latency, jitter, bandwidth and failure rate of a simulated remote
+	 * container.
+	 */
+	public static class Conditions
+	{
+		private long latencyNanos = 0;
+
+		private long jitterNanos = 0;
+
+		private long bandwidthInBytesPerSecond = 0;
+
+		private double failureRate = 0;
+
+		private long seed = 0;
+
+		public static Conditions conditions()
+		{
+			return new Conditions();
+		}
+
+		/**
+		 * Read the conditions from the system properties {@value #LATENCY_KEY},
+		 * {@value #JITTER_KEY}, {@value #BANDWIDTH_KEY},
+		 * {@value #FAILURE_RATE_KEY} and {@value #SEED_KEY}, e.g.
+		 * {@code -Dn5viewer.simulated.latencyMillis=50}.
+		 *
+		 * @return the conditions, or null if none of the properties is set
+		 */
+		public static Conditions fromSystemProperties()
+		{
+			final String latency = System.getProperty( LATENCY_KEY );
+			final String jitter = System.getProperty( JITTER_KEY );
+			final String bandwidth = System.getProperty( BANDWIDTH_KEY );
+			final String failureRate = System.getProperty( FAILURE_RATE_KEY );
+			final String seed = System.getProperty( SEED_KEY );
+			if ( latency == null && jitter == null && bandwidth == null && failureRate == null )
+				return null;
+
+			final Conditions conditions = conditions();
+			if ( latency != null )
+				conditions.latency( Long.parseLong( latency ), TimeUnit.MILLISECONDS );
+			if ( jitter != null )
+				conditions.jitter( Long.parseLong( jitter ), TimeUnit.MILLISECONDS );
+			if ( bandwidth != null )
+				conditions.bandwidthInMBPerSecond( Double.parseDouble( bandwidth ) );
+			if ( failureRate != null )
+				conditions.failureRate( Double.parseDouble( failureRate ) );
+			if ( seed != null )
+				conditions.seed( Long.parseLong( seed ) );
+			return conditions;
+		}
+
+		/**
+		 * Delay every request by {@code latency}. 0 by default.
+		 */
+		public Conditions latency( final long latency, final TimeUnit unit )
+		{
+			latencyNanos = unit.toNanos( latency );
+			return this;
+		}
+
+		public long getLatencyNanos()
+		{
+			return latencyNanos;
+		}
+
+		/**
+		 * Delay every request by up to {@code jitter} more, uniformly
+		 * distributed. 0 by default.
+		 */
+		public Conditions jitter( final long jitter, final TimeUnit unit )
+		{
+			jitterNanos = unit.toNanos( jitter );
+			return this;
+		}
+
+		public long getJitterNanos()
+		{
+			return jitterNanos;
+		}
+
+		/**
+		 * Limit the bandwidth of the link that all block reads share. 0, the
+		 * default, does not limit it.
+		 */
+		public Conditions bandwidthInBytesPerSecond( final long bytesPerSecond )
+		{
+			bandwidthInBytesPerSecond = bytesPerSecond;
+			return this;
+		}
+
+		public Conditions bandwidthInMBPerSecond( final double megabytesPerSecond )
+		{
+			return bandwidthInBytesPerSecond( ( long ) ( megabytesPerSecond * ( 1 << 20 ) ) );
+		}
+
+		public long getBandwidthInBytesPerSecond()
+		{
+			return bandwidthInBytesPerSecond;
+		}
+
+		/**
+		 * Let a fraction of the block reads fail. 0 by default.
+		 */
+		public Conditions failureRate( final double rate )
+		{
+			failureRate = rate;
+			return this;
+		}
+
+		public double getFailureRate()
+		{
+			return failureRate;
+		}
+
+		/**
+		 * Seed the jitter and the failures. Runs with one fetch thread are
+		 * repeatable.
+		 */
+		public Conditions seed( final long seed )
+		{
+			this.seed = seed;
+			return this;
+		}
+
+		public long getSeed()
+		{
+			return seed;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "latency %d ms, jitter %d ms, bandwidth %s, failure rate %.3f",
+					TimeUnit.NANOSECONDS.toMillis( latencyNanos ),
+					TimeUnit.NANOSECONDS.toMillis( jitterNanos ),
+					bandwidthInBytesPerSecond > 0 ? String.format( "%.1f MB/s", bandwidthInBytesPerSecond / ( double ) ( 1 << 20 ) ) : "unlimited",
+					failureRate );
+		}
+	}
+
+	private final N5Reader n5;
+
+	private final Conditions conditions;
+
+	private final Random random;
+
+	/**
+	 * When the link is free for the next transfer, in {@link System#nanoTime()}.
+	 */
+	private long linkFreeAt = 0;
+
+	private final LongAdder requestCount = new LongAdder();
+
+	private final LongAdder blockCount = new LongAdder();
+
+	private final LongAdder failureCount = new LongAdder();
+
+	private final LongAdder bytesRead = new LongAdder();
+
+	/**
+	 * @param n5 the local container
+	 * @param conditions the conditions of the remote container
+	 */
+	public SimulatedRemoteN5Reader( final N5Reader n5, final Conditions conditions )
+	{
+		this.n5 = n5;
+		this.conditions = conditions;
+		this.random = new Random( conditions.getSeed() );
+	}
+
+	public N5Reader getReader()
+	{
+		return n5;
+	}
+
+	public Conditions getConditions()
+	{
+		return conditions;
+	}
+
+	public long getRequestCount()
+	{
+		return requestCount.sum();
+	}
+
+	public long getBlockCount()
+	{
+		return blockCount.sum();
+	}
+
+	public long getFailureCount()
+	{
+		return failureCount.sum();
+	}
+
+	public long getBytesRead()
+	{
+		return bytesRead.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "simulated remote (%s): %d requests, %d blocks, %d failed, %.1f MB read",
+				conditions,
+				getRequestCount(),
+				getBlockCount(),
+				getFailureCount(),
+				getBytesRead() / ( double ) ( 1 << 20 ) );
+	}
+
+	private void request()
+	{
+		requestCount.increment();
+		final long jitter = conditions.getJitterNanos();
+		final long delay = conditions.getLatencyNanos() + ( jitter > 0 ? ( long ) ( random.nextDouble() * jitter ) : 0 );
+		if ( delay > 0 )
+			waitUntil( System.nanoTime() + delay );
+	}
+
+	/**
+	 * Occupy the link for the time that {@code bytes} take to transfer,
+	 * after the transfers that are ahead, and wait until they arrive.
+	 */
+	private void transfer( final long bytes )
+	{
+		bytesRead.add( bytes );
+		final long bandwidth = conditions.getBandwidthInBytesPerSecond();
+		if ( bandwidth <= 0 || bytes <= 0 )
+			return;
+
+		final long duration = ( long ) ( bytes * 1e9 / bandwidth );
+		final long arrival;
+		synchronized ( this )
+		{
+			arrival = Math.max( System.nanoTime(), linkFreeAt ) + duration;
+			linkFreeAt = arrival;
+		}
+		waitUntil( arrival );
+	}
+
+	private static void waitUntil( final long deadline )
+	{
+		for ( long remaining = deadline - System.nanoTime(); remaining > 0; remaining = deadline - System.nanoTime() )
+			LockSupport.parkNanos( remaining );
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition ) throws IOException
+	{
+		request();
+		blockCount.increment();
+		if ( conditions.getFailureRate() > 0 && random.nextDouble() < conditions.getFailureRate() )
+		{
+			failureCount.increment();
+			throw new IOException( "Simulated failure reading block " + Arrays.toString( gridPosition ) + " of " + pathName );
+		}
+
+		final DataBlock< ? > block = n5.readBlock( pathName, datasetAttributes, gridPosition );
+		if ( block != null )
+			transfer( transferSize( pathName, block, gridPosition ) );
+		return block;
+	}
+
+	private long transferSize( final String pathName, final DataBlock< ? > block, final long... gridPosition ) throws IOException
+	{
+		if ( n5 instanceof N5FSReader )
+		{
+			final String[] components = new String[ gridPosition.length + 1 ];
+			components[ 0 ] = pathName;
+			for ( int d = 0; d < gridPosition.length; ++d )
+				components[ d + 1 ] = Long.toString( gridPosition[ d ] );
+			final Path path = Paths.get( ( ( N5FSReader ) n5 ).getBasePath(), components );
+			try
+			{
+				return Files.size( path );
+			}
+			catch ( final NoSuchFileException e )
+			{
+				// removed since it was read
+			}
+		}
+		return block.toByteBuffer().remaining();
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Class< T > clazz ) throws IOException
+	{
+		request();
+		return n5.getAttribute( pathName, key, clazz );
+	}
+
+	@Override
+	public < T > T getAttribute( final String pathName, final String key, final Type type ) throws IOException
+	{
+		request();
+		return n5.getAttribute( pathName, key, type );
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		request();
+		return n5.getDatasetAttributes( pathName );
+	}
+
+	@Override
+	public boolean exists( final String pathName )
+	{
+		request();
+		return n5.exists( pathName );
+	}
+
+	@Override
+	public String[] list( final String pathName ) throws IOException
+	{
+		request();
+		return n5.list( pathName );
+	}
+
+	@Override
+	public Map< String, Class< ? > > listAttributes( final String pathName ) throws IOException
+	{
+		request();
+		return n5.listAttributes( pathName );
+	}
+}
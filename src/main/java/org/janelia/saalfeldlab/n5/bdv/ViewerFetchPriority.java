@@ -0,0 +1,229 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Orders block requests by what the user is looking at: coarser levels
+ * before finer ones, blocks close to the focus point (the mouse, or the
+ * center of the screen) before blocks at the edge, and requests of the
+ * current view before requests of views that have been replaced.
+ *
+ * The priority of a request is
+ *
+ * <pre>
+ * LEVEL_WEIGHT * levels below the coarsest
+ *   + distance to the focus / screen diagonal
+ *   + GENERATION_WEIGHT * view changes since the request
+ *   + PREFETCH_WEIGHT if the request is a prefetch
+ * </pre>
+ *
+ * Blocks of images that are not registered only get the last two terms.
+ */
+public class ViewerFetchPriority implements FetchQueue.Priority
+{
+	public static final double LEVEL_WEIGHT = 0.5;
+
+	public static final double GENERATION_WEIGHT = 1;
+
+	/**
+	 * Prefetches come after the blocks that are visible now.
+	 */
+	public static final double PREFETCH_WEIGHT = 2;
+
+	private static class ImageInfo
+	{
+		final CellGrid grid;
+
+		final AffineTransform3D sourceTransform;
+
+		final int levelsBelowCoarsest;
+
+		ImageInfo( final CellGrid grid, final AffineTransform3D sourceTransform, final int levelsBelowCoarsest )
+		{
+			this.grid = grid;
+			this.sourceTransform = sourceTransform;
+			this.levelsBelowCoarsest = levelsBelowCoarsest;
+		}
+	}
+
+	/**
+	 * The view at one moment. Replaced, never modified.
+	 */
+	private static class View
+	{
+		final AffineTransform3D viewerTransform;
+
+		final double focusX;
+
+		final double focusY;
+
+		final double diagonal;
+
+		final long generation;
+
+		View( final AffineTransform3D viewerTransform, final double focusX, final double focusY, final double diagonal, final long generation )
+		{
+			this.viewerTransform = viewerTransform;
+			this.focusX = focusX;
+			this.focusY = focusY;
+			this.diagonal = diagonal;
+			this.generation = generation;
+		}
+	}
+
+	private final ConcurrentHashMap< Integer, ImageInfo > images = new ConcurrentHashMap<>();
+
+	private volatile View view = new View( new AffineTransform3D(), 0, 0, 1, 0 );
+
+	/**
+	 * Changes with the view and the registered images, see
+	 * {@link #version()}.
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * The focus point, or NaN for the center of the screen.
+	 */
+	private double focusX = Double.NaN;
+
+	private double focusY = Double.NaN;
+
+	private int screenWidth = 1;
+
+	private int screenHeight = 1;
+
+	/**
+	 * Register an image so that its blocks are ordered by level and screen
+	 * distance.
+	 *
+	 * @param imageId the id of the image in the {@link SharedCellCache}
+	 * @param grid the cell grid of the image
+	 * @param sourceTransform the transform from image to global coordinates
+	 * @param level the mipmap level of the image
+	 * @param numLevels the number of mipmap levels of its source
+	 */
+	public void register( final int imageId, final CellGrid grid, final AffineTransform3D sourceTransform, final int level, final int numLevels )
+	{
+		images.put( imageId, new ImageInfo( grid, sourceTransform.copy(), numLevels - 1 - level ) );
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Forget an image that has been released.
+	 *
+	 * @param imageId the id of the image in the {@link SharedCellCache}
+	 */
+	public void unregister( final int imageId )
+	{
+		if ( images.remove( imageId ) != null )
+			version.incrementAndGet();
+	}
+
+	/**
+	 * Set the view. A view with a different transform starts a new
+	 * generation.
+	 *
+	 * @param viewerTransform the viewer transform
+	 * @param screenWidth the width of the screen
+	 * @param screenHeight the height of the screen
+	 */
+	public synchronized void setView( final AffineTransform3D viewerTransform, final int screenWidth, final int screenHeight )
+	{
+		this.screenWidth = screenWidth;
+		this.screenHeight = screenHeight;
+		final View v = view;
+		final boolean moved = !Arrays.equals( v.viewerTransform.getRowPackedCopy(), viewerTransform.getRowPackedCopy() );
+		updateView( viewerTransform.copy(), moved ? v.generation + 1 : v.generation );
+	}
+
+	/**
+	 * Set the focus point, e.g. the mouse position.
+	 *
+	 * @param x screen x, or NaN for the center of the screen
+	 * @param y screen y, or NaN for the center of the screen
+	 */
+	public synchronized void setFocus( final double x, final double y )
+	{
+		focusX = x;
+		focusY = y;
+		updateView( view.viewerTransform, view.generation );
+	}
+
+	private void updateView( final AffineTransform3D viewerTransform, final long generation )
+	{
+		view = new View(
+				viewerTransform,
+				Double.isNaN( focusX ) ? 0.5 * screenWidth : focusX,
+				Double.isNaN( focusY ) ? 0.5 * screenHeight : focusY,
+				Math.max( 1, Math.hypot( screenWidth, screenHeight ) ),
+				generation );
+		version.incrementAndGet();
+	}
+
+	@Override
+	public long generation()
+	{
+		return view.generation;
+	}
+
+	@Override
+	public long version()
+	{
+		return version.get();
+	}
+
+	@Override
+	public double priority( final FetchQueue.Request request )
+	{
+		final View v = view;
+		final double demotion = GENERATION_WEIGHT * ( v.generation - request.getGeneration() ) + ( request.isPrefetch() ? PREFETCH_WEIGHT : 0 );
+
+		final ImageInfo info = images.get( request.getImageId() );
+		if ( info == null )
+			return demotion;
+
+		return LEVEL_WEIGHT * info.levelsBelowCoarsest + screenDistance( info, request.getCellIndex(), v ) / v.diagonal + demotion;
+	}
+
+	private static double screenDistance( final ImageInfo info, final long cellIndex, final View v )
+	{
+		final CellGrid grid = info.grid;
+		final int n = grid.numDimensions();
+		final long[] cellPosition = new long[ n ];
+		IntervalIndexer.indexToPosition( cellIndex, grid.getGridDimensions(), cellPosition );
+
+		final double[] center = new double[ 3 ];
+		for ( int d = 0; d < Math.min( 3, n ); ++d )
+		{
+			final long min = cellPosition[ d ] * grid.cellDimension( d );
+			final long max = Math.min( min + grid.cellDimension( d ), grid.imgDimension( d ) ) - 1;
+			center[ d ] = 0.5 * ( min + max );
+		}
+
+		info.sourceTransform.apply( center, center );
+		v.viewerTransform.apply( center, center );
+		return Math.sqrt( ( center[ 0 ] - v.focusX ) * ( center[ 0 ] - v.focusX ) + ( center[ 1 ] - v.focusY ) * ( center[ 1 ] - v.focusY ) + center[ 2 ] * center[ 2 ] );
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.n5.bdv;
+
+/**
+ * The {@link LoadMetrics} of all containers of a viewer, and the state of
+ * its cache, fetch queue and prefetcher, published over JMX by {@link N5ViewerMetrics}.
+ */
+public interface ViewerLoadingMXBean extends LoadMetricsMXBean
+{
+	long getCacheSizeInBytes();
+
+	long getMaxCacheSizeInBytes();
+
+	int getNumCells();
+
+	int getNumFetchThreads();
+
+	long getCompletedLoads();
+
+	long getStaleLoads();
+
+	long getCancelledPrefetches();
+
+	long getPrefetchedBlocks();
+
+	long getUsedPrefetches();
+
+	long getWastedPrefetches();
+
+	/**
+	 * @return the number of times the prefetcher skipped a source whose
+	 *         level is not backed by a cached cell image
+	 */
+	long getSkippedPrefetchSources();
+}
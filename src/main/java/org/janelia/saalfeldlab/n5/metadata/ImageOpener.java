@@ -0,0 +1,19 @@
+package org.janelia.saalfeldlab.n5.metadata;
+
+import java.io.IOException;
+
+import net.imglib2.cache.img.CachedCellImg;
+
+/**
+ * Opens the raw image of a dataset for a {@link MetadataSource}, e.g. from a
+ * cache or registry that is shared with other sources.
+ */
+public interface ImageOpener {
+
+	/**
+	 * @param path the dataset path
+	 * @return the image
+	 * @throws IOException if the dataset cannot be read
+	 */
+	CachedCellImg<?, ?> open( String path ) throws IOException;
+}
@@ -3,7 +3,11 @@ package org.janelia.saalfeldlab.n5.metadata;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Stream;
 
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -14,17 +18,24 @@ import org.janelia.saalfeldlab.n5.metadata.axes.AxisSlicer;
 import org.janelia.saalfeldlab.n5.metadata.axes.AxisUtils;
 import org.janelia.saalfeldlab.n5.metadata.axes.DefaultAxisMetadata;
 
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.util.volatiles.VolatileTypeMatcher;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
 import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
@@ -47,17 +58,49 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 
 	private AffineTransform3D sourceTransform;
 
+	/**
+	 * Transforms of the full resolution and of the levels computed on demand
+	 * by the {@link PyramidFactory}.
+	 */
+	private AffineTransform3D[] levelTransforms;
+
+	private AtomicReferenceArray<RandomAccessibleInterval<T>[]> pyramids;
+
+	/**
+	 * Computes the coarser levels, or null.
+	 */
+	private final PyramidFactory pyramidFactory;
+
+	/**
+	 * Volatile views of the raw image per queue, shared by the sources of
+	 * all channels of the dataset.
+	 */
+	private final Map<SharedQueue, RandomAccessibleInterval<?>> volatileRaws;
+
 	private boolean isValid;
 
-	public MetadataSource( N5Reader n5, N5DatasetMetadata metadata, int channelDim, int channelPos ) {
+	/**
+	 * @param metadata the dataset metadata
+	 * @param opener opens the raw image, e.g. from a cache that is shared
+	 *        with other sources
+	 * @param pyramidFactory computes the coarser levels of large real
+	 *        valued datasets, or null to show the full resolution only
+	 */
+	public MetadataSource( N5DatasetMetadata metadata, ImageOpener opener, PyramidFactory pyramidFactory ) {
+		this( metadata, 0, opener, pyramidFactory );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private MetadataSource( N5DatasetMetadata metadata, int channelPos, ImageOpener opener, PyramidFactory pyramidFactory ) {
 		this.metadata = metadata;
+		this.pyramidFactory = pyramidFactory;
+		this.volatileRaws = Collections.synchronizedMap( new IdentityHashMap<>() );
 
 		if( metadata instanceof SpatialMetadata )
 			sourceTransform = ((SpatialMetadata) metadata).spatialTransform3d();
 		else
 			sourceTransform = new AffineTransform3D();
 
-		this.channelDimension = channelDim;
 		this.channelPos = channelPos;
 
 //		if( metadata instanceof AxisMetadata )
@@ -79,11 +122,53 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 		if( isValid )
 		{
 			try {
-				imgRaw = N5Utils.open(n5, metadata.getPath());
+				imgRaw = (CachedCellImg<T, ?>) opener.open(metadata.getPath());
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+
+		if( imgRaw != null && pyramidFactory != null && getType() instanceof RealType )
+			levelTransforms = pyramidFactory.transforms( slice( imgRaw, 0 ), sourceTransform, imgRaw );
+		else
+			levelTransforms = new AffineTransform3D[] { sourceTransform };
+
+		if( levelTransforms.length > 1 )
+			pyramids = new AtomicReferenceArray<>( numTimePoints() );
+	}
+
+	/**
+	 * A source of another channel of the same dataset, that shares the raw
+	 * image and its pyramid factory with {@code other}.
+	 */
+	private MetadataSource( MetadataSource<T> other, int channelPos ) {
+		this.metadata = other.metadata;
+		this.imgRaw = other.imgRaw;
+		this.pyramidFactory = other.pyramidFactory;
+		this.volatileRaws = other.volatileRaws;
+		this.timeDimension = other.timeDimension;
+		this.channelDimension = other.channelDimension;
+		this.channelPos = channelPos;
+		this.nSpaceDims = other.nSpaceDims;
+		this.nTimeDims = other.nTimeDims;
+		this.nChannelDims = other.nChannelDims;
+		this.nOtherDims = other.nOtherDims;
+		this.axes = other.axes;
+		this.sourceTransform = other.sourceTransform;
+		this.levelTransforms = other.levelTransforms;
+		this.isValid = other.isValid;
+		// the coarser levels are computed from the slice of this channel
+		if( other.pyramids != null )
+			pyramids = new AtomicReferenceArray<>( numTimePoints() );
+	}
+
+	/**
+	 * @deprecated the channel dimension is read from the axes of the
+	 *             metadata, use {@link #MetadataSource(N5Reader, N5DatasetMetadata, int)}
+	 */
+	@Deprecated
+	public MetadataSource( N5Reader n5, N5DatasetMetadata metadata, int channelDim, int channelPos ) {
+		this( n5, metadata, channelPos );
 	}
 
 	public MetadataSource( N5Reader n5, N5TreeNode node ) {
@@ -91,16 +176,32 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 	}
 
 	public MetadataSource( N5Reader n5, N5DatasetMetadata metadata ) {
-		this( n5, metadata, -1, 0 );
+		this( n5, metadata, 0 );
 	}
 
 	public MetadataSource( N5Reader n5, N5DatasetMetadata metadata, int channelPos ) {
-		this( n5, metadata, -1, channelPos );
+		// volatile access, so that the raw image can be wrapped as volatile
+		this( metadata, channelPos, path -> N5Utils.openVolatile(n5, path), null );
 	}
 
 	public static List<MetadataSource<?>> buildMetadataSources( N5Reader n5, N5DatasetMetadata metadata ) {
+		return buildMetadataSources( new MetadataSource<>( n5, metadata ));
+	}
+
+	/**
+	 * Sources of all channels of a dataset, whose raw image is opened once.
+	 *
+	 * @param metadata the dataset metadata
+	 * @param opener opens the raw image
+	 * @param pyramidFactory computes the coarser levels, or null
+	 * @return the sources, or null if the axes of the dataset are not supported
+	 */
+	public static List<MetadataSource<?>> buildMetadataSources( N5DatasetMetadata metadata, ImageOpener opener, PyramidFactory pyramidFactory ) {
+		return buildMetadataSources( new MetadataSource<>( metadata, opener, pyramidFactory ));
+	}
+
+	private static List<MetadataSource<?>> buildMetadataSources( MetadataSource<?> src0 ) {
 
-		final MetadataSource<?> src0 = new MetadataSource<>( n5, metadata );
 		if( !src0.isValid() )
 			return null;
 
@@ -109,13 +210,26 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 		final List<MetadataSource<?>> sources = new ArrayList<>();
 		sources.add(src0);
 
+		// one block load fills all channels
 		for( int i = 1; i < nc; i++ ) {
-			sources.add( new MetadataSource<>( n5, metadata, i ));
+			sources.add( src0.channel( i ));
 		}
 
 		return sources;
 	}
 
+	/**
+	 * A source of another channel of this dataset. Both sources slice the
+	 * same raw image, so each block is loaded, decoded and cached once for
+	 * all channels.
+	 *
+	 * @param channelPos the channel
+	 * @return the source of the channel
+	 */
+	public MetadataSource<T> channel( int channelPos ) {
+		return new MetadataSource<>( this, channelPos );
+	}
+
 	public boolean isValid() {
 		return isValid;
 	}
@@ -125,7 +239,7 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 	}
 
 	public int getNumChannels() {
-		return (int)imgRaw.dimension( channelDimension );
+		return channelDimension < 0 ? 1 : (int)imgRaw.dimension( channelDimension );
 	}
 
 	public int getChannelIndex() {
@@ -140,6 +254,19 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 		return imgRaw;
 	}
 
+	/**
+	 * The raw image wrapped as volatile, created once per queue for all
+	 * channels of the dataset.
+	 *
+	 * @param queue the queue that loads the blocks
+	 * @return the volatile raw image
+	 */
+	@SuppressWarnings( "unchecked" )
+	public <V extends Volatile<T>> RandomAccessibleInterval<V> getVolatileRawImage(final SharedQueue queue) {
+		return (RandomAccessibleInterval<V>) volatileRaws.computeIfAbsent( queue,
+				q -> VolatileViews.wrapAsVolatile( imgRaw, q, new CacheHints( LoadingStrategy.VOLATILE, 0, true )));
+	}
+
 	public static int getTimeIndex( AxisMetadata axes )
 	{
 		int[] idxs = axes.indexesOfType("time");
@@ -301,6 +428,40 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 	@Override
 	public RandomAccessibleInterval<T> getSource(int t, int level) {
 
+		if( level == 0 )
+			return slice(imgRaw, t);
+		else
+			return pyramid(t)[level];
+	}
+
+	/**
+	 * The levels of timepoint t, created on first use.
+	 *
+	 * @param t the timepoint
+	 * @return the levels
+	 */
+	private RandomAccessibleInterval<T>[] pyramid(int t) {
+
+		RandomAccessibleInterval<T>[] levels = pyramids.get(t);
+		if( levels == null ) {
+			// the computed cells are released with the raw image
+			levels = pyramidFactory.levels( slice(imgRaw, t), sourceTransform, imgRaw );
+			if( !pyramids.compareAndSet(t, null, levels) )
+				levels = pyramids.get(t);
+		}
+		return levels;
+	}
+
+	/**
+	 * Slice an image with the same axes as the raw image to the three
+	 * spatial dimensions of this source at timepoint t.
+	 *
+	 * @param img the image, e.g. the raw image or a volatile view of it
+	 * @param t the timepoint
+	 * @return the slice
+	 */
+	public <X> RandomAccessibleInterval<X> slice(RandomAccessibleInterval<X> img, int t) {
+
 		AxisSlicer slicer = new AxisSlicer( axes );
 		for( int i = 0; i < axes.getAxisLabels().length; i++ )
 		{
@@ -317,7 +478,16 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 				slicer.slice(label, 0);
 		}
 
-		return slicer.apply(imgRaw);
+		return slicer.apply(img);
+	}
+
+	public <V extends Volatile<T> & NumericType<V>> VolatileMetadataSource<T, V> asVolatile(final V vType, final SharedQueue queue) {
+		return new VolatileMetadataSource<>(this, vType, queue);
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public <V extends Volatile<T> & NumericType<V>> VolatileMetadataSource<T, V> asVolatile(final SharedQueue queue) {
+		return new VolatileMetadataSource<>(this, (V) VolatileTypeMatcher.getVolatileTypeForType((NativeType)getType()), queue);
 	}
 
 	@Override
@@ -331,7 +501,7 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 
 	@Override
 	public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-		transform.set(sourceTransform);
+		transform.set(levelTransforms[level]);
 	}
 
 	@Override
@@ -352,7 +522,7 @@ public class MetadataSource <T extends NumericType<T> & NativeType<T>> implement
 
 	@Override
 	public int getNumMipmapLevels() {
-		return 1;
+		return levelTransforms.length;
 	}
 	
 //	public Source<?> getSource() {
@@ -16,23 +16,30 @@ public class MetadataSources <T extends NumericType<T> & NativeType<T>> {
 	private int nChannels;
 	private int channelDim;
 
+	private final MetadataSource<T> first;
+
 	private List<MetadataSource<T>> sources;
 
 	public MetadataSources( N5Reader n5, N5DatasetMetadata metadata ) {
 		this.n5 = n5;
 		this.metadata = metadata;
 
-		MetadataSource<T> src = new MetadataSource<>( n5, metadata );
-		channelDim = src.getChannelDimension();
-		nChannels = channelDim < 0 ? 1 : (int)src.getRawImage().dimension( channelDim );
+		first = new MetadataSource<>( n5, metadata );
+		channelDim = first.getChannelDimension();
+		nChannels = first.getNumChannels();
 		sources = buildSources();
 	}
 
+	/**
+	 * Sources of all channels that share the raw image of the dataset.
+	 *
+	 * @return the sources
+	 */
 	public List<MetadataSource<T>> buildSources() {
 
 		sources = new ArrayList<MetadataSource<T>>();
 		for( int i = 0; i < nChannels; i++ ) {
-			sources.add( new MetadataSource<T>( n5, metadata, channelDim, i ));
+			sources.add( i == 0 ? first : first.channel( i ));
 		}
 		return sources;
 	}
@@ -0,0 +1,70 @@
+package org.janelia.saalfeldlab.n5.metadata;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5TreeNode;
+
+/**
+ * A time series of multiscale groups, stored as t0/s0, t0/s1, ..., t1/s0, ...
+ * The children are ordered by their timepoint index.
+ */
+public class N5ViewerTimeSeriesMetadata implements N5MetadataGroup<MultiscaleMetadata<?>> {
+
+	public static final Predicate<String> timepointPredicate = Pattern.compile("^t\\d+$").asPredicate();
+
+	private final String basePath;
+
+	private final MultiscaleMetadata<?>[] childMetadata;
+
+	public N5ViewerTimeSeriesMetadata(final String basePath, final MultiscaleMetadata<?>[] childMetadata) {
+		this.basePath = basePath;
+		this.childMetadata = childMetadata;
+	}
+
+	@Override
+	public String getPath() {
+		return basePath;
+	}
+
+	@Override
+	public String[] getPaths() {
+
+		return Arrays.stream(childMetadata).map(m -> m.getPath()).toArray(String[]::new);
+	}
+
+	@Override
+	public MultiscaleMetadata<?>[] getChildrenMetadata() {
+
+		return childMetadata;
+	}
+
+	public int getNumTimepoints() {
+
+		return childMetadata.length;
+	}
+
+	public static class N5ViewerTimeSeriesMetadataParser implements N5MetadataParser<N5ViewerTimeSeriesMetadata> {
+
+		@Override
+		public Optional<N5ViewerTimeSeriesMetadata> parseMetadata(N5Reader n5, N5TreeNode node) {
+
+			// timepoints are parents of scales, e.g. a path of t0/s0
+			final MultiscaleMetadata[] childMetadata = node.childrenList().stream()
+					.filter(childNode -> timepointPredicate.test(childNode.getNodeName()) && childNode.getMetadata() instanceof MultiscaleMetadata)
+					.sorted(Comparator.comparingInt(childNode -> Integer.parseInt(childNode.getNodeName().substring(1))))
+					.map(N5TreeNode::getMetadata)
+					.toArray(MultiscaleMetadata[]::new);
+
+			if (childMetadata.length == 0)
+				return Optional.empty();
+
+			return Optional.of(new N5ViewerTimeSeriesMetadata(node.getPath(), childMetadata));
+		}
+	}
+
+}
@@ -0,0 +1,31 @@
+package org.janelia.saalfeldlab.n5.metadata;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Computes coarser levels of a single-scale {@link MetadataSource} on demand.
+ */
+public interface PyramidFactory {
+
+	/**
+	 * @param slice the full resolution of a timepoint
+	 * @param sliceTransform the transform of the full resolution
+	 * @param raw the raw image that {@code slice} shows, whose blocks bound
+	 *        the downsampling
+	 * @return the transforms of all levels, only {@code sliceTransform} if the
+	 *         slice is shown without a pyramid
+	 */
+	AffineTransform3D[] transforms( RandomAccessibleInterval<?> slice, AffineTransform3D sliceTransform, CachedCellImg<?, ?> raw );
+
+	/**
+	 * @param slice the full resolution of a timepoint, of a real type
+	 * @param sliceTransform the transform of the full resolution
+	 * @param raw the raw image that {@code slice} shows, the levels are
+	 *        released with it
+	 * @return the levels, the full resolution first, as many as
+	 *         {@link #transforms} returns
+	 */
+	<T> RandomAccessibleInterval<T>[] levels( RandomAccessibleInterval<T> slice, AffineTransform3D sliceTransform, CachedCellImg<?, ?> raw );
+}
@@ -0,0 +1,129 @@
+package org.janelia.saalfeldlab.n5.metadata;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.view.Views;
+
+/**
+ * Volatile counterpart of a {@link MetadataSource}. Blocks are loaded by the
+ * fetcher threads of a {@link SharedQueue}, so cache misses do not stall the
+ * render threads.
+ *
+ * The raw image is wrapped as volatile once for all channels of the dataset,
+ * and every timepoint is sliced from that single volatile view. Coarser levels computed by the
+ * {@link MetadataSource} are wrapped individually.
+ */
+public class VolatileMetadataSource <T extends NumericType<T> & NativeType<T>, V extends Volatile<T> & NumericType<V>> implements Source<V> {
+
+	private final MetadataSource<T> source;
+
+	private final V type;
+
+	private final RandomAccessibleInterval<V> volatileRaw;
+
+	private final SharedQueue queue;
+
+	private final int numLevels;
+
+	/**
+	 * Volatile views indexed by t * numLevels + level.
+	 */
+	private final AtomicReferenceArray<RandomAccessibleInterval<V>> views;
+
+	public VolatileMetadataSource( final MetadataSource<T> source, final V type, final SharedQueue queue ) {
+
+		this.source = source;
+		this.type = type;
+		this.queue = queue;
+		this.numLevels = source.getNumMipmapLevels();
+		this.volatileRaw = source.getVolatileRawImage(queue);
+		this.views = new AtomicReferenceArray<>(source.numTimePoints() * numLevels);
+	}
+
+	public MetadataSource<T> getNonVolatileSource() {
+		return source;
+	}
+
+	@Override
+	public boolean isPresent(int t) {
+		return source.isPresent(t);
+	}
+
+	public int numTimePoints() {
+		return source.numTimePoints();
+	}
+
+	@Override
+	public RandomAccessibleInterval<V> getSource(int t, int level) {
+
+		if( t < 0 || t >= source.numTimePoints() )
+			return createView(t, level);
+
+		final int i = t * numLevels + level;
+		RandomAccessibleInterval<V> img = views.get(i);
+		if( img == null ) {
+			img = createView(t, level);
+			if( !views.compareAndSet(i, null, img) )
+				img = views.get(i);
+		}
+		return img;
+	}
+
+	private RandomAccessibleInterval<V> createView(int t, int level) {
+
+		if( level == 0 )
+			return source.slice(volatileRaw, t);
+		else
+			return VolatileViews.wrapAsVolatile(source.getSource(t, level), queue, new CacheHints(LoadingStrategy.VOLATILE, level, true));
+	}
+
+	@Override
+	public RealRandomAccessible<V> getInterpolatedSource(int t, int level, Interpolation method) {
+		RandomAccessibleInterval<V> src = getSource(t,level);
+		if( method.equals( Interpolation.NEARESTNEIGHBOR ))
+			return Views.interpolate( Views.extendZero( src ), new NearestNeighborInterpolatorFactory<>() );
+		else
+			return Views.interpolate( Views.extendZero( src ), new NLinearInterpolatorFactory<>() );
+	}
+
+	@Override
+	public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+		source.getSourceTransform(t, level, transform);
+	}
+
+	@Override
+	public V getType() {
+		return type;
+	}
+
+	@Override
+	public String getName() {
+		return source.getName();
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions() {
+		return source.getVoxelDimensions();
+	}
+
+	@Override
+	public int getNumMipmapLevels() {
+		return source.getNumMipmapLevels();
+	}
+
+}
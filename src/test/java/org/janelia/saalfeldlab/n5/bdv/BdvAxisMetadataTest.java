@@ -3,6 +3,7 @@ package org.janelia.saalfeldlab.n5.bdv;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 
 import org.janelia.saalfeldlab.n5.N5FSReader;
@@ -15,6 +16,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 public class BdvAxisMetadataTest {
 	
@@ -33,6 +35,26 @@ public class BdvAxisMetadataTest {
 		checkTranslatedSizes("cxyCanonical", 1, new long[]{3, 4}, "cxy");
 	}
 	
+	@Test
+	public void channelsShareRawImage() {
+
+		final CanonicalMetadataParser parser = new CanonicalMetadataParser();
+		final N5DatasetMetadata meta = (N5DatasetMetadata)parser.parseMetadata(n5, "cxyCanonical").get();
+		final SharedCellCache cache = new SharedCellCache(Long.MAX_VALUE);
+		final List<MetadataSource<?>> sources = MetadataSource.buildMetadataSources(meta, path -> cache.openVolatile(n5, path), DownsampledPyramid.factory(cache));
+
+		assertEquals(2, sources.size());
+		assertSame(sources.get(0).getRawImage(), sources.get(1).getRawImage());
+		assertEquals(0, sources.get(0).getChannelIndex());
+		assertEquals(1, sources.get(1).getChannelIndex());
+		assertArrayEquals(new long[]{3, 4}, Intervals.dimensionsAsLongArray(sources.get(1).getSource(0, 0)));
+
+		// the single block holds both channels, it is loaded once
+		Views.iterable(sources.get(0).getSource(0, 0)).forEach(t -> {});
+		Views.iterable(sources.get(1).getSource(0, 0)).forEach(t -> {});
+		assertEquals(1, cache.getMissCount());
+	}
+
 	private void checkTranslatedSizes( String dataset, int ntTrue, long[] szTrue, String suffix ) {
 		
 		final CanonicalMetadataParser parser = new CanonicalMetadataParser();
@@ -0,0 +1,42 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class BlockBufferPoolTest
+{
+	@Test
+	public void testSizeClasses()
+	{
+		assertEquals( BlockBufferPool.MIN_SIZE_CLASS, BlockBufferPool.sizeClass( 1 ) );
+		assertEquals( 1 << 13, BlockBufferPool.sizeClass( ( 1 << 12 ) + 1 ) );
+		assertEquals( 1 << 22, BlockBufferPool.sizeClass( 1 << 22 ) );
+		assertEquals( Integer.MAX_VALUE, BlockBufferPool.sizeClass( Integer.MAX_VALUE ) );
+	}
+
+	@Test
+	public void testReuse()
+	{
+		final BlockBufferPool pool = new BlockBufferPool( 1 << 14 );
+
+		final byte[] bytes = pool.bytes( 5000 );
+		assertEquals( 1 << 13, bytes.length );
+		pool.release( bytes );
+		assertSame( bytes, pool.bytes( 6000 ) );
+
+		final short[] shorts = ( short[] ) pool.array( short.class, 100 );
+		pool.release( shorts );
+		assertNotSame( shorts, pool.array( short.class, 101 ) );
+		assertSame( shorts, pool.array( short.class, 100 ) );
+
+		// beyond the budget, released arrays are dropped
+		pool.release( new byte[ 1 << 13 ] );
+		pool.release( new byte[ 1 << 13 ] );
+		pool.release( new byte[ 1 << 13 ] );
+		assertEquals( 1 << 14, pool.getSizeInBytes() );
+		assertEquals( 2, pool.getReuseCount() );
+	}
+}
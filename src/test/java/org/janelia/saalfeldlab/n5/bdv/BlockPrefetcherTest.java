@@ -0,0 +1,76 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class BlockPrefetcherTest
+{
+	@Test
+	public void testExtrapolate()
+	{
+		final AffineTransform3D previous = new AffineTransform3D();
+		final AffineTransform3D current = new AffineTransform3D();
+		current.translate( 10, -5, 0 );
+
+		final AffineTransform3D extrapolated = BlockPrefetcher.extrapolate( previous, current, 2 );
+		assertArrayEquals( new double[] { 30, -15, 0 }, extrapolated.getTranslation(), 1e-9 );
+	}
+
+	@Test
+	public void testVisibleCells()
+	{
+		final CellGrid grid = new CellGrid( new long[] { 1000, 1000, 100 }, new int[] { 64, 64, 64 } );
+		final AffineTransform3D sourceTransform = new AffineTransform3D();
+
+		// screen shows voxels 100 to 300 in x and y, at z = 70
+		final AffineTransform3D viewerTransform = new AffineTransform3D();
+		viewerTransform.translate( -100, -100, -70 );
+		final long[][] range = BlockPrefetcher.visibleCells( grid, viewerTransform, sourceTransform, new long[] { 200, 200 } );
+		assertArrayEquals( new long[] { 1, 1, 1 }, range[ 0 ] );
+		assertArrayEquals( new long[] { 4, 4, 1 }, range[ 1 ] );
+
+		// panned off the image
+		viewerTransform.translate( -2000, 0, 0 );
+		assertNull( BlockPrefetcher.visibleCells( grid, viewerTransform, sourceTransform, new long[] { 200, 200 } ) );
+	}
+
+	@Test
+	public void testBlockImageOfViews()
+	{
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		final long[][] voxels = { { 100, 100, 70 }, { 300, 300, 70 } };
+
+		// a slice of a time series: the cells of timepoint 5
+		final CellGrid timeGrid = new CellGrid( new long[] { 1000, 1000, 100, 10 }, new int[] { 64, 64, 64, 1 } );
+		final CachedCellImg< FloatType, ? > series = cache.createVolatile( timeGrid, new FloatType(), cell -> {}, null );
+		final BlockPrefetcher.BlockImage slice = BlockPrefetcher.BlockImage.resolve( Views.hyperSlice( series, 3, 5 ) );
+		assertSame( series, slice.img );
+		final long[][] range = slice.cellRange( voxels );
+		assertArrayEquals( new long[] { 1, 1, 1, 5 }, range[ 0 ] );
+		assertArrayEquals( new long[] { 4, 4, 1, 5 }, range[ 1 ] );
+
+		// a 2D image with an added dimension
+		final CellGrid planeGrid = new CellGrid( new long[] { 1000, 1000 }, new int[] { 64, 64 } );
+		final CachedCellImg< FloatType, ? > plane = cache.createVolatile( planeGrid, new FloatType(), cell -> {}, null );
+		final BlockPrefetcher.BlockImage added = BlockPrefetcher.BlockImage.resolve( Views.addDimension( plane, 0, 0 ) );
+		assertSame( plane, added.img );
+		assertArrayEquals( new long[] { 1, 1 }, added.cellRange( voxels )[ 0 ] );
+
+		// a translated image
+		final BlockPrefetcher.BlockImage translated = BlockPrefetcher.BlockImage.resolve( Views.translate( plane, 64, 0 ) );
+		assertArrayEquals( new long[] { 0, 1 }, translated.cellRange( voxels )[ 0 ] );
+
+		// computed levels have no blocks to prefetch
+		assertNull( BlockPrefetcher.BlockImage.resolve( ArrayImgs.floats( 10, 10, 10 ) ) );
+	}
+}
@@ -0,0 +1,71 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.bdv.SharedCellCache.Key;
+import org.junit.Test;
+
+public class CellStoreTest
+{
+	private static Key key( final long index )
+	{
+		return new Key( 0, index, 1 );
+	}
+
+	@Test
+	public void testEvictAcrossStripes()
+	{
+		final CellStore store = new CellStore( 4 * 100, 8 );
+		for ( long i = 0; i < 4; ++i )
+			assertTrue( store.put( key( i ), i, 100, () -> true ) );
+		assertEquals( 400, store.getSizeInBytes() );
+
+		// 0 becomes the most recently used cell, 1 the least recently used
+		// one, wherever their stripes are
+		store.get( key( 0 ) );
+		store.put( key( 4 ), 4L, 100, () -> true );
+		final List< Map.Entry< Key, Object > > evicted = store.evict( key( 4 ) );
+		assertEquals( 1, evicted.size() );
+		assertEquals( key( 1 ), evicted.get( 0 ).getKey() );
+		assertEquals( 1L, evicted.get( 0 ).getValue() );
+		assertFalse( store.contains( key( 1 ) ) );
+		assertTrue( store.contains( key( 0 ) ) );
+		assertEquals( 400, store.getSizeInBytes() );
+	}
+
+	@Test
+	public void testKeepNewCell()
+	{
+		final CellStore store = new CellStore( 100, 4 );
+		store.put( key( 0 ), 0L, 100, () -> true );
+		store.put( key( 1 ), 1L, 300, () -> true );
+		store.evict( key( 1 ) );
+		assertEquals( "a cell larger than the budget is kept", 1, store.size() );
+		assertTrue( store.contains( key( 1 ) ) );
+		assertEquals( 300, store.getSizeInBytes() );
+	}
+
+	@Test
+	public void testAdmitAndRemove()
+	{
+		final CellStore store = new CellStore( 1000 );
+		assertFalse( store.put( key( 0 ), 0L, 100, () -> false ) );
+		assertNull( store.get( key( 0 ) ) );
+
+		store.put( key( 1 ), 1L, 100, () -> true );
+		store.put( key( 1 ), 1L, 50, () -> true );
+		assertEquals( "a replaced cell is not counted twice", 50, store.getSizeInBytes() );
+
+		store.put( key( 2 ), 2L, 100, () -> true );
+		store.removeIf( k -> k.index == 2 );
+		store.remove( key( 1 ) );
+		assertEquals( 0, store.size() );
+		assertEquals( 0, store.getSizeInBytes() );
+	}
+}
@@ -0,0 +1,108 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.cache.img.CachedCellImg;
+
+public class DatasetRegistryTest
+{
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testSharedImages() throws IOException, ExecutionException
+	{
+		final Path path = tmp.newFolder().toPath();
+		final N5FSWriter n5 = new N5FSWriter( path.toString() );
+		n5.createDataset( "volume/s0", new DatasetAttributes( new long[] { 16, 16 }, new int[] { 8, 8 }, DataType.UINT8, new GzipCompression() ) );
+
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		final DatasetRegistry registry = new DatasetRegistry( cache );
+
+		// the same dataset through another reader and another spelling of its path
+		final CachedCellImg< ?, ? > a = registry.acquire( n5, "volume/s0" );
+		final CachedCellImg< ?, ? > b = registry.acquire( new N5FSReader( path.resolve( "." ).toString() ), "/volume//s0/" );
+		assertSame( a, b );
+		assertEquals( 2, registry.getRefCount( a ) );
+		assertEquals( 1, registry.getNumDatasets() );
+
+		a.getCache().get( 0L );
+		assertEquals( 1, cache.getNumCells() );
+
+		registry.release( a );
+		assertEquals( 1, cache.getNumCells() );
+
+		// the last release drops the image and its cells
+		registry.release( b );
+		assertEquals( 0, registry.getNumDatasets() );
+		assertEquals( 0, cache.getNumCells() );
+		assertEquals( -1, cache.getImageId( a ) );
+
+		final CachedCellImg< ?, ? > c = registry.acquire( n5, "volume/s0" );
+		assertNotSame( a, c );
+		assertEquals( 1, registry.getRefCount( c ) );
+	}
+
+	/**
+	 * A reader that is neither a file system reader nor one of the wrapping
+	 * readers of the viewer.
+	 */
+	private static N5Reader forward( final N5Reader n5 )
+	{
+		return ( N5Reader ) Proxy.newProxyInstance( N5Reader.class.getClassLoader(), new Class< ? >[] { N5Reader.class }, ( proxy, method, args ) -> {
+			try
+			{
+				return method.invoke( n5, args );
+			}
+			catch ( final InvocationTargetException e )
+			{
+				throw e.getCause();
+			}
+		} );
+	}
+
+	@Test
+	public void testDecoratedReaders() throws IOException
+	{
+		final Path path = tmp.newFolder().toPath();
+		final N5FSWriter n5 = new N5FSWriter( path.toString() );
+		n5.createDataset( "volume", new DatasetAttributes( new long[] { 16, 16 }, new int[] { 8, 8 }, DataType.UINT8, new GzipCompression() ) );
+
+		final DatasetRegistry registry = new DatasetRegistry( new SharedCellCache( Long.MAX_VALUE ) );
+		final N5ViewerOptions options = N5ViewerOptions.options().readerDecorator( DatasetRegistryTest::forward );
+
+		// every decoration of the reader shares the dataset with the reader
+		final CachedCellImg< ?, ? > a = registry.acquire( n5, "volume" );
+		assertSame( a, registry.acquire( options.decorateReader( n5 ), "volume" ) );
+		assertSame( a, registry.acquire( options.decorateReader( n5 ), "volume" ) );
+		assertEquals( 1, registry.getNumDatasets() );
+
+		// readers of the same remote container share the dataset
+		final N5Reader remote1 = forward( n5 );
+		final N5Reader remote2 = forward( n5 );
+		DatasetRegistry.setContainerKey( remote1, "s3://bucket/container.n5" );
+		DatasetRegistry.setContainerKey( remote2, "s3://bucket/container.n5" );
+		final CachedCellImg< ?, ? > b = registry.acquire( remote1, "volume" );
+		assertNotSame( a, b );
+		assertSame( b, registry.acquire( options.decorateReader( remote2 ), "volume" ) );
+		assertEquals( 2, registry.getNumDatasets() );
+	}
+}
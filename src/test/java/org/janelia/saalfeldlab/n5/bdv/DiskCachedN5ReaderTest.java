@@ -0,0 +1,119 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ExecutionException;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskCachedN5ReaderTest
+{
+	private static final String DATASET = "volume";
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testReadThrough() throws IOException, InterruptedException, ExecutionException
+	{
+		final Path remotePath = tmp.newFolder().toPath();
+		final Path cachePath = tmp.newFolder().toPath();
+
+		final N5FSWriter remote = new N5FSWriter( remotePath.toString() );
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 8, 8 }, new int[] { 4, 4 }, DataType.UINT8, new GzipCompression() );
+		remote.createDataset( DATASET, attributes );
+		final byte[] data = new byte[ 16 ];
+		data[ 3 ] = 7;
+		remote.writeBlock( DATASET, attributes, new ByteArrayDataBlock( new int[] { 4, 4 }, new long[] { 1, 0 }, data ) );
+
+		final DiskCache diskCache = new DiskCache( cachePath.toString(), 1 << 20 );
+		final String url = "https://example.org/container.n5";
+
+		DiskCachedN5Reader cached = new DiskCachedN5Reader( remote, diskCache, url );
+		assertArrayEquals( data, ( byte[] ) cached.readBlock( DATASET, attributes, 1, 0 ).getData() );
+		assertEquals( 1, cached.getMissCount() );
+		assertTrue( diskCache.getSizeInBytes() > 0 );
+
+		// the next session reads the block from the disk cache
+		remote.deleteBlock( DATASET, 1, 0 );
+		cached = new DiskCachedN5Reader( remote, diskCache, url );
+		assertArrayEquals( data, ( byte[] ) cached.readBlock( DATASET, attributes, 1, 0 ).getData() );
+		assertEquals( 1, cached.getHitCount() );
+
+		// changed attributes discard the cached blocks
+		final DatasetAttributes changed = new DatasetAttributes( new long[] { 16, 8 }, new int[] { 4, 4 }, DataType.UINT8, new GzipCompression() );
+		remote.createDataset( DATASET, changed );
+		cached = new DiskCachedN5Reader( remote, diskCache, url );
+		assertArrayEquals( "the cached attributes are used right away", attributes.getDimensions(), cached.getDatasetAttributes( DATASET ).getDimensions() );
+		diskCache.awaitBackgroundTasks();
+		assertFalse( Files.exists( diskCache.containerDirectory( url ).resolve( DATASET ).resolve( "1" ).resolve( "0" ) ) );
+		assertArrayEquals( changed.getDimensions(), cached.getDatasetAttributes( DATASET ).getDimensions() );
+
+		assertTrue( DiskCachedN5Reader.isRemote( url ) );
+		assertFalse( DiskCachedN5Reader.isRemote( remotePath.toString() ) );
+	}
+
+	@Test
+	public void testIncompleteBlock() throws IOException, InterruptedException, ExecutionException
+	{
+		final N5FSWriter remote = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 4, 4 }, new int[] { 4, 4 }, DataType.UINT8, new GzipCompression() );
+		remote.createDataset( DATASET, attributes );
+		final byte[] data = new byte[ 16 ];
+		data[ 5 ] = 3;
+		remote.writeBlock( DATASET, attributes, new ByteArrayDataBlock( new int[] { 4, 4 }, new long[] { 0, 0 }, data ) );
+
+		final Path cachePath = tmp.newFolder().toPath();
+		final String url = "https://example.org/container.n5";
+		new DiskCachedN5Reader( remote, new DiskCache( cachePath.toString(), 1 << 20 ), url ).readBlock( DATASET, attributes, 0, 0 );
+
+		// a block file of an interrupted write, counted by the next session
+		final DiskCache diskCache = new DiskCache( cachePath.toString(), 1 << 20 );
+		final Path block = diskCache.containerDirectory( url ).resolve( DATASET ).resolve( "0" ).resolve( "0" );
+		Files.write( block, new byte[] { 0, 0, 0 } );
+		diskCache.awaitBackgroundTasks();
+		final long before = diskCache.getSizeInBytes();
+
+		final DiskCachedN5Reader cached = new DiskCachedN5Reader( remote, diskCache, url );
+		assertArrayEquals( data, ( byte[] ) cached.readBlock( DATASET, attributes, 0, 0 ).getData() );
+		assertEquals( 1, cached.getMissCount() );
+		assertEquals( "the size of the replaced file is not counted twice", before - 3 + Files.size( block ), diskCache.getSizeInBytes() );
+	}
+
+	@Test
+	public void testCleanUp() throws IOException, InterruptedException, ExecutionException
+	{
+		final Path cachePath = tmp.newFolder().toPath();
+		final DiskCache diskCache = new DiskCache( cachePath.toString(), 1000 );
+		diskCache.awaitBackgroundTasks();
+		final Path container = diskCache.containerDirectory( "container" );
+		Files.createDirectories( container );
+
+		for ( int i = 0; i < 4; ++i )
+		{
+			final Path block = container.resolve( Integer.toString( i ) );
+			Files.write( block, new byte[ 300 ] );
+			Files.setLastModifiedTime( block, FileTime.fromMillis( 1000L * i ) );
+			diskCache.added( 300 );
+		}
+		diskCache.awaitBackgroundTasks();
+
+		assertTrue( diskCache.getSizeInBytes() <= 900 );
+		assertFalse( "least recently used block is deleted", Files.exists( container.resolve( "0" ) ) );
+		assertTrue( Files.exists( container.resolve( "3" ) ) );
+	}
+}
@@ -0,0 +1,210 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class DownsampledPyramidTest
+{
+	@Test
+	public void testFactors()
+	{
+		final AffineTransform3D isotropic = new AffineTransform3D();
+		final long[][] factors = DownsampledPyramid.downsamplingFactors( new long[] { 100, 40, 1 }, isotropic, 32, 32 );
+		assertEquals( "levels until the coarsest fits on the screen", 3, factors.length );
+		assertArrayEquals( new long[] { 1, 1, 1 }, factors[ 0 ] );
+		assertArrayEquals( "size one dimensions are not downsampled", new long[] { 2, 2, 1 }, factors[ 1 ] );
+		assertArrayEquals( new long[] { 4, 4, 1 }, factors[ 2 ] );
+
+		final long[][] volume = DownsampledPyramid.downsamplingFactors( new long[] { 1000, 1000, 1000 }, isotropic, 4, 100 );
+		assertEquals( 5, volume.length );
+		assertArrayEquals( new long[] { 2, 2, 2 }, volume[ 1 ] );
+		assertArrayEquals( new long[] { 4, 4, 4 }, volume[ 2 ] );
+		assertArrayEquals( "z is not halved beyond the depth of a block", new long[] { 16, 16, 4 }, volume[ 4 ] );
+
+		final AffineTransform3D anisotropic = new AffineTransform3D();
+		anisotropic.set( 4, 2, 2 );
+		final long[][] deep = DownsampledPyramid.downsamplingFactors( new long[] { 1000, 1000, 1000 }, anisotropic, 64, 100 );
+		assertArrayEquals( "z is halved once its voxels are no larger than the in-plane voxels", new long[] { 4, 4, 1 }, deep[ 2 ] );
+		assertArrayEquals( new long[] { 8, 8, 2 }, deep[ 3 ] );
+		assertArrayEquals( new long[] { 16, 16, 4 }, deep[ 4 ] );
+	}
+
+	@Test
+	public void testNeedsPyramid()
+	{
+		assertFalse( DownsampledPyramid.needsPyramid( new FinalDimensions( 512, 512, 100 ) ) );
+		assertTrue( DownsampledPyramid.needsPyramid( new FinalDimensions( 20000, 20000, 1 ) ) );
+	}
+
+	@Test
+	public void testTransforms()
+	{
+		final AffineTransform3D base = new AffineTransform3D();
+		base.scale( 0.5 );
+		final AffineTransform3D[] transforms = DownsampledPyramid.transforms( base, new long[][] { { 1, 1, 1 }, { 2, 2, 1 } } );
+
+		final double[] p = new double[ 3 ];
+		transforms[ 1 ].apply( new double[] { 0, 0, 0 }, p );
+		// level 1 voxel 0 is centered between full resolution voxels 0 and 1
+		assertArrayEquals( new double[] { 0.25, 0.25, 0 }, p, 1e-9 );
+	}
+
+	@Test
+	public void testOffsetBase()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 4, 4, 1 );
+		final RandomAccessibleInterval< FloatType > base = Views.translate( img, 10, 20, 0 );
+		final DownsampledPyramid< FloatType > pyramid = new DownsampledPyramid<>( base, new AffineTransform3D(), new long[][] { { 1, 1, 1 }, { 2, 2, 1 } }, 2, null, null, ForkJoinPool.commonPool() );
+
+		final double[] p = new double[ 3 ];
+		pyramid.getTransforms()[ 0 ].apply( new double[] { 10, 20, 0 }, p );
+		assertArrayEquals( "the full resolution keeps its min", new double[] { 10, 20, 0 }, p, 1e-9 );
+		pyramid.getTransforms()[ 1 ].apply( new double[] { 0, 0, 0 }, p );
+		// level 1 voxel 0 averages the first voxels of the full resolution
+		assertArrayEquals( new double[] { 10.5, 20.5, 0 }, p, 1e-9 );
+	}
+
+	@Test
+	public void testNumThreads()
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( 1 );
+		assertEquals( 1, DownsampledPyramid.DownsamplingLoader.numThreads( executor ) );
+		executor.shutdown();
+	}
+
+	@Test
+	public void testAveraging()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 5, 4, 1 );
+		final Cursor< FloatType > c = img.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			c.get().set( c.getIntPosition( 0 ) + 10 * c.getIntPosition( 1 ) );
+		}
+
+		final long[][] factors = DownsampledPyramid.downsamplingFactors( new long[] { 5, 4, 1 }, new AffineTransform3D(), 2, 2 );
+		final DownsampledPyramid< FloatType > pyramid = new DownsampledPyramid<>( img, new AffineTransform3D(), factors, 2, null, null, ForkJoinPool.commonPool() );
+		final RandomAccessibleInterval< FloatType > level1 = pyramid.getLevels()[ 1 ];
+		assertArrayEquals( new long[] { 3, 2, 1 }, Intervals.dimensionsAsLongArray( level1 ) );
+
+		final RandomAccess< FloatType > ra = level1.randomAccess();
+		ra.setPosition( new long[] { 0, 0, 0 } );
+		assertEquals( ( 0 + 1 + 10 + 11 ) / 4.0, ra.get().get(), 1e-6 );
+		ra.setPosition( new long[] { 2, 1, 0 } );
+		// border voxel averages only the pixels inside the image
+		assertEquals( ( 24 + 34 ) / 2.0, ra.get().get(), 1e-6 );
+	}
+
+	@Test
+	public void testBoundedExecutor() throws Exception
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 16, 16, 16 );
+		for ( final FloatType t : img )
+			t.set( 1 );
+
+		// loading a coarse cell loads the cells of the level above from the
+		// threads of the executor
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final long[][] factors = DownsampledPyramid.downsamplingFactors( new long[] { 16, 16, 16 }, new AffineTransform3D(), 2, 2 );
+		final DownsampledPyramid< FloatType > pyramid = new DownsampledPyramid<>( img, new AffineTransform3D(), factors, 2, null, null, executor );
+		final RandomAccessibleInterval< FloatType >[] levels = pyramid.getLevels();
+		final RandomAccess< FloatType > ra = levels[ levels.length - 1 ].randomAccess();
+		ra.setPosition( new long[] { 0, 0, 0 } );
+		assertEquals( 1, ra.get().get(), 1e-6 );
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSharedCache()
+	{
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		final CachedCellImg< FloatType, ? > base = cache.createVolatile(
+				new CellGrid( new long[] { 16, 16, 16 }, new int[] { 4, 4, 4 } ),
+				new FloatType(),
+				cell -> {
+					for ( final FloatType t : cell )
+						t.set( 1 );
+				},
+				null );
+
+		final long[][] factors = DownsampledPyramid.downsamplingFactors( new long[] { 16, 16, 16 }, new AffineTransform3D(), 4, 4 );
+		final DownsampledPyramid< FloatType > pyramid = new DownsampledPyramid<>( base, new AffineTransform3D(), factors, 4, cache, base, ForkJoinPool.commonPool() );
+		final RandomAccessibleInterval< FloatType >[] levels = pyramid.getLevels();
+		assertEquals( 3, levels.length );
+		final RandomAccess< FloatType > ra = levels[ 2 ].randomAccess();
+		ra.setPosition( new long[] { 0, 0, 0 } );
+		assertEquals( 1, ra.get().get(), 1e-6 );
+
+		// the coarsest cell is one voxel deep, it is computed from the 4
+		// cells of the next finer level, which are computed from the 16 base
+		// cells of one layer
+		assertEquals( 1 + 4 + 16, cache.getNumCells() );
+
+		// the levels are released with the base image
+		cache.release( base );
+		assertEquals( 0, cache.getNumCells() );
+	}
+
+	@Test
+	public void testSliceReadsOneBlockLayer()
+	{
+		// blocks that are shallow in z
+		final CellGrid grid = new CellGrid( new long[] { 64, 64, 64 }, new int[] { 16, 16, 4 } );
+
+		final AtomicInteger fullResolutionReads = new AtomicInteger();
+		final CachedCellImg< FloatType, ? > full = countingImage( new SharedCellCache( Long.MAX_VALUE ), grid, fullResolutionReads );
+		readAll( Views.hyperSlice( full, 2, 20 ) );
+
+		final AtomicInteger coarseReads = new AtomicInteger();
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		final CachedCellImg< FloatType, ? > base = countingImage( cache, grid, coarseReads );
+		final long[][] zoomedOut = DownsampledPyramid.downsamplingFactors( new long[] { 64, 64, 64 }, new AffineTransform3D(), 4, 16 );
+		final DownsampledPyramid< FloatType > pyramid = new DownsampledPyramid<>( base, new AffineTransform3D(), zoomedOut, 16, cache, base, ForkJoinPool.commonPool() );
+		final RandomAccessibleInterval< FloatType >[] levels = pyramid.getLevels();
+		assertEquals( 3, levels.length );
+
+		// slice 5 of the coarsest level covers slices 20 to 23 of the base
+		readAll( Views.hyperSlice( levels[ 2 ], 2, 5 ) );
+		assertEquals( 16, fullResolutionReads.get() );
+		assertEquals( "a zoomed out slice reads as many blocks as a full resolution slice", fullResolutionReads.get(), coarseReads.get() );
+	}
+
+	private static CachedCellImg< FloatType, ? > countingImage( final SharedCellCache cache, final CellGrid grid, final AtomicInteger reads )
+	{
+		return cache.createVolatile( grid, new FloatType(), cell -> {
+			reads.incrementAndGet();
+			for ( final FloatType t : cell )
+				t.set( 1 );
+		}, null );
+	}
+
+	private static void readAll( final RandomAccessibleInterval< FloatType > slice )
+	{
+		for ( final FloatType t : Views.flatIterable( slice ) )
+			assertEquals( 1, t.get(), 1e-6 );
+	}
+}
@@ -0,0 +1,316 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+
+public class FetchQueueTest
+{
+	@Test
+	public void testPriorityOrder() throws Exception
+	{
+		// one worker, the lowest image id first
+		final FetchQueue queue = new FetchQueue( 1, request -> request.getImageId() );
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch blocked = new CountDownLatch( 1 );
+		final List< Integer > loaded = Collections.synchronizedList( new ArrayList<>() );
+
+		// keep the worker busy while the other requests are made
+		final List< Thread > threads = new ArrayList<>();
+		threads.add( fetchInThread( queue, 0, () -> {
+			started.countDown();
+			blocked.await();
+		}, loaded ) );
+		started.await();
+
+		for ( final int imageId : new int[] { 3, 1, 2 } )
+			threads.add( fetchInThread( queue, imageId, () -> {}, loaded ) );
+		while ( queue.getNumPending() < 3 )
+			Thread.sleep( 1 );
+
+		blocked.countDown();
+		for ( final Thread thread : threads )
+			thread.join();
+
+		assertEquals( Arrays.asList( 0, 1, 2, 3 ), loaded );
+
+		// the statistics are updated after the waiting threads are released
+		while ( queue.getCompletedCount() < 4 )
+			Thread.sleep( 1 );
+		queue.shutdown();
+	}
+
+	@Test
+	public void testDropStalePrefetch() throws Exception
+	{
+		final AtomicLong generation = new AtomicLong();
+		final FetchQueue queue = new FetchQueue( 1, new FetchQueue.Priority()
+		{
+			@Override
+			public double priority( final FetchQueue.Request request )
+			{
+				return request.getSequence();
+			}
+
+			@Override
+			public long generation()
+			{
+				return generation.get();
+			}
+		} );
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch blocked = new CountDownLatch( 1 );
+		final List< Integer > loaded = Collections.synchronizedList( new ArrayList<>() );
+
+		final Thread busy = fetchInThread( queue, 0, () -> {
+			started.countDown();
+			blocked.await();
+		}, loaded );
+		started.await();
+
+		final Future< ? > prefetch = queue.prefetch( 1, 0, () -> loaded.add( 1 ) );
+		final Thread render = fetchInThread( queue, 2, () -> {}, loaded );
+		while ( queue.getNumPending() < 2 )
+			Thread.sleep( 1 );
+
+		// the view moves on: the prefetch is dropped, the render request is not
+		generation.incrementAndGet();
+		blocked.countDown();
+		busy.join();
+		render.join();
+
+		assertTrue( prefetch.isCancelled() );
+		assertEquals( Arrays.asList( 0, 2 ), loaded );
+		assertEquals( 1, queue.getCancelledCount() );
+		while ( queue.getCompletedCount() < 2 )
+			Thread.sleep( 1 );
+		assertEquals( 2, queue.getStaleCount() );
+		queue.shutdown();
+	}
+
+	@Test( timeout = 10000 )
+	public void testShutdownCancelsPending() throws Exception
+	{
+		final FetchQueue queue = new FetchQueue( 1 );
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch blocked = new CountDownLatch( 1 );
+		final List< Integer > loaded = Collections.synchronizedList( new ArrayList<>() );
+
+		fetchInThread( queue, 0, () -> {
+			started.countDown();
+			blocked.await();
+		}, loaded );
+		started.await();
+
+		final ExecutorService waiting = Executors.newSingleThreadExecutor();
+		final Future< Boolean > pending = waiting.submit( () -> {
+			try
+			{
+				queue.fetch( 1, 0, () -> loaded.add( 1 ) );
+				return false;
+			}
+			catch ( final ExecutionException e )
+			{
+				return true;
+			}
+		} );
+		while ( queue.getNumPending() < 1 )
+			Thread.sleep( 1 );
+
+		queue.shutdown();
+		assertTrue( "threads waiting for pending requests fail", pending.get() );
+		assertEquals( 0, queue.getNumPending() );
+		assertTrue( "requests after the shutdown are cancelled", queue.prefetch( 2, 0, () -> null ).isCancelled() );
+		assertEquals( Collections.emptyList(), loaded );
+		waiting.shutdown();
+	}
+
+	@Test
+	public void testAdaptiveThreads() throws Exception
+	{
+		// loads that only wait need more workers than processors
+		final FetchQueue queue = new FetchQueue( 1, 16, FetchQueue.FIFO, null );
+		final ExecutorService dispatchers = Executors.newFixedThreadPool( 32 );
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( int i = 0; i < 600; ++i )
+		{
+			final long index = i;
+			futures.add( dispatchers.submit( () -> queue.fetch( 0, index, () -> {
+				Thread.sleep( 10 );
+				return null;
+			} ) ) );
+		}
+		for ( final Future< ? > future : futures )
+			future.get();
+		dispatchers.shutdown();
+
+		assertTrue( queue.getNumThreads() > 1 );
+		assertTrue( queue.getNumThreads() <= 16 );
+		queue.shutdown();
+	}
+
+	@Test
+	public void testLanes() throws Exception
+	{
+		final FetchQueue queue = new FetchQueue( 2 );
+		final FetchLane slow = queue.getLane( "slow", "slow" );
+		final FetchLane fast = queue.getLane( "fast", "fast" );
+		slow.setMaxThreads( 1 );
+		queue.setLane( 0, slow );
+		queue.setLane( 1, fast );
+
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		final List< Integer > loaded = Collections.synchronizedList( new ArrayList<>() );
+		final List< Thread > threads = new ArrayList<>();
+		for ( int i = 0; i < 10; ++i )
+			threads.add( fetchInThread( queue, 0, () -> {
+				maxActive.accumulateAndGet( active.incrementAndGet(), Math::max );
+				Thread.sleep( 20 );
+				active.decrementAndGet();
+			}, loaded ) );
+		while ( slow.getNumPending() + slow.getNumActive() < 10 )
+			Thread.sleep( 1 );
+
+		// the fast lane does not wait for the slow lane
+		final long start = System.nanoTime();
+		final Thread fastFetch = fetchInThread( queue, 1, () -> {}, loaded );
+		fastFetch.join();
+		assertTrue( System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos( 100 ) );
+
+		for ( final Thread thread : threads )
+			thread.join();
+		assertEquals( 1, maxActive.get() );
+		while ( slow.getLoadCount() < 10 || fast.getLoadCount() < 1 )
+			Thread.sleep( 1 );
+		queue.shutdown();
+	}
+
+	@Test
+	public void testRemoveLaneWithLastImage()
+	{
+		final FetchQueue queue = new FetchQueue( 1 );
+		final FetchLane lane = queue.getLane( "reader", "reader" );
+		queue.setLane( 0, lane );
+		queue.setLane( 1, lane );
+		assertEquals( 2, queue.getLanes().size() );
+
+		queue.setLane( 0, null );
+		assertSame( lane, queue.findLane( "reader" ) );
+
+		// the last image of the reader is released
+		queue.setLane( 1, null );
+		assertNull( queue.findLane( "reader" ) );
+		assertEquals( 1, queue.getLanes().size() );
+		queue.shutdown();
+	}
+
+	@Test
+	public void testThrottle() throws Exception
+	{
+		final FetchQueue queue = new FetchQueue( 4 );
+		queue.getDefaultLane().setBytesPerSecond( 1000 );
+		final long start = System.nanoTime();
+		for ( int i = 0; i < 5; ++i )
+			queue.fetch( 0, i, () -> {
+				queue.addBytes( 0, 100 );
+				return null;
+			} );
+		assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 400 ) );
+		assertEquals( 500, queue.getDefaultLane().getByteCount() );
+		queue.shutdown();
+	}
+
+	@Test
+	public void testLoadOnWorker() throws ExecutionException
+	{
+		// a load that fetches another block does not wait for itself
+		final FetchQueue queue = new FetchQueue( 1 );
+		final int value = queue.fetch( 0, 0, () -> queue.fetch( 0, 1, () -> 42 ) );
+		assertEquals( 42, value );
+		queue.shutdown();
+	}
+
+	@Test
+	public void testViewerFetchPriority()
+	{
+		final CellGrid grid = new CellGrid( new long[] { 1000, 1000, 10 }, new int[] { 100, 100, 10 } );
+		final ViewerFetchPriority priority = new ViewerFetchPriority();
+		priority.register( 0, grid, new AffineTransform3D(), 0, 2 );
+		priority.register( 1, grid, new AffineTransform3D(), 1, 2 );
+		priority.setView( new AffineTransform3D(), 1000, 1000 );
+
+		final FetchQueue.Request center = request( grid, 0, 5, 5, 0 );
+		final FetchQueue.Request corner = request( grid, 0, 0, 0, 0 );
+		final FetchQueue.Request coarse = request( grid, 1, 0, 0, 0 );
+		assertTrue( priority.priority( center ) < priority.priority( corner ) );
+		assertTrue( priority.priority( coarse ) < priority.priority( corner ) );
+
+		// the focus moves to the corner
+		priority.setFocus( 0, 0 );
+		assertTrue( priority.priority( corner ) < priority.priority( center ) );
+
+		// requests of an old view come after requests of the current view
+		final AffineTransform3D moved = new AffineTransform3D();
+		moved.translate( 10, 0, 0 );
+		priority.setView( moved, 1000, 1000 );
+		assertEquals( 1, priority.generation() );
+		assertTrue( priority.priority( request( grid, 0, 5, 5, 1 ) ) < priority.priority( center ) );
+
+		// a released image is not ordered by level and distance anymore
+		final long version = priority.version();
+		priority.unregister( 1 );
+		assertTrue( priority.version() != version );
+		assertEquals( 1, priority.priority( request( grid, 1, 0, 0, 0 ) ), 0 );
+	}
+
+	private static FetchQueue.Request request( final CellGrid grid, final int imageId, final long x, final long y, final long generation )
+	{
+		final long index = x + grid.getGridDimensions()[ 0 ] * y;
+		return new FetchQueue.Request( imageId, index, 0, generation, false, null, null );
+	}
+
+	private interface Load
+	{
+		void run() throws Exception;
+	}
+
+	private static Thread fetchInThread( final FetchQueue queue, final int imageId, final Load load, final List< Integer > loaded )
+	{
+		final Thread thread = new Thread( () -> {
+			try
+			{
+				queue.fetch( imageId, 0, () -> {
+					load.run();
+					loaded.add( imageId );
+					return null;
+				} );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e );
+			}
+		} );
+		thread.start();
+		return thread;
+	}
+}
@@ -19,10 +19,13 @@ import org.janelia.saalfeldlab.n5.metadata.N5DatasetMetadata;
 import org.janelia.saalfeldlab.n5.metadata.N5SingleScaleMetadata;
 import org.janelia.saalfeldlab.n5.metadata.N5SingleScaleMetadataParser;
 import org.janelia.saalfeldlab.n5.metadata.N5ViewerDatasetMetadataWriter;
+import org.janelia.saalfeldlab.n5.metadata.VolatileMetadataSource;
 import org.junit.Before;
 import org.junit.Test;
 
+import bdv.util.volatiles.SharedQueue;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.ByteArray;
@@ -154,4 +157,23 @@ public class N5SourceFromMetadataTest {
 		assertEquals( "n5v is 3d", 3, srcImg.numDimensions() );
 	}
 
+	@SuppressWarnings( "rawtypes" )
+	@Test
+	public void volatileTest()
+	{
+		final N5CosemMetadataParser p = new N5CosemMetadataParser();
+		final String dataset = testBaseDatasetName + "/cosem";
+
+		final N5CosemMetadata meta = p.parseMetadata(n5, dataset).get();
+		final MetadataSource src = new MetadataSource<>( n5, meta );
+		final VolatileMetadataSource<?, ?> vsrc = src.asVolatile( new SharedQueue( 1 ) );
+
+		assertTrue( "volatile type", vsrc.getType() instanceof Volatile );
+		assertEquals( "volatile nt=1", 1, vsrc.numTimePoints());
+		assertArrayEquals( "same size as non-volatile source",
+				Intervals.dimensionsAsLongArray( src.getSource(0, 0)),
+				Intervals.dimensionsAsLongArray( vsrc.getSource(0, 0)));
+		assertSame( "slices are reused", vsrc.getSource(0, 0), vsrc.getSource(0, 0));
+	}
+
 }
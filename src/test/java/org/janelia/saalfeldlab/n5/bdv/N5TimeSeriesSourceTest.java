@@ -0,0 +1,166 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+public class N5TimeSeriesSourceTest
+{
+	private static final int NUM_TIMEPOINTS = 10;
+
+	private final AtomicIntegerArray opened = new AtomicIntegerArray( NUM_TIMEPOINTS );
+
+	private final AtomicIntegerArray released = new AtomicIntegerArray( NUM_TIMEPOINTS );
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@SuppressWarnings( "unchecked" )
+	private N5TimeSeriesSource< UnsignedByteType > createSource() throws Exception
+	{
+		final N5TimeSeriesSource.TimepointOpener< UnsignedByteType > opener = t -> {
+			opened.incrementAndGet( t );
+			final RandomAccessibleInterval< UnsignedByteType >[] levels = new RandomAccessibleInterval[] { ArrayImgs.unsignedBytes( 8, 8, 8 ) };
+			return new N5TimeSeriesSource.Timepoint<>( levels, null, null, () -> released.incrementAndGet( t ) );
+		};
+
+		return new N5TimeSeriesSource<>(
+				new UnsignedByteType(),
+				"time series",
+				NUM_TIMEPOINTS,
+				opener.open( 0 ).getLevels(),
+				new AffineTransform3D[] { new AffineTransform3D() },
+				new int[][] { { 4, 4, 4 } },
+				opener,
+				null,
+				executor,
+				2,
+				1 );
+	}
+
+	private void awaitReadAhead() throws Exception
+	{
+		executor.submit( () -> {} ).get( 10, TimeUnit.SECONDS );
+	}
+
+	@Test
+	public void testReadAhead() throws Exception
+	{
+		final N5TimeSeriesSource< UnsignedByteType > source = createSource();
+
+		assertTrue( source.isPresent( NUM_TIMEPOINTS - 1 ) );
+		assertFalse( source.isPresent( NUM_TIMEPOINTS ) );
+
+		source.getSource( 5, 0 );
+		awaitReadAhead();
+		assertEquals( "shown timepoint is opened once", 1, opened.get( 5 ) );
+		assertEquals( "showing a timepoint does not read ahead", 0, opened.get( 6 ) );
+
+		source.timePointChanged( 5 );
+		awaitReadAhead();
+		executor.shutdown();
+
+		assertEquals( "shown timepoint is opened once", 1, opened.get( 5 ) );
+		assertEquals( "next timepoints are read ahead", 1, opened.get( 6 ) );
+		assertEquals( 1, opened.get( 7 ) );
+		assertEquals( "timepoints beyond the read-ahead are not opened", 0, opened.get( 8 ) );
+		assertEquals( "previous timepoints are not opened", 0, opened.get( 4 ) );
+	}
+
+	@Test
+	public void testEviction() throws Exception
+	{
+		final N5TimeSeriesSource< UnsignedByteType > source = createSource();
+		final AtomicIntegerArray evicted = new AtomicIntegerArray( NUM_TIMEPOINTS );
+		source.addEvictionListener( evicted::incrementAndGet );
+
+		source.timePointChanged( 1 );
+		source.getSource( 1, 0 );
+		awaitReadAhead();
+		assertEquals( 1, opened.get( 2 ) );
+		assertEquals( 1, opened.get( 3 ) );
+
+		source.timePointChanged( 8 );
+		source.getSource( 8, 0 );
+		awaitReadAhead();
+		assertEquals( "timepoints behind the window are released", 1, released.get( 1 ) );
+		assertEquals( 1, released.get( 2 ) );
+		assertEquals( 1, released.get( 3 ) );
+		assertEquals( 1, evicted.get( 1 ) );
+		assertEquals( "timepoints in the window are kept", 0, released.get( 8 ) );
+		assertEquals( 0, released.get( 9 ) );
+
+		source.getSource( 1, 0 );
+		awaitReadAhead();
+		assertEquals( "released timepoints are opened again", 2, opened.get( 1 ) );
+
+		source.close();
+		executor.shutdown();
+		for ( int t = 1; t < NUM_TIMEPOINTS; ++t )
+			assertEquals( "every opened timepoint is released once", opened.get( t ), released.get( t ) );
+		assertEquals( "the first timepoint is kept", 0, released.get( 0 ) );
+	}
+
+	@Test
+	@SuppressWarnings( "unchecked" )
+	public void testFailedTimepoint() throws Exception
+	{
+		final AtomicReference< Exception > error = new AtomicReference<>();
+		final N5TimeSeriesSource< UnsignedByteType > source = new N5TimeSeriesSource<>(
+				new UnsignedByteType(),
+				"time series",
+				NUM_TIMEPOINTS,
+				new RandomAccessibleInterval[] { ArrayImgs.unsignedBytes( 8, 8, 8 ) },
+				new AffineTransform3D[] { new AffineTransform3D() },
+				new int[][] { { 4, 4, 4 } },
+				t -> {
+					throw new IOException( "missing timepoint " + t );
+				},
+				null,
+				executor,
+				2,
+				1 );
+		source.setErrorHandler( error::set );
+
+		final RandomAccessibleInterval< UnsignedByteType > level = source.getSource( 3, 0 );
+		awaitReadAhead();
+		executor.shutdown();
+		assertEquals( "missing timepoint 3", error.get().getMessage() );
+		assertEquals( 8, level.dimension( 0 ) );
+	}
+
+	@Test
+	public void testOpenInBackground() throws Exception
+	{
+		final N5TimeSeriesSource< UnsignedByteType > source = createSource();
+		final AtomicIntegerArray notified = new AtomicIntegerArray( NUM_TIMEPOINTS );
+		source.addOpenListener( notified::incrementAndGet );
+
+		// the shown timepoint is empty until it is opened in the background
+		final RandomAccessibleInterval< UnsignedByteType > empty = source.getSource( 4, 0 );
+		source.getSource( 4, 0 );
+		awaitReadAhead();
+		assertEquals( "requested timepoint is opened once", 1, opened.get( 4 ) );
+		assertEquals( 1, notified.get( 4 ) );
+
+		final RandomAccessibleInterval< UnsignedByteType > level = source.getSource( 4, 0 );
+		assertNotSame( empty, level );
+		assertSame( level, source.getSource( 4, 0 ) );
+		executor.shutdown();
+	}
+}
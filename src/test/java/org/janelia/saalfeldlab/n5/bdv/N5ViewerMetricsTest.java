@@ -0,0 +1,90 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+public class N5ViewerMetricsTest
+{
+	private static final String DATASET = "volume";
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testMetrics() throws Exception
+	{
+		final Path path = tmp.newFolder().toPath();
+		final N5FSWriter n5 = new N5FSWriter( path.toString() );
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 8, 8 }, new int[] { 4, 4 }, DataType.UINT8, new GzipCompression() );
+		n5.createDataset( DATASET, attributes );
+		n5.writeBlock( DATASET, attributes, new ByteArrayDataBlock( new int[] { 4, 4 }, new long[] { 0, 0 }, new byte[ 16 ] ) );
+
+		final SharedCellCache cache = new SharedCellCache( 1 << 20 );
+		final FetchQueue queue = new FetchQueue( 2 );
+		cache.setFetchQueue( queue );
+		final CachedCellImg< UnsignedByteType, ? > img = cache.openVolatile( n5, DATASET );
+		img.getCache().get( 0L );
+		img.getCache().get( 0L );
+		img.getCache().get( 1L );
+
+		final LoadMetrics metrics = cache.getMetrics( img );
+		assertEquals( 1, metrics.getHitCount() );
+		assertEquals( 2, metrics.getMissCount() );
+		assertEquals( 2, metrics.getBlocksLoaded() );
+		assertEquals( 2, metrics.getQueueWait().getCount() );
+		assertEquals( "blocks read and decoded in one go count as fetched", 2, metrics.getFetch().getCount() );
+		assertEquals( 0, metrics.getDecode().getCount() );
+		assertEquals( "the test thread waited for both loads", 2, metrics.getBlockedCount() );
+		assertEquals( 2, cache.getContainerMetrics( n5 ).getBlocksLoaded() );
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName container;
+		try ( final N5ViewerMetrics beans = new N5ViewerMetrics( cache, queue ) )
+		{
+			beans.addContainer( n5 );
+			container = new ObjectName( N5ViewerMetrics.DOMAIN + ":type=Container,viewer=" + beans.getViewerId() + ",name=" + ObjectName.quote( ImageLanes.laneName( n5 ) ) );
+			final ObjectName viewer = new ObjectName( N5ViewerMetrics.DOMAIN + ":type=Viewer,viewer=" + beans.getViewerId() );
+			assertEquals( 2L, server.getAttribute( container, "BlocksLoaded" ) );
+			assertEquals( 1L, server.getAttribute( viewer, "CacheHits" ) );
+			assertEquals( 0, server.getAttribute( viewer, "QueueDepth" ) );
+			assertEquals( LatencyHistogram.BOUNDS_MILLIS.length + 1, ( ( long[] ) server.getAttribute( container, "FetchHistogram" ) ).length );
+
+			server.invoke( container, "resetStatistics", null, null );
+			assertEquals( 0L, server.getAttribute( container, "BlocksLoaded" ) );
+		}
+		assertFalse( "beans are unregistered when closed", server.isRegistered( container ) );
+		queue.shutdown();
+	}
+
+	@Test
+	public void testQuantile()
+	{
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for ( int i = 0; i < 95; ++i )
+			histogram.record( 200_000 );
+		for ( int i = 0; i < 5; ++i )
+			histogram.record( 20_000_000_000L );
+
+		assertEquals( 100, histogram.getCount() );
+		assertEquals( 0.25, LatencyHistogram.quantileMillis( histogram.getCounts(), 0.95 ), 0 );
+		assertEquals( Double.POSITIVE_INFINITY, LatencyHistogram.quantileMillis( histogram.getCounts(), 1 ), 0 );
+	}
+}
@@ -0,0 +1,60 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import bdv.util.volatiles.SharedQueue;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+
+public class N5VolatileSourceTest {
+
+	static private String testDirPath = System.getProperty("user.home") + "/tmp/n5-test";
+	static private String testDatasetName = "/test/volatileSource";
+
+	private N5FSWriter n5;
+
+	private SharedQueue queue;
+
+	@Before
+	public void before() throws IOException {
+
+		n5 = new N5FSWriter(testDirPath);
+		N5Utils.save(ArrayImgs.unsignedShorts(16, 16, 16), n5, testDatasetName, new int[]{8, 8, 8}, new RawCompression());
+		queue = new SharedQueue(1);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void volatileViewsAreReused() throws IOException {
+
+		final RandomAccessibleInterval<UnsignedShortType> img = N5Utils.openVolatile(n5, testDatasetName);
+		final N5Source<UnsignedShortType> source = new N5Source<>(
+				new UnsignedShortType(),
+				"test",
+				new RandomAccessibleInterval[]{img, img},
+				new AffineTransform3D[]{new AffineTransform3D(), new AffineTransform3D()});
+
+		final N5VolatileSource<UnsignedShortType, VolatileUnsignedShortType> volatileSource = source.asVolatile(queue);
+
+		final RandomAccessibleInterval<VolatileUnsignedShortType> level0 = volatileSource.getSource(0, 0);
+		final RandomAccessibleInterval<VolatileUnsignedShortType> level1 = volatileSource.getSource(0, 1);
+		assertSame("same view for repeated calls", level0, volatileSource.getSource(0, 0));
+		assertSame("same view for repeated calls", level1, volatileSource.getSource(0, 1));
+		assertNotSame("one view per level", level0, level1);
+
+		final RandomAccessibleInterval<VolatileUnsignedShortType> t3 = volatileSource.getSource(3, 0);
+		assertSame("levels that ignore the timepoint share their views", level0, t3);
+		assertSame("same view for repeated calls", level1, volatileSource.getSource(3, 1));
+	}
+}
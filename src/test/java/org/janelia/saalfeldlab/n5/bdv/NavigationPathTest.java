@@ -0,0 +1,34 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+public class NavigationPathTest
+{
+	@Test
+	public void testPath()
+	{
+		final List< AffineTransform3D > path = new NavigationPath( new AffineTransform3D(), 200, 100 )
+				.pan( 40, -20, 4 )
+				.zoom( 2, 3 )
+				.hold( 2 )
+				.getTransforms();
+		assertEquals( 9, path.size() );
+		assertArrayEquals( new double[] { 10, -5, 0 }, path.get( 0 ).getTranslation(), 1e-9 );
+		assertArrayEquals( new double[] { 40, -20, 0 }, path.get( 3 ).getTranslation(), 1e-9 );
+
+		// the zoom keeps the center of the screen in place
+		final double[] center = { 60, 70, 0 };
+		final double[] zoomed = new double[ 3 ];
+		path.get( 6 ).apply( center, zoomed );
+		assertArrayEquals( new double[] { 100, 50, 0 }, zoomed, 1e-9 );
+		assertEquals( 2, path.get( 6 ).get( 0, 0 ), 1e-9 );
+		assertArrayEquals( path.get( 6 ).getRowPackedCopy(), path.get( 8 ).getRowPackedCopy(), 1e-9 );
+	}
+}
@@ -0,0 +1,75 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+public class NavigationTraceTest
+{
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testWriteRead() throws IOException
+	{
+		final NavigationTrace trace = new NavigationTrace( 800, 600 );
+		final AffineTransform3D transform = new AffineTransform3D();
+		for ( int i = 0; i < 10; ++i )
+		{
+			transform.rotate( 2, 0.1 );
+			transform.translate( i, -2 * i, 0.5 );
+			trace.add( 16 * i, i / 4, transform );
+		}
+
+		final Path file = tmp.newFile().toPath();
+		trace.write( file );
+		final NavigationTrace read = NavigationTrace.read( file );
+
+		assertEquals( 800, read.getWidth() );
+		assertEquals( 600, read.getHeight() );
+		assertEquals( 10, read.getSteps().size() );
+		assertEquals( 144, read.getDurationMillis() );
+		for ( int i = 0; i < 10; ++i )
+		{
+			final NavigationTrace.Step expected = trace.getSteps().get( i );
+			final NavigationTrace.Step step = read.getSteps().get( i );
+			assertEquals( expected.getTimeMillis(), step.getTimeMillis() );
+			assertEquals( expected.getTimepoint(), step.getTimepoint() );
+			assertArrayEquals( expected.getViewerTransform().getRowPackedCopy(), step.getViewerTransform().getRowPackedCopy(), 0 );
+		}
+	}
+
+	@Test
+	public void testTruncated() throws IOException
+	{
+		final NavigationTrace trace = new NavigationTrace( 100, 100 );
+		trace.add( 0, 0, new AffineTransform3D() );
+		trace.add( 20, 1, new AffineTransform3D() );
+
+		final Path file = tmp.newFile().toPath();
+		trace.write( file );
+
+		// a session that was killed while the last step was written
+		final byte[] bytes = Files.readAllBytes( file );
+		Files.write( file, Arrays.copyOf( bytes, bytes.length - 10 ) );
+		assertEquals( 1, NavigationTrace.read( file ).getSteps().size() );
+	}
+
+	@Test( expected = IOException.class )
+	public void testNotATrace() throws IOException
+	{
+		final Path file = tmp.newFile().toPath();
+		Files.write( file, "{\"n5\":\"2.5.1\"}".getBytes() );
+		NavigationTrace.read( file );
+	}
+}
@@ -0,0 +1,64 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.cell.Cell;
+
+public class OffHeapCellStoreTest
+{
+	private static final int BUDGET = 1 << 14;
+
+	private static Cell< IntArray > cell( final long index, final int length )
+	{
+		final int[] data = new int[ length ];
+		for ( int i = 0; i < length; ++i )
+			data[ i ] = ( int ) index + i;
+		return new Cell<>( new int[] { length }, new long[] { index * length }, new IntArray( data ) );
+	}
+
+	@Test
+	public void testReuseSlabs()
+	{
+		final OffHeapCellStore store = new OffHeapCellStore( BUDGET );
+		for ( long i = 0; i < 100; ++i )
+			store.put( i, cell( i, 1024 ), 1 );
+
+		assertEquals( "slabs stay within the budget", BUDGET, store.getAllocatedBytes() );
+		assertEquals( 4, store.getNumCells() );
+		assertEquals( 96, store.getEvictionCount() );
+
+		@SuppressWarnings( "unchecked" )
+		final Cell< IntArray > restored = ( Cell< IntArray > ) store.remove( 99L );
+		assertNotNull( restored );
+		assertArrayEquals( cell( 99, 1024 ).getData().getCurrentStorageArray(), restored.getData().getCurrentStorageArray() );
+		assertEquals( 3 * 4096, store.getSizeInBytes() );
+	}
+
+	@Test
+	public void testMergeFreedRegions()
+	{
+		final OffHeapCellStore store = new OffHeapCellStore( BUDGET );
+		for ( long i = 0; i < 64; ++i )
+			store.put( i, cell( i, 64 ), 1 );
+		assertEquals( 64, store.getNumCells() );
+
+		// a cell of the whole budget fits once the small cells are evicted
+		store.put( -1L, cell( -1, BUDGET / 4 ), 1 );
+		assertEquals( 1, store.getNumCells() );
+		assertTrue( store.contains( -1L ) );
+		assertFalse( store.contains( 63L ) );
+		assertEquals( BUDGET, store.getAllocatedBytes() );
+
+		store.clear();
+		assertEquals( 0, store.getSizeInBytes() );
+		store.put( 0L, cell( 0, BUDGET / 4 ), 1 );
+		assertTrue( "cleared regions are reused", store.contains( 0L ) );
+	}
+}
@@ -0,0 +1,262 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ExecutionException;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+public class PipelinedN5ReaderTest
+{
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testPipelinedLoad() throws IOException
+	{
+		final N5FSWriter n5 = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		final ArrayImg< UnsignedShortType, ShortArray > img = writeVolume( n5 );
+		assertTrue( PipelinedN5Reader.supports( n5 ) );
+
+		final FetchQueue queue = new FetchQueue( 2 );
+		final BlockPipeline pipeline = new BlockPipeline( 2, 2 );
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		cache.setFetchQueue( queue );
+		cache.setBlockPipeline( pipeline );
+
+		final CachedCellImg< UnsignedShortType, ? > loaded = cache.openVolatile( n5, "volume" );
+		assertSameValues( img, loaded );
+
+		// every block is fetched and decoded once, nothing is left behind
+		assertEquals( 16, pipeline.getFetchCount() );
+		assertEquals( 16, pipeline.getDecodeCount() );
+		assertEquals( 0, pipeline.getNumBuffered() );
+
+		queue.shutdown();
+		pipeline.shutdown();
+	}
+
+	@Test
+	public void testCompressedTier() throws IOException
+	{
+		final N5FSWriter n5 = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		final ArrayImg< UnsignedShortType, ShortArray > img = writeVolume( n5 );
+
+		// the cell cache holds a single cell, the compressed store all blocks
+		final SharedCellCache cache = new SharedCellCache( SharedCellCache.CELL_OVERHEAD_BYTES + 2 * 16 * 16 * 8 );
+		final CompressedBlockStore store = new CompressedBlockStore( 1 << 20 );
+		cache.setCompressedBlockStore( store );
+
+		final CachedCellImg< UnsignedShortType, ? > loaded = cache.openVolatile( n5, "volume" );
+		assertSameValues( img, loaded );
+		assertEquals( 16, store.getNumBlocks() );
+		assertEquals( 0, store.getHitCount() );
+
+		// evicted cells are decoded from memory, not read from disk
+		n5.remove( "volume/0/0/0" );
+		assertSameValues( img, loaded );
+		assertTrue( store.getHitCount() > 0 );
+		assertEquals( 0, store.getEvictionCount() );
+	}
+
+	@Test
+	public void testCompressedTierOfOtherReaders() throws IOException
+	{
+		final N5FSWriter n5 = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		final ArrayImg< UnsignedShortType, ShortArray > img = writeVolume( n5 );
+		final SimulatedRemoteN5Reader remote = new SimulatedRemoteN5Reader( n5, SimulatedRemoteN5Reader.Conditions.conditions() );
+		assertFalse( PipelinedN5Reader.supports( remote ) );
+
+		final SharedCellCache cache = new SharedCellCache( SharedCellCache.CELL_OVERHEAD_BYTES + 2 * 16 * 16 * 8 );
+		final CompressedBlockStore store = new CompressedBlockStore( 1 << 20 );
+		cache.setCompressedBlockStore( store );
+
+		final CachedCellImg< UnsignedShortType, ? > loaded = cache.openVolatile( remote, "volume" );
+		assertSameValues( img, loaded );
+		assertEquals( 16, store.getNumBlocks() );
+
+		// blocks encoded again are decoded from memory
+		n5.remove( "volume/0/0/0" );
+		assertSameValues( img, loaded );
+		assertTrue( store.getHitCount() > 0 );
+	}
+
+	@Test
+	public void testPooledBuffers() throws IOException
+	{
+		final N5FSWriter n5 = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		final ArrayImg< UnsignedShortType, ShortArray > img = writeVolume( n5 );
+
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		final BlockBufferPool pool = new BlockBufferPool( 1 << 20 );
+		cache.setBufferPool( pool );
+
+		final CachedCellImg< UnsignedShortType, ? > loaded = cache.openVolatile( n5, "volume" );
+		assertSameValues( img, loaded );
+
+		// a decode buffer and a block array per block, all but the first two reused
+		assertEquals( 32, pool.getRequestCount() );
+		assertEquals( 30, pool.getReuseCount() );
+	}
+
+	@Test
+	public void testMappedReads() throws IOException
+	{
+		final N5FSWriter n5 = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		final ArrayImg< UnsignedShortType, ShortArray > img = writeVolume( n5 );
+
+		final FetchQueue queue = new FetchQueue( 2 );
+		final BlockPipeline pipeline = new BlockPipeline( 2, 2 );
+		final MappedBlockCache mappedBlocks = new MappedBlockCache();
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		cache.setFetchQueue( queue );
+		cache.setBlockPipeline( pipeline );
+		cache.setCompressedBlockStore( new CompressedBlockStore( 1 << 20 ) );
+		cache.setMappedBlockCache( mappedBlocks );
+
+		// the blocks of writers are not mapped
+		final N5FSReader reader = new N5FSReader( n5.getBasePath() );
+		assertSameValues( img, cache.openVolatile( reader, "volume" ) );
+
+		// the fetch stage maps each file, the decoder reads the same mapping
+		assertEquals( 16, mappedBlocks.getMapCount() );
+		assertEquals( 16, mappedBlocks.getHitCount() );
+		assertEquals( 16, mappedBlocks.getNumMappedFiles() );
+
+		// nothing is copied to the heap
+		assertEquals( 0, pipeline.getNumBuffered() );
+		assertEquals( 0, cache.getCompressedBlockStore().getNumBlocks() );
+
+		queue.shutdown();
+		pipeline.shutdown();
+	}
+
+	@Test
+	public void testFailedFetch() throws IOException
+	{
+		final N5FSWriter n5 = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		writeVolume( n5 );
+
+		// a block that cannot be read
+		final Path block = Paths.get( n5.getBasePath(), "volume", "0", "0", "0" );
+		Files.delete( block );
+		Files.createDirectory( block );
+
+		final FetchQueue queue = new FetchQueue( 2 );
+		final BlockPipeline pipeline = new BlockPipeline( 2, 2 );
+		final SharedCellCache cache = new SharedCellCache( Long.MAX_VALUE );
+		cache.setFetchQueue( queue );
+		cache.setBlockPipeline( pipeline );
+
+		final CachedCellImg< UnsignedShortType, ? > loaded = cache.openVolatile( n5, "volume" );
+		try
+		{
+			loaded.getCache().get( 0L );
+			fail();
+		}
+		catch ( final ExecutionException e )
+		{
+			// the read failure, not a cancellation
+			assertTrue( e.getCause() instanceof IOException );
+		}
+		assertEquals( 0, cache.getNumCells() );
+
+		queue.shutdown();
+		pipeline.shutdown();
+	}
+
+	@Test
+	public void testRemapChangedFiles() throws IOException
+	{
+		final Path file = tmp.newFile().toPath();
+		Files.write( file, new byte[] { 1, 2, 3 } );
+
+		final MappedBlockCache mappedBlocks = new MappedBlockCache();
+		assertEquals( 3, mappedBlocks.map( file ).remaining() );
+		assertEquals( 3, mappedBlocks.map( file ).remaining() );
+		assertEquals( 1, mappedBlocks.getMapCount() );
+
+		// a rewritten file is mapped again
+		Files.write( file, new byte[] { 4, 5 } );
+		Files.setLastModifiedTime( file, FileTime.fromMillis( 0 ) );
+		final ByteBuffer buffer = mappedBlocks.map( file );
+		assertEquals( 2, buffer.remaining() );
+		assertEquals( 4, buffer.get() );
+		assertEquals( 2, mappedBlocks.getMapCount() );
+		assertEquals( 2, mappedBlocks.getMappedBytes() );
+
+		Files.delete( file );
+		assertNull( mappedBlocks.map( file ) );
+		assertEquals( 0, mappedBlocks.getNumMappedFiles() );
+	}
+
+	@Test
+	public void testTruncatedMapping() throws IOException
+	{
+		final Path file = tmp.newFile().toPath();
+		Files.write( file, new byte[] { 1, 2, 3 } );
+
+		final MappedBlockCache mappedBlocks = new MappedBlockCache();
+		final ByteBuffer mapped = mappedBlocks.map( file );
+		assertEquals( 1, mappedBlocks.getNumMappedFiles() );
+		try
+		{
+			// what reading a truncated mapping throws
+			mappedBlocks.read( file, mapped, b -> {
+				throw new InternalError( "a fault occurred in an unsafe memory access operation" );
+			} );
+			fail( "a truncated mapping fails with an IOException" );
+		}
+		catch ( final IOException e )
+		{
+			assertTrue( e.getCause() instanceof InternalError );
+		}
+		assertEquals( "the mapping is dropped", 0, mappedBlocks.getNumMappedFiles() );
+	}
+
+	private static ArrayImg< UnsignedShortType, ShortArray > writeVolume( final N5FSWriter n5 ) throws IOException
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( 64, 64, 8 );
+		int i = 0;
+		for ( final UnsignedShortType t : img )
+			t.set( i++ % 65536 );
+		N5Utils.save( img, n5, "volume", new int[] { 16, 16, 8 }, new GzipCompression() );
+		return img;
+	}
+
+	private static void assertSameValues( final ArrayImg< UnsignedShortType, ShortArray > img, final CachedCellImg< UnsignedShortType, ? > loaded )
+	{
+		final Cursor< UnsignedShortType > expected = img.localizingCursor();
+		final RandomAccess< UnsignedShortType > actual = loaded.randomAccess();
+		while ( expected.hasNext() )
+		{
+			expected.fwd();
+			actual.setPosition( expected );
+			assertEquals( expected.get().get(), actual.get().get() );
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+public class SharedCellCacheTest
+{
+	private static final int CELL_SIZE = 100;
+
+	private static final long CELL_BYTES = SharedCellCache.CELL_OVERHEAD_BYTES + CELL_SIZE;
+
+	private final AtomicInteger numLoads = new AtomicInteger();
+
+	private final CacheLoader< Long, Cell< ByteArray > > loader = index -> {
+		numLoads.incrementAndGet();
+		return new Cell<>( new int[] { CELL_SIZE }, new long[] { index * CELL_SIZE }, new ByteArray( CELL_SIZE ) );
+	};
+
+	@Test
+	public void testHitsAndMisses() throws Exception
+	{
+		final SharedCellCache cache = new SharedCellCache( 10 * CELL_BYTES );
+		final LoaderCache< Long, Cell< ByteArray > > a = cache.forImage();
+		final LoaderCache< Long, Cell< ByteArray > > b = cache.forImage();
+
+		final Cell< ByteArray > a0 = a.get( 0L, loader );
+		assertSame( a0, a.get( 0L, loader ) );
+		assertNotNull( "images have separate keys", b.get( 0L, loader ) );
+
+		assertEquals( 2, numLoads.get() );
+		assertEquals( 1, cache.getHitCount() );
+		assertEquals( 2, cache.getMissCount() );
+		assertEquals( 2 * CELL_BYTES, cache.getSizeInBytes() );
+	}
+
+	@Test( timeout = 10000 )
+	public void testJoinedLoads() throws Exception
+	{
+		final SharedCellCache cache = new SharedCellCache( 10 * CELL_BYTES );
+		final LoaderCache< Long, Cell< ByteArray > > a = cache.forImage();
+
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch proceed = new CountDownLatch( 1 );
+		final CacheLoader< Long, Cell< ByteArray > > slowLoader = index -> {
+			started.countDown();
+			proceed.await();
+			return loader.get( index );
+		};
+
+		final ExecutorService threads = Executors.newFixedThreadPool( 2 );
+		final Future< Cell< ByteArray > > first = threads.submit( () -> a.get( 0L, slowLoader ) );
+		started.await();
+		final Future< Cell< ByteArray > > second = threads.submit( () -> a.get( 0L, slowLoader ) );
+		while ( cache.getJoinedCount() == 0 )
+			Thread.sleep( 1 );
+		proceed.countDown();
+		assertSame( first.get(), second.get() );
+
+		// the request that waited for the load is not a hit
+		assertEquals( 1, numLoads.get() );
+		assertEquals( 0, cache.getHitCount() );
+		assertEquals( 1, cache.getMissCount() );
+		assertEquals( 1, cache.getJoinedCount() );
+		assertEquals( 0, cache.getHitRate(), 0 );
+		threads.shutdown();
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() throws Exception
+	{
+		final SharedCellCache cache = new SharedCellCache( 2 * CELL_BYTES );
+		final LoaderCache< Long, Cell< ByteArray > > a = cache.forImage();
+		final LoaderCache< Long, Cell< ByteArray > > b = cache.forImage();
+
+		a.get( 0L, loader );
+		b.get( 0L, loader );
+		a.get( 0L, loader );
+		a.get( 1L, loader );
+
+		assertEquals( "shared budget holds two cells", 2, cache.getNumCells() );
+		assertEquals( 1, cache.getEvictionCount() );
+		assertNull( "least recently used cell is evicted", b.getIfPresent( 0L ) );
+		assertNotNull( a.getIfPresent( 0L ) );
+		assertNotNull( a.getIfPresent( 1L ) );
+		assertEquals( 2 * CELL_BYTES, cache.getSizeInBytes() );
+
+		a.invalidateAll();
+		assertEquals( 0, cache.getNumCells() );
+		assertEquals( 0, cache.getSizeInBytes() );
+	}
+
+	@Test
+	public void testOffHeapStore() throws Exception
+	{
+		final OffHeapCellStore offHeap = new OffHeapCellStore( 10 * CELL_SIZE );
+		final SharedCellCache cache = new SharedCellCache( CELL_BYTES, offHeap );
+		final LoaderCache< Long, Cell< ByteArray > > a = cache.forImage( 1 );
+
+		final Cell< ByteArray > a0 = a.get( 0L, loader );
+		a0.getData().setValue( 7, ( byte ) 42 );
+		a.get( 1L, loader );
+
+		assertEquals( "evicted cell is moved off-heap", 1, offHeap.getNumCells() );
+		assertEquals( CELL_SIZE, offHeap.getSizeInBytes() );
+
+		final Cell< ByteArray > restored = a.get( 0L, loader );
+		assertEquals( "restored cell is not loaded again", 2, numLoads.get() );
+		assertEquals( 1, offHeap.getHitCount() );
+		assertEquals( 42, restored.getData().getValue( 7 ) );
+		assertEquals( CELL_SIZE, restored.getData().getArrayLength() );
+
+		final long[] min = new long[ 1 ];
+		restored.min( min );
+		assertEquals( 0, min[ 0 ] );
+	}
+
+	@Test( timeout = 10000 )
+	public void testPrefetchOfPendingCell() throws Exception
+	{
+		final SharedCellCache cache = new SharedCellCache( 10 * CELL_BYTES );
+		// prefetches first, so that the prefetch of a cell is taken before
+		// the request that loads it
+		final FetchQueue queue = new FetchQueue( 1, request -> request.isPrefetch() ? 0 : 1 );
+		cache.setFetchQueue( queue );
+		final LoaderCache< Long, Cell< ByteArray > > a = cache.forImage();
+
+		// keep the only worker busy until both requests are queued
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch proceed = new CountDownLatch( 1 );
+		queue.prefetch( -1, 0, () -> {
+			started.countDown();
+			proceed.await();
+			return null;
+		} );
+		started.await();
+
+		final ExecutorService renderer = Executors.newSingleThreadExecutor();
+		final Future< Cell< ByteArray > > rendered = renderer.submit( () -> a.get( 0L, loader ) );
+		while ( queue.getNumPending() == 0 )
+			Thread.sleep( 1 );
+		final Future< Cell< ByteArray > > prefetched = queue.prefetch( -1, 0, () -> a.get( 0L, loader ) );
+		proceed.countDown();
+
+		// the worker loads the cell instead of waiting for the request behind it
+		assertNotNull( "a worker never gets a missing cell", prefetched.get() );
+		assertNotNull( rendered.get() );
+		assertEquals( 1, numLoads.get() );
+
+		renderer.shutdown();
+		queue.shutdown();
+	}
+
+	@Test( timeout = 10000 )
+	public void testLoadDuringReleaseIsNotInserted() throws Exception
+	{
+		final SharedCellCache cache = new SharedCellCache( 10 * CELL_BYTES );
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch proceed = new CountDownLatch( 1 );
+		final CachedCellImg< UnsignedByteType, ? > img = cache.createVolatile( new CellGrid( new long[] { CELL_SIZE }, new int[] { CELL_SIZE } ), new UnsignedByteType(), cell -> {
+			started.countDown();
+			proceed.await();
+		}, null );
+
+		final ExecutorService renderer = Executors.newSingleThreadExecutor();
+		final Future< ? > rendered = renderer.submit( () -> img.getCache().get( 0L ) );
+		started.await();
+		cache.release( img );
+		proceed.countDown();
+
+		assertNotNull( rendered.get() );
+		assertEquals( "the cell of a released image is not inserted", 0, cache.getNumCells() );
+		assertEquals( 0, cache.getSizeInBytes() );
+		renderer.shutdown();
+	}
+
+	@Test( timeout = 10000 )
+	public void testBackgroundRequestIsHandedOff() throws Exception
+	{
+		final SharedCellCache cache = new SharedCellCache( 10 * CELL_BYTES );
+		final FetchQueue queue = new FetchQueue( 1 );
+		cache.setFetchQueue( queue );
+		final LoaderCache< Long, Cell< ByteArray > > a = cache.forImage();
+
+		// keep the only worker busy, a request that waited for it would hang
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch proceed = new CountDownLatch( 1 );
+		queue.prefetch( -1, 0, () -> {
+			started.countDown();
+			proceed.await();
+			return null;
+		} );
+		started.await();
+
+		final CountDownLatch resumed = new CountDownLatch( 1 );
+		SharedCellCache.callInBackground( () -> a.get( 0L, loader ), false, resumed::countDown );
+		assertEquals( "the request returns before the cell is loaded", 0, numLoads.get() );
+		assertEquals( 1, queue.getNumPending() );
+
+		proceed.countDown();
+		resumed.await();
+		assertNotNull( "the cell is inserted before the request is resumed", a.getIfPresent( 0L ) );
+
+		// the repeated request is not counted again
+		SharedCellCache.callInBackground( () -> a.get( 0L, loader ), true, () -> {} );
+		assertEquals( 1, numLoads.get() );
+		assertEquals( 1, cache.getMissCount() );
+		assertEquals( 0, cache.getHitCount() );
+
+		queue.shutdown();
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void testBackgroundRequestFails() throws Exception
+	{
+		// failures that the cache did not cause are passed on
+		SharedCellCache.callInBackground( () -> {
+			throw new IllegalStateException( new ExecutionException( "not handed off", null ) );
+		}, false, () -> {} );
+	}
+}
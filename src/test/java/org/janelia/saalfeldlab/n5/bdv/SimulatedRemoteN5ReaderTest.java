@@ -0,0 +1,103 @@
+package org.janelia.saalfeldlab.n5.bdv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.bdv.SimulatedRemoteN5Reader.Conditions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SimulatedRemoteN5ReaderTest
+{
+	private static final String DATASET = "volume";
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private N5FSWriter writeBlock( final DatasetAttributes attributes, final byte[] data ) throws IOException
+	{
+		final N5FSWriter n5 = new N5FSWriter( tmp.newFolder().getAbsolutePath() );
+		n5.createDataset( DATASET, attributes );
+		n5.writeBlock( DATASET, attributes, new ByteArrayDataBlock( new int[] { 64, 64 }, new long[] { 0, 0 }, data ) );
+		return n5;
+	}
+
+	@Test
+	public void testLatencyAndBandwidth() throws IOException
+	{
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 64, 64 }, new int[] { 64, 64 }, DataType.UINT8, new RawCompression() );
+		final byte[] data = new byte[ 64 * 64 ];
+		data[ 5 ] = 3;
+		final N5FSWriter n5 = writeBlock( attributes, data );
+		final long fileSize = Files.size( Paths.get( n5.getBasePath(), DATASET, "0", "0" ) );
+
+		// 40 ms latency, and 40 ms to transfer the block
+		final SimulatedRemoteN5Reader remote = new SimulatedRemoteN5Reader( n5, Conditions.conditions()
+				.latency( 40, TimeUnit.MILLISECONDS )
+				.bandwidthInBytesPerSecond( fileSize * 25 ) );
+
+		final long start = System.nanoTime();
+		assertArrayEquals( data, ( byte[] ) remote.readBlock( DATASET, attributes, 0, 0 ).getData() );
+		assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 80 ) );
+		assertEquals( fileSize, remote.getBytesRead() );
+		assertEquals( 1, remote.getBlockCount() );
+
+		// missing blocks take the latency, but transfer nothing
+		assertNull( remote.readBlock( DATASET, attributes, 1, 1 ) );
+		assertEquals( fileSize, remote.getBytesRead() );
+		assertEquals( 2, remote.getRequestCount() );
+	}
+
+	@Test
+	public void testFailures() throws IOException
+	{
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 64, 64 }, new int[] { 64, 64 }, DataType.UINT8, new RawCompression() );
+		final N5FSWriter n5 = writeBlock( attributes, new byte[ 64 * 64 ] );
+		final SimulatedRemoteN5Reader remote = new SimulatedRemoteN5Reader( n5, Conditions.conditions().failureRate( 1 ) );
+
+		// attributes are still read, blocks fail
+		assertNotNull( remote.getDatasetAttributes( DATASET ) );
+		try
+		{
+			remote.readBlock( DATASET, attributes, 0, 0 );
+			fail( "block read did not fail" );
+		}
+		catch ( final IOException e )
+		{
+			assertEquals( 1, remote.getFailureCount() );
+		}
+	}
+
+	@Test
+	public void testDecorateBelowDiskCache() throws IOException
+	{
+		final DatasetAttributes attributes = new DatasetAttributes( new long[] { 64, 64 }, new int[] { 64, 64 }, DataType.UINT8, new RawCompression() );
+		final N5FSWriter n5 = writeBlock( attributes, new byte[ 64 * 64 ] );
+		final Path cachePath = tmp.newFolder().toPath();
+		final DiskCachedN5Reader cached = new DiskCachedN5Reader( n5, new DiskCache( cachePath.toString(), 1 << 20 ), "https://example.org/container.n5" );
+
+		final N5Reader decorated = N5ViewerOptions.options()
+				.simulatedRemote( Conditions.conditions().latency( 1, TimeUnit.MILLISECONDS ) )
+				.decorateReader( cached );
+		assertTrue( decorated instanceof DiskCachedN5Reader );
+		assertTrue( ( ( DiskCachedN5Reader ) decorated ).getRemoteReader() instanceof SimulatedRemoteN5Reader );
+		assertEquals( cached.getContainerKey(), ( ( DiskCachedN5Reader ) decorated ).getContainerKey() );
+	}
+}